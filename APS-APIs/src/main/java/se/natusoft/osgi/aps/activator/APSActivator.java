@@ -32,6 +32,7 @@
  *     tommy ()
  *         Changes:
  *         2013-08-02: Created!
+ *         2026-10-18: Interaction remembers its state and signals APSConditions on change.
  *
  */
 package se.natusoft.osgi.aps.activator;
@@ -1441,7 +1442,7 @@ public class APSActivator implements BundleActivator, OnServiceAvailable, OnTime
      */
     private class Interaction implements APSActivatorInteraction {
 
-        private State state = DEFAULT_VALUE;
+        private volatile State state = DEFAULT_VALUE;
 
         private Map<State, Runnable> stateHandlers = new HashMap<>();
 
@@ -1452,6 +1453,9 @@ public class APSActivator implements BundleActivator, OnServiceAvailable, OnTime
          */
         @Override
         public void setState( State state ) {
+            this.state = state;
+            APSCondition.signalAll();
+
             Runnable stateHandler = this.stateHandlers.get( state );
             if ( stateHandler != null ) {
                 try {
@@ -32,14 +32,17 @@
  *     tommy ()
  *         Changes:
  *         2017-01-05: Created!
+ *         2026-10-18: whenState(...).
  *
  */
 package se.natusoft.osgi.aps.activator;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
+import se.natusoft.osgi.aps.util.APSCondition;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * This should be injected with @Managed. When this is available APSActivator will not by default register the service with
@@ -103,6 +106,17 @@ public interface APSActivatorInteraction {
      */
     void setStateHandler( State state, Runnable handler );
 
+    /**
+     * Returns a future completed when the specified state is set, which is immediately if it is the current
+     * state. Implementations must call APSCondition.signalAll() on each state change for this to work.
+     * Cancel the future, or use orTimeout(...) on it, to stop waiting.
+     *
+     * @param state The state to wait for.
+     */
+    default CompletableFuture<Void> whenState( State state ) {
+        return new APSCondition( () -> getState() == state ).future();
+    }
+
     /**
      * Registers the _managedClass_ as an OSGi service.
      *
@@ -32,13 +32,20 @@
  *     tommy ()
  *         Changes:
  *         2018-05-26: Created!
+ *         2026-10-18: Bulk operations.
  *
  */
 package se.natusoft.osgi.aps.api.core.store;
 
+import se.natusoft.osgi.aps.api.messaging.APSBatchResultHandler;
 import se.natusoft.osgi.aps.types.APSHandler;
 import se.natusoft.osgi.aps.types.APSResult;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * This defines a data storage service. It says nothing about persistence nor about networking / cluster.
  *
@@ -81,4 +88,59 @@ public interface APSDataStoreService {
      */
     void remove( String key, APSHandler<APSResult<Object>> result );
 
+    /**
+     * Stores several values. Implementations should pipeline the stores rather than waiting for each
+     * before making the next. This default just makes one store(...) per value.
+     *
+     * @param values The values to store by key.
+     * @param result Called once when all are stored, with the first failure if any failed.
+     */
+    @SuppressWarnings( "unchecked" )
+    default void storeAll( Map<String, Object> values, APSHandler<APSResult> result ) {
+
+        APSBatchResultHandler batch = new APSBatchResultHandler( values.size(), result );
+
+        values.forEach( ( key, value ) -> store( key, value, batch ) );
+    }
+
+    /**
+     * Retrieves several values. Implementations should pipeline the retrievals rather than waiting for
+     * each before making the next. This default just makes one retrieve(...) per key.
+     *
+     * @param keys The keys of the values to retrieve.
+     * @param handler Called once when all are retrieved, with the values by key, or with the first
+     *                failure if any failed. Keys without value map to null.
+     */
+    @SuppressWarnings( "unchecked" )
+    default void retrieveAll( Collection<String> keys, APSHandler<APSResult<Map<String, Object>>> handler ) {
+
+        Map<String, Object> values = Collections.synchronizedMap( new LinkedHashMap<>() );
+
+        APSBatchResultHandler batch = new APSBatchResultHandler( keys.size(), ( APSHandler<APSResult> ) res ->
+                handler.handle( res.success() ? APSResult.success( values ) : APSResult.failure( res.failure() ) )
+        );
+
+        keys.forEach( key -> retrieve( key, res -> {
+            if ( res.success() ) {
+                values.put( key, res.result().content() );
+            }
+            batch.handle( res );
+        } ) );
+    }
+
+    /**
+     * Removes several values. Implementations should pipeline the removals rather than waiting for each
+     * before making the next. This default just makes one remove(...) per key.
+     *
+     * @param keys The keys of the values to remove.
+     * @param result Called once when all are removed, with the first failure if any failed.
+     */
+    @SuppressWarnings( "unchecked" )
+    default void removeAll( Collection<String> keys, APSHandler<APSResult> result ) {
+
+        APSBatchResultHandler batch = new APSBatchResultHandler( keys.size(), result );
+
+        keys.forEach( key -> remove( key, ( APSHandler ) batch ) );
+    }
+
 }
@@ -0,0 +1,99 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS APIs
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         Provides the APIs for the application platform services.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.api.messaging;
+
+import se.natusoft.docutations.NotNull;
+
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * A companion API to APSBus that returns CompletionStage and Flow.Publisher instead of taking
+ * handlers. This makes it easy to compose several calls, like requesting from several services
+ * and joining the results, without nesting closures.
+ *
+ * The same service that provides APSBus also provides this API, so target and message rules
+ * are exactly the same as for APSBus.
+ */
+public interface APSAsyncBus {
+
+    /**
+     * Sends a message.
+     *
+     * @param target The target to send to.
+     * @param message The message to send.
+     *
+     * @return A stage that completes when the message have been sent, or exceptionally on failure.
+     */
+    CompletionStage<Void> sendAsync( @NotNull String target, @NotNull Map<String, Object> message );
+
+    /**
+     * Sends a message and expects to get a response message back. The default request timeout is used.
+     *
+     * @param target The target to send to.
+     * @param message The message to send.
+     *
+     * @return A stage that completes with the reply, or exceptionally on failure or timeout.
+     */
+    CompletionStage<Map<String, Object>> requestAsync( @NotNull String target, @NotNull Map<String, Object> message );
+
+    /**
+     * Sends a message and expects to get a response message back.
+     *
+     * @param target The target to send to.
+     * @param message The message to send.
+     * @param timeOutSec The number of seconds to wait for a reply before failing.
+     *
+     * @return A stage that completes with the reply, or exceptionally on failure or timeout.
+     */
+    CompletionStage<Map<String, Object>> requestAsync( @NotNull String target, @NotNull Map<String, Object> message,
+                                                       int timeOutSec );
+
+    /**
+     * Returns a publisher of messages sent to a target. Each Flow.Subscriber subscribed to the
+     * publisher gets its own subscription on the bus, which is released on cancel.
+     *
+     * Messages are only delivered as requested by Flow.Subscription.request(n). Messages received
+     * while there is no demand are buffered up to a limit. When the buffer is full the oldest
+     * messages are dropped. So a slow subscriber will lose messages rather than make the bus
+     * buffer without bound.
+     *
+     * @param target The target to subscribe to.
+     */
+    Flow.Publisher<Map<String, Object>> subscribeFlow( @NotNull String target );
+}
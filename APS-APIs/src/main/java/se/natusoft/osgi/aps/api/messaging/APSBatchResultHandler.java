@@ -0,0 +1,121 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS APIs
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         Provides the APIs for the application platform services.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.api.messaging;
+
+import se.natusoft.docutations.Nullable;
+import se.natusoft.osgi.aps.types.APSHandler;
+import se.natusoft.osgi.aps.types.APSResult;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Aggregates the results of the sends of a batch into one result.
+ *
+ * This is passed as result handler to each send of a batch. When all sends have reported, the
+ * wrapped handler is called once: with success if all sends succeeded, otherwise with the
+ * first failure.
+ */
+@SuppressWarnings( { "rawtypes", "unchecked" } )
+public class APSBatchResultHandler implements APSHandler<APSResult> {
+
+    //
+    // Private Members
+    //
+
+    /** The handler to report the aggregated result to. */
+    private APSHandler<APSResult> resultHandler;
+
+    /** The number of results still to receive. */
+    private AtomicInteger remaining;
+
+    /** The first failure received. */
+    private AtomicReference<Exception> failure = new AtomicReference<>();
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Creates a new APSBatchResultHandler.
+     *
+     * @param expected The number of results to expect.
+     * @param resultHandler The handler to report aggregated result to. Can be null.
+     */
+    public APSBatchResultHandler( int expected, @Nullable APSHandler resultHandler ) {
+        this.resultHandler = resultHandler;
+        this.remaining = new AtomicInteger( expected );
+
+        if ( expected <= 0 ) {
+            report();
+        }
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Receives the result of one send.
+     *
+     * @param result The result to handle.
+     */
+    @Override
+    public void handle( @Nullable APSResult result ) {
+
+        if ( result != null && !result.success() ) {
+            this.failure.compareAndSet( null, result.failure() );
+        }
+
+        if ( this.remaining.decrementAndGet() == 0 ) {
+            report();
+        }
+    }
+
+    /**
+     * Reports the aggregated result.
+     */
+    private void report() {
+
+        if ( this.resultHandler != null ) {
+
+            Exception failure = this.failure.get();
+
+            this.resultHandler.handle( failure == null ? APSResult.success( null ) : APSResult.failure( failure ) );
+        }
+    }
+}
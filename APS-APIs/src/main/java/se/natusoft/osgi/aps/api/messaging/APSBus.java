@@ -43,6 +43,7 @@ import se.natusoft.osgi.aps.types.APSHandler;
 import se.natusoft.osgi.aps.types.APSResult;
 import se.natusoft.osgi.aps.types.ID;
 
+import java.util.List;
 import java.util.Map;
 
 public interface APSBus {
@@ -58,6 +59,28 @@ public interface APSBus {
     void send( @NotNull String target, @NotNull Map<String, Object> message,
                @Optional @Nullable APSHandler<APSResult<?>> resultHandler );
 
+    /**
+     * Sends a batch of messages to the same target. This is intended for services that send many
+     * small messages, and lets the routers handle the whole batch at once, which is cheaper than
+     * sending the messages one by one.
+     *
+     * The default just sends each message with send(...).
+     *
+     * @param target The target to send to.
+     * @param messages The messages to send. Only JSON structures allowed and top level has to be an object.
+     * @param resultHandler Called once with success if all messages were sent, otherwise with the first failure.
+     */
+    @SuppressWarnings( "unchecked" )
+    default void sendBatch( @NotNull String target, @NotNull List<Map<String, Object>> messages,
+                            @Optional @Nullable APSHandler<APSResult<?>> resultHandler ) {
+
+        APSBatchResultHandler batchResultHandler = new APSBatchResultHandler( messages.size(), resultHandler );
+
+        for ( Map<String, Object> message : messages ) {
+            send( target, message, result -> batchResultHandler.handle( result ) );
+        }
+    }
+
     /**
      * Subscribes to messages to a target.
      *
@@ -103,6 +126,9 @@ public interface APSBus {
     /**
      * Replies to a received message.
      *
+     * Any 'aps.correlationId' header of replyTo must be copied to the reply since request(...)
+     * can use it to match the reply to the request.
+     *
      * @param replyTo The received message to reply to.
      * @param reply The reply.
      * @param resultHandler The result of sending reply.
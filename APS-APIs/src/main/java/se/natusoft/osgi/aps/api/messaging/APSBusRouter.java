@@ -41,6 +41,7 @@ import se.natusoft.osgi.aps.types.APSHandler;
 import se.natusoft.osgi.aps.types.APSResult;
 import se.natusoft.osgi.aps.types.ID;
 
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -58,8 +59,10 @@ import java.util.Map;
  *
  * Also note that when implementing the APSBusRouter API the target should be used to determine if the
  * message is for this implementation to handle! APSBus will pass messages to **ALL** bus
- * routers! This does not mean that **ALL** should handle / send the message! The APSLocalInMemoryBus
- * (implements this interface) for example reacts on targets starting with "local:".
+ * routers that does not declare their target ids via targetIds()! This does not mean that **ALL**
+ * should handle / send the message! The APSLocalInMemoryBus (implements this interface) for example
+ * reacts on targets starting with "local:". Routers that do declare their target ids will only be
+ * passed messages for those ids.
  *
  * The general format of target is 'id:address'. The APSTarget class supports that. The 'id'
  * part should be constant for each implementation. It identifies a specific implementation,
@@ -98,6 +101,33 @@ public interface APSBusRouter {
     boolean send( @NotNull String target, @NotNull Map<String, Object> message,
                   @Optional @Nullable APSHandler<APSResult/*<?>*/> resultHandler );
 
+    /**
+     * Sends a batch of messages to the same target. The result handler is called once with the
+     * aggregated result: success if all messages were sent, otherwise the first failure.
+     *
+     * The default sends each message with send(...). Implementations should override this if they
+     * can do it cheaper, like coalescing the batch into fewer transport writes.
+     *
+     * @param target        The target to send to.
+     * @param messages      The messages to send. APSBusProvider never passes an empty batch.
+     * @param resultHandler The handler to call with the aggregated result. Can be null!
+     *
+     * @return true if target is valid for this router, false otherwise.
+     */
+    @SuppressWarnings( "unchecked" )
+    default boolean sendBatch( @NotNull String target, @NotNull List<Map<String, Object>> messages,
+                               @Optional @Nullable APSHandler<APSResult/*<?>*/> resultHandler ) {
+
+        APSBatchResultHandler batchResultHandler = new APSBatchResultHandler( messages.size(), resultHandler );
+
+        boolean valid = false;
+        for ( Map<String, Object> message : messages ) {
+            valid = send( target, message, batchResultHandler );
+        }
+
+        return valid;
+    }
+
     /**
      * Subscribes to messages to a target.
      *
@@ -130,4 +160,19 @@ public interface APSBusRouter {
      */
     boolean required();
 
+    /**
+     * Returns the target ids (the part of the target before the first ':') this router reacts on.
+     * APSBusProvider uses this to build a routing index that is only rebuilt when routers come and
+     * go, so that each call is only passed to the routers that actually claimed the target id.
+     * A router that supports "all:" targets should include "all".
+     *
+     * The default returns null, which means that the router is not indexed and will be passed all
+     * calls, just like before, and has to use the target to determine if it should act on the call.
+     *
+     * @return The supported target ids or null if not known.
+     */
+    default String[] targetIds() {
+        return null;
+    }
+
 }
@@ -0,0 +1,72 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS APIs
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         Provides the APIs for the application platform services.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.api.metrics;
+
+/**
+ * A histogram of recorded values, usually latencies in nanoseconds. Recording can be done
+ * concurrently without allocation. Percentiles are approximate, within a few percent.
+ */
+public interface APSHistogram {
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     *
+     * @param value The value to record.
+     */
+    void record( long value );
+
+    /**
+     * Records the time since a System.nanoTime() value.
+     *
+     * @param startNanos A value from System.nanoTime() taken at start.
+     */
+    default void recordSince( long startNanos ) {
+        record( System.nanoTime() - startNanos );
+    }
+
+    /**
+     * @return The number of recorded values.
+     */
+    long getCount();
+
+    /**
+     * Returns the approximate value at a percentile.
+     *
+     * @param percentile The percentile, 0.0 - 100.0.
+     */
+    long valueAt( double percentile );
+}
@@ -0,0 +1,91 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS APIs
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         Provides the APIs for the application platform services.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.api.metrics;
+
+import se.natusoft.docutations.NotNull;
+
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A registry of named metrics.
+ *
+ * Counters and histograms are looked up by name once and then kept by the code that records into
+ * them. Recording into them does not allocate, so they can be used on hot paths. Looking them up
+ * by name is not meant for the hot path.
+ *
+ * Names are dot separated, like "aps.bus.sent". A name identifies one metric, so asking for a
+ * counter with a name that is already a histogram is an error.
+ */
+public interface APSMetrics {
+
+    /**
+     * Returns the counter with the specified name, creating it if it does not exist.
+     *
+     * @param name The name of the counter.
+     */
+    APSCounter counter( @NotNull String name );
+
+    /**
+     * Returns the histogram with the specified name, creating it if it does not exist.
+     *
+     * @param name The name of the histogram.
+     */
+    APSHistogram histogram( @NotNull String name );
+
+    /**
+     * Registers a gauge, a value read when a snapshot is taken. A gauge with the same name is replaced.
+     *
+     * @param name The name of the gauge.
+     * @param value Supplies the current value.
+     */
+    void gauge( @NotNull String name, @NotNull Supplier<Number> value );
+
+    /**
+     * Removes a metric of any kind.
+     *
+     * @param name The name of the metric to remove.
+     */
+    void remove( @NotNull String name );
+
+    /**
+     * Returns a snapshot of all metrics as a JSON structure. Each metric name maps to a number for
+     * counters and gauges, and to an object with "count", "min", "max", "mean", "p50", "p90", "p99"
+     * and "p999" for histograms.
+     */
+    Map<String, Object> snapshot();
+}
@@ -120,6 +120,7 @@ public interface APS {
                 String Time = "time";
                 String Messaging = "messaging";
                 String Storage = "storage";
+                String Monitoring = "monitoring";
             }
 
             interface PersistenceScope {
@@ -32,16 +32,19 @@
  *     Tommy Svensson (tommy@natusoft.se)
  *         Changes:
  *         2011-08-30: Created!
+ *         2026-10-18: Signals APSConditions on service changes.
  *
  */
 package se.natusoft.osgi.aps.tracker;
 
 import org.osgi.framework.*;
+import se.natusoft.osgi.aps.util.APSCondition;
 import se.natusoft.osgi.aps.util.APSLogger;
 
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -580,6 +583,9 @@ public class APSServiceTracker<Service> implements ServiceListener {
 
         this.logger.debug( "this.active=" + this.active );
         this.logger.debug( "this.hasTrackedServcies=" + this.trackedServices.hasServices() );
+
+        // Anyone waiting for something depending on services gets to check it now.
+        APSCondition.signalAll();
     }
 
     /**
@@ -615,6 +621,15 @@ public class APSServiceTracker<Service> implements ServiceListener {
         return this.active.hasActiveService();
     }
 
+    /**
+     * Returns a future completed when there is a tracked service, which is immediately if there already is one.
+     * No thread is blocked waiting for it. Cancel the future, or use orTimeout(...) on it, to stop waiting.
+     */
+    public CompletableFuture<Void> whenServiceAvailable() {
+
+        return new APSCondition( this::hasTrackedService ).future();
+    }
+
     /**
      * @return The bundle context passed to this class on construction.
      */
@@ -1054,7 +1069,7 @@ public class APSServiceTracker<Service> implements ServiceListener {
          */
         private void callbackOnServiceAvailable( ServiceReference serviceRef ) {
 
-            this.onServiceAvailable.forEach( ( osa ) -> new OnServiceRunner( serviceRef, osa ) );
+            this.onServiceAvailable.forEach( ( osa ) -> new OnServiceRunner( serviceRef, osa ).run() );
 
         }
 
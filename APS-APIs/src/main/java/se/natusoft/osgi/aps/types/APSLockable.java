@@ -32,6 +32,7 @@
  *     tommy ()
  *         Changes:
  *         2018-05-26: Created!
+ *         2026-10-18: Leases, tryLock(...) and fencing tokens.
  *
  */
 package se.natusoft.osgi.aps.types;
@@ -45,14 +46,32 @@ import se.natusoft.osgi.aps.types.APSResult;
 public interface APSLockable<ID> {
 
     /**
-     * Acquires a lock, and on success also provides an APSLock instance. Do note that even if the APSLock instance
-     * is not used to release the lock, the lock should be released before the return of this method call!
+     * Acquires a lock, and on success also provides an APSLock instance. The lock is held until released with
+     * APSLock.release(...), or until its lease expires, whichever comes first. The lease and how long to
+     * wait for the lock are implementation defaults.
      *
      * @param lockId Something that identifies what to be locked.
      * @param resultHandler A handler in which whatever is locked can be used if result indicates success.
      */
     void lock(ID lockId, APSHandler<APSResult<APSLock>> resultHandler);
 
+    /**
+     * Acquires a lock waiting at most timeoutMs for it. The lock is held until released with
+     * APSLock.release(...), or until leaseMs has passed, whichever comes first. A lease guarantees that a
+     * lock is not held forever by a client that forgets or fails to release it.
+     *
+     * @param lockId Something that identifies what to be locked.
+     * @param timeoutMs The max time to wait for the lock. The result is a failure if not acquired by then.
+     * @param leaseMs The max time to hold the lock. 0 or less means until released.
+     * @param resultHandler A handler in which whatever is locked can be used if result indicates success.
+     *                      Implementations not supporting timeouts and leases pass a failure to it.
+     */
+    default void tryLock(ID lockId, long timeoutMs, long leaseMs, APSHandler<APSResult<APSLock>> resultHandler) {
+        // Callers are asynchronous and expect their answer in the handler, not as an exception.
+        resultHandler.handle(APSResult.failure(
+                new UnsupportedOperationException("tryLock(...) Is not supported by this implementation!")));
+    }
+
     /**
      * This represents a lock.
      */
@@ -67,5 +86,16 @@ public interface APSLockable<ID> {
          */
         void release(APSHandler<APSResult> resultHandler);
 
+        /**
+         * Returns a token that is larger for each acquisition of the same lock. A resource protected by the
+         * lock can reject changes with a lower token than the highest it has seen. This makes changes by
+         * a holder whose lease has expired harmless.
+         *
+         * @return The token, or 0 if not supported by the implementation.
+         */
+        default long getFencingToken() {
+            return 0;
+        }
+
     }
 }
@@ -0,0 +1,521 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS APIs
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         Provides the APIs for the application platform services.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *         2026-10-18: Entries now carry bundle and loggingFor. Sinks can defer flushing. Overflow policy.
+ *         2026-10-18: Only one shutdown hook no matter how many times the shared instance is recreated.
+ *
+ */
+package se.natusoft.osgi.aps.util;
+
+import org.osgi.service.log.LogService;
+import se.natusoft.docutations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Takes log entries from any number of threads and writes them on one single writer thread. The
+ * logging threads only put the entry in a bounded ring buffer which does not lock. All formatting
+ * and I/O is done by the writer thread.
+ *
+ * The ring buffer is a bounded multi producer / single consumer queue where each slot has a sequence
+ * number telling if it is free to write or ready to read. Producers claim a slot with a CAS on the
+ * tail, and the writer thread is the only one moving the head.
+ *
+ * When the buffer is full the entry is by default dropped and counted, since the logging thread should
+ * never have to wait for I/O. The writer thread will report the number of dropped entries on System.err.
+ * With the "write" overflow policy errors and warnings are instead written by the logging thread so that
+ * they are never lost.
+ *
+ * There is a shared instance available through APSAsyncLogAppender.shared() which is what APSLogger
+ * uses. It is configured with the following system properties:
+ *
+ * - aps.log.async - Set to false to have APSLogger write directly on the logging thread. Default true.
+ * - aps.log.buffer - The size of the ring buffer. Will be rounded up to a power of 2. Default 8192.
+ * - aps.log.overflow - What to do when the buffer is full: drop (default) or write.
+ */
+public class APSAsyncLogAppender {
+
+    //
+    // Constants
+    //
+
+    /** The max time the writer thread parks when there is nothing to write. */
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos( 100 );
+
+    //
+    // Inner Types
+    //
+
+    /**
+     * Something that writes entries somewhere.
+     */
+    public interface Sink {
+
+        /**
+         * Writes an entry. This is called by the writer thread, and by the logging thread when
+         * the buffer is full and the overflow policy is "write".
+         *
+         * @param entry The entry to write.
+         */
+        void write( @NotNull Entry entry );
+
+        /**
+         * Called by the writer thread when there is nothing more to write at the moment. A buffering
+         * sink can choose to hold on to its data a while longer unless forced. As long as this returns
+         * false it will be called again at least every 100 ms.
+         *
+         * @param force If true everything buffered must be written.
+         *
+         * @return true if nothing is left buffered.
+         */
+        default boolean flush( boolean force ) {
+            return true;
+        }
+    }
+
+    /**
+     * One log entry. This is only captured values, all formatting is done when written.
+     */
+    public static final class Entry {
+
+        /** The LogService log level. */
+        public final int level;
+
+        /** The time of the log in millis. */
+        public final long timestamp;
+
+        /** The bundle logging. */
+        public final String bundle;
+
+        /** What is being logged for. Can be null. */
+        public final String loggingFor;
+
+        /** The name of the logging thread. */
+        public final String thread;
+
+        /** The log message. */
+        public final String message;
+
+        /** An optional cause. Can be null. */
+        public final Throwable cause;
+
+        /** Where to write the entry. */
+        public final Sink sink;
+
+        /**
+         * Creates a new Entry.
+         *
+         * @param level The LogService log level.
+         * @param timestamp The time of the log in millis.
+         * @param bundle The bundle logging.
+         * @param loggingFor What is being logged for. Can be null.
+         * @param thread The name of the logging thread.
+         * @param message The log message.
+         * @param cause An optional cause. Can be null.
+         * @param sink Where to write the entry.
+         */
+        public Entry( int level, long timestamp, String bundle, String loggingFor, String thread, String message,
+                      Throwable cause, @NotNull Sink sink ) {
+            this.level = level;
+            this.timestamp = timestamp;
+            this.bundle = bundle;
+            this.loggingFor = loggingFor;
+            this.thread = thread;
+            this.message = message;
+            this.cause = cause;
+            this.sink = sink;
+        }
+    }
+
+    //
+    // Private Members
+    //
+
+    /** Holds the shared instance. */
+    private static APSAsyncLogAppender sharedInst;
+
+    /** Set when the shutdown hook stopping the shared instance has been installed. */
+    private static boolean shutdownHookInstalled = false;
+
+    /** The buffer slots. */
+    private Entry[] slots;
+
+    /** The sequence number of each slot. */
+    private AtomicLongArray sequences;
+
+    /** For calculating slot index. The buffer size is always a power of 2. */
+    private int mask;
+
+    /** The next position to write to. Moved by the producers. */
+    private AtomicLong tail = new AtomicLong( 0 );
+
+    /** The next position to read from. Only moved by the writer thread. */
+    private volatile long head = 0;
+
+    /** Set by the writer thread while it is parked or about to be. */
+    private volatile boolean parked = false;
+
+    /** Cleared to stop the writer thread. */
+    private volatile boolean running = true;
+
+    /** The number of flushes requested. */
+    private AtomicLong flushRequests = new AtomicLong( 0 );
+
+    /** The number of flushes done by the writer thread. */
+    private volatile long flushesDone = 0;
+
+    /** The number of dropped entries. */
+    private AtomicLong dropped = new AtomicLong( 0 );
+
+    /** The writer thread. */
+    private Thread writer;
+
+    /** If true errors and warnings are written by the logging thread when the buffer is full. */
+    private boolean writeOnOverflow;
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Creates a new APSAsyncLogAppender and starts its writer thread.
+     *
+     * @param name The name of the writer thread.
+     * @param bufferSize The size of the ring buffer. Will be rounded up to a power of 2.
+     * @param writeOnOverflow If true errors and warnings are written by the logging thread when the buffer
+     *                        is full. Otherwise they are dropped.
+     */
+    public APSAsyncLogAppender( @NotNull String name, int bufferSize, boolean writeOnOverflow ) {
+
+        if ( bufferSize <= 0 || bufferSize > ( 1 << 30 ) ) {
+            throw new IllegalArgumentException( "bufferSize must be > 0 and <= 2^30!" );
+        }
+
+        int size = 1;
+        while ( size < bufferSize ) {
+            size <<= 1;
+        }
+
+        this.slots = new Entry[ size ];
+        this.sequences = new AtomicLongArray( size );
+        for ( int i = 0; i < size; i++ ) {
+            this.sequences.set( i, i );
+        }
+        this.mask = size - 1;
+        this.writeOnOverflow = writeOnOverflow;
+
+        this.writer = new Thread( this::writeLoop, name );
+        this.writer.setDaemon( true );
+        this.writer.start();
+    }
+
+    //
+    // Static Methods
+    //
+
+    /**
+     * @return true if logging should be done via the shared instance. This is controlled by the
+     *         aps.log.async system property.
+     */
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean( System.getProperty( "aps.log.async", "true" ) );
+    }
+
+    /**
+     * @return The shared instance, created on first call. A shutdown hook is installed that writes
+     *         whatever is left in the buffer when the JVM exits.
+     */
+    public static synchronized APSAsyncLogAppender shared() {
+
+        if ( sharedInst == null ) {
+            sharedInst = new APSAsyncLogAppender( "aps-log-writer", Integer.getInteger( "aps.log.buffer", 8192 ),
+                    "write".equalsIgnoreCase( System.getProperty( "aps.log.overflow", "drop" ).trim() ) );
+
+            if ( !shutdownHookInstalled ) {
+                Runtime.getRuntime().addShutdownHook(
+                        new Thread( APSAsyncLogAppender::shutdownShared, "aps-log-shutdown" ) );
+                shutdownHookInstalled = true;
+            }
+        }
+
+        return sharedInst;
+    }
+
+    /**
+     * Stops the shared instance if it has been created, after it has written what is in its buffer.
+     * A new one will be created on next call to shared().
+     *
+     * **Do note** that the shared instance is used by the APSLogger of every bundle, and info and debug
+     * entries appended while stopping are dropped. So this is only for whoever owns the lifecycle of
+     * the whole platform. The shutdown hook installed by shared() already calls this on JVM exit.
+     */
+    public static synchronized void shutdownShared() {
+
+        if ( sharedInst != null ) {
+            sharedInst.stop( 2000 );
+            sharedInst = null;
+        }
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Appends an entry to be written by the writer thread. This never blocks. If the buffer is full
+     * the entry is dropped, unless the overflow policy is "write" and it is a warning or an error, in
+     * which case it is written directly.
+     *
+     * @param entry The entry to append.
+     */
+    public void append( @NotNull Entry entry ) {
+
+        if ( this.running && offer( entry ) ) {
+
+            if ( this.parked ) {
+                LockSupport.unpark( this.writer );
+            }
+        }
+        else if ( this.writeOnOverflow && entry.level <= LogService.LOG_WARNING ) {
+
+            entry.sink.write( entry );
+            entry.sink.flush( true );
+        }
+        else {
+
+            this.dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Puts an entry in the buffer.
+     *
+     * @param entry The entry to put.
+     *
+     * @return false if the buffer is full.
+     */
+    private boolean offer( Entry entry ) {
+
+        while ( true ) {
+
+            long pos = this.tail.get();
+            int ix = ( int ) pos & this.mask;
+            long diff = this.sequences.get( ix ) - pos;
+
+            if ( diff == 0 ) {
+
+                if ( this.tail.compareAndSet( pos, pos + 1 ) ) {
+
+                    this.slots[ ix ] = entry;
+                    // This publishes the slot write to the writer thread.
+                    this.sequences.set( ix, pos + 1 );
+
+                    return true;
+                }
+            }
+            else if ( diff < 0 ) {
+
+                return false;
+            }
+            // else another producer claimed the slot, try again.
+        }
+    }
+
+    /**
+     * Takes the next entry from the buffer. Only called by the writer thread.
+     *
+     * @return The next entry or null if the buffer is empty.
+     */
+    private Entry poll() {
+
+        long pos = this.head;
+        int ix = ( int ) pos & this.mask;
+
+        if ( this.sequences.get( ix ) != pos + 1 ) {
+            return null;
+        }
+
+        Entry entry = this.slots[ ix ];
+        this.slots[ ix ] = null;
+        this.sequences.set( ix, pos + this.slots.length );
+        this.head = pos + 1;
+
+        return entry;
+    }
+
+    /**
+     * @return The number of entries in the buffer not yet written.
+     */
+    public int getPending() {
+        return ( int ) Math.max( 0, this.tail.get() - this.head );
+    }
+
+    /**
+     * @return The number of entries dropped due to a full buffer.
+     */
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Waits for the entries currently in the buffer to be written, and for all sinks to be flushed.
+     *
+     * @param timeoutMs The max number of milliseconds to wait.
+     *
+     * @return true if all was written, false on timeout.
+     */
+    public boolean flush( long timeoutMs ) {
+
+        long target = this.tail.get();
+        long request = this.flushRequests.incrementAndGet();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeoutMs );
+
+        while ( ( this.head < target || this.flushesDone < request ) && this.writer.isAlive() ) {
+
+            if ( System.nanoTime() >= deadline ) {
+                return false;
+            }
+
+            LockSupport.unpark( this.writer );
+            LockSupport.parkNanos( TimeUnit.MILLISECONDS.toNanos( 1 ) );
+        }
+
+        return this.head >= target && this.flushesDone >= request;
+    }
+
+    /**
+     * Stops the writer thread after it has written what is in the buffer. Entries appended after
+     * this are written directly or dropped.
+     *
+     * @param timeoutMs The max number of milliseconds to wait for the writer thread.
+     */
+    public void stop( long timeoutMs ) {
+
+        this.running = false;
+        LockSupport.unpark( this.writer );
+
+        try {
+            this.writer.join( timeoutMs );
+        }
+        catch ( InterruptedException ie ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The writer thread.
+     */
+    private void writeLoop() {
+
+        List<Sink> touched = new ArrayList<>();
+        long reportedDropped = 0;
+
+        while ( this.running || this.head < this.tail.get() ) {
+
+            Entry entry = poll();
+
+            if ( entry != null ) {
+
+                write( entry );
+
+                if ( !touched.contains( entry.sink ) ) {
+                    touched.add( entry.sink );
+                }
+            }
+            else {
+
+                // Sinks still holding data are kept to be flushed again on next round.
+                long requests = this.flushRequests.get();
+                boolean force = requests != this.flushesDone;
+                touched.removeIf( sink -> flush( sink, force ) );
+                this.flushesDone = requests;
+
+                long drops = this.dropped.get();
+                if ( drops != reportedDropped ) {
+
+                    System.err.println( "APSAsyncLogAppender: " + ( drops - reportedDropped ) +
+                            " log entries dropped due to full buffer!" );
+                    reportedDropped = drops;
+                }
+
+                this.parked = true;
+                if ( this.running && this.head == this.tail.get() && this.flushesDone == this.flushRequests.get() ) {
+                    LockSupport.parkNanos( this, PARK_NANOS );
+                }
+                this.parked = false;
+            }
+        }
+
+        touched.forEach( sink -> flush( sink, true ) );
+    }
+
+    /**
+     * Writes an entry making sure a failing sink does not kill the writer thread.
+     *
+     * @param entry The entry to write.
+     */
+    private void write( Entry entry ) {
+
+        try {
+            entry.sink.write( entry );
+        }
+        catch ( Throwable t ) {
+            System.err.println( "APSAsyncLogAppender: Failed to write log entry: " + t );
+        }
+    }
+
+    /**
+     * Flushes a sink making sure a failing sink does not kill the writer thread.
+     *
+     * @param sink The sink to flush.
+     * @param force Passed to the sink.
+     *
+     * @return true if the sink has nothing left buffered.
+     */
+    private boolean flush( Sink sink, boolean force ) {
+
+        try {
+            return sink.flush( force );
+        }
+        catch ( Throwable t ) {
+            System.err.println( "APSAsyncLogAppender: Failed to flush log sink: " + t );
+            return true;
+        }
+    }
+}
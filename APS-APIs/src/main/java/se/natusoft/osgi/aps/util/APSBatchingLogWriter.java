@@ -0,0 +1,651 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS APIs
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         Provides the APIs for the application platform services.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *         2026-10-18: Warnings and errors are written at once. The file is reopened even if rolling fails.
+ *
+ */
+package se.natusoft.osgi.aps.util;
+
+import org.osgi.service.log.LogService;
+import se.natusoft.docutations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An APSAsyncLogAppender.Sink that formats entries into a buffer and writes the buffer in batches.
+ * A batch is written when the buffer reaches the batch size, or when the oldest buffered entry
+ * is older than the flush interval. A warning or an error is written at once together with whatever
+ * is buffered before it, so it is not lost if the JVM dies before the next flush. Output is either an OutputStream or a rolling file written
+ * via a FileChannel.
+ *
+ * Entries are formatted either as text, which is the classic APSLogger format, or as JSON with
+ * one object per line having the fields level, timestamp, bundle, loggingFor, thread, message and
+ * exception.
+ *
+ * fromSystemProperties(...) creates an instance configured by the following system properties:
+ *
+ * - aps.log.file - A file to log to instead of the stream. Not set by default.
+ * - aps.log.file.maxSize - The max size in bytes of the file before it is rolled. Default 10 MB.
+ * - aps.log.file.maxFiles - The number of rolled files to keep: file.1 ... file.N. Default 5.
+ * - aps.log.batch.size - The number of buffered characters that triggers a write. Default 64 KB.
+ * - aps.log.batch.interval - The max number of milliseconds to buffer an entry. Default 1000.
+ */
+public class APSBatchingLogWriter implements APSAsyncLogAppender.Sink {
+
+    //
+    // Constants
+    //
+
+    /** The classic APSLogger text format. */
+    public static final Formatter TEXT = APSBatchingLogWriter::formatText;
+
+    /** One JSON object per line. */
+    public static final Formatter JSON = APSBatchingLogWriter::formatJson;
+
+    /** Unlike SimpleDateFormat this is thread safe. */
+    private static final DateTimeFormatter YYMMDD_HHMMSS =
+            DateTimeFormatter.ofPattern( "yy-MM-dd HH:mm:ss" ).withZone( ZoneId.systemDefault() );
+
+    //
+    // Inner Types
+    //
+
+    /**
+     * Formats an entry.
+     */
+    public interface Formatter {
+
+        /**
+         * Formats an entry as one line, without line separator.
+         *
+         * @param entry The entry to format.
+         * @param out The buffer to append to.
+         */
+        void format( @NotNull APSAsyncLogAppender.Entry entry, @NotNull StringBuilder out );
+    }
+
+    /**
+     * Where the batches are written.
+     */
+    private interface Output {
+
+        /**
+         * Writes a batch.
+         *
+         * @param batch The bytes to write.
+         *
+         * @throws IOException on failure to write.
+         */
+        void write( ByteBuffer batch ) throws IOException;
+
+        /**
+         * Closes the output.
+         *
+         * @throws IOException on failure to close.
+         */
+        void close() throws IOException;
+    }
+
+    //
+    // Private Members
+    //
+
+    /** Formats the entries. */
+    private Formatter formatter;
+
+    /** Where to write batches. */
+    private Output output;
+
+    /** The number of buffered characters that triggers a write. */
+    private int batchSize;
+
+    /** The max time in nanoseconds to buffer an entry. */
+    private long flushIntervalNanos;
+
+    /** The current batch. */
+    private StringBuilder buffer;
+
+    /** The time of the oldest entry in the buffer. */
+    private long bufferedSince = 0;
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Creates a new APSBatchingLogWriter writing to an OutputStream.
+     *
+     * @param formatter Formats the entries.
+     * @param out The stream to write to.
+     * @param batchSize The number of buffered characters that triggers a write.
+     * @param flushIntervalMs The max number of milliseconds to buffer an entry.
+     */
+    public APSBatchingLogWriter( @NotNull Formatter formatter, @NotNull OutputStream out, int batchSize,
+                                 long flushIntervalMs ) {
+        this( formatter, new StreamOutput( out ), batchSize, flushIntervalMs );
+    }
+
+    /**
+     * Creates a new APSBatchingLogWriter writing to a rolling file.
+     *
+     * @param formatter Formats the entries.
+     * @param file The file to write to.
+     * @param maxFileSize The max size in bytes of the file before it is rolled.
+     * @param maxFiles The number of rolled files to keep.
+     * @param batchSize The number of buffered characters that triggers a write.
+     * @param flushIntervalMs The max number of milliseconds to buffer an entry.
+     *
+     * @throws IOException on failure to open the file.
+     */
+    public APSBatchingLogWriter( @NotNull Formatter formatter, @NotNull Path file, long maxFileSize, int maxFiles,
+                                 int batchSize, long flushIntervalMs ) throws IOException {
+        this( formatter, new RollingFileOutput( file, maxFileSize, maxFiles ), batchSize, flushIntervalMs );
+    }
+
+    /**
+     * Internal constructor.
+     *
+     * @param formatter Formats the entries.
+     * @param output Where to write batches.
+     * @param batchSize The number of buffered characters that triggers a write.
+     * @param flushIntervalMs The max number of milliseconds to buffer an entry.
+     */
+    private APSBatchingLogWriter( Formatter formatter, Output output, int batchSize, long flushIntervalMs ) {
+
+        if ( batchSize <= 0 ) {
+            throw new IllegalArgumentException( "batchSize must be > 0!" );
+        }
+
+        this.formatter = formatter;
+        this.output = output;
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos( flushIntervalMs );
+        this.buffer = new StringBuilder( batchSize + 1024 );
+    }
+
+    //
+    // Static Methods
+    //
+
+    /**
+     * Creates a new instance configured by system properties. See class documentation.
+     *
+     * @param formatter Formats the entries.
+     * @param out The stream to write to if aps.log.file is not set, or the file cannot be opened.
+     */
+    public static APSBatchingLogWriter fromSystemProperties( @NotNull Formatter formatter, @NotNull OutputStream out ) {
+
+        int batchSize = Integer.getInteger( "aps.log.batch.size", 64 * 1024 );
+        long flushInterval = Long.getLong( "aps.log.batch.interval", 1000 );
+        String file = System.getProperty( "aps.log.file" );
+
+        if ( file != null && !file.trim().isEmpty() ) {
+
+            try {
+                return new APSBatchingLogWriter( formatter, Paths.get( file.trim() ),
+                        Long.getLong( "aps.log.file.maxSize", 10 * 1024 * 1024 ),
+                        Integer.getInteger( "aps.log.file.maxFiles", 5 ), batchSize, flushInterval );
+            }
+            catch ( IOException ioe ) {
+                System.err.println( "APSBatchingLogWriter: Failed to open log file '" + file + "', using stream: " + ioe );
+            }
+        }
+
+        return new APSBatchingLogWriter( formatter, out, batchSize, flushInterval );
+    }
+
+    /**
+     * @return The formatter named by the aps.log.format system property: text (default) or json.
+     */
+    public static Formatter formatterFromSystemProperties() {
+        return "json".equalsIgnoreCase( System.getProperty( "aps.log.format", "text" ).trim() ) ? JSON : TEXT;
+    }
+
+    /**
+     * Returns the name of a LogService level.
+     *
+     * @param level The level to get the name of.
+     */
+    private static String levelName( int level ) {
+
+        switch ( level ) {
+            case LogService.LOG_ERROR:
+                return "ERROR";
+
+            case LogService.LOG_WARNING:
+                return "WARNING";
+
+            case LogService.LOG_INFO:
+                return "INFO";
+
+            case LogService.LOG_DEBUG:
+                return "DEBUG";
+
+            default:
+                return String.valueOf( level );
+        }
+    }
+
+    /**
+     * Returns the stack trace of an exception as a String.
+     *
+     * @param cause The exception to get the stack trace of.
+     */
+    private static String stackTrace( Throwable cause ) {
+
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter( sw );
+        cause.printStackTrace( pw );
+        pw.close();
+
+        return sw.toString();
+    }
+
+    /**
+     * Formats an entry in the classic APSLogger text format.
+     *
+     * @param entry The entry to format.
+     * @param log The buffer to append to.
+     */
+    private static void formatText( APSAsyncLogAppender.Entry entry, StringBuilder log ) {
+
+        log.append( levelName( entry.level ) ).append( ": " );
+
+        YYMMDD_HHMMSS.formatTo( Instant.ofEpochMilli( entry.timestamp ), log );
+        log.append( " " );
+
+        log.append( "[" ).append( entry.bundle );
+        if ( entry.loggingFor != null ) {
+            log.append( ":" ).append( entry.loggingFor );
+        }
+        log.append( "]" );
+
+        log.append( "[" );
+        log.append( entry.thread );
+        log.append( "] " );
+
+        log.append( " " );
+
+        log.append( entry.message );
+        if ( entry.cause != null ) {
+
+            log.append( '\n' );
+            String trace = stackTrace( entry.cause );
+            // The writer adds the line separator.
+            log.append( trace, 0, trace.endsWith( "\n" ) ? trace.length() - 1 : trace.length() );
+        }
+    }
+
+    /**
+     * Formats an entry as a JSON object.
+     *
+     * @param entry The entry to format.
+     * @param json The buffer to append to.
+     */
+    private static void formatJson( APSAsyncLogAppender.Entry entry, StringBuilder json ) {
+
+        json.append( "{\"level\":\"" ).append( levelName( entry.level ) );
+        json.append( "\",\"timestamp\":\"" );
+        DateTimeFormatter.ISO_INSTANT.formatTo( Instant.ofEpochMilli( entry.timestamp ), json );
+        json.append( "\",\"bundle\":" );
+        jsonString( entry.bundle, json );
+        json.append( ",\"loggingFor\":" );
+        jsonString( entry.loggingFor, json );
+        json.append( ",\"thread\":" );
+        jsonString( entry.thread, json );
+        json.append( ",\"message\":" );
+        jsonString( entry.message, json );
+        json.append( ",\"exception\":" );
+        jsonString( entry.cause != null ? stackTrace( entry.cause ) : null, json );
+        json.append( '}' );
+    }
+
+    /**
+     * Appends a quoted and escaped JSON string value.
+     *
+     * @param value The value to append. null is written as JSON null.
+     * @param json The buffer to append to.
+     */
+    private static void jsonString( String value, StringBuilder json ) {
+
+        if ( value == null ) {
+            json.append( "null" );
+            return;
+        }
+
+        json.append( '"' );
+        for ( int i = 0; i < value.length(); i++ ) {
+
+            char c = value.charAt( i );
+            switch ( c ) {
+                case '"':
+                    json.append( "\\\"" );
+                    break;
+
+                case '\\':
+                    json.append( "\\\\" );
+                    break;
+
+                case '\n':
+                    json.append( "\\n" );
+                    break;
+
+                case '\r':
+                    json.append( "\\r" );
+                    break;
+
+                case '\t':
+                    json.append( "\\t" );
+                    break;
+
+                default:
+                    if ( c < 0x20 ) {
+                        json.append( String.format( "\\u%04x", ( int ) c ) );
+                    }
+                    else {
+                        json.append( c );
+                    }
+            }
+        }
+        json.append( '"' );
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Formats and buffers an entry. The buffer is written if it has reached the batch size, or if
+     * the entry is a warning or an error.
+     *
+     * @param entry The entry to write.
+     */
+    @Override
+    public synchronized void write( @NotNull APSAsyncLogAppender.Entry entry ) {
+
+        if ( this.buffer.length() == 0 ) {
+            this.bufferedSince = System.nanoTime();
+        }
+
+        this.formatter.format( entry, this.buffer );
+        this.buffer.append( '\n' );
+
+        if ( this.buffer.length() >= this.batchSize || entry.level <= LogService.LOG_WARNING ) {
+            writeBatch();
+        }
+    }
+
+    /**
+     * Writes the buffer if forced or if the oldest buffered entry has waited longer than the flush interval.
+     *
+     * @param force If true the buffer is always written.
+     *
+     * @return true if the buffer is empty.
+     */
+    @Override
+    public synchronized boolean flush( boolean force ) {
+
+        if ( this.buffer.length() > 0 &&
+                ( force || System.nanoTime() - this.bufferedSince >= this.flushIntervalNanos ) ) {
+            writeBatch();
+        }
+
+        return this.buffer.length() == 0;
+    }
+
+    /**
+     * Writes what is buffered and closes the output.
+     */
+    public synchronized void close() {
+
+        flush( true );
+
+        try {
+            this.output.close();
+        }
+        catch ( IOException ioe ) {
+            System.err.println( "APSBatchingLogWriter: Failed to close log output: " + ioe );
+        }
+    }
+
+    /**
+     * Writes the buffer to the output and clears it. On failure the batch is reported on System.err
+     * and dropped.
+     */
+    private void writeBatch() {
+
+        try {
+            this.output.write( ByteBuffer.wrap( this.buffer.toString().getBytes( StandardCharsets.UTF_8 ) ) );
+        }
+        catch ( IOException ioe ) {
+            System.err.println( "APSBatchingLogWriter: Failed to write log batch: " + ioe );
+        }
+
+        this.buffer.setLength( 0 );
+        // Don't hold on to the memory of a very large entry.
+        if ( this.buffer.capacity() > this.batchSize * 4 ) {
+            this.buffer = new StringBuilder( this.batchSize + 1024 );
+        }
+    }
+
+    //
+    // Inner Classes
+    //
+
+    /**
+     * Writes batches to an OutputStream.
+     */
+    private static class StreamOutput implements Output {
+
+        /** The stream to write to. */
+        private OutputStream out;
+
+        /**
+         * Creates a new StreamOutput.
+         *
+         * @param out The stream to write to.
+         */
+        StreamOutput( OutputStream out ) {
+            this.out = out;
+        }
+
+        /**
+         * Writes a batch.
+         *
+         * @param batch The bytes to write.
+         */
+        @Override
+        public void write( ByteBuffer batch ) throws IOException {
+            this.out.write( batch.array(), batch.arrayOffset() + batch.position(), batch.remaining() );
+            this.out.flush();
+        }
+
+        /**
+         * Does not close the stream since it is not ours, but flushes it.
+         */
+        @Override
+        public void close() throws IOException {
+            this.out.flush();
+        }
+    }
+
+    /**
+     * Writes batches to a file via a FileChannel. When the file would grow beyond the max size it is
+     * renamed to file.1, any file.1 to file.2 and so on up to the max number of files, and a new file
+     * is started.
+     */
+    private static class RollingFileOutput implements Output {
+
+        /** The file to write to. */
+        private Path file;
+
+        /** The max size of the file before it is rolled. */
+        private long maxSize;
+
+        /** The number of rolled files to keep. */
+        private int maxFiles;
+
+        /** The open channel. */
+        private FileChannel channel;
+
+        /** The current size of the file. */
+        private long size;
+
+        /**
+         * Creates a new RollingFileOutput and opens the file for append.
+         *
+         * @param file The file to write to.
+         * @param maxSize The max size of the file before it is rolled.
+         * @param maxFiles The number of rolled files to keep.
+         *
+         * @throws IOException on failure to open the file.
+         */
+        RollingFileOutput( Path file, long maxSize, int maxFiles ) throws IOException {
+            this.file = file.toAbsolutePath();
+            this.maxSize = maxSize;
+            this.maxFiles = maxFiles;
+
+            open();
+        }
+
+        /**
+         * Opens the file for append.
+         *
+         * @throws IOException on failure.
+         */
+        private void open() throws IOException {
+
+            if ( this.file.getParent() != null ) {
+                Files.createDirectories( this.file.getParent() );
+            }
+
+            this.channel = FileChannel.open( this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND );
+            this.size = this.channel.size();
+        }
+
+        /**
+         * Returns a rolled file.
+         *
+         * @param num The number of the rolled file.
+         */
+        private Path rolled( int num ) {
+            return this.file.resolveSibling( this.file.getFileName() + "." + num );
+        }
+
+        /**
+         * Closes the current file, shifts the rolled files and opens a new file. The file is opened
+         * again even if shifting fails, in which case logging continues in the file not rolled.
+         *
+         * @throws IOException on failure.
+         */
+        private void roll() throws IOException {
+
+            this.channel.close();
+
+            try {
+                if ( this.maxFiles > 0 ) {
+
+                    Files.deleteIfExists( rolled( this.maxFiles ) );
+                    for ( int num = this.maxFiles - 1; num >= 1; num-- ) {
+
+                        if ( Files.exists( rolled( num ) ) ) {
+                            Files.move( rolled( num ), rolled( num + 1 ), StandardCopyOption.REPLACE_EXISTING );
+                        }
+                    }
+                    Files.move( this.file, rolled( 1 ), StandardCopyOption.REPLACE_EXISTING );
+                }
+                else {
+
+                    Files.deleteIfExists( this.file );
+                }
+            }
+            finally {
+                open();
+            }
+        }
+
+        /**
+         * Writes a batch, rolling the file first if needed. If rolling fails the batch is written to
+         * the file not rolled, and rolling is tried again on next batch. If an earlier failure left the
+         * file closed it is opened again first.
+         *
+         * @param batch The bytes to write.
+         */
+        @Override
+        public void write( ByteBuffer batch ) throws IOException {
+
+            if ( !this.channel.isOpen() ) {
+                open();
+            }
+
+            if ( this.size > 0 && this.size + batch.remaining() > this.maxSize ) {
+
+                try {
+                    roll();
+                }
+                catch ( IOException ioe ) {
+                    System.err.println( "APSBatchingLogWriter: Failed to roll log file, continuing in it: " + ioe );
+                }
+            }
+
+            while ( batch.hasRemaining() ) {
+                this.size += this.channel.write( batch );
+            }
+        }
+
+        /**
+         * Closes the file.
+         */
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+}
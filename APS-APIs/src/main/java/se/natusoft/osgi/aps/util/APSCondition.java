@@ -0,0 +1,191 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS APIs
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         Provides the APIs for the application platform services.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.util;
+
+import se.natusoft.docutations.NotNull;
+import se.natusoft.osgi.aps.exceptions.APSRuntimeException;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A condition that completes a CompletableFuture when it becomes true.
+ * <p>
+ * The condition is evaluated on creation and each time it is signalled, never by polling. Whoever
+ * changes what the condition depends on should call signal() on it. For convenience APSServiceTracker
+ * calls signalAll() on each service change, and so does APSActivatorInteraction on each state change,
+ * so conditions depending on services or activator states are evaluated as soon as those change. Since
+ * any condition may be evaluated on those threads, only make APSConditions of quick, thread safe checks.
+ * APSTools.waitFor(...) and APSRuntime.hold() do not use APSCondition, their conditions are only ever
+ * checked on the waiting thread.
+ * <p>
+ * Conditions not yet true are held so that signalAll() can find them. A condition is let go as soon
+ * as its future is completed in any way, so cancelling the future, or completing it with orTimeout(...),
+ * stops the waiting just like cancel() does.
+ *
+ * Usage:
+ *
+ *     new APSCondition( () -> tracker.hasTrackedService() ).future().thenRun( () -> ... );
+ */
+public class APSCondition {
+
+    //
+    // Private Members
+    //
+
+    /** All conditions not yet true. */
+    private static Set<APSCondition> pending = ConcurrentHashMap.newKeySet();
+
+    /** The condition to wait for. */
+    private BooleanSupplier condition;
+
+    /** Completed when the condition is true. */
+    private CompletableFuture<Void> future = new CompletableFuture<>();
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Creates a new APSCondition, and evaluates it.
+     *
+     * @param condition The condition to wait for. This is evaluated on the signalling thread, which for
+     *                  signalAll() is an OSGi service event thread or a thread changing an activator
+     *                  state, so it must be quick and thread safe. If it throws, the future completes
+     *                  exceptionally.
+     */
+    public APSCondition( @NotNull BooleanSupplier condition ) {
+        this.condition = condition;
+        pending.add( this );
+        // Whoever completes the future, we or the user of it, this is no longer pending.
+        this.future.whenComplete( ( result, failure ) -> pending.remove( this ) );
+        signal();
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Signals all conditions not yet true to evaluate themselves.
+     */
+    public static void signalAll() {
+        for ( APSCondition condition : pending ) {
+            condition.signal();
+        }
+    }
+
+    /**
+     * Evaluates the condition, completing the future if true.
+     *
+     * @return true if the condition is true.
+     */
+    public boolean signal() {
+
+        if ( this.future.isDone() ) {
+            return !this.future.isCompletedExceptionally();
+        }
+
+        try {
+            if ( !this.condition.getAsBoolean() ) {
+                return false;
+            }
+
+            this.future.complete( null );
+        }
+        catch ( RuntimeException re ) {
+            this.future.completeExceptionally( re );
+        }
+
+        return !this.future.isCompletedExceptionally();
+    }
+
+    /**
+     * @return A future completed when the condition becomes true.
+     */
+    public CompletableFuture<Void> future() {
+        return this.future;
+    }
+
+    /**
+     * Blocks until the condition is true or the timeout passes.
+     *
+     * @param timeout The max time to wait.
+     * @param unit The unit of timeout.
+     *
+     * @return true if the condition became true, false on timeout.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws APSRuntimeException if the future was completed exceptionally with a checked exception, like
+     *                             the TimeoutException of orTimeout(...). Runtime exceptions are thrown as is.
+     */
+    public boolean await( long timeout, @NotNull TimeUnit unit ) throws InterruptedException {
+        try {
+            this.future.get( timeout, unit );
+            return true;
+        }
+        catch ( TimeoutException te ) {
+            return false;
+        }
+        catch ( ExecutionException ee ) {
+            Throwable cause = ee.getCause();
+            if ( cause instanceof RuntimeException ) {
+                throw (RuntimeException) cause;
+            }
+            throw new APSRuntimeException( "Condition failed: " + cause, cause );
+        }
+    }
+
+    /**
+     * Stops waiting for the condition. The future is cancelled if not already completed.
+     */
+    public void cancel() {
+        this.future.cancel( false );
+    }
+
+    /**
+     * @return The number of conditions not yet true.
+     */
+    static int getPendingCount() {
+        return pending.size();
+    }
+}
@@ -32,35 +32,65 @@
  *     tommy ()
  *         Changes:
  *         2018-05-26: Created!
+ *         2026-10-18: Named, bounded and observable pools.
+ *         2026-10-18: Keyed sequential lanes.
  *
  */
 package se.natusoft.osgi.aps.util;
 
 import se.natusoft.docutations.NotNull;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
- * This creates two ExecutorServices, one that have max processor cores * 2 threads called
- * parallel and one with only one thread called sequential. "sequential" is good for calling
- * handlers for example.
+ * This provides named pools of threads for concurrent jobs, and sequential lanes. "sequential" is good
+ * for calling handlers for example.
+ * <p>
+ * sequential(key, job) runs jobs with equal keys one at a time in submission order, while jobs of
+ * different keys run in parallel. Keys are spread over a fixed number of lanes, each running its jobs
+ * in order on the "sequential" pool, which has one thread per processor core by default. Keys sharing
+ * a lane are also ordered relative each other, which is harmless but costs some parallelism. The
+ * number of lanes is set with the aps.executor.sequential.lanes system property. Default is processor
+ * cores * 4. sequential(job) without key uses one lane for all such jobs.
+ * <p>
+ * concurrent(job) uses the pool named "default". Subsystems that should not be able to starve each
+ * other can use their own pools with concurrent(poolName, job). Each pool is created on first use,
+ * and configured by aps.executor.{name}.* system properties. See APSExecutorPool.
  * <p>
  * This provides a static API that will create one common instance on first use.
  */
 public class APSExecutor {
 
+    //
+    // Constants
+    //
+
+    /** The name of the pool used by concurrent(job). */
+    public static final String DEFAULT_POOL = "default";
+
+    /** The name of the pool running the sequential lanes. */
+    public static final String SEQUENTIAL_POOL = "sequential";
+
     //
     // Private Members
     //
 
-    /** This have a thread pool taking the number of cores in consideration. */
-    private ExecutorService parallelExecutor;
+    /** The pools by name. */
+    private Map<String, APSExecutorPool> pools = new ConcurrentHashMap<>();
 
-    /** Single thread executor for handlers. */
-    private ExecutorService sequentialExecutor;
+    /** Called with each created pool. */
+    private static List<Consumer<APSExecutorPool>> poolListeners = new CopyOnWriteArrayList<>();
+
+    /** The sequential lanes. */
+    private APSSerialExecutor[] lanes;
 
     /** Holds the singleton instance. */
-    private static APSExecutor apsExecInst;
+    private static volatile APSExecutor apsExecInst;
 
     //
     // Static Methods
@@ -70,28 +100,105 @@ public class APSExecutor {
      * @return The singleton instance.
      */
     private static APSExecutor get() {
-        if ( apsExecInst == null ) {
-            apsExecInst = new APSExecutor();
+        APSExecutor inst = apsExecInst;
+        if ( inst == null ) {
+            synchronized ( APSExecutor.class ) {
+                inst = apsExecInst;
+                if ( inst == null ) {
+                    inst = apsExecInst = new APSExecutor();
+                }
+            }
         }
-        return apsExecInst;
+        return inst;
     }
 
     /**
-     * Submits a job for execution on the thread pool based on number of processor cores.
+     * Submits a job for execution on the default pool.
      *
      * @param job The job to submit.
+     *
+     * @throws RejectedExecutionException if the pool is saturated and its rejection policy is ABORT.
      */
     public static void concurrent( @NotNull Runnable job ) {
-        get()._concurrent( job );
+        get()._pool( DEFAULT_POOL ).execute( job );
+    }
+
+    /**
+     * Submits a job for execution on a named pool.
+     *
+     * @param poolName The name of the pool to use.
+     * @param job The job to submit.
+     *
+     * @throws RejectedExecutionException if the pool is saturated and its rejection policy is ABORT.
+     */
+    public static void concurrent( @NotNull String poolName, @NotNull Runnable job ) {
+        get()._pool( poolName ).execute( job );
+    }
+
+    /**
+     * Returns a named pool, creating it if it does not exist.
+     *
+     * @param poolName The name of the pool.
+     */
+    public static APSExecutorPool pool( @NotNull String poolName ) {
+        return get()._pool( poolName );
     }
 
     /**
-     * Submits a handler to the sequential thread.
+     * @return All created pools by name.
+     */
+    public static Map<String, APSExecutorPool> pools() {
+        return Collections.unmodifiableMap( get().pools );
+    }
+
+    /**
+     * Adds a listener called with all pools, both already created and created later. This is for
+     * monitoring of the pools.
      *
-     * @param job The job to push to the sequential thread pool.
+     * @param listener The listener to add.
+     */
+    public static void addPoolListener( @NotNull Consumer<APSExecutorPool> listener ) {
+        poolListeners.add( listener );
+        get().pools.values().forEach( listener );
+    }
+
+    /**
+     * Removes a pool listener.
+     *
+     * @param listener The listener to remove.
+     */
+    public static void removePoolListener( @NotNull Consumer<APSExecutorPool> listener ) {
+        poolListeners.remove( listener );
+    }
+
+    /**
+     * Submits a job to run after all previous jobs submitted with this method.
+     *
+     * @param job The job to run.
      */
     public static void sequential( @NotNull Runnable job) {
-        get()._sequential( job );
+        get().lanes[ 0 ].execute( job );
+    }
+
+    /**
+     * Submits a job to run after all previous jobs submitted with an equal key. Jobs with other keys
+     * run in parallel with it.
+     *
+     * @param key Something identifying what needs ordering, like a subscriber or client address.
+     * @param job The job to run.
+     */
+    public static void sequential( @NotNull Object key, @NotNull Runnable job ) {
+        get().lanes[ lane( key ) ].execute( job );
+    }
+
+    /**
+     * Returns the index of the lane running the jobs of a key.
+     *
+     * @param key The key to get the lane of.
+     */
+    static int lane( @NotNull Object key ) {
+        int hash = key.hashCode();
+        return ( ( hash ^ ( hash >>> 16 ) ) & 0x7fffffff ) % get().lanes.length;
     }
 
     public static void shutdown() {
@@ -106,51 +213,60 @@ public class APSExecutor {
      * Creates a new APSPlatformServiceProvider instance.
      */
     private APSExecutor() {
-        this.parallelExecutor = // Creates a cached thread pool, but with better values than Executors provides!
-                new ThreadPoolExecutor(
-                        0,
-                        Runtime.getRuntime().availableProcessors() * 2, // (*1)
-                        30L,
-                        TimeUnit.SECONDS,
-                        new SynchronousQueue<Runnable>(),
-                        new APSThreadFactory( "aps-executor-" )
-                );
-
-        this.sequentialExecutor = Executors.newSingleThreadExecutor( new ThreadFactory() {
-            @Override
-            public Thread newThread( Runnable r ) {
-                Thread thread = new Thread(  );
-                thread.setName( "aps-handler-thread" );
-                return thread;
-            }
-        } );
+        int cores = Runtime.getRuntime().availableProcessors();
+        int laneCount = Math.max( 1, Integer.getInteger( "aps.executor.sequential.lanes", cores * 4 ) );
+
+        // A lane has at most one job in the pool, so a queue the size of the number of lanes never rejects.
+        APSExecutorPool lanePool = _pool( SEQUENTIAL_POOL, name -> new APSExecutorPool(
+                name,
+                Integer.getInteger( "aps.executor.sequential.threads", cores ),
+                laneCount,
+                APSExecutorPool.RejectionPolicy.ABORT
+        ) );
+
+        this.lanes = new APSSerialExecutor[ laneCount ];
+        for ( int i = 0; i < laneCount; i++ ) {
+            this.lanes[ i ] = new APSSerialExecutor( lanePool::execute, 100 );
+        }
     }
-    // *1: Why "* 2" ? Well, just for the heck of it! I can't really say. These are backend jobs and have no
-    // gain in faked parallelism since no one will see it. But still in some way I cannot explain it does
-    // feel right to provide some. Possibly human emotional stupidity.
 
     //
     // Methods
     //
 
     private void _shutdown() {
-        this.parallelExecutor.shutdownNow();
-        this.sequentialExecutor.shutdown();
+        this.pools.values().forEach( pool -> pool.shutdown( !pool.getName().equals( SEQUENTIAL_POOL ) ) );
         apsExecInst = null;
     }
 
-    private void _concurrent( @NotNull Runnable job) {
-        this.parallelExecutor.submit( job );
+    private APSExecutorPool _pool( @NotNull String poolName ) {
+        return _pool( poolName, APSExecutorPool::fromSystemProperties );
     }
 
-    private void _sequential( @NotNull Runnable job) {
-        this.sequentialExecutor.submit( job );
+    private APSExecutorPool _pool( @NotNull String poolName, @NotNull Function<String, APSExecutorPool> factory ) {
+
+        APSExecutorPool pool = this.pools.get( poolName );
+
+        if ( pool == null ) {
+            boolean[] created = { false };
+            pool = this.pools.computeIfAbsent( poolName, name -> {
+                created[ 0 ] = true;
+                return factory.apply( name );
+            } );
+            if ( created[ 0 ] ) {
+                for ( Consumer<APSExecutorPool> listener : poolListeners ) {
+                    listener.accept( pool );
+                }
+            }
+        }
+
+        return pool;
     }
 
     /**
      * For temporary internal use only!!
      */
     public static ExecutorService _internal_get_executor() {
-        return get().parallelExecutor;
+        return get()._pool( DEFAULT_POOL ).getExecutorService();
     }
 }
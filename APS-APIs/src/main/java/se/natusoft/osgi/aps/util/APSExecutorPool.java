@@ -0,0 +1,392 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS APIs
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         Provides the APIs for the application platform services.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.util;
+
+import se.natusoft.docutations.NotNull;
+import se.natusoft.docutations.Nullable;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A named pool of threads used by APSExecutor.
+ * <p>
+ * A pool is either a bounded ThreadPoolExecutor with a bounded work queue, or, on JDK 21 and later,
+ * a virtual thread per task executor. When all threads of a bounded pool are busy and its queue is
+ * full, the RejectionPolicy of the pool decides what happens with a new job. The default is ABORT,
+ * since jobs are often submitted from threads that must never run them, like the APSWheelTimer thread
+ * and Vert.x event loops. Such submitters catch the RejectedExecutionException and decide themselves.
+ * <p>
+ * Jobs that throw are passed to the uncaught exception handler of the thread rather than being lost
+ * in a Future nobody looks at.
+ * <p>
+ * Pools are configured with system properties, where {name} is the name of the pool:
+ * <ul>
+ *     <li>aps.executor.{name}.threads - The max number of threads. Default is processor cores * 2.</li>
+ *     <li>aps.executor.{name}.queue - The max number of queued jobs. Default is 1000.</li>
+ *     <li>aps.executor.{name}.rejection - abort, callerRuns, block, or drop. Default is abort.</li>
+ *     <li>aps.executor.{name}.virtual - true for a virtual thread per job if supported by the JDK.</li>
+ * </ul>
+ */
+public class APSExecutorPool {
+
+    //
+    // Constants
+    //
+
+    /** For problems with the pool configuration. */
+    private static final APSLogger LOGGER = new APSLogger( System.err ).setLoggingFor( "aps-executor-pool" );
+
+    //
+    // Private Members
+    //
+
+    /** The name of the pool. */
+    private String name;
+
+    /** The executor running the jobs. */
+    private ExecutorService executor;
+
+    /** The executor as ThreadPoolExecutor when it is one. */
+    private ThreadPoolExecutor threadPool;
+
+    /** The max number of threads, or 0 for unbounded virtual threads. */
+    private int maxThreads;
+
+    /** The number of running jobs when not a ThreadPoolExecutor, which can tell us. */
+    private AtomicInteger active = new AtomicInteger();
+
+    /** The number of finished jobs when not a ThreadPoolExecutor, which can tell us. */
+    private LongAdder completed = new LongAdder();
+
+    /** The number of rejected jobs. */
+    private LongAdder rejected = new LongAdder();
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Creates a new bounded APSExecutorPool.
+     *
+     * @param name The name of the pool. Threads are named "aps-{name}-" plus a number.
+     * @param maxThreads The max number of threads. Threads not used for 30 seconds are stopped.
+     * @param queueSize The max number of jobs waiting for a thread.
+     * @param rejectionPolicy What to do when all threads are busy and the queue is full.
+     */
+    public APSExecutorPool( @NotNull String name, int maxThreads, int queueSize, @NotNull RejectionPolicy rejectionPolicy ) {
+        this.name = name;
+        this.maxThreads = maxThreads;
+
+        // Core size is max size since a ThreadPoolExecutor only adds threads above core size when the queue is
+        // full. Letting core threads time out still gives us no threads when idle.
+        this.threadPool = new ThreadPoolExecutor(
+                maxThreads,
+                maxThreads,
+                30L,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>( queueSize ),
+                new APSThreadFactory( "aps-" + name + "-" ),
+                rejectionHandler( rejectionPolicy )
+        );
+        this.threadPool.allowCoreThreadTimeOut( true );
+        this.executor = this.threadPool;
+    }
+
+    /**
+     * Creates a new APSExecutorPool running each job on a new virtual thread.
+     *
+     * @param name The name of the pool.
+     * @param virtualExecutor An executor creating a virtual thread per task.
+     */
+    private APSExecutorPool( @NotNull String name, @NotNull ExecutorService virtualExecutor ) {
+        this.name = name;
+        this.executor = virtualExecutor;
+    }
+
+    /**
+     * Creates a pool configured by aps.executor.{name}.* system properties.
+     *
+     * @param name The name of the pool.
+     */
+    public static APSExecutorPool fromSystemProperties( @NotNull String name ) {
+
+        String prefix = "aps.executor." + name + ".";
+
+        if ( Boolean.getBoolean( prefix + "virtual" ) ) {
+
+            ExecutorService virtualExecutor = virtualThreadPerTaskExecutor();
+            if ( virtualExecutor != null ) {
+                return new APSExecutorPool( name, virtualExecutor );
+            }
+
+            LOGGER.warn( "Virtual threads requested for pool '" + name +
+                    "' but not supported by this JDK! Using platform threads." );
+        }
+
+        return new APSExecutorPool(
+                name,
+                Integer.getInteger( prefix + "threads", Runtime.getRuntime().availableProcessors() * 2 ), // (*1)
+                Integer.getInteger( prefix + "queue", 1000 ),
+                RejectionPolicy.from( System.getProperty( prefix + "rejection" ), RejectionPolicy.ABORT )
+        );
+    }
+    // *1: Why "* 2" ? Well, just for the heck of it! I can't really say. These are backend jobs and have no
+    // gain in faked parallelism since no one will see it. But still in some way I cannot explain it does
+    // feel right to provide some. Possibly human emotional stupidity.
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor() by reflection since we build for older JDKs.
+     *
+     * @return The executor or null if not supported.
+     */
+    private static ExecutorService virtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+            return (ExecutorService) factory.invoke( null );
+        }
+        catch ( ReflectiveOperationException | RuntimeException notSupported ) {
+            return null;
+        }
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Returns the handler implementing a rejection policy. All rejections are counted.
+     *
+     * @param policy The policy to implement.
+     */
+    private RejectedExecutionHandler rejectionHandler( RejectionPolicy policy ) {
+
+        switch ( policy ) {
+
+            case CALLER_RUNS:
+                return ( job, executor ) -> {
+                    this.rejected.increment();
+                    if ( !executor.isShutdown() ) {
+                        job.run();
+                    }
+                };
+
+            case BLOCK:
+                return ( job, executor ) -> {
+                    this.rejected.increment();
+                    if ( executor.isShutdown() ) {
+                        throw new RejectedExecutionException( "Pool '" + this.name + "' is shut down!" );
+                    }
+                    try {
+                        executor.getQueue().put( job );
+                    }
+                    catch ( InterruptedException ie ) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException( "Interrupted waiting for room in pool '" + this.name + "'!", ie );
+                    }
+                };
+
+            case DROP:
+                return ( job, executor ) -> this.rejected.increment();
+
+            default:
+                return ( job, executor ) -> {
+                    this.rejected.increment();
+                    throw new RejectedExecutionException( "Pool '" + this.name + "' is saturated!" );
+                };
+        }
+    }
+
+    /**
+     * Runs a job on a thread of this pool.
+     *
+     * @param job The job to run.
+     *
+     * @throws RejectedExecutionException if the pool is saturated and the rejection policy is ABORT, or the
+     *                                    pool is shut down.
+     */
+    public void execute( @NotNull Runnable job ) {
+
+        this.executor.execute( () -> {
+
+            if ( this.threadPool == null ) this.active.incrementAndGet();
+
+            try {
+                job.run();
+            }
+            catch ( Throwable t ) {
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException( thread, t );
+            }
+            finally {
+                if ( this.threadPool == null ) {
+                    this.active.decrementAndGet();
+                    this.completed.increment();
+                }
+            }
+        } );
+    }
+
+    /**
+     * @return The name of this pool.
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return true if this runs each job on a new virtual thread.
+     */
+    public boolean isVirtual() {
+        return this.threadPool == null;
+    }
+
+    /**
+     * @return The max number of threads, or 0 for unbounded virtual threads.
+     */
+    public int getMaxThreads() {
+        return this.maxThreads;
+    }
+
+    /**
+     * @return The current number of threads, or the number of running jobs for virtual threads.
+     */
+    public int getThreadCount() {
+        return this.threadPool != null ? this.threadPool.getPoolSize() : this.active.get();
+    }
+
+    /**
+     * @return The approximate number of running jobs.
+     */
+    public int getActiveCount() {
+        return this.threadPool != null ? this.threadPool.getActiveCount() : this.active.get();
+    }
+
+    /**
+     * @return The number of jobs waiting for a thread.
+     */
+    public int getQueuedCount() {
+        return this.threadPool != null ? this.threadPool.getQueue().size() : 0;
+    }
+
+    /**
+     * @return The approximate number of finished jobs.
+     */
+    public long getCompletedCount() {
+        return this.threadPool != null ? this.threadPool.getCompletedTaskCount() : this.completed.sum();
+    }
+
+    /**
+     * @return The number of jobs that found the pool saturated. With CALLER_RUNS and BLOCK these were still run.
+     */
+    public long getRejectedCount() {
+        return this.rejected.sum();
+    }
+
+    /**
+     * @return The underlying ExecutorService.
+     */
+    public ExecutorService getExecutorService() {
+        return this.executor;
+    }
+
+    /**
+     * Stops the pool.
+     *
+     * @param now If true running jobs are interrupted and queued jobs are never run.
+     */
+    public void shutdown( boolean now ) {
+        if ( now ) {
+            this.executor.shutdownNow();
+        }
+        else {
+            this.executor.shutdown();
+        }
+    }
+
+    public String toString() {
+        return "{ name: " + this.name + ", virtual: " + isVirtual() + ", maxThreads: " + this.maxThreads +
+                ", threads: " + getThreadCount() + ", active: " + getActiveCount() + ", queued: " + getQueuedCount() +
+                ", completed: " + getCompletedCount() + ", rejected: " + getRejectedCount() + " }";
+    }
+
+    //
+    // Inner Classes
+    //
+
+    /**
+     * What to do with a job when all threads are busy and the queue is full.
+     */
+    public enum RejectionPolicy {
+
+        /** Throw a RejectedExecutionException to the submitter. */
+        ABORT,
+
+        /** Run the job on the submitting thread, which slows the submitter down. */
+        CALLER_RUNS,
+
+        /** Block the submitting thread until there is room in the queue. */
+        BLOCK,
+
+        /** Silently drop the job. It is still counted as rejected. */
+        DROP;
+
+        /**
+         * Returns the policy of a configuration value like "callerRuns" or "CALLER_RUNS".
+         *
+         * @param value The value to convert. Can be null.
+         * @param defaultPolicy Returned if value is null or unknown.
+         */
+        public static RejectionPolicy from( @Nullable String value, @NotNull RejectionPolicy defaultPolicy ) {
+
+            if ( value != null ) {
+
+                String normalized = value.replace( "_", "" ).replace( "-", "" );
+
+                for ( RejectionPolicy policy : values() ) {
+                    if ( policy.name().replace( "_", "" ).equalsIgnoreCase( normalized ) ) {
+                        return policy;
+                    }
+                }
+            }
+
+            return defaultPolicy;
+        }
+    }
+}
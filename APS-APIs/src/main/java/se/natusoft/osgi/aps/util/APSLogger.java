@@ -32,6 +32,8 @@
  *     tommy ()
  *         Changes:
  *         2011-08-04: Created!
+ *         2026-10-18: Added level thresholds, Supplier overloads and asynchronous writing to stream.
+ *         2026-10-18: Added JSON format and batched stream/file output. Fixed cache-and-delay.
  *
  */
 package se.natusoft.osgi.aps.util;
@@ -47,15 +49,26 @@ import se.natusoft.osgi.aps.tuples.Tuple3;
 
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
 
 /**
  * This wraps a LogService instance and simply logs to stdout when no logservice is available.
  * <p>
  * Note that this also implements the LogService API!
+ *
+ * Each logger has a level threshold and anything above it is ignored before any work is done. The
+ * default threshold is taken from the aps.log.level system property, and can be overridden per logger
+ * with aps.log.level.(loggingFor) or aps.log.level.(bundle symbolic name). Valid values are off, error,
+ * warning, info and debug. Default is debug. Use the Supplier variants of the logging methods for
+ * messages that are costly to build, they are only called if the level is enabled.
+ *
+ * Stream logging is by default done via APSAsyncLogAppender, which formats and writes on a separate
+ * thread. Set the aps.log.async system property to false to write directly on the logging thread.
+ * The formatting and writing is done by APSBatchingLogWriter, which writes in batches. Loggers using
+ * System.out share one writer that can be configured to write JSON (aps.log.format=json) and to write
+ * to a rolling file (aps.log.file) instead. See APSBatchingLogWriter.
  */
 public class APSLogger implements LogService {
     //
@@ -80,7 +93,35 @@ public class APSLogger implements LogService {
      */
     public static final String PROP_LOGGING_FOR = "loggingFor";
 
-    private static final SimpleDateFormat YYMMDD_HHMMSS = new SimpleDateFormat( "yy-MM-dd hh:mm:ss" );
+    /**
+     * Log level for turning off all logging.
+     */
+    public static final int LOG_OFF = 0;
+
+    /**
+     * The system property holding the default log level.
+     */
+    public static final String LEVEL_PROPERTY = "aps.log.level";
+
+    /**
+     * The default log level for all loggers.
+     */
+    private static final int DEFAULT_LEVEL = toLevel( System.getProperty( LEVEL_PROPERTY ), LogService.LOG_DEBUG );
+
+    /**
+     * Whether to write to stream via APSAsyncLogAppender or not.
+     */
+    private static final boolean ASYNC = APSAsyncLogAppender.isEnabled();
+
+    /**
+     * The format to write to stream in.
+     */
+    private static final APSBatchingLogWriter.Formatter FORMATTER = APSBatchingLogWriter.formatterFromSystemProperties();
+
+    /**
+     * The writer shared by all loggers logging to System.out. Created on first use.
+     */
+    private static APSBatchingLogWriter systemOutWriter;
 
     //
     // Private Members
@@ -114,7 +155,7 @@ public class APSLogger implements LogService {
     /**
      * List of delayed log entries.
      */
-    private List<Tuple3<Integer, String, Exception>> delayedLogEntries = null;
+    private volatile Queue<Tuple3<Integer, String, Throwable>> delayedLogEntries = null;
 
     /**
      * The logging bundle.
@@ -131,6 +172,16 @@ public class APSLogger implements LogService {
      */
     private String logger;
 
+    /**
+     * The level threshold of this logger. Anything with a higher level is not logged.
+     */
+    private volatile int level = DEFAULT_LEVEL;
+
+    /**
+     * Writes formatted entries to the out stream.
+     */
+    private APSAsyncLogAppender.Sink outSink;
+
     //
     // Constructors
     //
@@ -168,7 +219,7 @@ public class APSLogger implements LogService {
         }
         else if ( props.containsKey( PROP_CACHE_AND_DELAY ) ) {
 
-            this.delayedLogEntries = Collections.synchronizedList( new LinkedList<>() );
+            this.delayedLogEntries = new ConcurrentLinkedQueue<>();
         }
         else if ( props.containsKey( PROP_LOGGING_FOR ) ) {
 
@@ -220,6 +271,86 @@ public class APSLogger implements LogService {
         return props;
     }
 
+    /**
+     * Converts a level name to a LogService level.
+     *
+     * @param name The name of the level. Case is ignored. Can be null.
+     * @param defaultLevel The level to return if name is null or not valid.
+     */
+    public static int toLevel( String name, int defaultLevel ) {
+
+        if ( name == null ) {
+            return defaultLevel;
+        }
+
+        switch ( name.trim().toLowerCase() ) {
+            case "off":
+                return LOG_OFF;
+
+            case "error":
+                return LogService.LOG_ERROR;
+
+            case "warn":
+            case "warning":
+                return LogService.LOG_WARNING;
+
+            case "info":
+                return LogService.LOG_INFO;
+
+            case "debug":
+                return LogService.LOG_DEBUG;
+
+            default:
+                return defaultLevel;
+        }
+    }
+
+    /**
+     * Sets the level of this logger from the aps.log.level.(name) system property if that is set.
+     *
+     * @param name The name to look up a level for.
+     */
+    private void configureLevel( String name ) {
+
+        if ( name != null && !name.isEmpty() ) {
+
+            this.level = toLevel( System.getProperty( LEVEL_PROPERTY + "." + name ), this.level );
+        }
+    }
+
+    /**
+     * Sets the level threshold of this logger. Anything with a higher level will not be logged.
+     *
+     * @param level One of the LogService LOG_* levels or LOG_OFF.
+     */
+    public APSLogger setLevel( int level ) {
+        this.level = level;
+        return this;
+    }
+
+    /**
+     * @return The level threshold of this logger.
+     */
+    public int getLevel() {
+        return this.level;
+    }
+
+    /**
+     * Checks if the specified level will be logged.
+     *
+     * @param level The level to check.
+     */
+    public boolean isEnabled( int level ) {
+        return level <= this.level;
+    }
+
+    /**
+     * @return true if debug level will be logged.
+     */
+    public boolean isDebugEnabled() {
+        return isEnabled( LogService.LOG_DEBUG );
+    }
+
     /**
      * This will start tracking a LogService to use for logging. When available logs will be sent to
      * the LogService instead of the backup stream.
@@ -240,6 +371,9 @@ public class APSLogger implements LogService {
     public void connectToLogService( BundleContext context ) {
 
         this.bundle = context.getBundle();
+        this.owner = null;
+        this.logger = null;
+        configureLevel( this.bundle.getSymbolicName() );
 
         // This has no timeout and will thus fail immediately if no service is available to avoid longer blocking when logger
         // is used from bundle activator start() method.
@@ -248,18 +382,13 @@ public class APSLogger implements LogService {
         // This is what is used from now on to log to LogService.
         this.logService = this.logServiceTracker.getWrappedService();
 
-        if ( this.delayedLogEntries != null ) {
-
-            this.delayedLogEntries.forEach( entry -> {
+        Queue<Tuple3<Integer, String, Throwable>> delayed = this.delayedLogEntries;
+        this.delayedLogEntries = null;
 
-                try {
-
-                    logToService( this.logService, entry.t1, entry.t2, entry.t3 );
-                } catch ( Exception ignore ) {
-                }
-            } );
+        if ( delayed != null ) {
 
-            this.delayedLogEntries = null;
+            // This goes to stream if the LogService is not available.
+            delayed.forEach( entry -> log( entry.t1, entry.t2, entry.t3 ) );
         }
 
     }
@@ -349,6 +478,8 @@ public class APSLogger implements LogService {
      */
     public APSLogger setLoggingFor( String loggingFor ) {
         this.loggingFor = loggingFor;
+        this.logger = null;
+        configureLevel( loggingFor );
         return this;
     }
 
@@ -362,6 +493,10 @@ public class APSLogger implements LogService {
      */
     public void log( int level, String message, Throwable cause ) {
 
+        if ( !isEnabled( level ) ) {
+            return;
+        }
+
         if ( this.logService != null ) {
 
             try {
@@ -380,10 +515,31 @@ public class APSLogger implements LogService {
         }
         else {
 
-            if ( this.delayedLogEntries == null ) {
+            Queue<Tuple3<Integer, String, Throwable>> delayed = this.delayedLogEntries;
+
+            if ( delayed == null ) {
 
                 logToOutStream( level, message, cause );
             }
+            else {
+
+                delayed.add( new Tuple3<>( level, message, cause ) );
+            }
+        }
+    }
+
+    /**
+     * Like log(level, message, cause) but the message is only produced if the level is enabled.
+     *
+     * @param level   The loglevel.
+     * @param message Supplies the log message.
+     * @param cause   An optional Throwable that is the cause of the log.
+     */
+    public void log( int level, Supplier<String> message, Throwable cause ) {
+
+        if ( isEnabled( level ) ) {
+
+            log( level, message.get(), cause );
         }
     }
 
@@ -513,49 +669,55 @@ public class APSLogger implements LogService {
 
         if ( this.outStream != null ) {
 
-            StringBuilder log = new StringBuilder();
-            switch ( level ) {
-
-                case LogService.LOG_DEBUG:
-                    log.append( "DEBUG: " );
-                    break;
+            APSAsyncLogAppender.Entry entry = new APSAsyncLogAppender.Entry( level, System.currentTimeMillis(),
+                    getOwner(), this.loggingFor, Thread.currentThread().getName(), message, cause, getOutSink() );
 
-                case LogService.LOG_ERROR:
-                    log.append( "ERROR: " );
-                    break;
+            if ( ASYNC ) {
 
-                case LogService.LOG_INFO:
-                    log.append( "INFO: " );
-                    break;
-
-                case LogService.LOG_WARNING:
-                    log.append( "WARNING: " );
+                APSAsyncLogAppender.shared().append( entry );
             }
+            else {
 
-            log.append( YYMMDD_HHMMSS.format( new Date() ) );
-            log.append( " " );
+                entry.sink.write( entry );
+                entry.sink.flush( true );
+            }
+        }
+    }
 
-            log.append( getLogger() );
+    /**
+     * @return The sink writing to the out stream. Created on first call.
+     */
+    private APSAsyncLogAppender.Sink getOutSink() {
 
-            log.append( "[" );
-            log.append( Thread.currentThread().getName() );
-            log.append( "] " );
+        if ( this.outSink == null ) {
 
-            log.append( " " );
+            if ( this.outStream == System.out ) {
 
-            log.append( message );
-            if ( cause != null ) {
+                this.outSink = getSystemOutWriter();
+            }
+            else {
 
-                log.append( '\n' );
-                StringWriter sw = new StringWriter();
-                PrintWriter pw = new PrintWriter( sw );
-                cause.printStackTrace( pw );
-                log.append( sw.toString() );
-                pw.close();
+                this.outSink = new APSBatchingLogWriter( FORMATTER, this.outStream,
+                        Integer.getInteger( "aps.log.batch.size", 64 * 1024 ),
+                        Long.getLong( "aps.log.batch.interval", 1000 ) );
             }
+        }
 
-            this.outStream.println( log.toString() );
+        return this.outSink;
+    }
+
+    /**
+     * @return The writer shared by all loggers logging to System.out. This writes to the aps.log.file
+     *         file if that is set.
+     */
+    private static synchronized APSBatchingLogWriter getSystemOutWriter() {
+
+        if ( systemOutWriter == null ) {
+
+            systemOutWriter = APSBatchingLogWriter.fromSystemProperties( FORMATTER, System.out );
         }
+
+        return systemOutWriter;
     }
 
     /**
@@ -577,6 +739,25 @@ public class APSLogger implements LogService {
         log( LogService.LOG_DEBUG, message, cause );
     }
 
+    /**
+     * Does a debug log. The message is only produced if the level is enabled.
+     *
+     * @param message Supplies the log message.
+     */
+    public void debug( Supplier<String> message ) {
+        log( LogService.LOG_DEBUG, message, null );
+    }
+
+    /**
+     * Does a debug log. The message is only produced if the level is enabled.
+     *
+     * @param message Supplies the log message.
+     * @param cause   The cause of the log entry.
+     */
+    public void debug( Supplier<String> message, Throwable cause ) {
+        log( LogService.LOG_DEBUG, message, cause );
+    }
+
     /**
      * Does an error log.
      *
@@ -596,6 +777,25 @@ public class APSLogger implements LogService {
         log( LogService.LOG_ERROR, message, cause );
     }
 
+    /**
+     * Does an error log. The message is only produced if the level is enabled.
+     *
+     * @param message Supplies the log message.
+     */
+    public void error( Supplier<String> message ) {
+        log( LogService.LOG_ERROR, message, null );
+    }
+
+    /**
+     * Does an error log. The message is only produced if the level is enabled.
+     *
+     * @param message Supplies the log message.
+     * @param cause   The cause of the log entry.
+     */
+    public void error( Supplier<String> message, Throwable cause ) {
+        log( LogService.LOG_ERROR, message, cause );
+    }
+
     /**
      * Does an info log.
      *
@@ -615,6 +815,25 @@ public class APSLogger implements LogService {
         log( LogService.LOG_INFO, message, cause );
     }
 
+    /**
+     * Does an info log. The message is only produced if the level is enabled.
+     *
+     * @param message Supplies the log message.
+     */
+    public void info( Supplier<String> message ) {
+        log( LogService.LOG_INFO, message, null );
+    }
+
+    /**
+     * Does an info log. The message is only produced if the level is enabled.
+     *
+     * @param message Supplies the log message.
+     * @param cause   The cause of the log entry.
+     */
+    public void info( Supplier<String> message, Throwable cause ) {
+        log( LogService.LOG_INFO, message, cause );
+    }
+
     /**
      * Does a warning log.
      *
@@ -634,4 +853,23 @@ public class APSLogger implements LogService {
         log( LogService.LOG_WARNING, message, cause );
     }
 
+    /**
+     * Does a warning log. The message is only produced if the level is enabled.
+     *
+     * @param message Supplies the log message.
+     */
+    public void warn( Supplier<String> message ) {
+        log( LogService.LOG_WARNING, message, null );
+    }
+
+    /**
+     * Does a warning log. The message is only produced if the level is enabled.
+     *
+     * @param message Supplies the log message.
+     * @param cause   The cause of the log entry.
+     */
+    public void warn( Supplier<String> message, Throwable cause ) {
+        log( LogService.LOG_WARNING, message, cause );
+    }
+
 }
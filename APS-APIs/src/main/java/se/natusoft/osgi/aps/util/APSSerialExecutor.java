@@ -0,0 +1,153 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS APIs
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         Provides the APIs for the application platform services.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.util;
+
+import se.natusoft.docutations.NotNull;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs jobs one at a time in submission order, borrowing threads from another Executor.
+ * <p>
+ * No thread is held while there are no jobs. When a job is submitted to an idle serial executor a
+ * drain worker is submitted to the backing executor. The worker runs queued jobs until the queue is
+ * empty, or until drainLimit jobs have been run, in which case it resubmits itself to give other
+ * work a chance. There is never more than one worker, which is what guarantees the order.
+ */
+public class APSSerialExecutor implements Executor {
+
+    //
+    // Private Members
+    //
+
+    /** The executor providing threads. */
+    private Executor executor;
+
+    /** The max number of jobs to run before giving the thread back. */
+    private int drainLimit;
+
+    /** The jobs waiting to run. */
+    private Queue<Runnable> jobs = new ConcurrentLinkedQueue<>();
+
+    /** The number of jobs submitted but not yet run. A worker is submitted when this goes from 0 to 1. */
+    private AtomicInteger wip = new AtomicInteger();
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Creates a new APSSerialExecutor.
+     *
+     * @param executor The executor providing threads.
+     * @param drainLimit The max number of jobs to run before giving the thread back.
+     */
+    public APSSerialExecutor( @NotNull Executor executor, int drainLimit ) {
+        this.executor = executor;
+        this.drainLimit = Math.max( 1, drainLimit );
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Queues a job to run after all previously submitted jobs.
+     *
+     * @param job The job to run.
+     */
+    @Override
+    public void execute( @NotNull Runnable job ) {
+
+        this.jobs.offer( job );
+
+        if ( this.wip.getAndIncrement() == 0 ) {
+            submit();
+        }
+    }
+
+    /**
+     * @return The number of jobs submitted but not yet run.
+     */
+    public int getQueuedCount() {
+        return this.wip.get();
+    }
+
+    /**
+     * Submits a drain worker. If the backing executor refuses, the jobs are run on the calling thread.
+     */
+    private void submit() {
+        try {
+            this.executor.execute( this::drain );
+        }
+        catch ( RejectedExecutionException ree ) {
+            drain();
+        }
+    }
+
+    /**
+     * Runs jobs until none are left or drainLimit is reached.
+     */
+    private void drain() {
+
+        int ran = 0;
+
+        do {
+            // Never null since a job is queued before wip is incremented.
+            Runnable job = this.jobs.poll();
+
+            try {
+                job.run();
+            }
+            catch ( Throwable t ) {
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException( thread, t );
+            }
+
+            if ( this.wip.decrementAndGet() == 0 ) {
+                return;
+            }
+        }
+        while ( ++ran < this.drainLimit );
+
+        submit();
+    }
+}
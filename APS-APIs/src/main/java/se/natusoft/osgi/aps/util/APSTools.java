@@ -1,6 +1,6 @@
 package se.natusoft.osgi.aps.util;
 
-import java.time.Instant;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BooleanSupplier;
 
 /**
@@ -11,29 +11,35 @@ public class APSTools {
     /**
      * Waits for some condition. Will block thread.
      *
-     * @param millis Number of milliseconds to wait before checking condition again.
+     * The condition is only ever checked on the calling thread, every millis.
+     *
+     * To wait for a service or an activator state without blocking a thread, use
+     * APSServiceTracker.whenServiceAvailable() or APSActivatorInteraction.whenState(...) instead.
+     *
+     * @param millis Max number of milliseconds to wait before checking condition again.
      * @param max Will timeout at this many milliseconds.
      * @param condition This condition needs to return true for the wait to be over.
      *
-     * @throws InterruptedException Due to doing thread.sleep(...)!
+     * @throws InterruptedException If interrupted while waiting.
      */
     public static void waitFor( long millis, long max, BooleanSupplier condition ) throws InterruptedException {
 
-        Instant start = Instant.now();
-        Instant timeout = start.plusMillis( max );
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( max );
+        long interval = TimeUnit.MILLISECONDS.toNanos( millis );
 
-        while ( !condition.getAsBoolean() && Instant.now().isBefore( timeout ) ) {
-            Thread.sleep( millis );
+        long remaining;
+        while ( !condition.getAsBoolean() && ( remaining = deadline - System.nanoTime() ) > 0 ) {
+            TimeUnit.NANOSECONDS.sleep( Math.min( interval, remaining ) );
         }
     }
 
     /**
-     * Waits for some condition. Will block thread. Sleeps 100 ms between each check.
+     * Waits for some condition. Will block thread. Checks at least every 100 ms.
      *
      * @param max Will timeout at this many milliseconds.
      * @param condition This condition needs to return true for the wait to be over.
      *
-     * @throws InterruptedException Due to doing thread.sleep(...)!
+     * @throws InterruptedException If interrupted while waiting.
      */
     public static void waitFor( long max, BooleanSupplier condition ) throws InterruptedException {
 
@@ -46,7 +52,7 @@ public class APSTools {
      *
      * @param condition This condition needs to return true for the wait to be over.
      *
-     * @throws InterruptedException Due to doing thread.sleep(...)!
+     * @throws InterruptedException If interrupted while waiting.
      */
     public static void waitFor( BooleanSupplier condition ) throws InterruptedException {
 
@@ -0,0 +1,549 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS APIs
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         Provides the APIs for the application platform services.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.util;
+
+import se.natusoft.docutations.NotNull;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A hashed wheel timer. This runs one thread that ticks at a fixed interval. Each scheduled task
+ * is put in a bucket of the wheel based on its deadline, and at each tick only the tasks of the
+ * current bucket are looked at. Scheduling and cancelling is O(1) and does not lock. The precision
+ * is the tick time, which is perfectly fine for timeouts and retries, but not for exact timing.
+ *
+ * The point of this is to not have a thread sleeping for each thing waiting for a timeout. No
+ * matter how many timeouts are scheduled there is only one thread.
+ *
+ * **Do note** that expired tasks are run on the timer thread! They should be quick and not block.
+ * Anything taking time should be passed on to APSExecutor. Tasks that throw are passed to the uncaught
+ * exception handler of the timer thread, and the timer keeps running.
+ *
+ * There is a shared instance available through APSWheelTimer.shared() which should be used unless
+ * there is a very good reason to create a separate one.
+ */
+public class APSWheelTimer {
+
+    //
+    // Constants
+    //
+
+    private static final int WORKER_INIT = 0;
+    private static final int WORKER_STARTED = 1;
+    private static final int WORKER_SHUTDOWN = 2;
+
+    //
+    // Inner Types
+    //
+
+    /**
+     * A handle to a scheduled task.
+     */
+    public interface Timeout {
+
+        /**
+         * Cancels the task if it has not yet been run.
+         *
+         * @return true if cancelled, false if already run or cancelled.
+         */
+        boolean cancel();
+
+        /**
+         * @return true if the task has been cancelled.
+         */
+        boolean isCancelled();
+
+        /**
+         * @return true if the task has been run.
+         */
+        boolean isExpired();
+    }
+
+    //
+    // Private Members
+    //
+
+    /** Holds the shared instance. */
+    private static APSWheelTimer sharedInst;
+
+    /** The name of the timer thread. */
+    private String name;
+
+    /** The tick duration in nanoseconds. */
+    private long tickNanos;
+
+    /** The wheel. Only touched by the worker thread. */
+    private Bucket[] wheel;
+
+    /** For calculating bucket index. The wheel size is always a power of 2. */
+    private int mask;
+
+    /** Newly scheduled entries waiting to be put in a bucket by the worker. */
+    private ConcurrentLinkedQueue<Entry> scheduled = new ConcurrentLinkedQueue<>();
+
+    /** Cancelled entries waiting to be removed from their bucket by the worker. */
+    private ConcurrentLinkedQueue<Entry> cancelled = new ConcurrentLinkedQueue<>();
+
+    /** The worker state. */
+    private AtomicInteger workerState = new AtomicInteger( WORKER_INIT );
+
+    /** The worker thread. */
+    private volatile Thread workerThread;
+
+    /** The time the worker started. All deadlines are relative to this. */
+    private volatile long startTime = 0;
+
+    /** Count of scheduled, not yet run or cancelled tasks. */
+    private AtomicInteger pending = new AtomicInteger( 0 );
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Creates a new APSWheelTimer.
+     *
+     * @param name The name of the timer thread.
+     * @param tickMillis The tick duration in milliseconds.
+     * @param wheelSize The number of buckets in the wheel. Will be rounded up to a power of 2.
+     */
+    public APSWheelTimer( @NotNull String name, long tickMillis, int wheelSize ) {
+
+        if ( tickMillis <= 0 ) {
+            throw new IllegalArgumentException( "tickMillis must be > 0!" );
+        }
+        if ( wheelSize <= 0 || wheelSize > ( 1 << 30 ) ) {
+            throw new IllegalArgumentException( "wheelSize must be > 0 and <= 2^30!" );
+        }
+
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos( tickMillis );
+
+        int size = 1;
+        while ( size < wheelSize ) {
+            size <<= 1;
+        }
+
+        this.wheel = new Bucket[ size ];
+        for ( int i = 0; i < size; i++ ) {
+            this.wheel[ i ] = new Bucket();
+        }
+        this.mask = size - 1;
+    }
+
+    //
+    // Static Methods
+    //
+
+    /**
+     * @return The shared instance, created on first call. This ticks every 50 ms and have 512 buckets.
+     */
+    public static synchronized APSWheelTimer shared() {
+
+        if ( sharedInst == null ) {
+            sharedInst = new APSWheelTimer( "aps-wheel-timer", 50, 512 );
+        }
+
+        return sharedInst;
+    }
+
+    /**
+     * Stops the shared instance if it has been created. A new one will be created on next call
+     * to shared().
+     *
+     * **Do note** that other bundles hold on to the shared instance, and will fail to schedule
+     * on it once stopped. So this must not be called by a bundle using it, only when everything
+     * is going down. Create a separate timer if it needs to be stopped with a bundle.
+     */
+    public static synchronized void shutdownShared() {
+
+        if ( sharedInst != null ) {
+            sharedInst.stop();
+            sharedInst = null;
+        }
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Schedules a task to be run after the specified delay.
+     *
+     * @param task The task to run. This is run on the timer thread, so keep it short!
+     * @param delay The delay before running task.
+     * @param unit The unit of the delay.
+     *
+     * @return A Timeout that can be used to cancel the task.
+     */
+    public Timeout schedule( @NotNull Runnable task, long delay, @NotNull TimeUnit unit ) {
+
+        start();
+
+        long deadline = System.nanoTime() + unit.toNanos( Math.max( delay, 0 ) ) - this.startTime;
+
+        Entry entry = new Entry( this, task, deadline );
+        this.pending.incrementAndGet();
+        this.scheduled.add( entry );
+
+        return entry;
+    }
+
+    /**
+     * @return The number of scheduled tasks that have neither been run nor cancelled.
+     */
+    public int getPendingCount() {
+        return this.pending.get();
+    }
+
+    /**
+     * Stops the timer thread. Tasks not yet run will never be run.
+     */
+    public void stop() {
+
+        if ( this.workerState.getAndSet( WORKER_SHUTDOWN ) == WORKER_STARTED && this.workerThread != null ) {
+            this.workerThread.interrupt();
+        }
+    }
+
+    /**
+     * Starts the worker thread if not already started.
+     */
+    private void start() {
+
+        switch ( this.workerState.get() ) {
+
+            case WORKER_INIT:
+                if ( this.workerState.compareAndSet( WORKER_INIT, WORKER_STARTED ) ) {
+
+                    this.startTime = System.nanoTime();
+                    // 0 is used as "not started" so make sure it never is.
+                    if ( this.startTime == 0 ) {
+                        this.startTime = 1;
+                    }
+
+                    this.workerThread = new Thread( this::work, this.name );
+                    this.workerThread.setDaemon( true );
+                    this.workerThread.start();
+                }
+                else {
+                    waitForStartTime();
+                }
+                break;
+
+            case WORKER_STARTED:
+                waitForStartTime();
+                break;
+
+            default:
+                throw new IllegalStateException( "The timer '" + this.name + "' has been stopped!" );
+        }
+    }
+
+    /**
+     * In the unlikely case of 2 threads starting the timer at the same time, the loser has to
+     * wait for the winner to set the start time.
+     */
+    private void waitForStartTime() {
+
+        while ( this.startTime == 0 ) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * The worker thread loop.
+     */
+    private void work() {
+
+        long tick = 0;
+
+        while ( this.workerState.get() == WORKER_STARTED ) {
+
+            if ( !waitForNextTick( tick ) ) {
+                break;
+            }
+
+            removeCancelled();
+            transferScheduled( tick );
+            this.wheel[ (int) ( tick & this.mask ) ].expire();
+
+            tick++;
+        }
+    }
+
+    /**
+     * Sleeps until the specified tick is due.
+     *
+     * @param tick The tick to wait for.
+     *
+     * @return false if interrupted by shutdown.
+     */
+    private boolean waitForNextTick( long tick ) {
+
+        long deadline = this.tickNanos * ( tick + 1 );
+
+        while ( true ) {
+
+            long now = System.nanoTime() - this.startTime;
+            long sleepMillis = ( deadline - now + 999999 ) / 1000000;
+
+            if ( sleepMillis <= 0 ) {
+                return true;
+            }
+
+            try {
+                Thread.sleep( sleepMillis );
+            }
+            catch ( InterruptedException ie ) {
+                if ( this.workerState.get() == WORKER_SHUTDOWN ) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves newly scheduled entries into their buckets.
+     *
+     * @param tick The current tick.
+     */
+    private void transferScheduled( long tick ) {
+
+        // Limit the number handled per tick so that a flood of schedules can't starve the wheel.
+        for ( int i = 0; i < 100000; i++ ) {
+
+            Entry entry = this.scheduled.poll();
+            if ( entry == null ) {
+                break;
+            }
+
+            if ( entry.state == Entry.ST_CANCELLED ) {
+                continue;
+            }
+
+            long calculated = entry.deadline / this.tickNanos;
+            entry.remainingRounds = ( calculated - tick ) / this.wheel.length;
+
+            // If already passed, put it in the current bucket so it gets run now.
+            long ticks = Math.max( calculated, tick );
+            this.wheel[ (int) ( ticks & this.mask ) ].add( entry );
+        }
+    }
+
+    /**
+     * Removes cancelled entries from their buckets.
+     */
+    private void removeCancelled() {
+
+        Entry entry;
+        while ( ( entry = this.cancelled.poll() ) != null ) {
+
+            if ( entry.bucket != null ) {
+                entry.bucket.remove( entry );
+            }
+        }
+    }
+
+    //
+    // Inner Classes
+    //
+
+    /**
+     * A scheduled task.
+     */
+    private static final class Entry implements Timeout {
+
+        private static final int ST_INIT = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+
+        private static final AtomicIntegerFieldUpdater<Entry> STATE =
+                AtomicIntegerFieldUpdater.newUpdater( Entry.class, "state" );
+
+        /** The timer this entry belongs to. */
+        private final APSWheelTimer timer;
+
+        /** The task to run. */
+        private Runnable task;
+
+        /** The deadline in nanoseconds relative to start time. */
+        private long deadline;
+
+        /** The number of full wheel rounds left before expiry. Only touched by worker. */
+        private long remainingRounds;
+
+        /** The current state. */
+        private volatile int state = ST_INIT;
+
+        /** The bucket this entry is in, and the links within the bucket. Only touched by worker. */
+        private Bucket bucket;
+        private Entry next;
+        private Entry prev;
+
+        Entry( APSWheelTimer timer, Runnable task, long deadline ) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+
+            if ( !STATE.compareAndSet( this, ST_INIT, ST_CANCELLED ) ) {
+                return false;
+            }
+
+            this.timer.pending.decrementAndGet();
+            this.timer.cancelled.add( this );
+            // Don't hold on to whatever the task references while waiting for removal.
+            this.task = null;
+
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return this.state == ST_CANCELLED;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return this.state == ST_EXPIRED;
+        }
+
+        /**
+         * Runs the task if not cancelled.
+         */
+        void expire() {
+
+            if ( !STATE.compareAndSet( this, ST_INIT, ST_EXPIRED ) ) {
+                return;
+            }
+
+            this.timer.pending.decrementAndGet();
+
+            Runnable toRun = this.task;
+            this.task = null;
+
+            try {
+                toRun.run();
+            }
+            catch ( Throwable t ) {
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException( thread, t );
+            }
+        }
+    }
+
+    /**
+     * A bucket in the wheel. This is a doubly linked list of entries. Only touched by the worker thread.
+     */
+    private static final class Bucket {
+
+        private Entry head;
+        private Entry tail;
+
+        void add( Entry entry ) {
+
+            entry.bucket = this;
+
+            if ( this.head == null ) {
+                this.head = this.tail = entry;
+            }
+            else {
+                this.tail.next = entry;
+                entry.prev = this.tail;
+                this.tail = entry;
+            }
+        }
+
+        /**
+         * Runs all entries that are due and decrements the rounds of the rest.
+         */
+        void expire() {
+
+            Entry entry = this.head;
+
+            while ( entry != null ) {
+
+                Entry next = entry.next;
+
+                if ( entry.remainingRounds <= 0 ) {
+
+                    remove( entry );
+                    entry.expire();
+                }
+                else if ( entry.isCancelled() ) {
+                    remove( entry );
+                }
+                else {
+                    entry.remainingRounds--;
+                }
+
+                entry = next;
+            }
+        }
+
+        void remove( Entry entry ) {
+
+            if ( entry.bucket != this ) {
+                return;
+            }
+
+            if ( entry.prev != null ) {
+                entry.prev.next = entry.next;
+            }
+            if ( entry.next != null ) {
+                entry.next.prev = entry.prev;
+            }
+            if ( entry == this.head ) {
+                this.head = entry.next;
+            }
+            if ( entry == this.tail ) {
+                this.tail = entry.prev;
+            }
+
+            entry.prev = null;
+            entry.next = null;
+            entry.bucket = null;
+        }
+    }
+}
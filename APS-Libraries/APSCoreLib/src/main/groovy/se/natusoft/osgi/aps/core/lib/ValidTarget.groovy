@@ -72,20 +72,37 @@ class ValidTarget {
      */
     @SuppressWarnings( "DuplicatedCode" )
     static boolean onValid( String supportedTargetIds, boolean supportsAll, String target, Closure go ) {
-        boolean valid = false
+        String address = address( supportedTargetIds, supportsAll, target )
 
-        String targetId = target.split( ":" )[0]
+        if ( address != null ) {
+            go.call( address )
+        }
+
+        address != null
+    }
+
+    /**
+     * Same check as onValid(...), but returns the target without the target id instead of calling
+     * a closure. This is for hot paths that wants to avoid a closure per call.
+     *
+     * @param supportedTargetIds A space separated list of supported target ids.
+     * @param supportsAll If true then the "all:" target is also supported.
+     * @param target Target to validate.
+     *
+     * @return The target with the target id removed, or null if the target is not valid.
+     */
+    static String address( String supportedTargetIds, boolean supportsAll, String target ) {
+        String address = null
+
+        int colon = target.indexOf( ':' )
+        String targetId = colon >= 0 ? target.substring( 0, colon ) : target
         if (supportedTargetIds.contains( targetId )) {
-            target = target.substring( targetId.length() )
-            valid = true
-            go.call( target )
+            address = target.substring( targetId.length() )
         }
         else if (supportsAll && target.startsWith( "all:" )) {
-            target = target.substring( 4 )
-            valid = true
-            go.call( target )
+            address = target.substring( 4 )
         }
 
-        valid
+        address
     }
 }
@@ -0,0 +1,158 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS Core Lib
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         This library is made in Groovy and thus depends on Groovy, and contains functionality that
+ *         makes sense for Groovy, but not as much for Java.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.core.metrics
+
+import groovy.transform.CompileStatic
+import se.natusoft.docutations.NotNull
+import se.natusoft.osgi.aps.api.metrics.APSCounter
+import se.natusoft.osgi.aps.api.metrics.APSHistogram
+import se.natusoft.osgi.aps.api.metrics.APSMetrics
+import se.natusoft.osgi.aps.exceptions.APSValidationException
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.function.Supplier
+
+/**
+ * The APSMetrics implementation.
+ *
+ * There is one shared instance, available through shared(), that all APS code records into. It
+ * is used directly rather than through the service so that counters and histograms can be fetched
+ * when a class is created, no matter if the service is up yet. APSMetricsProvider publishes the
+ * shared instance as APSMetrics service.
+ */
+@CompileStatic
+class APSMetricsRegistry implements APSMetrics {
+
+    //
+    // Private Members
+    //
+
+    /** The shared instance. */
+    private static final APSMetricsRegistry SHARED = new APSMetricsRegistry()
+
+    /** MetricsCounter, MetricsHistogram or Supplier<Number> per name. */
+    private Map<String, Object> metrics = new ConcurrentHashMap<>()
+
+    //
+    // Methods
+    //
+
+    /**
+     * @return The shared registry.
+     */
+    static APSMetricsRegistry shared() {
+        SHARED
+    }
+
+    /**
+     * Returns the counter with the specified name, creating it if it does not exist.
+     *
+     * @param name The name of the counter.
+     */
+    @Override
+    APSCounter counter( @NotNull String name ) {
+        Object metric = this.metrics.computeIfAbsent( name ) { String key -> new MetricsCounter() }
+        if ( !( metric instanceof MetricsCounter ) ) throw new APSValidationException( "Metric '${ name }' is not a counter!" )
+
+        ( MetricsCounter ) metric
+    }
+
+    /**
+     * Returns the histogram with the specified name, creating it if it does not exist.
+     *
+     * @param name The name of the histogram.
+     */
+    @Override
+    APSHistogram histogram( @NotNull String name ) {
+        Object metric = this.metrics.computeIfAbsent( name ) { String key -> new MetricsHistogram() }
+        if ( !( metric instanceof MetricsHistogram ) ) throw new APSValidationException( "Metric '${ name }' is not a histogram!" )
+
+        ( MetricsHistogram ) metric
+    }
+
+    /**
+     * Registers a gauge, a value read when a snapshot is taken. A gauge with the same name is replaced.
+     *
+     * @param name The name of the gauge.
+     * @param value Supplies the current value.
+     */
+    @Override
+    void gauge( @NotNull String name, @NotNull Supplier<Number> value ) {
+        this.metrics.put( name, value )
+    }
+
+    /**
+     * Removes a metric of any kind.
+     *
+     * @param name The name of the metric to remove.
+     */
+    @Override
+    void remove( @NotNull String name ) {
+        this.metrics.remove( name )
+    }
+
+    /**
+     * Returns a snapshot of all metrics as a JSON structure, sorted on name.
+     */
+    @Override
+    Map<String, Object> snapshot() {
+
+        Map<String, Object> snapshot = new TreeMap<>()
+
+        this.metrics.each { String name, Object metric ->
+
+            if ( metric instanceof MetricsCounter ) {
+                snapshot[ name ] = ( metric as MetricsCounter ).count
+            }
+            else if ( metric instanceof MetricsHistogram ) {
+                snapshot[ name ] = ( metric as MetricsHistogram ).snapshot()
+            }
+            else {
+                try {
+                    snapshot[ name ] = ( metric as Supplier<Number> ).get()
+                }
+                catch ( Exception ignored ) {
+                    // A failing gauge should not fail the snapshot.
+                    snapshot[ name ] = null
+                }
+            }
+        }
+
+        snapshot
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS Core Lib
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         This library is made in Groovy and thus depends on Groovy, and contains functionality that
+ *         makes sense for Groovy, but not as much for Java.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.core.metrics
+
+import groovy.transform.CompileStatic
+import se.natusoft.osgi.aps.api.metrics.APSCounter
+
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * An APSCounter on a LongAdder, so concurrent updates from many threads do not contend.
+ */
+@CompileStatic
+class MetricsCounter implements APSCounter {
+
+    //
+    // Private Members
+    //
+
+    private final LongAdder count = new LongAdder()
+
+    //
+    // Methods
+    //
+
+    /**
+     * Adds one.
+     */
+    @Override
+    void increment() {
+        this.count.increment()
+    }
+
+    /**
+     * Adds a value.
+     *
+     * @param value The value to add.
+     */
+    @Override
+    void add( long value ) {
+        this.count.add( value )
+    }
+
+    /**
+     * @return The current count.
+     */
+    @Override
+    long getCount() {
+        this.count.sum()
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS Core Lib
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         This library is made in Groovy and thus depends on Groovy, and contains functionality that
+ *         makes sense for Groovy, but not as much for Java.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.core.metrics
+
+import groovy.transform.CompileStatic
+import se.natusoft.osgi.aps.api.metrics.APSHistogram
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * An APSHistogram with log-linear buckets, in the same spirit as HdrHistogram.
+ *
+ * Values below 16 have a bucket each. Above that each power of 2 is split into 16 buckets, so a
+ * bucket is never wider than 1/16 of its values, and percentiles are within about 6%. This covers
+ * all positive long values in 960 buckets. Recording is an index calculation and an atomic
+ * increment, so it does not allocate and does not lock.
+ */
+@CompileStatic
+class MetricsHistogram implements APSHistogram {
+
+    //
+    // Constants
+    //
+
+    /** The number of bits of precision per power of 2. */
+    private static final int SUB_BITS = 4
+
+    private static final int SUB_COUNT = 1 << SUB_BITS
+
+    private static final int BUCKETS = ( 63 - SUB_BITS ) * SUB_COUNT + SUB_COUNT
+
+    //
+    // Private Members
+    //
+
+    private final AtomicLongArray buckets = new AtomicLongArray( BUCKETS )
+
+    private final LongAdder count = new LongAdder()
+
+    private final LongAdder sum = new LongAdder()
+
+    private final AtomicLong min = new AtomicLong( Long.MAX_VALUE )
+
+    private final AtomicLong max = new AtomicLong( 0 )
+
+    //
+    // Methods
+    //
+
+    /**
+     * Returns the bucket of a value.
+     *
+     * @param value The value, 0 or more.
+     */
+    static int bucketOf( long value ) {
+
+        if ( value < SUB_COUNT ) return ( int ) value
+
+        int shift = 63 - Long.numberOfLeadingZeros( value ) - SUB_BITS
+
+        shift * SUB_COUNT + ( int ) ( value >>> shift )
+    }
+
+    /**
+     * Returns the highest value of a bucket.
+     *
+     * @param bucket The bucket.
+     */
+    static long highestValueOf( int bucket ) {
+
+        if ( bucket < SUB_COUNT ) return bucket
+
+        int shift = bucket.intdiv( SUB_COUNT ) as int
+        shift = shift - 1
+        long mantissa = bucket % SUB_COUNT + SUB_COUNT
+
+        ( ( mantissa + 1 ) << shift ) - 1
+    }
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     *
+     * @param value The value to record.
+     */
+    @Override
+    void record( long value ) {
+
+        if ( value < 0 ) value = 0
+
+        this.buckets.incrementAndGet( bucketOf( value ) )
+        this.count.increment()
+        this.sum.add( value )
+
+        long current
+        while ( value < ( current = this.min.get() ) && !this.min.compareAndSet( current, value ) ) {}
+        while ( value > ( current = this.max.get() ) && !this.max.compareAndSet( current, value ) ) {}
+    }
+
+    /**
+     * @return The number of recorded values.
+     */
+    @Override
+    long getCount() {
+        this.count.sum()
+    }
+
+    /**
+     * Returns the approximate value at a percentile. This is the highest value of the bucket the
+     * percentile falls in, but never more than the max recorded value.
+     *
+     * @param percentile The percentile, 0.0 - 100.0.
+     */
+    @Override
+    long valueAt( double percentile ) {
+
+        long total = getCount()
+        if ( total == 0 ) return 0
+
+        long rank = Math.max( 1L, ( long ) Math.ceil( total * Math.min( percentile, 100.0d ) / 100.0d ) )
+        long seen = 0
+
+        for ( int bucket = 0; bucket < BUCKETS; bucket++ ) {
+            seen += this.buckets.get( bucket )
+            if ( seen >= rank ) return Math.min( highestValueOf( bucket ), this.max.get() )
+        }
+
+        this.max.get()
+    }
+
+    /**
+     * @return A snapshot of the histogram as a JSON object.
+     */
+    Map<String, Object> snapshot() {
+
+        long total = getCount()
+
+        [
+                count: total,
+                min  : total == 0 ? 0L : this.min.get(),
+                max  : this.max.get(),
+                mean : total == 0 ? 0.0d : this.sum.sum() / ( double ) total,
+                p50  : valueAt( 50.0d ),
+                p90  : valueAt( 90.0d ),
+                p99  : valueAt( 99.0d ),
+                p999 : valueAt( 99.9d )
+        ] as Map<String, Object>
+    }
+}
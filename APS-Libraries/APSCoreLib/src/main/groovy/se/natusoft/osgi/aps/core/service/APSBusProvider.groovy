@@ -33,54 +33,77 @@
  *     tommy ()
  *         Changes:
  *         2019-08-17: Created!
+ *         2026-10-18: Becomes ready when the last bus router arrives, without polling.
+ *         2026-10-18: Stops the shared APSWheelTimer on bundle stop.
+ *         2026-10-18: Tells the request engine when a router leaves.
+ *         2026-10-18: requestAsync() fails on timeout when the send succeeded but no reply came.
+ *         2026-10-18: Stops the shared APSAsyncLogAppender on bundle stop.
+ *         2026-10-18: No longer stops the shared APSWheelTimer, the request engine has a timer of its own.
+ *         2026-10-18: Replies are counted under one counter rather than per unique reply target.
+ *         2026-10-18: No longer stops the shared APSAsyncLogAppender, which is used by all bundles.
+ *         2026-10-18: Bad system property values are logged with the bundle logger.
  *
  */
 package se.natusoft.osgi.aps.core.service
 
 import groovy.transform.CompileStatic
 import org.osgi.framework.BundleContext
+import org.osgi.framework.ServiceReference
 import org.osgi.framework.ServiceRegistration
 import se.natusoft.docutations.NotNull
-import se.natusoft.docutations.NotUsed
 import se.natusoft.docutations.Nullable
 import se.natusoft.docutations.Optional
 import se.natusoft.osgi.aps.activator.APSActivatorInteraction
 import se.natusoft.osgi.aps.activator.annotation.*
+import se.natusoft.osgi.aps.api.messaging.APSAsyncBus
 import se.natusoft.osgi.aps.api.messaging.APSBus
 import se.natusoft.osgi.aps.api.messaging.APSBusRouter
 import se.natusoft.osgi.aps.api.messaging.APSMessagingException
+import se.natusoft.osgi.aps.api.metrics.APSCounter
 import se.natusoft.osgi.aps.constants.APS
-import se.natusoft.osgi.aps.core.lib.Sporadic
+import se.natusoft.osgi.aps.core.metrics.APSMetricsRegistry
 import se.natusoft.osgi.aps.exceptions.APSValidationException
 import se.natusoft.osgi.aps.tracker.APSServiceTracker
 import se.natusoft.osgi.aps.types.APSHandler
 import se.natusoft.osgi.aps.types.APSResult
-import se.natusoft.osgi.aps.types.APSUUID
 import se.natusoft.osgi.aps.types.ID
+import se.natusoft.osgi.aps.util.APSCondition
 import se.natusoft.osgi.aps.util.APSLogger
-import se.natusoft.osgi.aps.util.SyncedValue
 
-import java.time.Instant
-
-import static se.natusoft.osgi.aps.util.APSExecutor.concurrent
-import static se.natusoft.osgi.aps.util.APSTools.waitFor
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionStage
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Flow
+import java.util.function.BooleanSupplier
 
 /**
  * This is a simple bus API that is used by creating an instance and passing a BundleContext.
  *
- * All calls will be passed to all the APSBusRouter implementations tracked. Also see the
- * javadoc for that interface.
+ * All calls will be passed to the APSBusRouter implementations tracked that claims the id of
+ * the target, and to all routers that does not declare any target ids. Also see the javadoc
+ * for that interface.
+ *
+ * This is also published as APSAsyncBus which provides the same functionality via
+ * CompletionStage and Flow.Publisher.
+ *
+ * The number of messages sent per target is counted in the shared APSMetricsRegistry as
+ * "aps.bus.sent.(target)", for up to 'aps.bus.metrics.max.targets' targets (default 500). Sends
+ * to targets beyond that are counted as "aps.bus.sent.other". Replies are all counted as
+ * "aps.bus.sent.reply", since each request has its own reply target unless the
+ * 'aps.request.reply.multiplex' system property is true. Messages that no router accepted
+ * and messages failing validation are counted as "aps.bus.unrouted" and "aps.bus.invalid".
  */
 @SuppressWarnings( [ "unused", "PackageAccessibility" ] )
 @CompileStatic
 @OSGiServiceProvider(
+        serviceAPIs = [ APSBus.class, APSAsyncBus.class ],
         properties = [
                 @OSGiProperty( name = APS.Service.Provider, value = "aps-bus-provider" ),
                 @OSGiProperty( name = APS.Service.Category, value = APS.Value.Service.Category.Communication ),
                 @OSGiProperty( name = APS.Service.Function, value = APS.Value.Service.Function.Messaging ),
         ]
 )
-class APSBusProvider implements APSBus {
+class APSBusProvider implements APSBus, APSAsyncBus {
 
     //
     // Private Members
@@ -101,6 +124,29 @@ class APSBusProvider implements APSBus {
     @OSGiService( serviceAPI = APSBusRouter.class )
     private APSServiceTracker<APSBusRouter> routerTracker
 
+    /** The tracked bus routers indexed on target id. Only updated when routers come and go. */
+    private APSBusRouterIndex routerIndex = new APSBusRouterIndex()
+
+    /** Becomes true when all bus routers found in aps/bus/routers files are indexed. */
+    private APSCondition allRoutersIndexed
+
+    /** Handles request(...) calls. */
+    private RequestReplyEngine requestEngine
+
+    /** The max number of targets to count sent messages for separately. */
+    private int maxTargetCounters = Integer.getInteger( "aps.bus.metrics.max.targets", 500 )
+
+    /** The sent message counters per target. Looked up without allocation on each send. Added to under lock. */
+    private Map<String, APSCounter> sentCounters = new ConcurrentHashMap<>()
+
+    private APSCounter sentOther = APSMetricsRegistry.shared().counter( "aps.bus.sent.other" )
+
+    private APSCounter sentReply = APSMetricsRegistry.shared().counter( "aps.bus.sent.reply" )
+
+    private APSCounter unrouted = APSMetricsRegistry.shared().counter( "aps.bus.unrouted" )
+
+    private APSCounter invalid = APSMetricsRegistry.shared().counter( "aps.bus.invalid" )
+
     //
     // Constructors
     //
@@ -120,6 +166,15 @@ class APSBusProvider implements APSBus {
     @Initializer
     void init() {
 
+        this.requestEngine = new RequestReplyEngine(
+                bus: this,
+                logger: this.logger,
+                retryIntervalMs: longProp( "aps.request.retry.interval", 2000 ),
+                retryBackoff: doubleProp( "aps.request.retry.backoff", 1.0 ),
+                maxRetryIntervalMs: longProp( "aps.request.retry.max.interval", 10000 ),
+                multiplexReplies: Boolean.getBoolean( "aps.request.reply.multiplex" )
+        )
+
         this.activatorInteraction.state = APSActivatorInteraction.State.TEMP_UNAVAILABLE
 
         this.activatorInteraction.setStateHandler( APSActivatorInteraction.State.READY ) {
@@ -127,31 +182,50 @@ class APSBusProvider implements APSBus {
             this.activatorInteraction.registerService( APSBusProvider.class, this.context, this.svcRegs )
         }
 
-        concurrent {
+        // Due to the possibility of this being published before all bus routers are
+        // available, we make sure we have all of the bus routers before we make our
+        // self available.
+        //
+        // This is done by having each bus router implementation added, one per line to
+        //
+        //     aps/bus/routers
+        //
+        // file (without package) of the bundle/jar containing the implementation(s).
+        // "routers" is a text file without extension.
 
-            // Due to the possibility of this being published before all bus routers are
-            // available, we make sure we have all of the bus routers before we make our
-            // self available.
-            //
-            // This is done by having each bus router implementation added, one per line to
-            //
-            //     aps/bus/routers
-            //
-            // file (without package) of the bundle/jar containing the implementation(s).
-            // "routers" is a text file without extension.
+        List<String> busRouters = resolveBusRouters()
 
-            List<String> busRouters = resolveBusRouters()
+        this.logger.info( "Discovering APSBusRouter providers ..." )
 
-            this.logger.info( "Discovering APSBusRouter providers ..." )
+        busRouters.each { String router ->
+            this.logger.info( "Found bus router: ${ router }" )
+        }
+        this.logger.info( "Total of ${ busRouters.size() } bus routers found!" )
 
-            busRouters.each { String router ->
-                this.logger.info( "Found bus router: ${ router }" )
-            }
-            this.logger.info( "Total of ${ busRouters.size() } bus routers found!" )
+        // Signalled as each router is indexed. No thread waits for this.
+        this.allRoutersIndexed = new APSCondition( { this.routerIndex.size() >= busRouters.size() } as BooleanSupplier )
+        this.allRoutersIndexed.future().thenRun {
+            this.activatorInteraction.state = APSActivatorInteraction.State.READY
+        }
 
-            waitFor { this.routerTracker.trackedServiceCount >= busRouters.size() }
+        // The tracker releases the service when the callback returns, so we get our own reference
+        // to the router which is held until the router leaves.
+        this.routerTracker.onServiceAvailable { APSBusRouter router, ServiceReference routerRef ->
 
-            this.activatorInteraction.state = APSActivatorInteraction.State.READY
+            this.routerIndex.add( routerRef, this.context.getService( routerRef ) as APSBusRouter )
+            this.logger.info( "Indexed bus router: ${ router.class.simpleName }" )
+
+            this.allRoutersIndexed.signal()
+        }
+        this.routerTracker.onServiceLeaving { ServiceReference routerRef, Class api ->
+
+            APSBusRouter removed = this.routerIndex.remove( routerRef )
+            if ( removed != null ) {
+                this.context.ungetService( routerRef )
+
+                // Any shared reply subscription went with the router.
+                this.requestEngine?.routerLeft( removed.targetIds() )
+            }
         }
     }
 
@@ -190,8 +264,14 @@ class APSBusProvider implements APSBus {
      */
     @BundleStop
     void shutdown() {
-        if ( !this.svcRegs.empty ) {
-            this.svcRegs.first().unregister()
+        this.svcRegs.each { ServiceRegistration svcReg -> svcReg.unregister() }
+        this.svcRegs.clear()
+
+        this.requestEngine?.shutdown()
+        this.allRoutersIndexed?.cancel()
+
+        this.routerIndex.clear().each { Object routerRef ->
+            this.context.ungetService( routerRef as ServiceReference )
         }
     }
 
@@ -204,8 +284,37 @@ class APSBusProvider implements APSBus {
         }
     }
 
-    private static validationFail( APSHandler<APSResult<?>> resultHandler ) {
-        resultHandler.handle(
+    /**
+     * Returns the sent message counter of a target.
+     *
+     * @param target The target to get counter for.
+     */
+    private APSCounter sentCounter( String target ) {
+
+        APSCounter counter = this.sentCounters.get( target )
+
+        if ( counter == null ) {
+
+            // Rare, so a lock is fine. It makes sure the limit is never passed by concurrent sends to new targets.
+            synchronized ( this.sentCounters ) {
+
+                counter = this.sentCounters.get( target )
+
+                if ( counter == null ) {
+                    if ( this.sentCounters.size() >= this.maxTargetCounters ) return this.sentOther
+
+                    counter = APSMetricsRegistry.shared().counter( "aps.bus.sent.${ target }".toString() )
+                    this.sentCounters.put( target, counter )
+                }
+            }
+        }
+
+        counter
+    }
+
+    private validationFail( APSHandler<APSResult<?>> resultHandler ) {
+        this.invalid.increment()
+        resultHandler?.handle(
                 APSResult.failure(
                         new APSValidationException( "Bad message structure! 'aps' and 'content' keys need to be in " +
                                 "root!" )
@@ -223,26 +332,45 @@ class APSBusProvider implements APSBus {
     void send( @NotNull String target, @NotNull Map<String, Object> message,
                @Optional @Nullable APSHandler<APSResult<?>> resultHandler ) {
 
+        doSend( target, message, resultHandler, null )
+    }
+
+    /**
+     * Does the actual send.
+     *
+     * @param target The target to send to.
+     * @param message The message to send.
+     * @param resultHandler Receives the success or failure of the call.
+     * @param counter The counter to count the message in, or null to count it per target.
+     */
+    private void doSend( @NotNull String target, @NotNull Map<String, Object> message,
+                         @Nullable APSHandler<APSResult<?>> resultHandler, @Nullable APSCounter counter ) {
+
         if ( validateBaseMessageStructure( message ) ) {
 
             boolean valid = false
+            String routeTarget = target.trim()
 
             // It is fully possible for more than one router to act on this, but usually only one will
             // handle the message. Do note that if multiple routers acts on this then there will be
             // multiple calls to the resultHandler. To be clear APS by default has no bus routers that
             // acts on same targets, but it is fully possible to create such. This code is not trying
             // to block that in any way. If it is a good idea to do so is another discussion ...
-            this.routerTracker.withAllAvailableServices() { APSBusRouter apsBusRouter, @NotUsed Object[] args ->
+            for ( APSBusRouter apsBusRouter : this.routerIndex.routersFor( routeTarget ) ) {
 
                 // Note that absBusRouter.send(...) actually returns true/false. If true it means that
                 // the router handled the message. This is actually used to determine if none of the
                 // routers handled the message so that we ca produce an error then.
-                if ( apsBusRouter.send( target.trim(), message, resultHandler ) ) {
+                if ( apsBusRouter.send( routeTarget, message, resultHandler ) ) {
                     valid = true
                 }
             }
 
-            if ( !valid ) {
+            if ( valid ) {
+                ( counter ?: sentCounter( routeTarget ) ).increment()
+            }
+            else {
+                this.unrouted.increment()
                 resultHandler.handle(
                         APSResult.failure( new APSMessagingException( "No routers accepted target '${ target }'!" ) )
                 )
@@ -253,6 +381,48 @@ class APSBusProvider implements APSBus {
         }
     }
 
+    /**
+     * Sends a batch of messages to the same target. The whole batch is validated and routed once,
+     * and then handed to each accepting router as a batch.
+     *
+     * @param target The target to send to.
+     * @param messages The messages to send.
+     * @param resultHandler Called once with success if all messages were sent, otherwise with the first failure.
+     */
+    @Override
+    void sendBatch( @NotNull String target, @NotNull List<Map<String, Object>> messages,
+                    @Optional @Nullable APSHandler<APSResult<?>> resultHandler ) {
+
+        if ( messages.isEmpty() ) {
+            resultHandler?.handle( APSResult.success( null ) )
+        }
+        else if ( messages.every { Map<String, Object> message -> validateBaseMessageStructure( message ) } ) {
+
+            boolean valid = false
+            String routeTarget = target.trim()
+
+            for ( APSBusRouter apsBusRouter : this.routerIndex.routersFor( routeTarget ) ) {
+
+                if ( apsBusRouter.sendBatch( routeTarget, messages, resultHandler ) ) {
+                    valid = true
+                }
+            }
+
+            if ( valid ) {
+                sentCounter( routeTarget ).add( messages.size() )
+            }
+            else {
+                this.unrouted.add( messages.size() )
+                resultHandler?.handle(
+                        APSResult.failure( new APSMessagingException( "No routers accepted target '${ target }'!" ) )
+                )
+            }
+        }
+        else {
+            validationFail( resultHandler )
+        }
+    }
+
     /**
      * Subscribes to messages to a target.
      *
@@ -265,10 +435,11 @@ class APSBusProvider implements APSBus {
                     @NotNull APSHandler<Map<String, Object>> messageHandler ) {
 
         boolean valid = false
+        String routeTarget = target.trim()
 
-        this.routerTracker.withAllAvailableServices() { APSBusRouter apsBusRouter, @NotUsed Object[] args ->
+        for ( APSBusRouter apsBusRouter : this.routerIndex.routersFor( routeTarget ) ) {
 
-            if ( apsBusRouter.subscribe( id, target.trim(), resultHandler, messageHandler ) ) {
+            if ( apsBusRouter.subscribe( id, routeTarget, resultHandler, messageHandler ) ) {
                 valid = true
             }
         }
@@ -285,10 +456,10 @@ class APSBusProvider implements APSBus {
      */
     void unsubscribe( @NotNull ID subscriberId ) {
 
-        this.routerTracker.withAllAvailableServices() {
-            APSBusRouter apsBusRouter, Object[] args ->
+        // We have no target here, so all routers are asked.
+        for ( APSBusRouter apsBusRouter : this.routerIndex.allRouters ) {
 
-                apsBusRouter.unsubscribe( subscriberId )
+            apsBusRouter.unsubscribe( subscriberId )
         }
     }
 
@@ -313,6 +484,50 @@ class APSBusProvider implements APSBus {
         timeout
     }
 
+    /**
+     * Returns a long valued system property or the default value if not set or not valid.
+     *
+     * @param name The name of the property.
+     * @param defaultValue The default value.
+     */
+    private long longProp( String name, long defaultValue ) {
+        long value = defaultValue
+        String valueStr = System.getProperty( name )
+        if ( valueStr != null ) {
+            try {
+                value = Long.valueOf( valueStr )
+                this.logger.info( "Overriding ${ name } with ${ value }!" )
+            }
+            catch ( NumberFormatException nfe ) {
+                this.logger.error( "Bad value '${ valueStr }' of ${ name }! Using ${ defaultValue }.", nfe )
+            }
+        }
+
+        value
+    }
+
+    /**
+     * Returns a double valued system property or the default value if not set or not valid.
+     *
+     * @param name The name of the property.
+     * @param defaultValue The default value.
+     */
+    private double doubleProp( String name, double defaultValue ) {
+        double value = defaultValue
+        String valueStr = System.getProperty( name )
+        if ( valueStr != null ) {
+            try {
+                value = Double.valueOf( valueStr )
+                this.logger.info( "Overriding ${ name } with ${ value }!" )
+            }
+            catch ( NumberFormatException nfe ) {
+                this.logger.error( "Bad value '${ valueStr }' of ${ name }! Using ${ defaultValue }.", nfe )
+            }
+        }
+
+        value
+    }
+
     /**
      * Sends a message and expects to get a response message back.
      *
@@ -348,8 +563,8 @@ class APSBusProvider implements APSBus {
      *
      * - Generates a unique reply address.
      * - Subscribes to address.
-     *   - After reply message is received and forwarded to handler, the
-     *     message subscription is unsubscribed.
+     *   - After reply message is received and forwarded to handler, or the
+     *     request times out, the message subscription is unsubscribed.
      * - Updates message header.replyAddress with address
      * - Sends message.
      *
@@ -358,9 +573,20 @@ class APSBusProvider implements APSBus {
      *
      * Note that due to different services and clients might not start in the optimal order
      * a client might try to send a request to a service that is not yet listening to
-     * messages. To solve that in an easy way request(...) do wait up to 30 seconds for
-     * a reply, and while waiting it repeats the request message every 5 seconds. This
-     * situation should only happen at startup!
+     * messages. To solve that in an easy way request(...) resends the request as long as
+     * sending fails, until it succeeds or timeOutSec is reached. By default it resends
+     * every 2 seconds. This can be changed with the 'aps.request.retry.interval' (milliseconds),
+     * 'aps.request.retry.backoff' (interval multiplier) and 'aps.request.retry.max.interval'
+     * (milliseconds) system properties. This situation should only happen at startup!
+     *
+     * No thread is blocked while waiting for the reply. Resends and timeouts are driven by
+     * an APSWheelTimer owned by the request engine.
+     *
+     * If the 'aps.request.reply.multiplex' system property is set to true, then the unique reply
+     * address per request is not used. Instead there is one long lived reply address per target id
+     * for this node, and the reply is matched to the request by the 'aps.correlationId' header
+     * which reply(...) copies from the request to the reply. This avoids subscribing and
+     * unsubscribing for each request, which is expensive for cluster routers.
      *
      * @param target The target to send to.
      * @param message The message to send.
@@ -372,109 +598,39 @@ class APSBusProvider implements APSBus {
                   @Nullable @Optional APSHandler<APSResult<?>> resultHandler,
                   @NotNull APSHandler<Map<String, Object>> responseHandler ) {
 
-        if ( validateBaseMessageStructure( message ) ) {
-
-            String replyTarget = "${ target.split( ":" )[ 0 ] }:" + new APSUUID().toString()
-            message[ 'aps' ][ 'replyTarget' ] = replyTarget
-
-            ID replySubscriptionId = new APSUUID()
-
-            // We are not on different threads, but this value is also passed to
-            // sendRequest(...) and will be modified in this method further down
-            // in reply, so having value boxed so that value change reflects in
-            // sendRequest(...) is a requirement.
-            SyncedValue<Boolean> keepSending = new SyncedValue<>( true )
-
-            subscribe( replySubscriptionId, replyTarget ) { APSResult subRes ->
-
-                if ( subRes.success() ) {
-
-                    // Subscription on reply successful so send request.
-                    sendRequest( target, message, timeOutSec, keepSending, resultHandler )
-                }
-                else {
-                    resultHandler.handle( subRes )
-                }
-
-            } { Map<String, Object> reply ->
-                // Reply subscription receiver
-
-                keepSending.value = false
-                this.unsubscribe( replySubscriptionId )
-                responseHandler.handle( reply )
-            }
-
-        }
-        else {
-            validationFail( resultHandler )
-        }
-
+        doRequest( target, message, timeOutSec, resultHandler, responseHandler, null )
     }
 
     /**
-     * Continuation of request after success of reply subscription.
+     * Does the actual request.
      *
      * @param target The target to send to.
      * @param message The message to send.
-     * @param timeoutSec The number of seconds to wait for a reply before failing.
-     * @param keepSending As long as this flag is true and timeout has not been reached, this method
-     *                    will keep resending message at 2 second intervals.
-     * @param resultHandler The handler to call on success and failure with the result.
+     * @param timeOutSec The number of seconds to wait for a reply before failing.
+     * @param resultHandler optional handler to receive result of send.
+     * @param responseHandler A handler for message that is a response of the sent message.
+     * @param timeoutHandler Called if no reply was received within timeOutSec. Can be null.
      */
-    private void sendRequest( @NotNull String target, @NotNull Map<String, Object> message, int timeOutSec,
-                              SyncedValue<Boolean> keepSending, APSHandler<APSResult<?>> resultHandler ) {
-
-        Instant timeOut = Instant.now().plusSeconds( timeOutSec )
-
-        // We keep sending every 2 seconds until a reply or timeout. The point of this is that
-        // the sender might be up and running and sending before the receiver is ready to listen.
-        // This gives the receiver time to catch up. More than one send will basically only happen
-        // on startup or if a receiver is redeployed and thus temporarily unavailable and non receiving.
-        // This is a very simple, primitive way of handling this. This worked on first try. My previous
-        // attempt at a more complex service directory did not (Somehow the "keep it simple" rule
-        // always seem to win!).
-        //
-        // DO NOTE THAT ANY SERVICE TAKING MORE THAN 3 SECONDS TO EXECUTE (INCLUDING NETWORK TIME)
-        // WILL CAUSE PROBLEMS! On the other side if a service takes more than 2 seconds to respond
-        // you probably have more serious problems than this.
-        Exception sendFail = null
-        Sporadic.until { keepSending.value && Instant.now().isBefore( timeOut ) }.
-                interval( 2 ).
-                exec {
-                    System.err.println "################## DOING SEND! ##################"
-                    System.err.println "Target: ${ target }"
-                    send( target, message ) { APSResult<?> sendRes ->
-                        if ( sendRes.success() ) {
-                            sendFail = null
-                            keepSending.value = false
-                        }
-                        else {
-                            sendFail = sendRes.failure()
-                        }
-                    }
-                }
+    private void doRequest( @NotNull String target, @NotNull Map<String, Object> message, int timeOutSec,
+                            @Nullable APSHandler<APSResult<?>> resultHandler,
+                            @NotNull APSHandler<Map<String, Object>> responseHandler,
+                            @Nullable APSHandler<Exception> timeoutHandler ) {
 
-        if ( sendFail != null ) {
-            logger.error( "Failed to send message! ", sendFail )
-            resultHandler.handle( APSResult.failure( sendFail ) )
+        if ( validateBaseMessageStructure( message ) ) {
+
+            this.requestEngine.request( target, message, timeOutSec, resultHandler, responseHandler, timeoutHandler )
         }
         else {
-            if ( !keepSending.value || Instant.now().isBefore( timeOut ) ) {
-                resultHandler.handle( APSResult.success( null ) )
-            }
-            else {
-                resultHandler.handle(
-                        APSResult.failure(
-                                new APSMessagingException( "Timed out waiting for reply to request!" )
-                        )
-                )
-            }
+            validationFail( resultHandler )
         }
+
     }
 
     /**
      * Replies to a received message.
      *
+     * The 'aps.correlationId' header of replyTo, if any, is copied to the reply.
+     *
      * @param replyTo The received message to reply to.
      * @param reply The reply.
      * @param resultHandler The result of sending reply.
@@ -485,7 +641,12 @@ class APSBusProvider implements APSBus {
         if ( validateBaseMessageStructure( reply ) ) {
             String replyTarget = replyTo[ 'aps' ][ 'replyTarget' ]
             if ( replyTarget != null ) {
-                send( replyTarget, reply, resultHandler )
+                Object correlationId = replyTo[ 'aps' ][ 'correlationId' ]
+                if ( correlationId != null ) {
+                    reply[ 'aps' ][ 'correlationId' ] = correlationId
+                }
+                // Reply targets are usually unique per request, so they are not counted per target.
+                doSend( replyTarget, reply, resultHandler, this.sentReply )
             }
             else {
                 if ( resultHandler != null ) {
@@ -501,4 +662,101 @@ class APSBusProvider implements APSBus {
             validationFail( resultHandler )
         }
     }
+
+    //
+    // APSAsyncBus
+    //
+
+    /**
+     * Sends a message.
+     *
+     * @param target The target to send to.
+     * @param message The message to send.
+     *
+     * @return A stage that completes when the message have been sent, or exceptionally on failure.
+     */
+    @Override
+    CompletionStage<Void> sendAsync( @NotNull String target, @NotNull Map<String, Object> message ) {
+
+        CompletableFuture<Void> future = new CompletableFuture<>()
+
+        send( target, message ) { APSResult<?> res ->
+
+            if ( res.success() ) {
+                future.complete( null )
+            }
+            else {
+                future.completeExceptionally( res.failure() )
+            }
+        }
+
+        future
+    }
+
+    /**
+     * Sends a message and expects to get a response message back. The default request timeout is used.
+     *
+     * @param target The target to send to.
+     * @param message The message to send.
+     *
+     * @return A stage that completes with the reply, or exceptionally on failure or timeout.
+     */
+    @Override
+    CompletionStage<Map<String, Object>> requestAsync( @NotNull String target, @NotNull Map<String, Object> message ) {
+
+        requestAsync( target, message, apsRequestTimeout() as int )
+    }
+
+    /**
+     * Sends a message and expects to get a response message back.
+     *
+     * @param target The target to send to.
+     * @param message The message to send.
+     * @param timeOutSec The number of seconds to wait for a reply before failing.
+     *
+     * @return A stage that completes with the reply, or exceptionally on failure or timeout.
+     */
+    @Override
+    CompletionStage<Map<String, Object>> requestAsync( @NotNull String target, @NotNull Map<String, Object> message,
+                                                       int timeOutSec ) {
+
+        CompletableFuture<Map<String, Object>> future = new CompletableFuture<>()
+
+        doRequest( target, message, timeOutSec, { APSResult<?> res ->
+
+            if ( !res.success() ) {
+                future.completeExceptionally( res.failure() )
+            }
+
+        } as APSHandler<APSResult<?>>, { Map<String, Object> reply ->
+
+            future.complete( reply )
+
+        } as APSHandler<Map<String, Object>>, { Exception timeout ->
+
+            // The send succeeded, but no reply came.
+            future.completeExceptionally( timeout )
+
+        } as APSHandler<Exception> )
+
+        future
+    }
+
+    /**
+     * Returns a publisher of messages sent to a target. The number of messages buffered per subscriber
+     * while it has no demand can be changed with the 'aps.bus.flow.buffer.size' system property. The
+     * default is 256.
+     *
+     * @param target The target to subscribe to.
+     */
+    @Override
+    Flow.Publisher<Map<String, Object>> subscribeFlow( @NotNull String target ) {
+
+        new APSBusPublisher(
+                bus: this,
+                target: target,
+                bufferSize: longProp( "aps.bus.flow.buffer.size", 256 ) as int,
+                logger: this.logger
+        )
+    }
 }
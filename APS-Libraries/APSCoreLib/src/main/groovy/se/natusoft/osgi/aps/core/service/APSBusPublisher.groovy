@@ -0,0 +1,286 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS Core Lib
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         This library is made in Groovy and thus depends on Groovy, and contains functionality that
+ *         makes sense for Groovy, but not as much for Java.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.core.service
+
+import groovy.transform.CompileStatic
+import se.natusoft.docutations.NotNull
+import se.natusoft.osgi.aps.api.messaging.APSBus
+import se.natusoft.osgi.aps.types.APSResult
+import se.natusoft.osgi.aps.types.APSUUID
+import se.natusoft.osgi.aps.types.ID
+import se.natusoft.osgi.aps.util.APSLogger
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Flow
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A Flow.Publisher of the messages sent to a bus target.
+ *
+ * Each Flow.Subscriber gets its own bus subscription. The bus pushes messages, so the messages
+ * received while the subscriber have no outstanding demand are held in a bounded buffer. When that
+ * buffer is full the oldest message is dropped. That way a slow subscriber loses messages instead
+ * of having them buffered without bound.
+ */
+@CompileStatic
+class APSBusPublisher implements Flow.Publisher<Map<String, Object>> {
+
+    //
+    // Properties
+    //
+
+    /** The bus to subscribe on. */
+    APSBus bus
+
+    /** The target to subscribe to. */
+    String target
+
+    /** The max number of messages held per subscriber while there is no demand. */
+    int bufferSize = 256
+
+    /** For logging dropped messages. */
+    APSLogger logger
+
+    //
+    // Methods
+    //
+
+    /**
+     * Subscribes a Flow.Subscriber. Nothing is delivered until it requests messages.
+     *
+     * @param subscriber The subscriber to subscribe.
+     */
+    @Override
+    void subscribe( @NotNull Flow.Subscriber<? super Map<String, Object>> subscriber ) {
+
+        if ( subscriber == null ) throw new NullPointerException( "subscriber cannot be null!" )
+
+        BusSubscription subscription = new BusSubscription( this, subscriber )
+        subscriber.onSubscribe( subscription )
+        subscription.start()
+    }
+
+    //
+    // Inner Classes
+    //
+
+    /**
+     * One Flow.Subscriber's subscription on the bus.
+     */
+    @CompileStatic
+    private static class BusSubscription implements Flow.Subscription {
+
+        //
+        // Private Members
+        //
+
+        private APSBusPublisher publisher
+
+        private Flow.Subscriber<? super Map<String, Object>> subscriber
+
+        private ID subscriptionId = new APSUUID()
+
+        /** The messages not yet delivered. */
+        private Queue<Map<String, Object>> buffer = new ConcurrentLinkedQueue<>()
+
+        /** The number of messages in buffer. ConcurrentLinkedQueue.size() is not constant time. */
+        private AtomicInteger buffered = new AtomicInteger( 0 )
+
+        /** The number of messages requested but not yet delivered. */
+        private AtomicLong demand = new AtomicLong( 0 )
+
+        /** Makes sure only one thread at a time delivers to the subscriber. */
+        private AtomicInteger wip = new AtomicInteger( 0 )
+
+        private AtomicLong dropped = new AtomicLong( 0 )
+
+        private AtomicBoolean unsubscribed = new AtomicBoolean( false )
+
+        private volatile boolean cancelled = false
+
+        private volatile Throwable error
+
+        //
+        // Constructors
+        //
+
+        BusSubscription( APSBusPublisher publisher, Flow.Subscriber<? super Map<String, Object>> subscriber ) {
+            this.publisher = publisher
+            this.subscriber = subscriber
+        }
+
+        //
+        // Methods
+        //
+
+        /**
+         * Subscribes on the bus.
+         */
+        void start() {
+
+            if ( this.cancelled ) return
+
+            this.publisher.bus.subscribe( this.subscriptionId, this.publisher.target ) { APSResult res ->
+
+                if ( !res.success() ) {
+                    this.error = res.failure()
+                    drain()
+                }
+
+            } { Map<String, Object> message ->
+
+                received( message )
+            }
+        }
+
+        /**
+         * Adds demand.
+         *
+         * @param n The number of messages to add to demand.
+         */
+        @Override
+        void request( long n ) {
+
+            if ( n <= 0 ) {
+                this.error = new IllegalArgumentException( "Requested number of messages must be positive! Got: ${ n }" )
+            }
+            else {
+                long current
+                long updated
+                do {
+                    current = this.demand.get()
+                    updated = current + n
+                    if ( updated < 0 ) updated = Long.MAX_VALUE
+                }
+                while ( !this.demand.compareAndSet( current, updated ) )
+            }
+
+            drain()
+        }
+
+        /**
+         * Stops delivery and releases the bus subscription.
+         */
+        @Override
+        void cancel() {
+
+            this.cancelled = true
+            unsubscribe()
+            this.buffer.clear()
+        }
+
+        /**
+         * Called by bus with a received message.
+         *
+         * @param message The received message.
+         */
+        private void received( Map<String, Object> message ) {
+
+            if ( this.cancelled ) return
+
+            this.buffer.offer( message )
+
+            if ( this.buffered.incrementAndGet() > this.publisher.bufferSize && this.buffer.poll() != null ) {
+
+                this.buffered.decrementAndGet()
+
+                long drops = this.dropped.incrementAndGet()
+                if ( drops == 1 || drops % 1000 == 0 ) {
+                    this.publisher.logger?.warn( "Subscriber of '${ this.publisher.target }' is not keeping up! " +
+                            "Dropped ${ drops } messages so far." )
+                }
+            }
+
+            drain()
+        }
+
+        /**
+         * Delivers buffered messages as long as there is demand, and any error.
+         */
+        private void drain() {
+
+            if ( this.wip.getAndIncrement() != 0 ) return
+
+            int missed = 1
+
+            while ( true ) {
+
+                long requested = this.demand.get()
+                long delivered = 0
+
+                while ( delivered != requested && !this.cancelled ) {
+
+                    Map<String, Object> message = this.buffer.poll()
+                    if ( message == null ) break
+
+                    this.buffered.decrementAndGet()
+                    this.subscriber.onNext( message )
+                    ++delivered
+                }
+
+                if ( this.cancelled ) return
+
+                if ( this.error != null ) {
+                    this.cancelled = true
+                    unsubscribe()
+                    this.subscriber.onError( this.error )
+                    return
+                }
+
+                if ( delivered != 0 && requested != Long.MAX_VALUE ) {
+                    this.demand.addAndGet( -delivered )
+                }
+
+                missed = this.wip.addAndGet( -missed )
+                if ( missed == 0 ) break
+            }
+        }
+
+        /**
+         * Releases the bus subscription once.
+         */
+        private void unsubscribe() {
+
+            if ( this.unsubscribed.compareAndSet( false, true ) ) {
+                this.publisher.bus.unsubscribe( this.subscriptionId )
+            }
+        }
+    }
+}
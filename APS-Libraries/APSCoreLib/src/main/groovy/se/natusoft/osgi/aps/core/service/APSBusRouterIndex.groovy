@@ -0,0 +1,199 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS Core Lib
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         This library is made in Groovy and thus depends on Groovy, and contains functionality that
+ *         makes sense for Groovy, but not as much for Java.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.core.service
+
+import groovy.transform.CompileStatic
+import se.natusoft.docutations.NotNull
+import se.natusoft.osgi.aps.api.messaging.APSBusRouter
+
+/**
+ * Keeps track of the available APSBusRouter instances and indexes them on the target ids they claim
+ * to support (see APSBusRouter.targetIds()).
+ *
+ * The index is only rebuilt when a router is added or removed. Lookups are lock free since the
+ * index is replaced as a whole on rebuild, and only ever read after that. This makes the cost of
+ * finding the routers for a target one indexOf(':') and one hash lookup.
+ *
+ * Routers not declaring any target ids are added to every entry of the index, and are also returned
+ * for target ids no router have claimed. They will thus be passed all calls, just as before this
+ * index existed.
+ */
+@CompileStatic
+class APSBusRouterIndex {
+
+    //
+    // Constants
+    //
+
+    private static final APSBusRouter[] NO_ROUTERS = new APSBusRouter[0]
+
+    //
+    // Private Members
+    //
+
+    /** All known routers by a key identifying them, usually a ServiceReference. Guarded by this. */
+    private Map<Object, APSBusRouter> routers = new LinkedHashMap<>()
+
+    /** target id -> routers claiming the id, plus unindexed routers. */
+    private volatile Map<String, APSBusRouter[]> index = Collections.<String, APSBusRouter[]> emptyMap()
+
+    /** Routers that have not declared any target ids. */
+    private volatile APSBusRouter[] unindexed = NO_ROUTERS
+
+    /** All routers. */
+    private volatile APSBusRouter[] all = NO_ROUTERS
+
+    //
+    // Methods
+    //
+
+    /**
+     * Adds a router and rebuilds the index.
+     *
+     * @param key A key to identify the router by on remove.
+     * @param router The router to add.
+     */
+    synchronized void add( @NotNull Object key, @NotNull APSBusRouter router ) {
+        this.routers[ key ] = router
+        rebuild()
+    }
+
+    /**
+     * Removes a router and rebuilds the index.
+     *
+     * @param key The key the router was added with.
+     *
+     * @return The removed router or null if there were no router for the key.
+     */
+    synchronized APSBusRouter remove( @NotNull Object key ) {
+        APSBusRouter removed = this.routers.remove( key )
+        if ( removed != null ) {
+            rebuild()
+        }
+
+        removed
+    }
+
+    /**
+     * Removes all routers.
+     *
+     * @return The keys of the removed routers.
+     */
+    synchronized List<Object> clear() {
+        List<Object> keys = new ArrayList<>( this.routers.keySet() )
+        this.routers.clear()
+        rebuild()
+
+        keys
+    }
+
+    /**
+     * Returns the routers to pass a call for the specified target to. Do not modify the returned array!
+     *
+     * @param target The target to get routers for.
+     */
+    @NotNull APSBusRouter[] routersFor( @NotNull String target ) {
+        APSBusRouter[] found = this.index.get( targetId( target ) )
+
+        found != null ? found : this.unindexed
+    }
+
+    /**
+     * @return All routers. Do not modify the returned array!
+     */
+    @NotNull APSBusRouter[] getAllRouters() {
+        this.all
+    }
+
+    /**
+     * @return The number of known routers.
+     */
+    int size() {
+        this.all.length
+    }
+
+    /**
+     * Returns the id part of a target, that is everything before the first ':'. If there is no ':' then
+     * the whole target is returned.
+     *
+     * @param target The target to get the id of.
+     */
+    static String targetId( @NotNull String target ) {
+        int colon = target.indexOf( ':' )
+
+        colon >= 0 ? target.substring( 0, colon ) : target
+    }
+
+    /**
+     * Rebuilds the index from the current routers. Must be called with lock held.
+     */
+    private void rebuild() {
+
+        List<APSBusRouter> unindexedRouters = []
+        Map<String, List<APSBusRouter>> byId = [ : ]
+
+        this.routers.values().each { APSBusRouter router ->
+
+            String[] ids = router.targetIds()
+
+            if ( ids == null ) {
+                unindexedRouters << router
+            }
+            else {
+                ids.each { String id ->
+                    List<APSBusRouter> idRouters = byId[ id ]
+                    if ( idRouters == null ) {
+                        idRouters = []
+                        byId[ id ] = idRouters
+                    }
+                    idRouters << router
+                }
+            }
+        }
+
+        Map<String, APSBusRouter[]> newIndex = new HashMap<>()
+        byId.each { String id, List<APSBusRouter> idRouters ->
+            idRouters.addAll( unindexedRouters )
+            newIndex[ id ] = idRouters.toArray( NO_ROUTERS )
+        }
+
+        this.unindexed = unindexedRouters.toArray( NO_ROUTERS )
+        this.all = new ArrayList<APSBusRouter>( this.routers.values() ).toArray( NO_ROUTERS )
+        this.index = newIndex
+    }
+}
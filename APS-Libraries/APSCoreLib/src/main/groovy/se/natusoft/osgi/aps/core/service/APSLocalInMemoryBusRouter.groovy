@@ -45,8 +45,10 @@ import se.natusoft.osgi.aps.activator.annotation.Managed
 import se.natusoft.osgi.aps.activator.annotation.OSGiProperty
 import se.natusoft.osgi.aps.activator.annotation.OSGiServiceProvider
 import se.natusoft.osgi.aps.api.messaging.APSBusRouter
+import se.natusoft.osgi.aps.api.metrics.APSHistogram
 import se.natusoft.osgi.aps.constants.APS
 import se.natusoft.osgi.aps.core.lib.ValidTarget
+import se.natusoft.osgi.aps.core.metrics.APSMetricsRegistry
 import se.natusoft.osgi.aps.exceptions.APSValidationException
 import se.natusoft.osgi.aps.types.APSHandler
 import se.natusoft.osgi.aps.types.APSResult
@@ -54,15 +56,14 @@ import se.natusoft.osgi.aps.types.ID
 import se.natusoft.osgi.aps.util.APSLogger
 
 import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.ConcurrentLinkedQueue
-
-import static se.natusoft.osgi.aps.util.APSExecutor.concurrent
 
 /**
  * A very simple little bus that will call the handler of any subscriber subscribing to same
- * target as sending to. No networking nor any threading is done by this class. Subscription
- * handlers that does not handle the call quickly should submit their handling to an
- * ExecutionService backed by a thread pool like APSExecutor.
+ * target as sending to. No networking is done by this class. Each subscription handler has
+ * its own SubscriberMailbox, so it gets messages in the order they were sent, one at a time,
+ * on an APSExecutor thread. Subscription handlers that does not handle the call quickly should
+ * still submit their handling to an ExecutionService backed by a thread pool like APSExecutor,
+ * since they otherwise hold up the following messages to the same subscription.
  *
  * On the fronted I have made a very similar in memory bus. There it is used to talk between
  * components. On the backend it does not have a clear use, other that being very useful in
@@ -89,8 +90,22 @@ class APSLocalInMemoryBusRouter implements APSBusRouter {
 
     private static final String SUPPORTED_TARGET = "local"
 
-    private Map<String /*target*/, Map<ID, Queue<APSHandler<Map<String, Object>>>>> subscribers =
-            new ConcurrentHashMap<>()
+    private static final SubscriberMailbox[] NO_MAILBOXES = new SubscriberMailbox[ 0 ]
+
+    /**
+     * The mailboxes of the subscribers of each address. The arrays are never modified, only replaced
+     * on subscribe and unsubscribe, so send(...) can loop over them without any locking.
+     */
+    private Map<String /*address*/, SubscriberMailbox[]> mailboxes = new ConcurrentHashMap<>()
+
+    /** The subscriptions of each subscriber id, so that unsubscribe does not have to scan all addresses. */
+    private Map<ID, List<Subscription>> subscriptions = new ConcurrentHashMap<>()
+
+    /** Serializes updates of mailboxes and subscriptions. */
+    private final Object updateLock = new Object()
+
+    /** The time of each subscriber handler call. */
+    private APSHistogram handlerLatency = APSMetricsRegistry.shared().histogram( "aps.bus.local.handler.latency" )
 
     @Managed( loggingFor = "APSLocalInMemoryBus" )
     private APSLogger logger
@@ -113,41 +128,61 @@ class APSLocalInMemoryBusRouter implements APSBusRouter {
     boolean send( @NotNull String target, @NotNull Map<String, Object> message,
                   @Nullable APSHandler<APSResult> resultHandler ) {
 
-        return ValidTarget.onValid( SUPPORTED_TARGET, target ) { String address ->
+        String address = ValidTarget.address( SUPPORTED_TARGET, false, target )
+        if ( address == null ) return false
+
+        SubscriberMailbox[] addressMailboxes = this.mailboxes.get( address )
 
-            // First tried computeIfAbsent, but it does not seem to play well with Groovy Closures.
-            Map<ID, Queue<APSHandler<Map<String, Object>>>> addressSubscribers = subscribers[ address ]
-            if ( addressSubscribers == null ) {
-                addressSubscribers = new ConcurrentHashMap<>()
-                subscribers[ address ] = addressSubscribers
+        if ( addressMailboxes != null ) {
+
+            for ( int i = 0; i < addressMailboxes.length; i++ ) {
+                addressMailboxes[ i ].post( message )
             }
 
-            if ( !addressSubscribers.isEmpty() ) {
+            if ( resultHandler != null ) {
+                resultHandler.handle( APSResult.success( null ) )
+            }
+        }
+        else if ( resultHandler != null ) {
+
+            resultHandler.handle( APSResult.failure( new APSValidationException( "No subscribers!" ) ) )
+        }
+
+        true
+    }
 
-                addressSubscribers.each { ID id, Queue<APSHandler<Map<String, Object>>> handlers ->
+    /**
+     * Sends a batch of messages. The whole batch is posted to each subscriber mailbox at once.
+     *
+     * @param target The target to send to.
+     * @param messages The messages to send.
+     * @param resultHandler The handler to call with the aggregated result. Can be null!
+     */
+    @Override
+    boolean sendBatch( @NotNull String target, @NotNull List<Map<String, Object>> messages,
+                       @Nullable APSHandler<APSResult> resultHandler ) {
 
-                    handlers.each { APSHandler<Map<String, Object>> handler ->
+        String address = ValidTarget.address( SUPPORTED_TARGET, false, target )
+        if ( address == null ) return false
 
-                        concurrent {
-                            try {
-                                handler.handle( message )
-                            }
-                            catch ( Exception e ) {
-                                this.logger.error( "Message handler threw illegal exception!", e )
-                            }
-                        }
-                    }
-                }
+        SubscriberMailbox[] addressMailboxes = this.mailboxes.get( address )
 
-                if ( resultHandler != null ) {
-                    resultHandler.handle( APSResult.success( null ) )
-                }
+        if ( addressMailboxes != null ) {
+
+            for ( int i = 0; i < addressMailboxes.length; i++ ) {
+                addressMailboxes[ i ].postAll( messages )
             }
-            else if ( resultHandler != null ) {
 
-                resultHandler.handle( APSResult.failure( new APSValidationException( "No subscribers!" ) ) )
+            if ( resultHandler != null ) {
+                resultHandler.handle( APSResult.success( null ) )
             }
         }
+        else if ( resultHandler != null ) {
+
+            resultHandler.handle( APSResult.failure( new APSValidationException( "No subscribers!" ) ) )
+        }
+
+        true
     }
 
     /**
@@ -163,27 +198,35 @@ class APSLocalInMemoryBusRouter implements APSBusRouter {
                        @Nullable @Optional APSHandler<APSResult> resultHandler,
                        @NotNull APSHandler<Map<String, Object>> messageHandler ) {
 
-        return ValidTarget.onValid( SUPPORTED_TARGET, target ) { String address ->
+        String address = ValidTarget.address( SUPPORTED_TARGET, false, target )
+        if ( address == null ) return false
 
-            Map<ID, Queue<APSHandler<Map<String, Object>>>> addressSubscribers = subscribers[ address ]
-            if ( addressSubscribers == null ) {
-                addressSubscribers = new ConcurrentHashMap<>()
-                subscribers[ address ] = addressSubscribers
-            }
+        Subscription subscription = new Subscription(
+                address: address,
+                mailbox: new SubscriberMailbox( handler: messageHandler, logger: this.logger, latency: this.handlerLatency )
+        )
 
-            Queue<APSHandler<Map<String, Object>>> handlers = addressSubscribers[ id ]
-            if ( handlers == null ) {
-                handlers = new ConcurrentLinkedQueue<>()
-                addressSubscribers[ id ] = handlers
-            }
-            handlers << messageHandler
+        synchronized ( this.updateLock ) {
 
-            if ( resultHandler != null ) {
+            SubscriberMailbox[] current = this.mailboxes.get( address ) ?: NO_MAILBOXES
+            SubscriberMailbox[] updated = Arrays.copyOf( current, current.length + 1 )
+            updated[ current.length ] = subscription.mailbox
+            this.mailboxes.put( address, updated )
 
-                resultHandler.handle( APSResult.success( null ) )
+            List<Subscription> idSubscriptions = this.subscriptions.get( id )
+            if ( idSubscriptions == null ) {
+                idSubscriptions = []
+                this.subscriptions.put( id, idSubscriptions )
             }
+            idSubscriptions << subscription
+        }
+
+        if ( resultHandler != null ) {
+
+            resultHandler.handle( APSResult.success( null ) )
         }
 
+        true
     }
 
     /**
@@ -194,11 +237,30 @@ class APSLocalInMemoryBusRouter implements APSBusRouter {
     @Override
     void unsubscribe( @NotNull ID subscriberId ) {
 
-        // Note that we don't have a target here, and thus tries to remove from all targets.
-        // The subscriberId should be unique so only one will be removed.
-        this.subscribers.each { String address, Map<ID, Queue<APSHandler<Map<String, Object>>>> subscriptionHandlers ->
+        synchronized ( this.updateLock ) {
+
+            List<Subscription> idSubscriptions = this.subscriptions.remove( subscriberId )
+            if ( idSubscriptions == null ) return
+
+            for ( Subscription subscription : idSubscriptions ) {
 
-            subscriptionHandlers.remove( subscriberId )
+                subscription.mailbox.close()
+
+                SubscriberMailbox[] current = this.mailboxes.get( subscription.address )
+                if ( current == null ) continue
+
+                List<SubscriberMailbox> remaining = new ArrayList<>( current.length )
+                for ( SubscriberMailbox mailbox : current ) {
+                    if ( !mailbox.is( subscription.mailbox ) ) remaining << mailbox
+                }
+
+                if ( remaining.isEmpty() ) {
+                    this.mailboxes.remove( subscription.address )
+                }
+                else {
+                    this.mailboxes.put( subscription.address, remaining.toArray( NO_MAILBOXES ) )
+                }
+            }
         }
     }
 
@@ -209,4 +271,27 @@ class APSLocalInMemoryBusRouter implements APSBusRouter {
     boolean required() {
         return true
     }
+
+    /**
+     * @return The target ids this router reacts on.
+     */
+    @Override
+    String[] targetIds() {
+        return [ SUPPORTED_TARGET ] as String[]
+    }
+
+    //
+    // Inner Classes
+    //
+
+    /**
+     * One subscription of a subscriber id.
+     */
+    @CompileStatic
+    private static class Subscription {
+
+        String address
+
+        SubscriberMailbox mailbox
+    }
 }
@@ -0,0 +1,172 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS Core Lib
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         This library is made in Groovy and thus depends on Groovy, and contains functionality that
+ *         makes sense for Groovy, but not as much for Java.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.core.service
+
+import groovy.transform.CompileStatic
+import se.natusoft.docutations.NotNull
+import se.natusoft.osgi.aps.activator.annotation.BundleStop
+import se.natusoft.osgi.aps.activator.annotation.Initializer
+import se.natusoft.osgi.aps.activator.annotation.OSGiProperty
+import se.natusoft.osgi.aps.activator.annotation.OSGiServiceProvider
+import se.natusoft.osgi.aps.api.metrics.APSCounter
+import se.natusoft.osgi.aps.api.metrics.APSHistogram
+import se.natusoft.osgi.aps.api.metrics.APSMetrics
+import se.natusoft.osgi.aps.constants.APS
+import se.natusoft.osgi.aps.core.metrics.APSMetricsRegistry
+import se.natusoft.osgi.aps.util.APSExecutor
+import se.natusoft.osgi.aps.util.APSExecutorPool
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.function.Consumer
+import java.util.function.Supplier
+
+/**
+ * Publishes the shared APSMetricsRegistry as APSMetrics service, for those that want to read or
+ * add metrics without depending on this library.
+ *
+ * This also registers gauges for the utilization of each APSExecutor pool, named
+ * aps.executor.<pool>.threads/active/queued/completed/rejected.
+ */
+@SuppressWarnings( "unused" )
+@OSGiServiceProvider(
+        properties = [
+                @OSGiProperty( name = APS.Service.Provider, value = "aps-metrics-provider" ),
+                @OSGiProperty( name = APS.Service.Category, value = APS.Value.Service.Category.Misc ),
+                @OSGiProperty( name = APS.Service.Function, value = APS.Value.Service.Function.Monitoring )
+        ]
+)
+@CompileStatic
+class APSMetricsProvider implements APSMetrics {
+
+    //
+    // Private Members
+    //
+
+    private APSMetricsRegistry registry = APSMetricsRegistry.shared()
+
+    /** The names of the pool gauges registered, so that they can be removed on bundle stop. */
+    private Set<String> poolGaugeNames = ConcurrentHashMap.newKeySet()
+
+    /** Registers gauges for each APSExecutor pool. */
+    private Consumer<APSExecutorPool> poolGauges = { APSExecutorPool pool ->
+        String prefix = "aps.executor.${ pool.name }."
+        poolGauge( prefix + "threads", { pool.threadCount } as Supplier<Number> )
+        poolGauge( prefix + "active", { pool.activeCount } as Supplier<Number> )
+        poolGauge( prefix + "queued", { pool.queuedCount } as Supplier<Number> )
+        poolGauge( prefix + "completed", { pool.completedCount } as Supplier<Number> )
+        poolGauge( prefix + "rejected", { pool.rejectedCount } as Supplier<Number> )
+    } as Consumer<APSExecutorPool>
+
+    //
+    // Methods
+    //
+
+    @Initializer
+    void init() {
+        APSExecutor.addPoolListener( this.poolGauges )
+    }
+
+    @BundleStop
+    void cleanup() {
+        APSExecutor.removePoolListener( this.poolGauges )
+
+        // The registry is static and would otherwise keep the gauges of this bundle, and the pools, after stop.
+        this.poolGaugeNames.each { String name -> this.registry.remove( name ) }
+        this.poolGaugeNames.clear()
+    }
+
+    /**
+     * Registers a pool gauge and remembers its name.
+     *
+     * @param name The name of the gauge.
+     * @param value Supplies the current value.
+     */
+    private void poolGauge( String name, Supplier<Number> value ) {
+        this.registry.gauge( name, value )
+        this.poolGaugeNames.add( name )
+    }
+
+    /**
+     * Returns the counter with the specified name, creating it if it does not exist.
+     *
+     * @param name The name of the counter.
+     */
+    @Override
+    APSCounter counter( @NotNull String name ) {
+        this.registry.counter( name )
+    }
+
+    /**
+     * Returns the histogram with the specified name, creating it if it does not exist.
+     *
+     * @param name The name of the histogram.
+     */
+    @Override
+    APSHistogram histogram( @NotNull String name ) {
+        this.registry.histogram( name )
+    }
+
+    /**
+     * Registers a gauge, a value read when a snapshot is taken. A gauge with the same name is replaced.
+     *
+     * @param name The name of the gauge.
+     * @param value Supplies the current value.
+     */
+    @Override
+    void gauge( @NotNull String name, @NotNull Supplier<Number> value ) {
+        this.registry.gauge( name, value )
+    }
+
+    /**
+     * Removes a metric of any kind.
+     *
+     * @param name The name of the metric to remove.
+     */
+    @Override
+    void remove( @NotNull String name ) {
+        this.registry.remove( name )
+    }
+
+    /**
+     * Returns a snapshot of all metrics as a JSON structure.
+     */
+    @Override
+    Map<String, Object> snapshot() {
+        this.registry.snapshot()
+    }
+}
@@ -0,0 +1,600 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS Core Lib
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         This library is made in Groovy and thus depends on Groovy, and contains functionality that
+ *         makes sense for Groovy, but not as much for Java.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *         2026-10-18: Uses a timer of its own that is stopped on shutdown, rather than the shared one.
+ *
+ */
+package se.natusoft.osgi.aps.core.service
+
+import groovy.transform.CompileStatic
+import se.natusoft.docutations.NotNull
+import se.natusoft.docutations.Nullable
+import se.natusoft.osgi.aps.api.messaging.APSBus
+import se.natusoft.osgi.aps.api.messaging.APSMessagingException
+import se.natusoft.osgi.aps.types.APSHandler
+import se.natusoft.osgi.aps.types.APSResult
+import se.natusoft.osgi.aps.types.APSUUID
+import se.natusoft.osgi.aps.types.ID
+import se.natusoft.osgi.aps.util.APSLogger
+import se.natusoft.osgi.aps.util.APSWheelTimer
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+import static se.natusoft.osgi.aps.util.APSExecutor.concurrent
+
+/**
+ * Implements request / reply on top of an APSBus.
+ *
+ * This used to be done by a loop resending the request every 2 seconds and sleeping in between,
+ * which tied up one thread per outstanding request until reply or timeout. This instead keeps
+ * all outstanding requests in one table keyed on reply target, and uses one APSWheelTimer for
+ * both resends and timeouts. No thread is ever sleeping for a request, so the number of threads
+ * has nothing to do with the number of requests in flight.
+ *
+ * The timer is owned by the engine and stopped by shutdown(). It is not the shared APSWheelTimer
+ * since that is used by other bundles that must not lose their timer when this one stops.
+ *
+ * The request is resent as long as sending it fails, which it will do if the receiver has not yet
+ * subscribed (this happens at startup when services come up in random order). The first resend is
+ * done after retryIntervalMs, and then the interval is multiplied by retryBackoff for each resend,
+ * up to maxRetryIntervalMs. When a send succeeds there will be no more resends, but we keep waiting
+ * for the reply until the timeout.
+ *
+ * The resultHandler of a request is called exactly once: with success when the request have been
+ * successfully sent, or with failure if it could not be sent before the timeout. Since a successful
+ * send is reported long before the reply is due, a timeoutHandler can be passed to be told when no
+ * reply was received within the timeout.
+ *
+ * By default each request gets its own unique reply target that is subscribed to for the duration
+ * of the request. For cluster routers that means registering and unregistering a consumer through
+ * the whole cluster for each request. If multiplexReplies is set to true, then there is instead one
+ * long lived reply target per target id (i.e. per router) for this node, and replies are matched to
+ * requests by an 'aps.correlationId' header that is copied from the request to the reply by
+ * APSBus.reply(...). A shared reply target lives as long as the router handling it, so routerLeft(...)
+ * must be called when a router leaves to have the next request subscribe again.
+ */
+@CompileStatic
+class RequestReplyEngine {
+
+    //
+    // Constants
+    //
+
+    /** How long to wait before trying again when APSExecutor refuses the handling of a timeout. */
+    private static final long REJECTED_RETRY_MS = 100
+
+    //
+    // Properties
+    //
+
+    /** The bus to send requests and subscribe to replies on. */
+    APSBus bus
+
+    /** For logging. */
+    APSLogger logger
+
+    /** The timer to use for resends and timeouts. Stopped by shutdown(). */
+    APSWheelTimer timer = new APSWheelTimer( "aps-request-timer", 50, 512 )
+
+    /** The time to wait before the first resend. */
+    long retryIntervalMs = 2000
+
+    /** Each resend interval is the previous one multiplied by this. 1.0 means no backoff. */
+    double retryBackoff = 1.0
+
+    /** The resend interval will never be longer than this. */
+    long maxRetryIntervalMs = 10000
+
+    /** If true, one shared reply target per target id is used with correlation ids to match replies. */
+    boolean multiplexReplies = false
+
+    //
+    // Private Members
+    //
+
+    /** The outstanding requests keyed on reply target, or correlation id when multiplexing replies. */
+    private Map<String, PendingRequest> pending = new ConcurrentHashMap<>()
+
+    /** The shared reply targets per target id when multiplexing replies. */
+    private Map<String, SharedReplyTarget> sharedReplyTargets = new ConcurrentHashMap<>()
+
+    /** Identifies this node in shared reply targets. */
+    private String nodeId = new APSUUID().toString()
+
+    //
+    // Methods
+    //
+
+    /**
+     * @return The number of outstanding requests.
+     */
+    int getPendingCount() {
+        this.pending.size()
+    }
+
+    /**
+     * Sends a request and waits for a reply without blocking any thread.
+     *
+     * @param target The target to send to.
+     * @param message The message to send. This gets the 'aps.replyTarget', and when multiplexing replies
+     *                also the 'aps.correlationId' header set.
+     * @param timeOutSec The number of seconds to wait for a reply before failing.
+     * @param resultHandler Receives the result of sending the request.
+     * @param responseHandler Receives the reply.
+     * @param timeoutHandler Called if no reply was received within the timeout. Can be null.
+     */
+    void request( @NotNull String target, @NotNull Map<String, Object> message, int timeOutSec,
+                  @Nullable APSHandler<APSResult<?>> resultHandler,
+                  @NotNull APSHandler<Map<String, Object>> responseHandler,
+                  @Nullable APSHandler<Exception> timeoutHandler = null ) {
+
+        PendingRequest request = new PendingRequest(
+                target: target,
+                message: message,
+                resultHandler: resultHandler,
+                responseHandler: responseHandler,
+                timeoutHandler: timeoutHandler,
+                nextRetryMs: this.retryIntervalMs
+        )
+
+        if ( this.multiplexReplies ) {
+
+            SharedReplyTarget shared = sharedReplyTarget( APSBusRouterIndex.targetId( target ) )
+
+            request.key = new APSUUID().toString()
+            message[ 'aps' ][ 'replyTarget' ] = shared.replyTarget
+            message[ 'aps' ][ 'correlationId' ] = request.key
+
+            start( request, timeOutSec )
+
+            shared.whenSubscribed { APSResult subRes -> subscribed( request, subRes ) }
+        }
+        else {
+
+            request.key = "${ APSBusRouterIndex.targetId( target ) }:" + new APSUUID().toString()
+            request.replySubscriptionId = new APSUUID()
+            message[ 'aps' ][ 'replyTarget' ] = request.key
+
+            start( request, timeOutSec )
+
+            this.bus.subscribe( request.replySubscriptionId, request.key ) { APSResult subRes ->
+
+                subscribed( request, subRes )
+
+            } { Map<String, Object> reply ->
+
+                replyReceived( request.key, reply )
+            }
+        }
+    }
+
+    /**
+     * Makes a request pending and starts its timeout.
+     *
+     * @param request The request to start.
+     * @param timeOutSec The timeout in seconds.
+     */
+    private void start( PendingRequest request, int timeOutSec ) {
+
+        this.pending[ request.key ] = request
+
+        request.requestTimeout = this.timer.schedule( { timedOut( request ) } as Runnable, timeOutSec, TimeUnit.SECONDS )
+    }
+
+    /**
+     * Called with the result of subscribing to the reply target of a request.
+     *
+     * @param request The request subscribed for.
+     * @param subRes The subscription result.
+     */
+    private void subscribed( PendingRequest request, APSResult subRes ) {
+
+        if ( subRes.success() ) {
+
+            // Subscription on reply successful so send request.
+            send( request )
+        }
+        else if ( this.pending.remove( request.key, request ) ) {
+
+            finish( request )
+            report( request, subRes )
+        }
+    }
+
+    /**
+     * Returns the shared reply target for a target id, subscribing to it if not already done.
+     *
+     * @param targetId The target id to get shared reply target for.
+     */
+    private SharedReplyTarget sharedReplyTarget( String targetId ) {
+
+        SharedReplyTarget shared = this.sharedReplyTargets[ targetId ]
+
+        if ( shared == null ) {
+
+            SharedReplyTarget created = new SharedReplyTarget( replyTarget: "${ targetId }:aps.reply.${ this.nodeId }" )
+            shared = this.sharedReplyTargets.putIfAbsent( targetId, created )
+
+            if ( shared == null ) {
+
+                shared = created
+
+                this.bus.subscribe( shared.subscriptionId, shared.replyTarget ) { APSResult subRes ->
+
+                    if ( !subRes.success() ) {
+                        // Let next request try again.
+                        this.sharedReplyTargets.remove( targetId, created )
+                        this.logger.error( "Failed to subscribe to shared reply target '${ created.replyTarget }'!",
+                                subRes.failure() )
+                    }
+
+                    created.subscribed( subRes )
+
+                } { Map<String, Object> reply ->
+
+                    Object correlationId = reply[ 'aps' ] instanceof Map ? ( reply[ 'aps' ] as Map )[ 'correlationId' ] : null
+
+                    if ( correlationId != null ) {
+                        replyReceived( correlationId.toString(), reply )
+                    }
+                    else {
+                        this.logger.warn( "Received reply without 'aps.correlationId' on '${ created.replyTarget }'! " +
+                                "Dropping it." )
+                    }
+                }
+            }
+        }
+
+        shared
+    }
+
+    /**
+     * Forgets the shared reply targets of a router that has left. Its subscriptions are gone with it,
+     * so keeping them would have every following request time out. The next request to any of the
+     * target ids will subscribe again.
+     *
+     * @param targetIds The target ids of the router, or null if the router handles any target.
+     */
+    void routerLeft( @Nullable String[] targetIds ) {
+
+        Collection<String> ids = targetIds != null ? Arrays.asList( targetIds ) :
+                new ArrayList<String>( this.sharedReplyTargets.keySet() )
+
+        ids.each { String targetId ->
+
+            SharedReplyTarget shared = this.sharedReplyTargets.remove( targetId )
+            if ( shared != null ) {
+                // Another router for the same target id might still hold the subscription.
+                this.bus.unsubscribe( shared.subscriptionId )
+                this.logger.info( "Dropped shared reply target '${ shared.replyTarget }' since its router left." )
+            }
+        }
+    }
+
+    /**
+     * Fails all outstanding requests and stops the timer. Should be called on shutdown.
+     */
+    void shutdown() {
+
+        new ArrayList<String>( this.pending.keySet() ).each { String key ->
+
+            PendingRequest request = this.pending.remove( key )
+            if ( request != null ) {
+                finish( request )
+                report( request, APSResult.failure( new APSMessagingException( "Bus is shutting down!" ) ) )
+            }
+        }
+
+        this.sharedReplyTargets.values().each { SharedReplyTarget shared ->
+            this.bus.unsubscribe( shared.subscriptionId )
+        }
+        this.sharedReplyTargets.clear()
+
+        this.timer.stop()
+    }
+
+    /**
+     * Sends a request, and schedules a resend if the send fails.
+     *
+     * @param request The request to send.
+     */
+    private void send( PendingRequest request ) {
+
+        if ( request.done.get() || request.resultReported.get() ) return
+
+        this.bus.send( request.target, request.message ) { APSResult<?> sendRes ->
+
+            if ( sendRes.success() ) {
+
+                request.lastSendFailure = null
+                report( request, sendRes )
+            }
+            else {
+
+                request.lastSendFailure = sendRes.failure()
+                scheduleResend( request )
+            }
+        }
+    }
+
+    /**
+     * Schedules a resend of a request if there is not one already scheduled.
+     *
+     * @param request The request to resend.
+     */
+    private void scheduleResend( PendingRequest request ) {
+
+        synchronized ( request ) {
+
+            if ( request.done.get() || ( request.resend != null && !request.resend.expired ) ) return
+
+            long delay = request.nextRetryMs
+            request.nextRetryMs = Math.min( ( delay * this.retryBackoff ) as long, this.maxRetryIntervalMs )
+
+            request.resend = this.timer.schedule( { send( request ) } as Runnable, delay, TimeUnit.MILLISECONDS )
+        }
+    }
+
+    /**
+     * Handles a received reply.
+     *
+     * @param key The reply target the reply was received on, or the correlation id of the reply.
+     * @param reply The reply.
+     */
+    private void replyReceived( String key, Map<String, Object> reply ) {
+
+        PendingRequest request = this.pending.remove( key )
+
+        if ( request != null ) {
+
+            finish( request )
+
+            // A reply means that the request was successfully sent, even if we have not yet heard so.
+            report( request, APSResult.success( null ) )
+
+            request.responseHandler.handle( reply )
+        }
+    }
+
+    /**
+     * Called by timer when a request times out.
+     *
+     * @param request The request that timed out.
+     */
+    private void timedOut( PendingRequest request ) {
+
+        if ( this.pending.remove( request.key, request ) ) {
+
+            finish( request )
+            submitTimedOut( request )
+        }
+    }
+
+    /**
+     * Passes the handling of a timed out request to APSExecutor. This runs on the timer thread, and we have
+     * no idea what the handlers do. If the executor is saturated we try again a little later rather than
+     * running the handlers on the timer thread.
+     *
+     * @param request The request that timed out.
+     */
+    private void submitTimedOut( PendingRequest request ) {
+
+        try {
+            concurrent { handleTimedOut( request ) }
+        }
+        catch ( RejectedExecutionException ignored ) {
+            this.timer.schedule( { submitTimedOut( request ) } as Runnable, REJECTED_RETRY_MS, TimeUnit.MILLISECONDS )
+        }
+    }
+
+    /**
+     * Reports a timed out request to its handlers.
+     *
+     * @param request The request that timed out.
+     */
+    private void handleTimedOut( PendingRequest request ) {
+
+        APSMessagingException timeout = new APSMessagingException( "Timed out waiting for reply to request!" )
+
+        if ( request.lastSendFailure != null ) {
+
+            this.logger.error( "Failed to send message! ", request.lastSendFailure )
+            report( request, APSResult.failure( request.lastSendFailure ) )
+        }
+        else if ( !report( request, APSResult.failure( timeout ) ) ) {
+
+            this.logger.warn( "No reply received from '${ request.target }' within timeout!" )
+        }
+
+        if ( request.timeoutHandler != null ) {
+            try {
+                request.timeoutHandler.handle( request.lastSendFailure != null ? request.lastSendFailure : timeout )
+            }
+            catch ( Exception e ) {
+                this.logger.error( "Request timeout handler threw exception!", e )
+            }
+        }
+    }
+
+    /**
+     * Marks a request as done, cancels its timers and releases the reply subscription.
+     *
+     * @param request The request to finish.
+     */
+    private void finish( PendingRequest request ) {
+
+        if ( request.done.compareAndSet( false, true ) ) {
+
+            request.requestTimeout?.cancel()
+
+            synchronized ( request ) {
+                request.resend?.cancel()
+            }
+
+            // When multiplexing replies the reply target is shared and stays.
+            if ( request.replySubscriptionId != null ) {
+                this.bus.unsubscribe( request.replySubscriptionId )
+            }
+        }
+    }
+
+    /**
+     * Calls the result handler of a request if it has not already been called.
+     *
+     * @param request The request to report result for.
+     * @param result The result to report.
+     *
+     * @return true if reported, false if result had already been reported.
+     */
+    private boolean report( PendingRequest request, APSResult<?> result ) {
+
+        if ( !request.resultReported.compareAndSet( false, true ) ) return false
+
+        if ( request.resultHandler != null ) {
+            try {
+                request.resultHandler.handle( result )
+            }
+            catch ( Exception e ) {
+                this.logger.error( "Request result handler threw exception!", e )
+            }
+        }
+
+        true
+    }
+
+    //
+    // Inner Classes
+    //
+
+    /**
+     * Holds the state of an outstanding request.
+     */
+    @CompileStatic
+    private static class PendingRequest {
+
+        String target
+
+        /** The reply target, or the correlation id when multiplexing replies. */
+        String key
+
+        Map<String, Object> message
+
+        /** The subscription of the reply target. null when multiplexing replies. */
+        ID replySubscriptionId
+
+        APSHandler<APSResult<?>> resultHandler
+        APSHandler<Map<String, Object>> responseHandler
+
+        /** Called on timeout. Can be null. */
+        APSHandler<Exception> timeoutHandler
+
+        /** The delay before next resend. */
+        long nextRetryMs
+
+        /** The failure of the last send, if it failed. */
+        volatile Exception lastSendFailure
+
+        /** The scheduled resend if any. Guarded by this. */
+        APSWheelTimer.Timeout resend
+
+        /** The scheduled timeout of the whole request. */
+        APSWheelTimer.Timeout requestTimeout
+
+        /** Set when reply has been received, or on timeout. */
+        AtomicBoolean done = new AtomicBoolean( false )
+
+        /** Set when the result handler has been called. */
+        AtomicBoolean resultReported = new AtomicBoolean( false )
+    }
+
+    /**
+     * A reply target shared by all requests to the same target id when multiplexing replies.
+     */
+    @CompileStatic
+    private static class SharedReplyTarget {
+
+        String replyTarget
+
+        ID subscriptionId = new APSUUID()
+
+        /** The result of the subscription, null until known. Guarded by this. */
+        private APSResult subscribeResult
+
+        /** Called when the subscription result is known. Guarded by this. */
+        private List<Closure> waiting = []
+
+        /**
+         * Calls the closure with the subscription result when it is known, which might be now.
+         *
+         * @param toCall The closure to call.
+         */
+        void whenSubscribed( Closure toCall ) {
+
+            APSResult result
+
+            synchronized ( this ) {
+                result = this.subscribeResult
+                if ( result == null ) {
+                    this.waiting << toCall
+                }
+            }
+
+            if ( result != null ) {
+                toCall.call( result )
+            }
+        }
+
+        /**
+         * Sets the subscription result and calls all waiting.
+         *
+         * @param result The subscription result.
+         */
+        void subscribed( APSResult result ) {
+
+            List<Closure> toCall
+
+            synchronized ( this ) {
+                this.subscribeResult = result
+                toCall = this.waiting
+                this.waiting = []
+            }
+
+            toCall.each { Closure waiter -> waiter.call( result ) }
+        }
+    }
+}
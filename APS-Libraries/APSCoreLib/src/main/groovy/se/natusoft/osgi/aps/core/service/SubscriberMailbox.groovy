@@ -0,0 +1,199 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS Core Lib
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         This library is made in Groovy and thus depends on Groovy, and contains functionality that
+ *         makes sense for Groovy, but not as much for Java.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.core.service
+
+import groovy.transform.CompileStatic
+import se.natusoft.docutations.NotNull
+import se.natusoft.osgi.aps.api.metrics.APSHistogram
+import se.natusoft.osgi.aps.types.APSHandler
+import se.natusoft.osgi.aps.util.APSLogger
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.atomic.AtomicInteger
+
+import static se.natusoft.osgi.aps.util.APSExecutor.concurrent
+
+/**
+ * Delivers messages to one subscriber handler in the order they were posted.
+ *
+ * Any number of threads can post to the mailbox. The messages are put on a lock free queue,
+ * and at most one worker at a time drains it by calling the handler. A worker is only submitted
+ * when the mailbox goes from empty to non empty, so there is not one task per message. To be fair
+ * to other mailboxes a worker delivers at most drainLimit messages before it submits a new worker
+ * for the rest.
+ */
+@CompileStatic
+class SubscriberMailbox {
+
+    //
+    // Properties
+    //
+
+    /** The subscriber handler to deliver to. */
+    APSHandler<Map<String, Object>> handler
+
+    /** For logging handler failures. */
+    APSLogger logger
+
+    /** The max number of messages to deliver per worker. */
+    int drainLimit = 64
+
+    /** If set, the time of each handler call is recorded in this. */
+    APSHistogram latency
+
+    //
+    // Private Members
+    //
+
+    private Queue<Map<String, Object>> messages = new ConcurrentLinkedQueue<>()
+
+    /** The number of posts not yet seen by the worker. Non zero when a worker is submitted or running. */
+    private AtomicInteger wip = new AtomicInteger( 0 )
+
+    private volatile boolean closed = false
+
+    //
+    // Methods
+    //
+
+    /**
+     * Posts a message for delivery.
+     *
+     * @param message The message to post.
+     */
+    void post( @NotNull Map<String, Object> message ) {
+
+        if ( this.closed ) return
+
+        this.messages.offer( message )
+        schedule()
+    }
+
+    /**
+     * Posts a batch of messages for delivery. They will be delivered in list order.
+     *
+     * @param batch The messages to post.
+     */
+    void postAll( @NotNull List<Map<String, Object>> batch ) {
+
+        if ( this.closed || batch.isEmpty() ) return
+
+        this.messages.addAll( batch )
+        schedule()
+    }
+
+    /**
+     * Stops delivery. Messages not yet delivered are dropped.
+     */
+    void close() {
+
+        this.closed = true
+        this.messages.clear()
+    }
+
+    /**
+     * @return true if close() has been called.
+     */
+    boolean isClosed() {
+        this.closed
+    }
+
+    /**
+     * Submits a worker if none is already submitted or running.
+     */
+    private void schedule() {
+
+        if ( this.wip.getAndIncrement() == 0 ) {
+            submit()
+        }
+    }
+
+    /**
+     * Submits a drain worker. If the executor is saturated the mailbox is drained on the
+     * calling thread instead.
+     */
+    private void submit() {
+
+        try {
+            concurrent { drain() }
+        }
+        catch ( RejectedExecutionException ignored ) {
+            drain()
+        }
+    }
+
+    /**
+     * Delivers messages until the queue is empty or drainLimit is reached.
+     */
+    private void drain() {
+
+        int missed = this.wip.get()
+
+        while ( true ) {
+
+            int delivered = 0
+            Map<String, Object> message
+
+            while ( delivered < this.drainLimit && !this.closed && ( message = this.messages.poll() ) != null ) {
+
+                long start = this.latency != null ? System.nanoTime() : 0L
+
+                try {
+                    this.handler.handle( message )
+                }
+                catch ( Exception e ) {
+                    this.logger?.error( "Message handler threw illegal exception!", e )
+                }
+
+                this.latency?.recordSince( start )
+
+                ++delivered
+            }
+
+            if ( delivered == this.drainLimit && !this.closed && !this.messages.isEmpty() ) {
+                // Let other mailboxes get some time. wip stays non zero so no one else submits.
+                submit()
+                return
+            }
+
+            missed = this.wip.addAndGet( -missed )
+            if ( missed == 0 ) break
+        }
+    }
+}
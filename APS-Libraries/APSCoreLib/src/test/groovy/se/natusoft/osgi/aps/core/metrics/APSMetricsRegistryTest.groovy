@@ -0,0 +1,78 @@
+package se.natusoft.osgi.aps.core.metrics
+
+import groovy.transform.CompileStatic
+import org.junit.Test
+import se.natusoft.osgi.aps.api.metrics.APSCounter
+import se.natusoft.osgi.aps.api.metrics.APSHistogram
+import se.natusoft.osgi.aps.exceptions.APSValidationException
+
+import java.util.function.Supplier
+
+@CompileStatic
+class APSMetricsRegistryTest {
+
+    @Test
+    void testBuckets() throws Exception {
+
+        // Every bucket covers the values that map to it, and buckets are contiguous.
+        long previousHighest = -1
+        for ( int bucket = 0; bucket < 960; bucket++ ) {
+            long highest = MetricsHistogram.highestValueOf( bucket )
+            assert MetricsHistogram.bucketOf( previousHighest + 1 ) == bucket
+            assert MetricsHistogram.bucketOf( highest ) == bucket
+            // Never wider than 1/16 of its values.
+            assert highest - previousHighest <= Math.max( 1L, ( previousHighest + 1 ).intdiv( 16 ) as long )
+            previousHighest = highest
+        }
+        assert previousHighest == Long.MAX_VALUE
+    }
+
+    @Test
+    void testHistogramPercentiles() throws Exception {
+
+        MetricsHistogram histogram = new MetricsHistogram()
+
+        ( 1..10000 ).each { int value -> histogram.record( value * 1000L ) }
+
+        assert histogram.count == 10000
+        assert Math.abs( histogram.valueAt( 50.0d ) - 5000000L ) <= 5000000L.intdiv( 16 )
+        assert Math.abs( histogram.valueAt( 99.0d ) - 9900000L ) <= 9900000L.intdiv( 16 )
+        assert histogram.valueAt( 100.0d ) == 10000000L
+
+        Map<String, Object> snapshot = histogram.snapshot()
+        assert snapshot[ 'min' ] == 1000L
+        assert snapshot[ 'max' ] == 10000000L
+        assert snapshot[ 'mean' ] == 5000500.0d
+    }
+
+    @Test
+    void testRegistry() throws Exception {
+
+        APSMetricsRegistry registry = new APSMetricsRegistry()
+
+        APSCounter sent = registry.counter( "test.sent" )
+        assert registry.counter( "test.sent" ).is( sent )
+        sent.increment()
+        sent.add( 2 )
+
+        APSHistogram latency = registry.histogram( "test.latency" )
+        latency.record( 100 )
+
+        registry.gauge( "test.depth", { 42 } as Supplier<Number> )
+
+        Map<String, Object> snapshot = registry.snapshot()
+        assert snapshot.keySet().toList() == [ "test.depth", "test.latency", "test.sent" ]
+        assert snapshot[ 'test.sent' ] == 3L
+        assert snapshot[ 'test.depth' ] == 42
+        assert ( snapshot[ 'test.latency' ] as Map )[ 'count' ] == 1L
+
+        try {
+            registry.histogram( "test.sent" )
+            assert false : "Should fail on type clash!"
+        }
+        catch ( APSValidationException expected ) {}
+
+        registry.remove( "test.sent" )
+        assert !registry.snapshot().containsKey( "test.sent" )
+    }
+}
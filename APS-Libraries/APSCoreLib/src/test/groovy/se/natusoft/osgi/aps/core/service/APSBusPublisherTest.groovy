@@ -0,0 +1,106 @@
+package se.natusoft.osgi.aps.core.service
+
+import groovy.transform.CompileStatic
+import org.junit.Test
+import se.natusoft.osgi.aps.api.messaging.APSBus
+import se.natusoft.osgi.aps.types.APSHandler
+import se.natusoft.osgi.aps.types.APSResult
+import se.natusoft.osgi.aps.types.ID
+import se.natusoft.osgi.aps.util.APSLogger
+
+import java.util.concurrent.Flow
+
+@CompileStatic
+class APSBusPublisherTest {
+
+    /**
+     * A bus with one subscription where the test pushes messages.
+     */
+    static class PushBus implements APSBus {
+
+        APSHandler<Map<String, Object>> handler
+        ID subscribed
+
+        void push( int value ) {
+            this.handler.handle( [ aps: [ type: "test" ], content: [ value: value ] ] as Map<String, Object> )
+        }
+
+        void send( String target, Map<String, Object> message, APSHandler<APSResult<?>> resultHandler ) {}
+
+        void subscribe( ID id, String target, APSHandler<APSResult<?>> resultHandler,
+                        APSHandler<Map<String, Object>> messageHandler ) {
+            this.subscribed = id
+            this.handler = messageHandler
+            resultHandler?.handle( APSResult.success( null ) )
+        }
+
+        void unsubscribe( ID subscriberId ) {
+            if ( subscriberId == this.subscribed ) this.subscribed = null
+        }
+
+        void request( String target, Map<String, Object> message, APSHandler<APSResult<?>> resultHandler,
+                      APSHandler<Map<String, Object>> responseMessage ) {}
+
+        void reply( Map<String, Object> replyTo, Map<String, Object> reply, APSHandler<APSResult<?>> resultHandler ) {}
+    }
+
+    static class TestSubscriber implements Flow.Subscriber<Map<String, Object>> {
+
+        Flow.Subscription subscription
+        List<Integer> received = []
+        Throwable error
+
+        void onSubscribe( Flow.Subscription subscription ) { this.subscription = subscription }
+
+        void onNext( Map<String, Object> message ) { this.received << ( message[ 'content' ][ 'value' ] as Integer ) }
+
+        void onError( Throwable throwable ) { this.error = throwable }
+
+        void onComplete() {}
+    }
+
+    @Test
+    void testDemandAndBoundedBuffer() throws Exception {
+
+        PushBus bus = new PushBus()
+        APSBusPublisher publisher = new APSBusPublisher( bus: bus, target: "local:test", bufferSize: 3,
+                logger: new APSLogger() )
+
+        TestSubscriber subscriber = new TestSubscriber()
+        publisher.subscribe( subscriber )
+        assert bus.subscribed != null
+
+        // No demand yet, so nothing is delivered, and only the 3 latest are kept.
+        ( 1..5 ).each { int n -> bus.push( n ) }
+        assert subscriber.received.isEmpty()
+
+        subscriber.subscription.request( 2 )
+        assert subscriber.received == [ 3, 4 ]
+
+        subscriber.subscription.request( 2 )
+        assert subscriber.received == [ 3, 4, 5 ]
+
+        // One outstanding demand left.
+        bus.push( 6 )
+        bus.push( 7 )
+        assert subscriber.received == [ 3, 4, 5, 6 ]
+
+        subscriber.subscription.cancel()
+        assert bus.subscribed == null
+    }
+
+    @Test
+    void testNonPositiveRequestFails() throws Exception {
+
+        PushBus bus = new PushBus()
+        APSBusPublisher publisher = new APSBusPublisher( bus: bus, target: "local:test", logger: new APSLogger() )
+
+        TestSubscriber subscriber = new TestSubscriber()
+        publisher.subscribe( subscriber )
+
+        subscriber.subscription.request( 0 )
+
+        assert subscriber.error instanceof IllegalArgumentException
+        assert bus.subscribed == null
+    }
+}
@@ -0,0 +1,70 @@
+package se.natusoft.osgi.aps.core.service
+
+import groovy.transform.CompileStatic
+import org.junit.Test
+import se.natusoft.osgi.aps.api.messaging.APSBusRouter
+import se.natusoft.osgi.aps.types.APSHandler
+import se.natusoft.osgi.aps.types.APSResult
+import se.natusoft.osgi.aps.types.ID
+
+@CompileStatic
+class APSBusRouterIndexTest {
+
+    /**
+     * A router that does nothing except declaring target ids.
+     */
+    static class IdRouter implements APSBusRouter {
+
+        String[] ids
+
+        boolean send( String target, Map<String, Object> message, APSHandler<APSResult> resultHandler ) { true }
+
+        boolean subscribe( ID id, String target, APSHandler<APSResult> resultHandler,
+                           APSHandler<Map<String, Object>> messageHandler ) { true }
+
+        void unsubscribe( ID subscriberId ) {}
+
+        boolean required() { false }
+
+        String[] targetIds() { this.ids }
+    }
+
+    @Test
+    void testIndex() throws Exception {
+
+        APSBusRouter local = new IdRouter( ids: [ "local" ] as String[] )
+        APSBusRouter cluster = new IdRouter( ids: [ "cluster", "all" ] as String[] )
+        APSBusRouter unindexed = new IdRouter( ids: null )
+
+        APSBusRouterIndex index = new APSBusRouterIndex()
+        index.add( "local", local )
+        index.add( "cluster", cluster )
+
+        assert index.routersFor( "local:test" ) as List == [ local ]
+        assert index.routersFor( "cluster:test" ) as List == [ cluster ]
+        assert index.routersFor( "all:test" ) as List == [ cluster ]
+        assert index.routersFor( "nothing:test" ).length == 0
+        assert index.routersFor( "test" ).length == 0
+
+        index.add( "unindexed", unindexed )
+
+        assert index.routersFor( "local:test" ) as List == [ local, unindexed ]
+        assert index.routersFor( "nothing:test" ) as List == [ unindexed ]
+        assert index.size() == 3
+
+        assert index.remove( "cluster" ).is( cluster )
+        assert index.routersFor( "cluster:test" ) as List == [ unindexed ]
+        assert index.remove( "cluster" ) == null
+
+        assert index.clear().size() == 2
+        assert index.allRouters.length == 0
+    }
+
+    @Test
+    void testTargetId() throws Exception {
+
+        assert APSBusRouterIndex.targetId( "local:a:b" ) == "local"
+        assert APSBusRouterIndex.targetId( "local" ) == "local"
+        assert APSBusRouterIndex.targetId( ":a" ) == ""
+    }
+}
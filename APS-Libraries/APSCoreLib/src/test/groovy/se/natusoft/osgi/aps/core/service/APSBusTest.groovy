@@ -7,10 +7,12 @@ import se.natusoft.osgi.aps.activator.annotation.BundleStop
 import se.natusoft.osgi.aps.activator.annotation.Initializer
 import se.natusoft.osgi.aps.activator.annotation.Managed
 import se.natusoft.osgi.aps.activator.annotation.OSGiService
+import se.natusoft.osgi.aps.api.messaging.APSAsyncBus
 import se.natusoft.osgi.aps.api.messaging.APSBus
 import se.natusoft.osgi.aps.api.messaging.APSMessagingException
 import se.natusoft.osgi.aps.core.lib.MapJsonLoader
 import se.natusoft.osgi.aps.core.lib.MapJsonSchemaValidator
+import se.natusoft.osgi.aps.core.metrics.APSMetricsRegistry
 import se.natusoft.osgi.aps.exceptions.APSValidationException
 import se.natusoft.osgi.aps.runtime.APSRuntime
 import se.natusoft.osgi.aps.runtime.APSTestResults
@@ -20,6 +22,7 @@ import se.natusoft.osgi.aps.types.ID
 import se.natusoft.osgi.aps.util.APSLogger
 import se.natusoft.osgi.aps.util.SyncedValue
 
+import java.util.concurrent.CompletionException
 import java.util.concurrent.TimeUnit
 
 import static se.natusoft.osgi.aps.util.APSExecutor.concurrent
@@ -41,7 +44,7 @@ class APSBusTest extends APSRuntime {
         deploy 'aps-core-lib' with new APSActivator() from "APS-Libraries/APSCoreLib/target/classes"
         deploy 'aps-core-lib-test' with new APSActivator() from "APS-Libraries/APSCoreLib/target/test-classes"
 
-        hold() whilst { testCount < 3 } maxTime 4 unit TimeUnit.SECONDS exceptionOnTimeout true go()
+        hold() whilst { testCount < 5 } maxTime 4 unit TimeUnit.SECONDS exceptionOnTimeout true go()
 
         undeploy 'aps-core-lib-test'
         undeploy 'aps-core-lib'
@@ -167,6 +170,96 @@ class ShouldFail {
     }
 }
 
+@CompileStatic
+@SuppressWarnings( "unused" )
+// Instantiated and injected via reflection by APSActivator
+class TestBatch {
+
+    @OSGiService( nonBlocking = true )
+    private APSBus bus
+
+    @Initializer
+    void toTest() {
+
+        ID subId = new APSUUID()
+        List<Object> received = Collections.synchronizedList( [] )
+
+        this.bus.subscribe( subId, "local:batch", null ) { Map<String, Object> message ->
+
+            received << message[ 'content' ][ 'value' ]
+        }
+
+        List<Map<String, Object>> batch = ( 1..5 ).collect { int n ->
+            [
+                    aps    : [],
+                    content: [
+                            value: n
+                    ]
+            ] as Map<String, Object>
+        }
+
+        this.bus.sendBatch( "local:batch", batch ) { APSResult<?> res ->
+            APSBusTest.testResults.trAssertTrue( res.success() )
+        }
+
+        waitFor( 5, 1000 ) { received.size() == 5 }
+
+        // The batch is delivered to each subscriber in order.
+        APSBusTest.testResults.trAssertEquals( [ 1, 2, 3, 4, 5 ], received )
+
+        this.bus.unsubscribe( subId )
+
+        APSBusTest.testCount++
+        println "TestBatch: testCount: ${ APSBusTest.testCount }"
+    }
+}
+
+@CompileStatic
+@SuppressWarnings( "unused" )
+// Instantiated and injected via reflection by APSActivator
+class TestRequestAsyncNoReply {
+
+    @OSGiService( nonBlocking = true )
+    private APSBus bus
+
+    // Not nonBlocking since we need the returned stage.
+    @OSGiService( timeout = "5 sec" )
+    private APSAsyncBus asyncBus
+
+    @Initializer
+    void toTest() {
+
+        ID subId = new APSUUID()
+
+        // Receives the request, so the send succeeds, but never replies.
+        this.bus.subscribe( subId, "local:silentService", null ) { Map<String, Object> message -> }
+
+        Throwable failure = null
+
+        this.asyncBus.requestAsync( "local:silentService", [
+                aps    : [
+                        type: "serviceRequest"
+                ],
+                content: [
+                        data: "Anyone there?"
+                ]
+        ] as Map<String, Object>, 1 ).whenComplete { Map<String, Object> reply, Throwable error ->
+
+            failure = error != null ? error : new Exception( "Should not have gotten a reply!" )
+        }
+
+        waitFor( 5, 3000 ) { failure != null }
+
+        if ( failure instanceof CompletionException ) failure = failure.cause
+        APSBusTest.testResults.trAssertSame( APSMessagingException.class, failure?.getClass() )
+
+        this.bus.unsubscribe( subId )
+
+        APSBusTest.testCount++
+        println "TestRequestAsyncNoReply: testCount: ${ APSBusTest.testCount }"
+    }
+}
+
 @CompileStatic
 @SuppressWarnings( "unused" )
 // Instantiated and injected via reflection by APSActivator
@@ -269,6 +362,14 @@ class TestRequest {
         // get a result.
         Thread.sleep( 3000 )
 
+        // The reply target is unique to the request, so the reply must not get a counter of its own.
+        Map<String, Object> metrics = APSMetricsRegistry.shared().snapshot()
+        APSBusTest.testResults.trAssertTrue( ( metrics[ 'aps.bus.sent.reply' ] as long ) >= 1 )
+        APSBusTest.testResults.trAssertTrue( metrics.containsKey( 'aps.bus.sent.local:testService' ) )
+        APSBusTest.testResults.trAssertTrue( metrics.keySet().every { String name ->
+            !( name ==~ /aps\.bus\.sent\.local:\p{XDigit}{8}-.*/ )
+        } )
+
         APSBusTest.testCount++
         println "TestRequest: testCount: ${ APSBusTest.testCount }"
 
@@ -0,0 +1,59 @@
+package se.natusoft.osgi.aps.core.service
+
+import groovy.transform.CompileStatic
+import org.junit.Test
+import se.natusoft.osgi.aps.types.APSHandler
+import se.natusoft.osgi.aps.types.APSResult
+import se.natusoft.osgi.aps.types.APSUUID
+import se.natusoft.osgi.aps.types.ID
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import static se.natusoft.osgi.aps.util.APSTools.waitFor
+
+@CompileStatic
+class APSLocalInMemoryBusRouterTest {
+
+    private static Map<String, Object> message( int value ) {
+        [ aps: [ type: "test" ], content: [ value: value ] ] as Map<String, Object>
+    }
+
+    @Test
+    void testSubscribeSendUnsubscribe() throws Exception {
+
+        APSLocalInMemoryBusRouter router = new APSLocalInMemoryBusRouter()
+
+        AtomicInteger first = new AtomicInteger( 0 )
+        AtomicInteger second = new AtomicInteger( 0 )
+        ID firstId = new APSUUID()
+        ID secondId = new APSUUID()
+
+        assert !router.subscribe( firstId, "cluster:test", null ) { Map<String, Object> message -> }
+
+        assert router.subscribe( firstId, "local:test", null ) { Map<String, Object> message -> first.incrementAndGet() }
+        // Same id on two addresses.
+        assert router.subscribe( firstId, "local:other", null ) { Map<String, Object> message -> first.incrementAndGet() }
+        assert router.subscribe( secondId, "local:test", null ) { Map<String, Object> message -> second.incrementAndGet() }
+
+        APSResult result = null
+        assert router.send( "local:test", message( 1 ), { APSResult res -> result = res } as APSHandler<APSResult> )
+        assert result.success()
+
+        waitFor( 10, 3000 ) { first.get() == 1 && second.get() == 1 }
+
+        router.unsubscribe( firstId )
+
+        router.send( "local:test", message( 2 ), null )
+        waitFor( 10, 3000 ) { second.get() == 2 }
+        assert first.get() == 1
+
+        router.send( "local:other", message( 3 ), { APSResult res -> result = res } as APSHandler<APSResult> )
+        assert !result.success()
+        assert result.failure().message == "No subscribers!"
+
+        router.unsubscribe( secondId )
+
+        router.send( "local:test", message( 4 ), { APSResult res -> result = res } as APSHandler<APSResult> )
+        assert !result.success()
+    }
+}
@@ -0,0 +1,227 @@
+package se.natusoft.osgi.aps.core.service
+
+import groovy.transform.CompileStatic
+import org.junit.Test
+import se.natusoft.osgi.aps.api.messaging.APSBus
+import se.natusoft.osgi.aps.exceptions.APSValidationException
+import se.natusoft.osgi.aps.types.APSHandler
+import se.natusoft.osgi.aps.types.APSResult
+import se.natusoft.osgi.aps.types.APSUUID
+import se.natusoft.osgi.aps.types.ID
+import se.natusoft.osgi.aps.util.APSLogger
+import se.natusoft.osgi.aps.util.APSWheelTimer
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import static se.natusoft.osgi.aps.util.APSTools.waitFor
+
+@CompileStatic
+class RequestReplyEngineTest {
+
+    /**
+     * A minimal synchronous bus. Sending to a target without subscribers fails just like
+     * APSLocalInMemoryBusRouter does.
+     */
+    static class TestBus implements APSBus {
+
+        Map<String, APSHandler<Map<String, Object>>> subscribers = new ConcurrentHashMap<>()
+        Map<ID, String> subscriptions = new ConcurrentHashMap<>()
+        AtomicInteger sends = new AtomicInteger( 0 )
+
+        void send( String target, Map<String, Object> message, APSHandler<APSResult<?>> resultHandler ) {
+            this.sends.incrementAndGet()
+            APSHandler<Map<String, Object>> handler = this.subscribers[ target ]
+            if ( handler != null ) {
+                resultHandler?.handle( APSResult.success( null ) )
+                handler.handle( message )
+            }
+            else {
+                resultHandler?.handle( APSResult.failure( new APSValidationException( "No subscribers!" ) ) )
+            }
+        }
+
+        void subscribe( ID id, String target, APSHandler<APSResult<?>> resultHandler,
+                        APSHandler<Map<String, Object>> messageHandler ) {
+            this.subscribers[ target ] = messageHandler
+            this.subscriptions[ id ] = target
+            resultHandler?.handle( APSResult.success( null ) )
+        }
+
+        void unsubscribe( ID subscriberId ) {
+            String target = this.subscriptions.remove( subscriberId )
+            if ( target != null ) this.subscribers.remove( target )
+        }
+
+        void request( String target, Map<String, Object> message, APSHandler<APSResult<?>> resultHandler,
+                      APSHandler<Map<String, Object>> responseMessage ) {}
+
+        void reply( Map<String, Object> replyTo, Map<String, Object> reply, APSHandler<APSResult<?>> resultHandler ) {
+            Object correlationId = replyTo[ 'aps' ][ 'correlationId' ]
+            if ( correlationId != null ) reply[ 'aps' ][ 'correlationId' ] = correlationId
+            send( replyTo[ 'aps' ][ 'replyTarget' ] as String, reply, resultHandler )
+        }
+    }
+
+    private static Map<String, Object> message( String value ) {
+        [ aps: [ type: "test" ], content: [ value: value ] ] as Map<String, Object>
+    }
+
+    @Test
+    void testResendUntilReceiverIsAvailable() throws Exception {
+
+        TestBus bus = new TestBus()
+        RequestReplyEngine engine = new RequestReplyEngine( bus: bus, logger: new APSLogger(), retryIntervalMs: 100 )
+
+        AtomicInteger results = new AtomicInteger( 0 )
+        AtomicInteger successes = new AtomicInteger( 0 )
+        Map<String, Object> response = null
+
+        engine.request( "local:service", message( "request" ), 5, { APSResult res ->
+            results.incrementAndGet()
+            if ( res.success() ) successes.incrementAndGet()
+        } as APSHandler<APSResult<?>> ) { Map<String, Object> reply ->
+            response = reply
+        }
+
+        // The receiver comes up late.
+        Thread.sleep( 400 )
+        assert response == null
+
+        bus.subscribe( new APSUUID(), "local:service", null ) { Map<String, Object> received ->
+            bus.reply( received, message( "reply" ), null )
+        }
+
+        waitFor( 10, 3000 ) { response != null }
+
+        assert response[ 'content' ][ 'value' ] == "reply"
+        assert results.get() == 1
+        assert successes.get() == 1
+        assert bus.sends.get() > 2
+        assert engine.pendingCount == 0
+        // Only the service subscription should be left. The reply subscription must be gone.
+        assert bus.subscriptions.size() == 1
+    }
+
+    @Test
+    void testTimeout() throws Exception {
+
+        TestBus bus = new TestBus()
+        RequestReplyEngine engine = new RequestReplyEngine( bus: bus, logger: new APSLogger(), retryIntervalMs: 100,
+                retryBackoff: 2.0, maxRetryIntervalMs: 400 )
+
+        AtomicInteger results = new AtomicInteger( 0 )
+        APSResult<?> result = null
+
+        engine.request( "local:nobody", message( "request" ), 1, { APSResult res ->
+            results.incrementAndGet()
+            result = res
+        } as APSHandler<APSResult<?>> ) { Map<String, Object> reply ->
+            assert false : "There should be no reply!"
+        }
+
+        waitFor( 10, 3000 ) { result != null }
+
+        assert !result.success()
+        assert result.failure().message == "No subscribers!"
+        // 100, 200, 400, 400 ... within 1 second: first send + about 3 resends.
+        assert bus.sends.get() >= 3 && bus.sends.get() <= 5
+
+        Thread.sleep( 500 )
+        assert results.get() == 1
+        assert engine.pendingCount == 0
+        assert bus.subscriptions.isEmpty()
+    }
+
+    @Test
+    void testMultiplexedReplies() throws Exception {
+
+        TestBus bus = new TestBus()
+        RequestReplyEngine engine = new RequestReplyEngine( bus: bus, logger: new APSLogger(), multiplexReplies: true )
+
+        bus.subscribe( new APSUUID(), "local:service", null ) { Map<String, Object> received ->
+            bus.reply( received, message( "reply-" + received[ 'content' ][ 'value' ] ), null )
+        }
+
+        Map<String, String> responses = new ConcurrentHashMap<>()
+        Set<String> replyTargets = ConcurrentHashMap.newKeySet()
+
+        ( 1..10 ).each { int n ->
+            Map<String, Object> request = message( "${ n }" )
+            engine.request( "local:service", request, 5, null ) { Map<String, Object> reply ->
+                responses[ "${ n }".toString() ] = reply[ 'content' ][ 'value' ] as String
+            }
+            replyTargets << ( request[ 'aps' ][ 'replyTarget' ] as String )
+        }
+
+        waitFor( 10, 3000 ) { responses.size() == 10 }
+
+        ( 1..10 ).each { int n -> assert responses[ "${ n }".toString() ] == "reply-${ n }".toString() }
+        assert replyTargets.size() == 1
+        assert engine.pendingCount == 0
+        // The service subscription and the shared reply subscription.
+        assert bus.subscriptions.size() == 2
+
+        engine.shutdown()
+        assert bus.subscriptions.size() == 1
+    }
+
+    @Test
+    void testMultiplexedResubscribesWhenRouterHasLeft() throws Exception {
+
+        TestBus bus = new TestBus()
+        RequestReplyEngine engine = new RequestReplyEngine( bus: bus, logger: new APSLogger(), multiplexReplies: true )
+
+        bus.subscribe( new APSUUID(), "local:service", null ) { Map<String, Object> received ->
+            bus.reply( received, message( "reply" ), null )
+        }
+
+        List<String> responses = Collections.synchronizedList( [] )
+
+        Map<String, Object> first = message( "1" )
+        engine.request( "local:service", first, 5, null ) { Map<String, Object> reply -> responses << "1" }
+        waitFor( 10, 3000 ) { responses.size() == 1 }
+
+        // The router loses its EventBus, and with it the shared reply subscription.
+        String replyTarget = first[ 'aps' ][ 'replyTarget' ] as String
+        bus.subscriptions.values().remove( replyTarget )
+        bus.subscribers.remove( replyTarget )
+
+        // This reply has nowhere to go.
+        engine.request( "local:service", message( "2" ), 1, null ) { Map<String, Object> reply -> responses << "2" }
+        Thread.sleep( 1300 )
+        assert responses.size() == 1
+
+        engine.routerLeft( [ "local" ] as String[] )
+
+        engine.request( "local:service", message( "3" ), 5, null ) { Map<String, Object> reply -> responses << "3" }
+        waitFor( 10, 3000 ) { responses.size() == 2 }
+
+        assert responses == [ "1", "3" ]
+        assert engine.pendingCount == 0
+        assert bus.subscriptions.size() == 2
+    }
+
+    @Test
+    void testShutdownOnlyStopsOwnTimer() throws Exception {
+
+        RequestReplyEngine engine = new RequestReplyEngine( bus: new TestBus(), logger: new APSLogger() )
+        assert !engine.timer.is( APSWheelTimer.shared() )
+
+        engine.shutdown()
+
+        try {
+            engine.timer.schedule( {} as Runnable, 10, TimeUnit.MILLISECONDS )
+            assert false : "Expected the engine timer to be stopped!"
+        }
+        catch ( IllegalStateException expected ) {
+        }
+
+        // Other bundles keep using the shared timer.
+        AtomicInteger ran = new AtomicInteger( 0 )
+        APSWheelTimer.shared().schedule( { ran.incrementAndGet() } as Runnable, 10, TimeUnit.MILLISECONDS )
+        waitFor( 10, 3000 ) { ran.get() == 1 }
+        assert ran.get() == 1
+    }
+}
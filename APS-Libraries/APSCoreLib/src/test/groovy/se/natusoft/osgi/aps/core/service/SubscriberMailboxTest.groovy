@@ -0,0 +1,83 @@
+package se.natusoft.osgi.aps.core.service
+
+import groovy.transform.CompileStatic
+import org.junit.Test
+import se.natusoft.osgi.aps.types.APSHandler
+import se.natusoft.osgi.aps.util.APSLogger
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import static se.natusoft.osgi.aps.util.APSTools.waitFor
+
+@CompileStatic
+class SubscriberMailboxTest {
+
+    private static Map<String, Object> message( int value ) {
+        [ aps: [ type: "test" ], content: [ value: value ] ] as Map<String, Object>
+    }
+
+    @Test
+    void testOrderedAndOneAtATime() throws Exception {
+
+        List<Integer> received = Collections.synchronizedList( [] )
+        AtomicInteger active = new AtomicInteger( 0 )
+        AtomicInteger maxActive = new AtomicInteger( 0 )
+
+        SubscriberMailbox mailbox = new SubscriberMailbox( logger: new APSLogger(), drainLimit: 10,
+                handler: { Map<String, Object> message ->
+                    int now = active.incrementAndGet()
+                    if ( now > maxActive.get() ) maxActive.set( now )
+                    received << ( message[ 'content' ][ 'value' ] as Integer )
+                    active.decrementAndGet()
+                } as APSHandler<Map<String, Object>> )
+
+        ( 0..<500 ).each { int n -> mailbox.post( message( n ) ) }
+        mailbox.postAll( ( 500..<600 ).collect { int n -> message( n ) } )
+
+        waitFor( 10, 3000 ) { received.size() == 600 }
+
+        assert received == ( 0..<600 ).toList()
+        assert maxActive.get() == 1
+    }
+
+    @Test
+    void testConcurrentPostersKeepTheirOrder() throws Exception {
+
+        Map<Integer, List<Integer>> perPoster = [ 0: [], 1: [], 2: [], 3: [] ] as Map<Integer, List<Integer>>
+        AtomicInteger count = new AtomicInteger( 0 )
+
+        SubscriberMailbox mailbox = new SubscriberMailbox( logger: new APSLogger(),
+                handler: { Map<String, Object> message ->
+                    int value = message[ 'content' ][ 'value' ] as Integer
+                    // Only one delivery at a time, so no locking needed.
+                    perPoster[ value.intdiv( 1000 ) as Integer ] << value
+                    count.incrementAndGet()
+                } as APSHandler<Map<String, Object>> )
+
+        List<Thread> posters = ( 0..3 ).collect { int poster ->
+            Thread.start { ( 0..<1000 ).each { int n -> mailbox.post( message( poster * 1000 + n ) ) } }
+        }
+        posters.each { Thread t -> t.join() }
+
+        waitFor( 10, 3000 ) { count.get() == 4000 }
+
+        ( 0..3 ).each { int poster ->
+            assert perPoster[ poster ] == ( ( poster * 1000 )..<( poster * 1000 + 1000 ) ).toList()
+        }
+    }
+
+    @Test
+    void testClosedMailboxDeliversNothing() throws Exception {
+
+        AtomicInteger count = new AtomicInteger( 0 )
+
+        SubscriberMailbox mailbox = new SubscriberMailbox( logger: new APSLogger(),
+                handler: { Map<String, Object> message -> count.incrementAndGet() } as APSHandler<Map<String, Object>> )
+
+        mailbox.close()
+        mailbox.post( message( 1 ) )
+
+        Thread.sleep( 100 )
+        assert count.get() == 0
+    }
+}
@@ -0,0 +1,232 @@
+package se.natusoft.osgi.aps.util
+
+import groovy.transform.CompileStatic
+import org.junit.Test
+import org.osgi.service.log.LogService
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import static se.natusoft.osgi.aps.util.APSTools.waitFor
+
+@CompileStatic
+class APSAsyncLogAppenderTest {
+
+    /**
+     * A sink that remembers what it was given, and can be made to hold the writer thread.
+     */
+    private static class TestSink implements APSAsyncLogAppender.Sink {
+
+        /** The written entries, in order. */
+        List<APSAsyncLogAppender.Entry> written = Collections.synchronizedList( [] as List<APSAsyncLogAppender.Entry> )
+
+        /** The threads the entries were written on, in order. */
+        List<Thread> writtenOn = Collections.synchronizedList( [] as List<Thread> )
+
+        /** Counted down when a write has started. */
+        CountDownLatch writing = new CountDownLatch( 1 )
+
+        /** If set, every write waits for this. */
+        CountDownLatch release = null
+
+        /** Entries written but held until flushed. */
+        int buffered = 0
+
+        /** If true the sink holds on to written entries until a forced flush. */
+        boolean buffering = false
+
+        /** The number of forced flushes. */
+        int forcedFlushes = 0
+
+        @Override
+        void write( APSAsyncLogAppender.Entry entry ) {
+            this.writing.countDown()
+            this.release?.await( 5, TimeUnit.SECONDS )
+            this.written << entry
+            this.writtenOn << Thread.currentThread()
+            if ( this.buffering ) this.buffered++
+        }
+
+        @Override
+        synchronized boolean flush( boolean force ) {
+            if ( force ) {
+                this.forcedFlushes++
+                this.buffered = 0
+            }
+            return this.buffered == 0
+        }
+    }
+
+    private static APSAsyncLogAppender.Entry entry( int level, String message, APSAsyncLogAppender.Sink sink ) {
+        new APSAsyncLogAppender.Entry( level, System.currentTimeMillis(), "test-bundle", "test",
+                Thread.currentThread().name, message, null, sink )
+    }
+
+    @Test
+    void testMultiProducerOrderingPerProducer() throws Exception {
+
+        APSAsyncLogAppender appender = new APSAsyncLogAppender( "test-log-writer", 16384, false )
+        TestSink sink = new TestSink()
+
+        try {
+            int producers = 4
+            int perProducer = 2000
+            CountDownLatch start = new CountDownLatch( 1 )
+
+            List<Thread> threads = ( 0..<producers ).collect { int p ->
+                Thread.start {
+                    start.await( 5, TimeUnit.SECONDS )
+                    ( 0..<perProducer ).each { int n ->
+                        appender.append( entry( LogService.LOG_INFO, "${ p }:${ n }".toString(), sink ) )
+                    }
+                }
+            }
+            start.countDown()
+            threads.each { Thread thread -> thread.join( 5000 ) }
+
+            assert appender.flush( 5000 )
+            assert appender.dropped == 0
+            assert appender.pending == 0
+            assert sink.written.size() == producers * perProducer
+
+            // Producers interleave, but the entries of each producer must be written in the order appended.
+            Map<Integer, List<Integer>> perProducerWritten = [ : ].withDefault { [] } as Map<Integer, List<Integer>>
+            sink.written.each { APSAsyncLogAppender.Entry written ->
+                String[] parts = written.message.split( ":" )
+                perProducerWritten[ parts[ 0 ].toInteger() ] << parts[ 1 ].toInteger()
+            }
+            ( 0..<producers ).each { int p ->
+                assert perProducerWritten[ p ] == ( 0..<perProducer ).toList()
+            }
+
+            // And all of it on the writer thread.
+            assert sink.writtenOn.every { Thread thread -> thread.name == "test-log-writer" }
+        }
+        finally {
+            appender.stop( 2000 )
+        }
+    }
+
+    @Test
+    void testOverflowDrops() throws Exception {
+
+        APSAsyncLogAppender appender = new APSAsyncLogAppender( "test-log-drop", 2, false )
+        TestSink sink = new TestSink( release: new CountDownLatch( 1 ) )
+
+        try {
+            // The writer thread takes this one and is then held in the sink.
+            appender.append( entry( LogService.LOG_INFO, "first", sink ) )
+            assert sink.writing.await( 3, TimeUnit.SECONDS )
+
+            // Fills the buffer.
+            appender.append( entry( LogService.LOG_INFO, "second", sink ) )
+            appender.append( entry( LogService.LOG_INFO, "third", sink ) )
+            assert appender.pending == 2
+
+            // No room, not even for an error since the overflow policy is "drop".
+            appender.append( entry( LogService.LOG_INFO, "fourth", sink ) )
+            appender.append( entry( LogService.LOG_ERROR, "fifth", sink ) )
+            assert appender.dropped == 2
+
+            sink.release.countDown()
+            assert appender.flush( 3000 )
+            assert sink.written*.message == [ "first", "second", "third" ]
+        }
+        finally {
+            sink.release.countDown()
+            appender.stop( 2000 )
+        }
+    }
+
+    @Test
+    void testOverflowWritesWarningsOnLoggingThread() throws Exception {
+
+        APSAsyncLogAppender appender = new APSAsyncLogAppender( "test-log-overflow", 2, true )
+        TestSink writerSink = new TestSink( release: new CountDownLatch( 1 ) )
+        TestSink directSink = new TestSink()
+
+        try {
+            appender.append( entry( LogService.LOG_INFO, "first", writerSink ) )
+            assert writerSink.writing.await( 3, TimeUnit.SECONDS )
+            appender.append( entry( LogService.LOG_INFO, "second", writerSink ) )
+            appender.append( entry( LogService.LOG_INFO, "third", writerSink ) )
+
+            // The buffer is full. Warnings are written here and now, debug is still dropped.
+            appender.append( entry( LogService.LOG_WARNING, "warning", directSink ) )
+            appender.append( entry( LogService.LOG_DEBUG, "debug", directSink ) )
+
+            assert directSink.written*.message == [ "warning" ]
+            assert directSink.writtenOn == [ Thread.currentThread() ]
+            assert directSink.forcedFlushes == 1
+            assert appender.dropped == 1
+        }
+        finally {
+            writerSink.release.countDown()
+            appender.stop( 2000 )
+        }
+    }
+
+    @Test
+    void testFlushForcesSinks() throws Exception {
+
+        APSAsyncLogAppender appender = new APSAsyncLogAppender( "test-log-flush", 64, false )
+        TestSink sink = new TestSink( buffering: true )
+
+        try {
+            ( 0..<10 ).each { int n -> appender.append( entry( LogService.LOG_INFO, "entry ${ n }".toString(), sink ) ) }
+
+            // Written, but held by the sink since nothing forced it.
+            waitFor( 10, 3000 ) { sink.written.size() == 10 }
+            Thread.sleep( 150 )
+            assert sink.buffered == 10
+            assert sink.forcedFlushes == 0
+
+            assert appender.flush( 3000 )
+            assert sink.buffered == 0
+            assert sink.forcedFlushes == 1
+        }
+        finally {
+            appender.stop( 2000 )
+        }
+    }
+
+    @Test
+    void testStopWritesWhatIsBuffered() throws Exception {
+
+        APSAsyncLogAppender appender = new APSAsyncLogAppender( "test-log-stop", 64, false )
+        TestSink sink = new TestSink( release: new CountDownLatch( 1 ), buffering: true )
+
+        appender.append( entry( LogService.LOG_INFO, "first", sink ) )
+        assert sink.writing.await( 3, TimeUnit.SECONDS )
+        appender.append( entry( LogService.LOG_INFO, "second", sink ) )
+
+        Thread.start { Thread.sleep( 100 ); sink.release.countDown() }
+        appender.stop( 3000 )
+
+        assert sink.written*.message == [ "first", "second" ]
+        assert sink.buffered == 0
+
+        // After stop entries are dropped.
+        appender.append( entry( LogService.LOG_INFO, "third", sink ) )
+        assert appender.dropped == 1
+    }
+
+    @Test
+    void testShutdownShared() throws Exception {
+
+        APSAsyncLogAppender first = APSAsyncLogAppender.shared()
+        assert APSAsyncLogAppender.shared().is( first )
+
+        TestSink sink = new TestSink( buffering: true )
+        first.append( entry( LogService.LOG_INFO, "last words", sink ) )
+
+        APSAsyncLogAppender.shutdownShared()
+        assert sink.written*.message == [ "last words" ]
+        assert sink.buffered == 0
+
+        // A new one is made on next use.
+        APSAsyncLogAppender second = APSAsyncLogAppender.shared()
+        assert !second.is( first )
+        APSAsyncLogAppender.shutdownShared()
+    }
+}
@@ -0,0 +1,163 @@
+package se.natusoft.osgi.aps.util
+
+import groovy.transform.CompileStatic
+import org.junit.Test
+import org.osgi.service.log.LogService
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+
+@CompileStatic
+class APSBatchingLogWriterTest {
+
+    private static APSAsyncLogAppender.Entry entry( int level, String message ) {
+        new APSAsyncLogAppender.Entry( level, 0, "test-bundle", "test", "test-thread", message, null, null )
+    }
+
+    private static List<String> lines( Path file ) {
+        Files.exists( file ) ? Files.readAllLines( file, StandardCharsets.UTF_8 ) : []
+    }
+
+    @Test
+    void testRollsFiles() throws Exception {
+
+        Path dir = Files.createTempDirectory( "aps-log-test" )
+
+        try {
+            Path file = dir.resolve( "aps.log" )
+            // A batch size of 1 writes each entry on its own.
+            APSBatchingLogWriter writer = new APSBatchingLogWriter( APSBatchingLogWriter.TEXT, file, 200, 2, 1, 1000 )
+
+            ( 10..<40 ).each { int n -> writer.write( entry( LogService.LOG_INFO, "entry ${ n }".toString() ) ) }
+            writer.close()
+
+            assert Files.exists( file.resolveSibling( "aps.log.1" ) )
+            assert Files.exists( file.resolveSibling( "aps.log.2" ) )
+            assert !Files.exists( file.resolveSibling( "aps.log.3" ) )
+
+            List<Path> files = [ file.resolveSibling( "aps.log.2" ), file.resolveSibling( "aps.log.1" ), file ]
+            files.each { Path logFile -> assert Files.size( logFile ) <= 200 }
+
+            // Oldest first, the newest entries kept, nothing lost or repeated between the kept files.
+            List<Integer> kept = files.collectMany { Path logFile -> lines( logFile ) }.collect { String line ->
+                line.substring( line.lastIndexOf( ' ' ) + 1 ).toInteger()
+            }
+            assert kept.last() == 39
+            assert kept == ( kept.first()..39 ).toList()
+        }
+        finally {
+            dir.deleteDir()
+        }
+    }
+
+    @Test
+    void testKeepsLoggingWhenRollFails() throws Exception {
+
+        Path dir = Files.createTempDirectory( "aps-log-test" )
+
+        try {
+            Path file = dir.resolve( "aps.log" )
+            // A non empty directory in the way of aps.log.1 makes the roll fail.
+            Files.createDirectories( file.resolveSibling( "aps.log.1" ).resolve( "blocker" ) )
+
+            APSBatchingLogWriter writer = new APSBatchingLogWriter( APSBatchingLogWriter.TEXT, file, 100, 1, 1, 1000 )
+
+            ( 0..<10 ).each { int n -> writer.write( entry( LogService.LOG_INFO, "entry ${ n }".toString() ) ) }
+            writer.close()
+
+            // Nothing is lost, it is all in the file that could not be rolled.
+            List<String> written = lines( file )
+            assert written.size() == 10
+            assert written.last().endsWith( "entry 9" )
+        }
+        finally {
+            dir.deleteDir()
+        }
+    }
+
+    @Test
+    void testJsonEscaping() throws Exception {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+        APSBatchingLogWriter writer = new APSBatchingLogWriter( APSBatchingLogWriter.JSON, out, 64 * 1024, 1000 )
+
+        writer.write( new APSAsyncLogAppender.Entry( LogService.LOG_INFO, 0, "test-bundle", null, "test-thread",
+                "He said \"hi\" \\ new\nline\r\ttab \u0001 \u001f", null, null ) )
+        writer.write( new APSAsyncLogAppender.Entry( LogService.LOG_INFO, 0, "test-bundle", "test", "test-thread",
+                "failed", new IllegalStateException( "Bad \"state\"!" ), null ) )
+        writer.flush( true )
+
+        String written = new String( out.toByteArray(), StandardCharsets.UTF_8 )
+        List<String> jsonLines = written.split( "\n" ).toList()
+
+        // Newlines in the message and stack trace must not break the one object per line format.
+        assert jsonLines.size() == 2
+
+        assert jsonLines[ 0 ] == '{"level":"INFO","timestamp":"1970-01-01T00:00:00Z","bundle":"test-bundle",' +
+                '"loggingFor":null,"thread":"test-thread",' +
+                '"message":"He said \\"hi\\" \\\\ new\\nline\\r\\ttab \\u0001 \\u001f","exception":null}'
+
+        assert jsonLines[ 1 ].contains( '"exception":"java.lang.IllegalStateException: Bad \\"state\\"!\\n' )
+        assert !jsonLines.any { String line -> line.toCharArray().any { char c -> ( c as int ) < 0x20 } }
+    }
+
+    @Test
+    void testSizeFlush() throws Exception {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+        APSBatchingLogWriter writer = new APSBatchingLogWriter( APSBatchingLogWriter.TEXT, out, 200, 60000 )
+
+        int count = 0
+        while ( out.size() == 0 ) {
+            writer.write( entry( LogService.LOG_INFO, "entry ${ count++ }".toString() ) )
+            assert count < 100
+        }
+
+        // Only written when the batch size was reached, and then all of it.
+        assert count > 1
+        assert out.size() >= 200
+        assert new String( out.toByteArray(), StandardCharsets.UTF_8 ).split( "\n" ).size() == count
+
+        // Under the batch size and not timed out yet.
+        writer.write( entry( LogService.LOG_INFO, "entry ${ count }".toString() ) )
+        assert !writer.flush( false )
+    }
+
+    @Test
+    void testTimeFlush() throws Exception {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+        APSBatchingLogWriter writer = new APSBatchingLogWriter( APSBatchingLogWriter.TEXT, out, 64 * 1024, 50 )
+
+        writer.write( entry( LogService.LOG_INFO, "first" ) )
+        assert !writer.flush( false )
+        assert out.size() == 0
+
+        Thread.sleep( 80 )
+
+        assert writer.flush( false )
+        assert new String( out.toByteArray(), StandardCharsets.UTF_8 ).endsWith( "first\n" )
+    }
+
+    @Test
+    void testWarningsAreWrittenAtOnce() throws Exception {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+        APSBatchingLogWriter writer = new APSBatchingLogWriter( APSBatchingLogWriter.TEXT, out, 64 * 1024, 60000 )
+
+        writer.write( entry( LogService.LOG_INFO, "info" ) )
+        writer.write( entry( LogService.LOG_DEBUG, "debug" ) )
+        assert out.size() == 0
+
+        // Written together with what was buffered before it.
+        writer.write( entry( LogService.LOG_WARNING, "warning" ) )
+        List<String> written = new String( out.toByteArray(), StandardCharsets.UTF_8 ).split( "\n" ).toList()
+        assert written.size() == 3
+        assert written[ 2 ].startsWith( "WARNING: " )
+        assert writer.flush( false )
+
+        writer.write( entry( LogService.LOG_ERROR, "error" ) )
+        assert new String( out.toByteArray(), StandardCharsets.UTF_8 ).endsWith( "error\n" )
+    }
+}
@@ -0,0 +1,199 @@
+package se.natusoft.osgi.aps.util
+
+import groovy.transform.CompileStatic
+import org.junit.Test
+import se.natusoft.osgi.aps.exceptions.APSException
+import se.natusoft.osgi.aps.exceptions.APSRuntimeException
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.function.BooleanSupplier
+
+import static se.natusoft.osgi.aps.runtime.APSRuntime.hold
+
+@CompileStatic
+class APSConditionTest {
+
+    /** What the conditions of the tests wait for. */
+    private volatile boolean flag = false
+
+    /**
+     * Sets the flag and signals all conditions after a delay, from another thread.
+     */
+    private void setFlagLater( long delayMs ) {
+        Thread.start {
+            Thread.sleep( delayMs )
+            this.flag = true
+            APSCondition.signalAll()
+        }
+    }
+
+    @Test
+    void testTrueOnCreationCompletesAtOnce() throws Exception {
+
+        int pendingBefore = APSCondition.pendingCount
+
+        APSCondition condition = new APSCondition( { true } as BooleanSupplier )
+
+        assert condition.future().isDone()
+        assert condition.signal()
+        assert APSCondition.pendingCount == pendingBefore
+    }
+
+    @Test
+    void testSignalAllCompletesWhenTrue() throws Exception {
+
+        int pendingBefore = APSCondition.pendingCount
+
+        APSCondition condition = new APSCondition( { this.flag } as BooleanSupplier )
+        assert !condition.future().isDone()
+        assert APSCondition.pendingCount == pendingBefore + 1
+
+        APSCondition.signalAll()
+        assert !condition.future().isDone()
+
+        this.flag = true
+        APSCondition.signalAll()
+
+        assert condition.future().isDone()
+        assert !condition.future().isCompletedExceptionally()
+        assert APSCondition.pendingCount == pendingBefore
+    }
+
+    @Test
+    void testCancelledOrTimedOutFutureIsNoLongerPending() throws Exception {
+
+        int pendingBefore = APSCondition.pendingCount
+
+        new APSCondition( { this.flag } as BooleanSupplier ).future().cancel( false )
+        assert APSCondition.pendingCount == pendingBefore
+
+        CompletableFuture<Void> future = new APSCondition( { this.flag } as BooleanSupplier ).future()
+        future.orTimeout( 50, TimeUnit.MILLISECONDS )
+        APSTools.waitFor( 10, 3000 ) { future.isDone() }
+        assert future.isCompletedExceptionally()
+        assert APSCondition.pendingCount == pendingBefore
+
+        APSCondition cancelled = new APSCondition( { this.flag } as BooleanSupplier )
+        cancelled.cancel()
+        assert cancelled.future().isCancelled()
+        assert APSCondition.pendingCount == pendingBefore
+    }
+
+    @Test
+    void testThrowingConditionFailsFuture() throws Exception {
+
+        int pendingBefore = APSCondition.pendingCount
+
+        APSCondition condition = new APSCondition( { throw new IllegalStateException( "Bad!" ) } as BooleanSupplier )
+
+        assert condition.future().isCompletedExceptionally()
+        assert !condition.signal()
+        assert APSCondition.pendingCount == pendingBefore
+    }
+
+    @Test
+    void testAwaitWakesOnSignal() throws Exception {
+
+        APSCondition condition = new APSCondition( { this.flag } as BooleanSupplier )
+        setFlagLater( 100 )
+
+        assert condition.await( 3, TimeUnit.SECONDS )
+
+        APSCondition never = new APSCondition( { false } as BooleanSupplier )
+        assert !never.await( 20, TimeUnit.MILLISECONDS )
+        never.cancel()
+    }
+
+    @Test
+    void testAwaitAfterOrTimeout() throws Exception {
+
+        APSCondition condition = new APSCondition( { false } as BooleanSupplier )
+        condition.future().orTimeout( 20, TimeUnit.MILLISECONDS )
+
+        try {
+            condition.await( 3, TimeUnit.SECONDS )
+            assert false : "Expected await() to fail!"
+        }
+        catch ( APSRuntimeException expected ) {
+            assert expected.cause instanceof TimeoutException
+        }
+
+        // Runtime exceptions are not wrapped.
+        APSCondition failing = new APSCondition( { throw new IllegalStateException( "Bad!" ) } as BooleanSupplier )
+        try {
+            failing.await( 3, TimeUnit.SECONDS )
+            assert false : "Expected await() to fail!"
+        }
+        catch ( IllegalStateException expected ) {
+            assert expected.message == "Bad!"
+        }
+    }
+
+    @Test
+    void testWaitForOnlyChecksOnCallingThread() throws Exception {
+
+        int pendingBefore = APSCondition.pendingCount
+        Set<Thread> checkedOn = ConcurrentHashMap.newKeySet()
+
+        Thread signaller = Thread.start {
+            while ( !this.flag ) {
+                APSCondition.signalAll()
+                Thread.sleep( 5 )
+            }
+        }
+        setFlagLater( 100 )
+
+        APSTools.waitFor( 10, 3000 ) {
+            checkedOn << Thread.currentThread()
+            assert APSCondition.pendingCount == pendingBefore
+            this.flag
+        }
+        signaller.join( 3000 )
+
+        assert this.flag
+        assert checkedOn == [ Thread.currentThread() ] as Set
+    }
+
+    @Test
+    void testWaitForTimesOut() throws Exception {
+
+        int pendingBefore = APSCondition.pendingCount
+
+        long start = System.currentTimeMillis()
+        APSTools.waitFor( 10, 100 ) { false }
+
+        assert System.currentTimeMillis() - start >= 100
+        assert APSCondition.pendingCount == pendingBefore
+    }
+
+    @Test
+    void testHoldWhilst() throws Exception {
+
+        int pendingBefore = APSCondition.pendingCount
+        setFlagLater( 100 )
+
+        hold().whilst { !this.flag }.maxTime( 3 ).unit( TimeUnit.SECONDS ).exceptionOnTimeout( true ).go()
+
+        assert this.flag
+        assert APSCondition.pendingCount == pendingBefore
+    }
+
+    @Test
+    void testHoldTimesOut() throws Exception {
+
+        int pendingBefore = APSCondition.pendingCount
+
+        try {
+            hold().whilst { true }.maxTime( 100 ).unit( TimeUnit.MILLISECONDS ).exceptionOnTimeout( true ).go()
+            assert false : "Expected hold() to time out!"
+        }
+        catch ( APSException expected ) {
+            assert expected.message == "The current hold() timed out!"
+        }
+
+        assert APSCondition.pendingCount == pendingBefore
+    }
+}
@@ -0,0 +1,148 @@
+package se.natusoft.osgi.aps.util
+
+import groovy.transform.CompileStatic
+import org.junit.Test
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import static se.natusoft.osgi.aps.util.APSTools.waitFor
+
+@CompileStatic
+class APSExecutorPoolTest {
+
+    /**
+     * Occupies the only thread and the only queue slot of a pool until the returned latch is released.
+     */
+    private static CountDownLatch saturate( APSExecutorPool pool ) {
+
+        CountDownLatch release = new CountDownLatch( 1 )
+        CountDownLatch started = new CountDownLatch( 1 )
+
+        pool.execute { started.countDown(); release.await( 5, TimeUnit.SECONDS ) }
+        started.await( 5, TimeUnit.SECONDS )
+        pool.execute { release.await( 5, TimeUnit.SECONDS ) }
+
+        release
+    }
+
+    @Test
+    void testDefaultRejectionIsAbort() throws Exception {
+
+        System.setProperty( "aps.executor.test-default.threads", "1" )
+        System.setProperty( "aps.executor.test-default.queue", "1" )
+        APSExecutorPool pool = APSExecutorPool.fromSystemProperties( "test-default" )
+
+        try {
+            CountDownLatch release = saturate( pool )
+
+            boolean ranHere = false
+            try {
+                pool.execute { ranHere = true }
+                assert false : "Expected RejectedExecutionException!"
+            }
+            catch ( RejectedExecutionException expected ) {
+                // The job must not have been run on this thread.
+            }
+
+            assert !ranHere
+            assert pool.rejectedCount == 1
+
+            release.countDown()
+            waitFor( 10, 3000 ) { pool.completedCount == 2 }
+            assert pool.completedCount == 2
+        }
+        finally {
+            pool.shutdown( true )
+        }
+    }
+
+    @Test
+    void testCallerRunsRunsOnSubmitter() throws Exception {
+
+        APSExecutorPool pool = new APSExecutorPool( "test-caller", 1, 1, APSExecutorPool.RejectionPolicy.CALLER_RUNS )
+
+        try {
+            CountDownLatch release = saturate( pool )
+
+            Thread ranOn = null
+            pool.execute { ranOn = Thread.currentThread() }
+
+            assert ranOn == Thread.currentThread()
+            assert pool.rejectedCount == 1
+
+            release.countDown()
+        }
+        finally {
+            pool.shutdown( true )
+        }
+    }
+
+    @Test
+    void testDropCountsAndForgets() throws Exception {
+
+        APSExecutorPool pool = new APSExecutorPool( "test-drop", 1, 1, APSExecutorPool.RejectionPolicy.DROP )
+
+        try {
+            CountDownLatch release = saturate( pool )
+            AtomicInteger ran = new AtomicInteger( 0 )
+
+            pool.execute { ran.incrementAndGet() }
+            pool.execute { ran.incrementAndGet() }
+            assert pool.rejectedCount == 2
+
+            release.countDown()
+            waitFor( 10, 3000 ) { pool.completedCount == 2 }
+            Thread.sleep( 50 )
+            assert ran.get() == 0
+        }
+        finally {
+            pool.shutdown( true )
+        }
+    }
+
+    @Test
+    void testBlockWaitsForRoom() throws Exception {
+
+        APSExecutorPool pool = new APSExecutorPool( "test-block", 1, 1, APSExecutorPool.RejectionPolicy.BLOCK )
+
+        try {
+            CountDownLatch release = saturate( pool )
+            AtomicInteger ran = new AtomicInteger( 0 )
+
+            Thread submitter = new Thread( { pool.execute { ran.incrementAndGet() } } as Runnable )
+            submitter.start()
+            submitter.join( 100 )
+            // Still blocked since there is no room.
+            assert submitter.alive
+
+            release.countDown()
+            submitter.join( 3000 )
+            assert !submitter.alive
+
+            waitFor( 10, 3000 ) { ran.get() == 1 }
+            assert ran.get() == 1
+            assert pool.rejectedCount == 1
+        }
+        finally {
+            pool.shutdown( true )
+        }
+    }
+
+    @Test
+    void testRejectionPolicyFromConfig() throws Exception {
+
+        assert APSExecutorPool.RejectionPolicy.from( "callerRuns", APSExecutorPool.RejectionPolicy.ABORT ) ==
+                APSExecutorPool.RejectionPolicy.CALLER_RUNS
+        assert APSExecutorPool.RejectionPolicy.from( "caller-runs", APSExecutorPool.RejectionPolicy.ABORT ) ==
+                APSExecutorPool.RejectionPolicy.CALLER_RUNS
+        assert APSExecutorPool.RejectionPolicy.from( "BLOCK", APSExecutorPool.RejectionPolicy.ABORT ) ==
+                APSExecutorPool.RejectionPolicy.BLOCK
+        assert APSExecutorPool.RejectionPolicy.from( "bogus", APSExecutorPool.RejectionPolicy.ABORT ) ==
+                APSExecutorPool.RejectionPolicy.ABORT
+        assert APSExecutorPool.RejectionPolicy.from( null, APSExecutorPool.RejectionPolicy.DROP ) ==
+                APSExecutorPool.RejectionPolicy.DROP
+    }
+}
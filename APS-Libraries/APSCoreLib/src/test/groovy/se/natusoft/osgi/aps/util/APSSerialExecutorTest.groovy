@@ -0,0 +1,147 @@
+package se.natusoft.osgi.aps.util
+
+import groovy.transform.CompileStatic
+import org.junit.Test
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import static se.natusoft.osgi.aps.util.APSTools.waitFor
+
+@CompileStatic
+class APSSerialExecutorTest {
+
+    @Test
+    void testOrderedAndOneAtATime() throws Exception {
+
+        APSExecutorPool pool = new APSExecutorPool( "test-serial", 4, 100, APSExecutorPool.RejectionPolicy.ABORT )
+
+        try {
+            APSSerialExecutor serial = new APSSerialExecutor( pool.&execute as Executor, 10 )
+            List<Integer> ran = Collections.synchronizedList( [] )
+            AtomicInteger active = new AtomicInteger( 0 )
+            AtomicInteger maxActive = new AtomicInteger( 0 )
+
+            ( 0..<1000 ).each { int n ->
+                serial.execute {
+                    int now = active.incrementAndGet()
+                    if ( now > maxActive.get() ) maxActive.set( now )
+                    ran << n
+                    active.decrementAndGet()
+                }
+            }
+
+            waitFor( 10, 3000 ) { ran.size() == 1000 }
+
+            assert ran == ( 0..<1000 ).toList()
+            assert maxActive.get() == 1
+            assert serial.queuedCount == 0
+        }
+        finally {
+            pool.shutdown( true )
+        }
+    }
+
+    @Test
+    void testDrainLimitGivesThreadBack() throws Exception {
+
+        // Runs nothing until told to, so we can see each drain worker submitted.
+        List<Runnable> submitted = []
+        APSSerialExecutor serial = new APSSerialExecutor( { Runnable worker -> submitted << worker } as Executor, 3 )
+
+        List<Integer> ran = []
+        ( 0..<7 ).each { int n -> serial.execute { ran << n } }
+
+        // Only one worker, no matter how many jobs.
+        assert submitted.size() == 1
+
+        submitted.remove( 0 ).run()
+        assert ran == [ 0, 1, 2 ]
+        assert submitted.size() == 1 // Resubmitted itself after drainLimit jobs.
+
+        submitted.remove( 0 ).run()
+        submitted.remove( 0 ).run()
+        assert ran == ( 0..<7 ).toList()
+        assert submitted.isEmpty()
+    }
+
+    @Test
+    void testRejectingExecutorRunsJobsOnSubmitter() throws Exception {
+
+        APSSerialExecutor serial = new APSSerialExecutor(
+                { Runnable worker -> throw new RejectedExecutionException( "Saturated!" ) } as Executor, 100 )
+
+        List<Integer> ran = []
+        List<Thread> threads = []
+
+        ( 0..<5 ).each { int n -> serial.execute { ran << n; threads << Thread.currentThread() } }
+
+        // Nothing is lost and the order is kept.
+        assert ran == ( 0..<5 ).toList()
+        assert threads.every { Thread thread -> thread == Thread.currentThread() }
+        assert serial.queuedCount == 0
+    }
+
+    @Test
+    void testParallelAcrossSerialExecutors() throws Exception {
+
+        APSExecutorPool pool = new APSExecutorPool( "test-serial-parallel", 2, 10, APSExecutorPool.RejectionPolicy.ABORT )
+
+        try {
+            APSSerialExecutor first = new APSSerialExecutor( pool.&execute as Executor, 10 )
+            APSSerialExecutor second = new APSSerialExecutor( pool.&execute as Executor, 10 )
+
+            CountDownLatch secondRan = new CountDownLatch( 1 )
+            AtomicInteger firstSawSecond = new AtomicInteger( -1 )
+
+            // The first blocks until the second has run, which only happens if they run in parallel.
+            first.execute { firstSawSecond.set( secondRan.await( 3, TimeUnit.SECONDS ) ? 1 : 0 ) }
+            second.execute { secondRan.countDown() }
+
+            waitFor( 10, 5000 ) { firstSawSecond.get() >= 0 }
+            assert firstSawSecond.get() == 1
+        }
+        finally {
+            pool.shutdown( true )
+        }
+    }
+
+    @Test
+    void testSequentialOrderedPerKey() throws Exception {
+
+        Map<String, List<Integer>> ran = [ a: Collections.synchronizedList( [] as List<Integer> ),
+                                           b: Collections.synchronizedList( [] as List<Integer> ) ]
+
+        ( 0..<500 ).each { int n ->
+            [ "a", "b" ].each { String key -> APSExecutor.sequential( key ) { ran[ key ] << n } }
+        }
+
+        waitFor( 10, 3000 ) { ran[ "a" ].size() == 500 && ran[ "b" ].size() == 500 }
+
+        assert ran[ "a" ] == ( 0..<500 ).toList()
+        assert ran[ "b" ] == ( 0..<500 ).toList()
+    }
+
+    @Test
+    void testSequentialParallelAcrossKeys() throws Exception {
+
+        // Needs two lanes, and two threads to run them on.
+        if ( APSExecutor.pool( APSExecutor.SEQUENTIAL_POOL ).maxThreads < 2 ) return
+        String other = ( 0..<1000 ).collect { int n -> "key-${ n }".toString() }.find { String key ->
+            APSExecutor.lane( key ) != APSExecutor.lane( "first" )
+        }
+        if ( other == null ) return
+
+        CountDownLatch otherRan = new CountDownLatch( 1 )
+        AtomicInteger firstSawOther = new AtomicInteger( -1 )
+
+        APSExecutor.sequential( "first" ) { firstSawOther.set( otherRan.await( 3, TimeUnit.SECONDS ) ? 1 : 0 ) }
+        APSExecutor.sequential( other ) { otherRan.countDown() }
+
+        waitFor( 10, 5000 ) { firstSawOther.get() >= 0 }
+        assert firstSawOther.get() == 1
+    }
+}
@@ -35,12 +35,13 @@
  *     tommy ()
  *         Changes:
  *         2019-08-17: Created!
+ *         2026-10-18: Pooled producers and consumers, write completion results and in-flight window.
+ *         2026-10-18: Evicted producers are closed when their in-flight writes have completed.
  *
  */
 package se.natusoft.osgi.aps.net.vertx
 
 import groovy.transform.CompileStatic
-import groovy.transform.TypeChecked
 import io.vertx.amqpbridge.AmqpBridge
 import io.vertx.core.AsyncResult
 import io.vertx.core.eventbus.Message
@@ -51,26 +52,46 @@ import se.natusoft.docutations.NotNull
 import se.natusoft.docutations.Nullable
 import se.natusoft.docutations.Optional
 import se.natusoft.osgi.aps.api.messaging.APSBusRouter
+import se.natusoft.osgi.aps.api.messaging.APSMessagingException
+import se.natusoft.osgi.aps.api.metrics.APSHistogram
 import se.natusoft.osgi.aps.core.lib.ValidTarget
+import se.natusoft.osgi.aps.core.metrics.APSMetricsRegistry
+import se.natusoft.osgi.aps.net.vertx.util.ExpiringLRUCache
+import se.natusoft.osgi.aps.net.vertx.util.FlowControlledSubscriber
 import se.natusoft.osgi.aps.net.vertx.util.RecursiveJsonObjectMap
 import se.natusoft.osgi.aps.types.APSHandler
 import se.natusoft.osgi.aps.types.APSResult
 import se.natusoft.osgi.aps.types.ID
 import se.natusoft.osgi.aps.util.APSLogger
 
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
 /**
  * Provides and APSBusRouter implementation using Vert.x EventBus for communication.
  *
  * This uses "amqp:" as target id.
+ *
+ * Producers are pooled per address in a bounded cache. An evicted producer is closed when its
+ * writes in flight have completed, and sends still arriving at it fail. A send is only
+ * reported as successful when the write has completed. Each producer has an in-flight window of
+ * writes not yet completed. When the window is full, sends fail directly with an
+ * APSMessagingException rather than being buffered in the bridge while waiting for link credit.
+ * Senders should back off and try again on such a failure.
+ *
+ * There is one consumer per address, shared by all subscriptions of that address. Received
+ * messages are delivered through a bounded queue, and when that is full the consumer is paused,
+ * which stops it from giving the sender more link credit until the subscribers have caught up.
  */
 @CompileStatic
 @SuppressWarnings( "unused" )
 class APSAmqpBridgeBusRouter implements APSBusRouter {
 
-    private static final String SUPPORTED_TARGET_ID = "local"
+    private static final String SUPPORTED_TARGET_ID = "amqp"
 
     //
-    // Private members
+    // Properties
     //
 
     /** For logging. */
@@ -79,12 +100,33 @@ class APSAmqpBridgeBusRouter implements APSBusRouter {
     /** The bridge to use for messaging. */
     AmqpBridge amqpBridge
 
-    private Map<String, MessageProducer> producers = [:]
+    /** The max number of writes per producer that have not yet completed. */
+    int inFlightWindow = 1000
+
+    /** The max number of pooled producers. */
+    int producerPoolSize = 64
+
+    /** The max number of received messages queued per address before the consumer is paused. */
+    int consumerQueueSize = 1000
+
+    //
+    // Private members
+    //
+
+    /** The pooled producers. Created on first use since the pool size is a property. */
+    private volatile ExpiringLRUCache<AmqpSender> producers
+
+    /** The consumers per address. */
+    private Map<String, AmqpSubscription> consumers = new ConcurrentHashMap<>()
+
+    /** The address of each subscription. */
+    private Map<ID, String> subscriptions = new ConcurrentHashMap<>()
 
-    private Map<String, MessageConsumer> consumers = [:]
+    /** Serializes subscribe and unsubscribe. */
+    private final Object subscriptionLock = new Object()
 
-    /** The current subscriptions */
-    private Map<ID, MessageConsumer> subscriptions = [:]
+    /** The time it takes to deliver a received message to all subscribers of its address. */
+    private APSHistogram handlerLatency = APSMetricsRegistry.shared().histogram( "aps.bus.amqp.handler.latency" )
 
     //
     // Methods
@@ -105,28 +147,37 @@ class APSAmqpBridgeBusRouter implements APSBusRouter {
         return ValidTarget.onValid( SUPPORTED_TARGET_ID, target ) { String realTarget ->
 
             try {
+                sender( realTarget ).write( new JsonObject( message ), resultHandler )
+            }
+            catch ( IllegalStateException ise ) {
+                this.logger.error( "Failed to send AMQP message!", ise )
 
-                MessageProducer messageProducer = producers[ realTarget ]
-                if ( messageProducer == null ) {
-                    messageProducer = this.amqpBridge.createProducer( realTarget )
-                    producers[ realTarget ] = messageProducer
-                }
+                resultHandler?.handle( APSResult.failure( ise ) )
+            }
+        }
+    }
 
-                messageProducer.write( new JsonObject( message ) ) { AsyncResult res ->
-                    if ( res.failed() ) {
-                        logger.error( "Failed to send AMQP message!", res.cause() )
+    /**
+     * Returns the pooled sender of an address, creating it if needed.
+     *
+     * @param address The AMQP address.
+     */
+    private AmqpSender sender( String address ) {
 
-                        if ( resultHandler != null ) resultHandler.handle( APSResult.failure( res.cause() ) )
-                    }
+        if ( this.producers == null ) {
+            synchronized ( this ) {
+                if ( this.producers == null ) {
+                    this.producers = new ExpiringLRUCache<AmqpSender>(
+                            maxSize: this.producerPoolSize,
+                            // Closed when its in-flight writes have completed.
+                            onEvict: { AmqpSender sender -> sender.close() } as APSHandler<AmqpSender>
+                    )
                 }
-
-                if ( resultHandler != null ) resultHandler.handle( APSResult.success( null ) )
             }
-            catch ( IllegalStateException ise ) {
-                this.logger.error( "Failed to send AMQP message!", ise )
+        }
 
-                if ( resultHandler != null ) resultHandler.handle( APSResult.failure( ise ) )
-            }
+        this.producers.get( address ) {
+            new AmqpSender( this.amqpBridge.<JsonObject> createProducer( address ), this.inFlightWindow, this.logger )
         }
     }
 
@@ -144,35 +195,46 @@ class APSAmqpBridgeBusRouter implements APSBusRouter {
         return ValidTarget.onValid( SUPPORTED_TARGET_ID, target ) { String realTarget ->
 
             try {
-                MessageConsumer consumer = consumers[ realTarget ]
-                if ( consumer == null ) {
-                    consumer = this.amqpBridge.createConsumer( realTarget )
-                    consumers[ realTarget ] = consumer
-                }
+                synchronized ( subscriptionLock ) {
 
-                consumer.handler() { Message<JsonObject> msg ->
-                    messageHandler.handle( new RecursiveJsonObjectMap( msg.body() ) )
-                }
+                    AmqpSubscription subscription = consumers[ realTarget ]
+                    if ( subscription == null ) {
+                        subscription = new AmqpSubscription(
+                                this.amqpBridge.<JsonObject> createConsumer( realTarget ), consumerQueueSize, logger, handlerLatency )
+                        consumers[ realTarget ] = subscription
+                    }
 
-                subscriptions[ id ] = consumer
+                    subscription.add( id, messageHandler )
+                    subscriptions[ id ] = realTarget
+                }
 
-                if ( resultHandler != null ) resultHandler.handle( APSResult.success( null ) )
+                resultHandler?.handle( APSResult.success( null ) )
             }
             catch ( IllegalStateException ise ) {
-                if ( resultHandler != null ) resultHandler.handle( APSResult.failure( ise ) )
+                resultHandler?.handle( APSResult.failure( ise ) )
             }
         }
     }
 
     /**
-     * Releases a subscription.
+     * Releases a subscription. The consumer of the address is closed when its last subscription is released.
      *
      * @param subscriberId The ID returned by subscribe.
      */
     @Override
     void unsubscribe( @NotNull ID subscriberId ) {
-        MessageConsumer consumer = this.subscriptions[ subscriberId ]
-        consumer.unregister()
+
+        synchronized ( this.subscriptionLock ) {
+
+            String address = this.subscriptions.remove( subscriberId )
+            if ( address == null ) return
+
+            AmqpSubscription subscription = this.consumers.get( address )
+            if ( subscription != null && subscription.remove( subscriberId ) ) {
+                this.consumers.remove( address )
+                subscription.close()
+            }
+        }
     }
 
     /**
@@ -183,25 +245,201 @@ class APSAmqpBridgeBusRouter implements APSBusRouter {
         return false
     }
 
+    /**
+     * @return The target ids this router reacts on.
+     */
+    @Override
+    String[] targetIds() {
+        return [ SUPPORTED_TARGET_ID ] as String[]
+    }
+
     void shutdown() {
         // This is not an excuse for clients to not clean up after themselves! And this will not be done
         // until we shut down.
-        this.subscriptions.keySet().each { ID key ->
-            this.subscriptions[ key ].unregister()
+        synchronized ( this.subscriptionLock ) {
+            this.consumers.values().each { AmqpSubscription subscription -> subscription.close() }
+            this.consumers.clear()
+            this.subscriptions.clear()
         }
-        this.subscriptions.clear()
 
-        this.consumers.each { String address, MessageConsumer consumer ->
-            consumer.unregister()
+        this.producers?.clear()
+    }
+
+    //
+    // Inner Classes
+    //
+
+    /**
+     * A pooled producer with its in-flight window.
+     */
+    @CompileStatic
+    private static class AmqpSender {
+
+        private final MessageProducer<JsonObject> producer
+
+        private final int window
+
+        private final APSLogger logger
+
+        /** The number of writes not yet completed. */
+        private final AtomicInteger inFlight = new AtomicInteger( 0 )
+
+        /** Set by close(). The producer is closed when inFlight reaches 0. */
+        private final AtomicBoolean closing = new AtomicBoolean( false )
+
+        /** Makes sure the producer is only closed once. */
+        private final AtomicBoolean closed = new AtomicBoolean( false )
+
+        AmqpSender( MessageProducer<JsonObject> producer, int window, APSLogger logger ) {
+            this.producer = producer
+            this.window = window
+            this.logger = logger
+        }
+
+        /**
+         * Writes a message, calling the result handler once when the write has completed, or directly
+         * with a failure if the in-flight window is full.
+         *
+         * @param message The message to write.
+         * @param resultHandler The handler to call with the result. Can be null!
+         */
+        void write( JsonObject message, APSHandler<APSResult> resultHandler ) {
+
+            if ( this.inFlight.incrementAndGet() > this.window ) {
+                this.inFlight.decrementAndGet()
+                resultHandler?.handle( APSResult.failure(
+                        new APSMessagingException( "AMQP in-flight window of ${ this.window } is full!" ) ) )
+                return
+            }
+
+            // Checked after counting the write so that close() either sees it in flight or we see closing.
+            if ( this.closing.get() ) {
+                this.inFlight.decrementAndGet()
+                closeIfDrained()
+                resultHandler?.handle( APSResult.failure(
+                        new APSMessagingException( "AMQP producer was closed! Please try again." ) ) )
+                return
+            }
+
+            AtomicBoolean done = new AtomicBoolean( false )
+
+            try {
+                this.producer.write( message ) { AsyncResult res ->
+
+                    if ( !done.compareAndSet( false, true ) ) return
+                    this.inFlight.decrementAndGet()
+                    closeIfDrained()
+
+                    if ( res.succeeded() ) {
+                        resultHandler?.handle( APSResult.success( null ) )
+                    }
+                    else {
+                        this.logger.error( "Failed to send AMQP message!", res.cause() )
+                        resultHandler?.handle( APSResult.failure( res.cause() ) )
+                    }
+                }
+            }
+            catch ( IllegalStateException ise ) {
+                if ( done.compareAndSet( false, true ) ) {
+                    this.inFlight.decrementAndGet()
+                    closeIfDrained()
+                }
+                throw ise
+            }
+        }
+
+        /**
+         * Closes the producer as soon as there are no writes in flight. Writes after this fail.
+         */
+        void close() {
+            this.closing.set( true )
+            closeIfDrained()
+        }
+
+        /**
+         * Closes the producer if close() has been called and there are no writes in flight.
+         */
+        private void closeIfDrained() {
+            if ( this.closing.get() && this.inFlight.get() == 0 && this.closed.compareAndSet( false, true ) ) {
+                this.producer.close()
+            }
+        }
+    }
+
+    /**
+     * The consumer of an address and its subscribers.
+     */
+    @CompileStatic
+    private static class AmqpSubscription {
+
+        private final MessageConsumer<JsonObject> consumer
+
+        private final FlowControlledSubscriber delivery
+
+        /** Copy-on-write, updated under the routers subscriptionLock. */
+        private volatile Map<ID, APSHandler<Map<String, Object>>> handlers = [ : ]
+
+        AmqpSubscription( MessageConsumer<JsonObject> consumer, int queueSize, APSLogger logger, APSHistogram latency ) {
+
+            this.consumer = consumer
+
+            this.delivery = new FlowControlledSubscriber(
+                    capacity: queueSize,
+                    logger: logger,
+                    latency: latency,
+                    onPause: { consumer.pause() } as Runnable,
+                    onResume: { consumer.resume() } as Runnable,
+                    handler: { Map<String, Object> message ->
+                        this.handlers.values().each { APSHandler<Map<String, Object>> handler ->
+                            try {
+                                handler.handle( message )
+                            }
+                            catch ( Exception e ) {
+                                logger.error( "Message handler threw illegal exception!", e )
+                            }
+                        }
+                    } as APSHandler<Map<String, Object>>
+            )
+
+            this.consumer.handler { Message<JsonObject> msg ->
+                this.delivery.post( new RecursiveJsonObjectMap( msg.body() ) )
+            }
+        }
+
+        /**
+         * Adds a subscriber.
+         *
+         * @param id The subscription id.
+         * @param handler The subscriber handler.
+         */
+        void add( ID id, APSHandler<Map<String, Object>> handler ) {
+            Map<ID, APSHandler<Map<String, Object>>> updated = new LinkedHashMap<>( this.handlers )
+            updated.put( id, handler )
+            this.handlers = updated
         }
-        this.consumers.clear()
 
-        this.producers.each { String address, MessageProducer producer ->
+        /**
+         * Removes a subscriber.
+         *
+         * @param id The subscription id.
+         *
+         * @return true if there are no subscribers left.
+         */
+        boolean remove( ID id ) {
+            Map<ID, APSHandler<Map<String, Object>>> updated = new LinkedHashMap<>( this.handlers )
+            updated.remove( id )
+            this.handlers = updated
+
+            updated.isEmpty()
+        }
 
-            producer.close()
-            producer.end()
+        /**
+         * Unregisters the consumer and drops undelivered messages.
+         */
+        void close() {
+            this.consumer.unregister()
+            this.delivery.close()
         }
-        this.producers.clear()
     }
 
 }
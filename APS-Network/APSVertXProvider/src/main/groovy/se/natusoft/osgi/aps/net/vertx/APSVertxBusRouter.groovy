@@ -41,9 +41,12 @@ package se.natusoft.osgi.aps.net.vertx
 
 import groovy.transform.CompileStatic
 import io.vertx.core.AsyncResult
+import io.vertx.core.Handler
+import io.vertx.core.eventbus.DeliveryOptions
 import io.vertx.core.eventbus.EventBus
 import io.vertx.core.eventbus.Message
 import io.vertx.core.eventbus.MessageConsumer
+import io.vertx.core.eventbus.MessageProducer
 import io.vertx.core.json.JsonObject
 import org.osgi.framework.BundleContext
 import org.osgi.framework.ServiceReference
@@ -58,23 +61,46 @@ import se.natusoft.osgi.aps.activator.annotation.Managed
 import se.natusoft.osgi.aps.activator.annotation.OSGiProperty
 import se.natusoft.osgi.aps.activator.annotation.OSGiService
 import se.natusoft.osgi.aps.activator.annotation.OSGiServiceProvider
+import se.natusoft.osgi.aps.api.messaging.APSBatchResultHandler
 import se.natusoft.osgi.aps.api.messaging.APSBusRouter
 import se.natusoft.osgi.aps.api.messaging.APSMessagingException
+import se.natusoft.osgi.aps.api.metrics.APSHistogram
 import se.natusoft.osgi.aps.constants.APS
 import se.natusoft.osgi.aps.core.lib.ValidTarget
-import se.natusoft.osgi.aps.net.vertx.util.RecursiveJsonObjectMap
+import se.natusoft.osgi.aps.core.metrics.APSMetricsRegistry
+import se.natusoft.osgi.aps.net.vertx.util.APSMessageCodec
+import se.natusoft.osgi.aps.net.vertx.util.ExpiringLRUCache
+import se.natusoft.osgi.aps.net.vertx.util.FlowControlledSubscriber
 import se.natusoft.osgi.aps.tracker.APSServiceTracker
 import se.natusoft.osgi.aps.types.APSHandler
 import se.natusoft.osgi.aps.types.APSResult
 import se.natusoft.osgi.aps.types.ID
 import se.natusoft.osgi.aps.util.APSLogger
-import static se.natusoft.osgi.aps.util.APSExecutor.*
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Supplier
 
 /**
  * Provides and APSBusRouter implementation using Vert.x EventBus for communication.
  *
  * This uses "cluster:" as target id. When calling send(...) however an additional "all:"
  * can be added before address to do a publish rather than send.
+ *
+ * When a point to point send(...) is done to an address that has subscribers in this JVM, the
+ * message is handed directly to one of those subscribers (round robin), as a read only view
+ * of the sent map, without going through Vert.x. This skips the JSON wrapping and the event
+ * loop hops for same node traffic. Publishes always go through Vert.x since they should reach
+ * all nodes. This local affinity can be turned off by setting the 'aps.vertx.bus.local.affinity'
+ * system property to false, in which case Vert.x distributes sends over all nodes as usual.
+ *
+ * Each subscription delivers through a bounded queue (FlowControlledSubscriber). The size is set
+ * with the 'aps.vertx.bus.subscriber.queue.size' system property, and what to do when full with
+ * 'aps.vertx.bus.subscriber.overflow': "pause" (default) pauses the MessageConsumer until the queue
+ * has drained to half, "dropOldest" drops the oldest queued message, and "fail" refuses the new
+ * message, failing it back to the sender if it expects a reply. subscriberMetrics() returns queue
+ * depth and drop counts per subscription. The totals over all subscriptions are also available as
+ * "aps.bus.cluster.*" gauges in APSMetricsRegistry, together with the handler latency.
  */
 @CompileStatic
 @SuppressWarnings( "unused" )
@@ -93,6 +119,15 @@ class APSVertxBusRouter implements APSBusRouter {
 
     private static final String SUPPORTED_TARGET_IDS = "cluster MessageService msvc MessageClient mclnt"
 
+    /** Same as above, but also including "all" since we support that. */
+    private static final String[] TARGET_IDS = [ "cluster", "MessageService", "msvc", "MessageClient", "mclnt", "all" ] as String[]
+
+    /** The names of the gauges registered in APSMetricsRegistry. */
+    private static final String GAUGE_QUEUE_DEPTH = "aps.bus.cluster.queue.depth"
+    private static final String GAUGE_DROPPED = "aps.bus.cluster.dropped"
+    private static final String GAUGE_FAILED = "aps.bus.cluster.failed"
+    private static final String GAUGE_PAUSES = "aps.bus.cluster.pauses"
+
     //
     // Private members
     //
@@ -102,7 +137,47 @@ class APSVertxBusRouter implements APSBusRouter {
     private APSLogger logger
 
     /** The current subscriptions */
-    private Map<ID, MessageConsumer> subscriptions = [:]
+    private Map<ID, MessageConsumer> subscriptions = new ConcurrentHashMap<>()
+
+    /** The flow controlled delivery of each subscription. */
+    private Map<ID, FlowControlledSubscriber> subscribers = new ConcurrentHashMap<>()
+
+    /** The subscribers in this JVM per address, for delivering sends locally. */
+    private Map<String, LocalSubscribers> localSubscribers = new ConcurrentHashMap<>()
+
+    /** The address of each subscription. */
+    private Map<ID, String> subscriptionAddresses = new ConcurrentHashMap<>()
+
+    /** Serializes updates of localSubscribers. */
+    private final Object localUpdateLock = new Object()
+
+    /**
+     * The publishers per address, so that a publisher is not created and closed for every message.
+     * The size and idle time can be changed with the 'aps.vertx.bus.producer.cache.size' and
+     * 'aps.vertx.bus.producer.idle.ms' system properties.
+     *
+     * Only publishers are cached. A sender is credit flow controlled and does not get its credit back
+     * for messages that fail with NO_HANDLERS, so a cached sender would end up queueing forever.
+     * Point to point messages are therefore sent through a sender used for that message only.
+     */
+    private ExpiringLRUCache<MessageProducer<Object>> publishers = new ExpiringLRUCache<MessageProducer<Object>>(
+            maxSize: Integer.getInteger( "aps.vertx.bus.producer.cache.size", 256 ),
+            idleMs: Long.getLong( "aps.vertx.bus.producer.idle.ms", 60000L ),
+            onEvict: { MessageProducer<Object> publisher -> publisher.close() } as APSHandler<MessageProducer<Object>>
+    )
+
+    /** The max number of queued messages per subscription. */
+    private int subscriberQueueSize = Integer.getInteger( "aps.vertx.bus.subscriber.queue.size", 1000 )
+
+    /** What to do when a subscription queue is full. */
+    private FlowControlledSubscriber.OverflowPolicy overflowPolicy =
+            FlowControlledSubscriber.OverflowPolicy.from( System.getProperty( "aps.vertx.bus.subscriber.overflow" ) )
+
+    /** The time of each subscriber handler call. */
+    private APSHistogram handlerLatency = APSMetricsRegistry.shared().histogram( "aps.bus.cluster.handler.latency" )
+
+    /** If true, sends to addresses with subscribers in this JVM are delivered directly. */
+    private boolean localAffinity = !"false".equals( System.getProperty( "aps.vertx.bus.local.affinity" ) )
 
     /**
      * We manage the registration of our service our self through the APSActivatorInteraction API. There will
@@ -136,6 +211,9 @@ class APSVertxBusRouter implements APSBusRouter {
     protected APSServiceTracker<EventBus> eventBusTracker
     protected EventBus eventBus
 
+    /** If true messages are sent with APSMessageCodec rather than as JsonObject. Set from EventBus service property. */
+    protected boolean binaryCodec = false
+
     /** Used to delay service registration. */
     @Managed( name = "APSVertxBusRouterAI" )
     protected APSActivatorInteraction activatorInteraction
@@ -149,6 +227,12 @@ class APSVertxBusRouter implements APSBusRouter {
      */
     @Initializer
     void init() {
+        APSMetricsRegistry metrics = APSMetricsRegistry.shared()
+        metrics.gauge( GAUGE_QUEUE_DEPTH, { subscriberTotal { FlowControlledSubscriber s -> ( long ) s.queueDepth } } as Supplier<Number> )
+        metrics.gauge( GAUGE_DROPPED, { subscriberTotal { FlowControlledSubscriber s -> s.dropped } } as Supplier<Number> )
+        metrics.gauge( GAUGE_FAILED, { subscriberTotal { FlowControlledSubscriber s -> s.failed } } as Supplier<Number> )
+        metrics.gauge( GAUGE_PAUSES, { subscriberTotal { FlowControlledSubscriber s -> s.pauses } } as Supplier<Number> )
+
         // Yes, what these handlers do could be done directly below in onActiveServiceAvailable {...} instead
         // of changing state. This is however more future safe.
         this.activatorInteraction.setStateHandler( APSActivatorInteraction.State.READY ) {
@@ -158,6 +242,7 @@ class APSVertxBusRouter implements APSBusRouter {
         this.activatorInteraction.setStateHandler( APSActivatorInteraction.State.TEMP_UNAVAILABLE ) {
             svcRegs.first().unregister() // We only have one instance.
             svcRegs.clear()
+            publishers.clear()
             logger.debug( ">>>> Unregistered ${ APSVertxBusRouter.class.simpleName } as service!" )
         }
 
@@ -165,7 +250,9 @@ class APSVertxBusRouter implements APSBusRouter {
 
             logger.debug( ">>>> received eventbus!" )
 
+            publishers.clear() // Belongs to any previous EventBus.
             eventBus = service
+            binaryCodec = serviceReference.getProperty( APSMessageCodec.SERVICE_PROPERTY ) == APSMessageCodec.NAME
 
             activatorInteraction.state = APSActivatorInteraction.State.READY
         }
@@ -191,37 +278,148 @@ class APSVertxBusRouter implements APSBusRouter {
     @Override
     boolean send( @NotNull String target, @NotNull Map<String, Object> message, @Optional @Nullable APSHandler<APSResult> resultHandler ) {
 
-        this.logger.debug( "§§§§ Sending to target -> '${target}'" )
+        this.logger.debug { "§§§§ Sending to target -> '${target}'" }
 
         return ValidTarget.onValid(SUPPORTED_TARGET_IDS, true, target ) { String realTarget ->
 
+            if ( !target.startsWith( "all:" ) && deliverLocally( realTarget, message ) ) {
+                resultHandler?.handle( APSResult.success( null ) )
+                return
+            }
+
             def internalResultHandler = { AsyncResult res ->
                 if ( res.succeeded() ) {
-                    resultHandler.handle( APSResult.success( null ) )
+                    resultHandler?.handle( APSResult.success( null ) )
                 }
                 else {
-                    resultHandler.handle( APSResult.failure( res.cause() ) )
+                    resultHandler?.handle( APSResult.failure( res.cause() ) )
                 }
             }
 
             // Note that we have to check passed target here, not realTarget, which will have the "all:" part
-            // removed! The realTarget will be valid for the publisher and sender.
+            // removed! The realTarget will be valid for the publisher and the EventBus.
             if ( target.startsWith( "all:" ) ) {
-
-                eventBus.publisher( realTarget ).write( new JsonObject( message ) ) { AsyncResult res ->
+                publisher( realTarget ).write( wireBody( message ) ) { AsyncResult res ->
 
                     internalResultHandler( res )
-                }.close()
+                }
             }
             else {
-                eventBus.sender( realTarget ).write( new JsonObject( message ) ) { AsyncResult res ->
+                sendDirect( realTarget, message ) { AsyncResult res ->
 
                     internalResultHandler( res )
-                }.close()
+                }
             }
         }
     }
 
+    /**
+     * Sends a batch of messages. When published all messages are written through the same cached
+     * publisher, otherwise each message is sent as by send(...).
+     *
+     * @param target The target to send to. Same rules as for send(...).
+     * @param messages The messages to send.
+     * @param resultHandler The handler to call with the aggregated result. Can be null!
+     */
+    @Override
+    boolean sendBatch( @NotNull String target, @NotNull List<Map<String, Object>> messages,
+                       @Optional @Nullable APSHandler<APSResult> resultHandler ) {
+
+        this.logger.debug { "§§§§ Sending batch of ${ messages.size() } to target -> '${target}'" }
+
+        return ValidTarget.onValid(SUPPORTED_TARGET_IDS, true, target ) { String realTarget ->
+
+            if ( !target.startsWith( "all:" ) && this.localAffinity && this.localSubscribers.containsKey( realTarget ) ) {
+
+                for ( Map<String, Object> message : messages ) {
+                    if ( !deliverLocally( realTarget, message ) ) {
+                        // The subscribers left during the loop.
+                        send( target, message, null )
+                    }
+                }
+
+                resultHandler?.handle( APSResult.success( null ) )
+                return
+            }
+
+            APSBatchResultHandler batchResultHandler = new APSBatchResultHandler( messages.size(), resultHandler )
+
+            if ( !target.startsWith( "all:" ) ) {
+
+                for ( Map<String, Object> message : messages ) {
+
+                    sendDirect( realTarget, message ) { AsyncResult res ->
+
+                        batchResultHandler.handle( res.succeeded() ? APSResult.success( null ) : APSResult.failure( res.cause() ) )
+                    }
+                }
+
+                return
+            }
+
+            MessageProducer<Object> publisher = publisher( realTarget )
+
+            for ( Map<String, Object> message : messages ) {
+
+                publisher.write( wireBody( message ) ) { AsyncResult res ->
+
+                    batchResultHandler.handle( res.succeeded() ? APSResult.success( null ) : APSResult.failure( res.cause() ) )
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a cached publisher for an address, creating it if not cached.
+     *
+     * @param address The address to publish to.
+     */
+    private MessageProducer<Object> publisher( String address ) {
+
+        this.publishers.get( address ) {
+
+            this.eventBus.<Object> publisher( address, deliveryOptions() )
+        }
+    }
+
+    /**
+     * Sends a message point to point through a sender that is closed when the write completes. The
+     * handler gets the delivery outcome, which is a ReplyException with NO_HANDLERS if there is no
+     * consumer of the address. That is what makes a request be resent until the receiver subscribes.
+     *
+     * @param address The address to send to.
+     * @param message The message to send.
+     * @param handler Receives the result of the write.
+     */
+    private void sendDirect( String address, Map<String, Object> message, Handler<AsyncResult<Void>> handler ) {
+
+        MessageProducer<Object> sender = this.eventBus.<Object> sender( address, deliveryOptions() )
+
+        sender.write( wireBody( message ) ) { AsyncResult<Void> res ->
+
+            sender.close()
+            handler.handle( res )
+        }
+    }
+
+    /**
+     * @return New DeliveryOptions to send with.
+     */
+    private DeliveryOptions deliveryOptions() {
+
+        this.binaryCodec ? APSMessageCodec.deliveryOptions() : new DeliveryOptions()
+    }
+
+    /**
+     * Returns a message in the form it should be written to the event bus.
+     *
+     * @param message The message to write.
+     */
+    private Object wireBody( Map<String, Object> message ) {
+
+        this.binaryCodec ? message : new JsonObject( message )
+    }
+
     /**
      * Subscribes to messages to a target.
      *
@@ -235,11 +433,21 @@ class APSVertxBusRouter implements APSBusRouter {
 
         return ValidTarget.onValid(SUPPORTED_TARGET_IDS, false, target ) { String realTarget ->
 
-            MessageConsumer consumer = eventBus.consumer( realTarget ) { Message<JsonObject> msg ->
+            // Calls message handler on APS thread rather than Vert.x thread.
+            FlowControlledSubscriber subscriber = new FlowControlledSubscriber(
+                    handler: messageHandler,
+                    logger: logger,
+                    capacity: subscriberQueueSize,
+                    overflowPolicy: overflowPolicy,
+                    latency: handlerLatency
+            )
+
+            MessageConsumer consumer = eventBus.consumer( realTarget ) { Message<Object> msg ->
 
-                Map<String, Object> message = new RecursiveJsonObjectMap( msg.body() )
-                // Call message handler on APS thread rather than Vert.x thread.
-                concurrent { messageHandler.handle( message ) }
+                // Can be sent as JsonObject or with APSMessageCodec no matter what we send with.
+                if ( !subscriber.post( APSMessageCodec.bodyAsMap( msg.body() ) ) && msg.replyAddress() != null ) {
+                    msg.fail( 503, "Subscriber queue full!" )
+                }
             }
 
             if ( consumer == null ) { // Not sure this can actually happen ...
@@ -250,9 +458,14 @@ class APSVertxBusRouter implements APSBusRouter {
                 // closure. Groovy does not support the java variant of <Class>.this.ref.
                 // The value is available to the closure, you just cannot make an absolute
                 // failsafe reference to it.
+                subscriber.onPause = { consumer.pause() } as Runnable
+                subscriber.onResume = { consumer.resume() } as Runnable
+
                 subscriptions[ id ] = consumer
+                subscribers[ id ] = subscriber
+                addLocalSubscriber( id, realTarget, subscriber )
 
-                resultHandler.handle( APSResult.success( null ) )
+                resultHandler?.handle( APSResult.success( null ) )
             }
         }
     }
@@ -264,8 +477,102 @@ class APSVertxBusRouter implements APSBusRouter {
      */
     @Override
     void unsubscribe( @NotNull ID subscriberId ) {
+        removeLocalSubscriber( subscriberId )
         MessageConsumer consumer = this.subscriptions.remove subscriberId
         if ( consumer != null ) consumer.unregister()
+        this.subscribers.remove( subscriberId )?.close()
+    }
+
+    /**
+     * Returns the flow control metrics of all current subscriptions. Each subscription has
+     * "queueDepth", "dropped", "failed" and "pauses".
+     *
+     * @return A map of subscription ID string to metrics.
+     */
+    Map<String, Map<String, Long>> subscriberMetrics() {
+
+        Map<String, Map<String, Long>> metrics = [ : ]
+
+        this.subscribers.each { ID id, FlowControlledSubscriber subscriber ->
+            metrics[ id.toString() ] = subscriber.metrics
+        }
+
+        metrics
+    }
+
+    /**
+     * Sums a value over all current subscriptions.
+     *
+     * @param value Returns the value of a subscription.
+     */
+    private long subscriberTotal( Closure<Long> value ) {
+        long total = 0
+        this.subscribers.values().each { FlowControlledSubscriber subscriber -> total += value.call( subscriber ) }
+
+        total
+    }
+
+    /**
+     * Delivers a message to one of the subscribers of the address in this JVM, if there are any.
+     *
+     * @param address The address to deliver to.
+     * @param message The message to deliver.
+     *
+     * @return true if delivered, false if there were no local subscribers or the chosen one was full.
+     */
+    private boolean deliverLocally( String address, Map<String, Object> message ) {
+
+        if ( !this.localAffinity ) return false
+
+        LocalSubscribers addressSubscribers = this.localSubscribers.get( address )
+        if ( addressSubscribers == null ) return false
+
+        // Same thread behavior as messages received from Vert.x. If full, the message goes through
+        // Vert.x instead, where the consumer can be paused.
+        addressSubscribers.next().offer( Collections.unmodifiableMap( message ) )
+    }
+
+    /**
+     * Registers a subscriber in this JVM.
+     *
+     * @param id The subscription id.
+     * @param address The subscribed address.
+     * @param subscriber The subscriber delivery.
+     */
+    private void addLocalSubscriber( ID id, String address, FlowControlledSubscriber subscriber ) {
+
+        synchronized ( this.localUpdateLock ) {
+
+            LocalSubscribers current = this.localSubscribers.get( address )
+            this.localSubscribers.put( address, current == null ? new LocalSubscribers( [ id ] as ID[], [ subscriber ] as FlowControlledSubscriber[] ) :
+                    current.adding( id, subscriber ) )
+            this.subscriptionAddresses.put( id, address )
+        }
+    }
+
+    /**
+     * Removes a subscriber in this JVM.
+     *
+     * @param id The subscription id.
+     */
+    private void removeLocalSubscriber( ID id ) {
+
+        synchronized ( this.localUpdateLock ) {
+
+            String address = this.subscriptionAddresses.remove( id )
+            if ( address == null ) return
+
+            LocalSubscribers current = this.localSubscribers.get( address )
+            if ( current == null ) return
+
+            LocalSubscribers updated = current.removing( id )
+            if ( updated == null ) {
+                this.localSubscribers.remove( address )
+            }
+            else {
+                this.localSubscribers.put( address, updated )
+            }
+        }
     }
 
     /**
@@ -276,6 +583,14 @@ class APSVertxBusRouter implements APSBusRouter {
         return true
     }
 
+    /**
+     * @return The target ids this router reacts on. This router also handles "all:".
+     */
+    @Override
+    String[] targetIds() {
+        return TARGET_IDS
+    }
+
     @BundleStop
     void cleanup() {
         // This is not an excuse for clients to not clean up after themselves! And this will not be done
@@ -284,6 +599,85 @@ class APSVertxBusRouter implements APSBusRouter {
             this.subscriptions[ key ].unregister()
         }
         this.subscriptions.clear()
+        this.subscribers.values().each { FlowControlledSubscriber subscriber -> subscriber.close() }
+        this.subscribers.clear()
+        this.publishers.clear()
+        this.localSubscribers.clear()
+        this.subscriptionAddresses.clear()
+
+        // The registry is static, and the gauges would otherwise keep this instance after bundle stop.
+        APSMetricsRegistry metrics = APSMetricsRegistry.shared()
+        [ GAUGE_QUEUE_DEPTH, GAUGE_DROPPED, GAUGE_FAILED, GAUGE_PAUSES ].each { String name -> metrics.remove( name ) }
+    }
+
+    //
+    // Inner Classes
+    //
+
+    /**
+     * An immutable snapshot of the subscribers in this JVM of an address.
+     */
+    @CompileStatic
+    private static class LocalSubscribers {
+
+        private final ID[] ids
+
+        private final FlowControlledSubscriber[] handlers
+
+        /** Round robin position. Shared with updated snapshots so the rotation continues. */
+        private final AtomicInteger position
+
+        LocalSubscribers( ID[] ids, FlowControlledSubscriber[] handlers ) {
+            this( ids, handlers, new AtomicInteger( 0 ) )
+        }
+
+        private LocalSubscribers( ID[] ids, FlowControlledSubscriber[] handlers, AtomicInteger position ) {
+            this.ids = ids
+            this.handlers = handlers
+            this.position = position
+        }
+
+        /**
+         * @return The next subscriber in round robin order.
+         */
+        FlowControlledSubscriber next() {
+            this.handlers[ ( this.position.getAndIncrement() & Integer.MAX_VALUE ) % this.handlers.length ]
+        }
+
+        /**
+         * Returns a new snapshot with a subscriber added.
+         *
+         * @param id The subscription id.
+         * @param handler The subscriber delivery.
+         */
+        LocalSubscribers adding( ID id, FlowControlledSubscriber handler ) {
+            ID[] newIds = Arrays.copyOf( this.ids, this.ids.length + 1 )
+            FlowControlledSubscriber[] newHandlers = Arrays.copyOf( this.handlers, this.handlers.length + 1 )
+            newIds[ this.ids.length ] = id
+            newHandlers[ this.handlers.length ] = handler
+
+            new LocalSubscribers( newIds, newHandlers, this.position )
+        }
+
+        /**
+         * Returns a new snapshot without a subscriber, or null if it was the last.
+         *
+         * @param id The subscription id to remove.
+         */
+        LocalSubscribers removing( ID id ) {
+            List<ID> newIds = []
+            List<FlowControlledSubscriber> newHandlers = []
+
+            for ( int i = 0; i < this.ids.length; i++ ) {
+                if ( this.ids[ i ] != id ) {
+                    newIds << this.ids[ i ]
+                    newHandlers << this.handlers[ i ]
+                }
+            }
+
+            newIds.isEmpty() ? null :
+                    new LocalSubscribers( newIds.toArray( new ID[ 0 ] ), newHandlers.toArray( new FlowControlledSubscriber[ 0 ] ), this.position )
+        }
     }
 
 }
@@ -35,6 +35,12 @@
  *     tommy ()
  *         Changes:
  *         2017-01-01: Created!
+ *         2026-10-18: Multiple HTTP server instances per port and HttpServerOptions from config.
+ *         2026-10-18: VertxOptions from config.
+ *         2026-10-18: Limited and optionally coalesced event bus bridge output per client.
+ *         2026-10-18: HTTP servers deployed after their service was stopped are undeployed.
+ *         2026-10-18: Removes its gauges from APSMetricsRegistry on stop. No metrics route by default.
+ *         2026-10-18: Metrics.
  *
  */
 package se.natusoft.osgi.aps.net.vertx
@@ -43,14 +49,19 @@ import groovy.transform.CompileStatic
 import io.vertx.amqpbridge.AmqpBridge
 import io.vertx.amqpbridge.AmqpBridgeOptions
 import io.vertx.core.AsyncResult
+import io.vertx.core.DeploymentOptions
 import io.vertx.core.Handler
+import io.vertx.core.Verticle
 import io.vertx.core.Vertx
 import io.vertx.core.VertxOptions
 import io.vertx.core.eventbus.EventBus
-import io.vertx.core.http.HttpServer
+import io.vertx.core.http.HttpServerOptions
+import io.vertx.core.metrics.MetricsOptions
+import io.vertx.core.json.JsonObject
 import io.vertx.core.shareddata.SharedData
 import io.vertx.ext.bridge.PermittedOptions
 import io.vertx.ext.web.Router
+import io.vertx.ext.web.RoutingContext
 import io.vertx.ext.web.handler.sockjs.BridgeOptions
 import io.vertx.ext.web.handler.sockjs.SockJSHandler
 import org.osgi.framework.BundleContext
@@ -59,12 +70,21 @@ import se.natusoft.osgi.aps.activator.annotation.BundleStop
 import se.natusoft.osgi.aps.activator.annotation.Initializer
 import se.natusoft.osgi.aps.activator.annotation.Managed
 import se.natusoft.osgi.aps.api.messaging.APSBusRouter
+import se.natusoft.osgi.aps.api.metrics.APSHistogram
 import se.natusoft.osgi.aps.core.lib.APSConfigLoader
+import se.natusoft.osgi.aps.core.metrics.APSMetricsRegistry
 import se.natusoft.osgi.aps.exceptions.APSConfigException
 import se.natusoft.osgi.aps.exceptions.APSException
 import se.natusoft.osgi.aps.exceptions.APSStartException
+import se.natusoft.osgi.aps.net.vertx.util.APSMessageCodec
+import se.natusoft.osgi.aps.net.vertx.util.APSVertxMetricsFactory
+import se.natusoft.osgi.aps.net.vertx.util.CoalescingBridgeHandler
+import se.natusoft.osgi.aps.net.vertx.util.HttpServerVerticle
 import se.natusoft.osgi.aps.util.APSLogger
 
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.function.Supplier
+
 /**
  * Provides Vertx by publishing Vertx and other Vertx related objects some by configuration as OSGi services.
  */
@@ -94,6 +114,12 @@ class APSVertxProvider {
 
     private Vertx vertx
 
+    /** The id of the timer measuring event loop lag, or -1. */
+    private long lagTimerId = -1
+
+    /** The number of event loops, used as default number of HTTP server instances. */
+    private int eventLoops = VertxOptions.DEFAULT_EVENT_LOOP_POOL_SIZE
+
     private ServiceRegistration vertxSvcReg
     private ServiceRegistration eventBusSvcReg
     private ServiceRegistration shareDataSvcReg
@@ -106,8 +132,17 @@ class APSVertxProvider {
     /** We handle and register this manually since it is optional based on config. */
     private APSAmqpBridgeBusRouter amqpBridgeBusRouter
 
-    /** A map of HTTP servers per service port. These are internal to this bundle. */
-    private Map<Integer, HttpServer> httpServerByPort = [:]
+    /** The deployment id of the HTTP server verticles per service port. These are internal to this bundle. */
+    private Map<Integer, String> httpDeploymentByPort = [:]
+
+    /**
+     * The HTTP server deployments not yet completed per service port, with a flag set if the service is
+     * stopped before that. Such a deployment is undeployed when it completes.
+     */
+    private Map<Integer, AtomicBoolean> pendingHttpDeploymentByPort = [:]
+
+    /** Guards httpDeploymentByPort and pendingHttpDeploymentByPort, which are also updated by deploy results. */
+    private final Object httpDeploymentLock = new Object()
 
     /** A map of Routers for HTTP servers per service port. These are provided to those that wants to serve a path. */
     private Map<Integer, Router> httpServerRouterByPort = [:]
@@ -153,15 +188,15 @@ class APSVertxProvider {
      * want multiple parallel tests in a Jenkins for example to cluster with each other which by default
      * Vert.x / Hazelcast setup, they will do.
      *
-     * @param options Vert.x options passed to Vertx on creation. can be [ : ]!
+     * @param options Vert.x options passed to Vertx on creation.
      * @param handler The handler to call with result.
      */
-    private static void vertxBoot( Map<String, Object> options, Handler<AsyncResult<Vertx>> handler ) {
+    private static void vertxBoot( VertxOptions options, Handler<AsyncResult<Vertx>> handler ) {
 
         APSLogger _logger = new APSLogger()
         _logger.setLoggingFor( "vertxBoot" )
 
-        _logger.debug( "vertxBoot: options: ${ options }" )
+        _logger.debug( "vertxBoot: options: ${ options.toJson() }" )
 
         boolean apsVertxClustered = true
 
@@ -174,8 +209,7 @@ class APSVertxProvider {
 
         if ( apsVertxClustered ) {
 
-            // If the arguments are error marked, then you are using IDEA. The only error here is in IDEA.
-            Vertx.clusteredVertx( options as VertxOptions, handler )
+            Vertx.clusteredVertx( options, handler )
 
         }
         else {
@@ -183,8 +217,7 @@ class APSVertxProvider {
             // But since the caller of this method don't know or care if Vertx is clustered or not it expects
             // a handler callback in either case, so we have to call the handler instead of Vertx.
 
-            // If the arguments are error marked, then you are using IDEA. The only error here is in IDEA.
-            Vertx vertx = Vertx.vertx( options as VertxOptions )
+            Vertx vertx = Vertx.vertx( options )
 
             handler.handle(
                     new AsyncResult<Vertx>() {
@@ -213,6 +246,47 @@ class APSVertxProvider {
         }
     }
 
+    /**
+     * Creates the VertxOptions from the 'vertxOptions' section of the config. That section is validated by
+     * the config schema and then passed to VertxOptions as JSON, so any VertxOptions JSON property like
+     * eventLoopPoolSize, workerPoolSize, blockedThreadCheckInterval, preferNativeTransport, metricsOptions
+     * and eventBusOptions can be used.
+     *
+     * The 'clusterManager' sub section is not part of VertxOptions. Its 'hazelcastConfig' is set as the
+     * 'vertx.hazelcast.config' system property, and its 'hazelcastProperties' are set as system properties,
+     * which is how the Hazelcast cluster manager is tuned.
+     *
+     * If metrics.vertxMetrics is true in config, and no metricsOptions are configured, event bus metrics
+     * are recorded into APSMetricsRegistry through APSVertxMetricsFactory.
+     */
+    private VertxOptions vertxOptions() {
+
+        Map<String, Object> vertxConfig = new LinkedHashMap<>( ( this.config[ 'vertxOptions' ] ?: [ : ] ) as Map<String, Object> )
+        Map<String, Object> clusterManagerConfig = vertxConfig.remove( 'clusterManager' ) as Map<String, Object>
+
+        if ( clusterManagerConfig != null ) {
+
+            if ( clusterManagerConfig[ 'hazelcastConfig' ] != null ) {
+                System.setProperty( "vertx.hazelcast.config", clusterManagerConfig[ 'hazelcastConfig' ] as String )
+            }
+
+            ( clusterManagerConfig[ 'hazelcastProperties' ] as Map<String, Object> )?.each { String name, Object value ->
+                System.setProperty( name, value.toString() )
+            }
+        }
+
+        VertxOptions options = new VertxOptions( new JsonObject( vertxConfig ) )
+        this.eventLoops = options.eventLoopPoolSize
+
+        // Event bus metrics into APSMetricsRegistry, unless some other Vert.x metrics are configured.
+        Map<String, Object> metricsConfig = this.config[ 'metrics' ] as Map<String, Object>
+        if ( metricsConfig?.get( 'vertxMetrics' ) && !options.metricsOptions?.enabled ) {
+            options.metricsOptions = new MetricsOptions( enabled: true, factory: new APSVertxMetricsFactory() )
+        }
+
+        options
+    }
+
     /**
      * Starts the main Vertx service which in turn will start other Vertx services when up.
      *
@@ -225,13 +299,19 @@ class APSVertxProvider {
      */
     private void startVertx() {
 
-        vertxBoot( [:] ) { AsyncResult<Vertx> res ->
+        VertxOptions options = vertxOptions()
+
+        vertxBoot( options ) { AsyncResult<Vertx> res ->
 
             if ( res.succeeded() ) {
 
                 logger.info "Vert.x cluster started successfully!"
                 this.vertx = res.result()
 
+                if ( options.preferNativeTransport && !this.vertx.nativeTransportEnabled ) {
+                    logger.warn "Native transport was asked for but is not available! Using NIO."
+                }
+
                 this.vertxSvcReg = this.context.registerService( Vertx.class.getName(), vertx, [
                         "service-provider": "aps-vertx-provider",
                         "service-category": "network",
@@ -240,11 +320,19 @@ class APSVertxProvider {
                 ] as Properties )
                 this.logger.info( "Registered Vertx as OSGi service!" )
 
+                // Always registered so that we can receive binary messages from other nodes even if
+                // we are not configured to send them our self.
+                this.vertx.eventBus().registerCodec( new APSMessageCodec() )
+
+                Map<String, Object> eventBusConfig = this.config[ 'eventBus' ] as Map<String, Object>
+                boolean binaryCodec = eventBusConfig != null && eventBusConfig[ 'binaryCodec' ]
+
                 this.eventBusSvcReg = this.context.registerService( EventBus.class.name, this.vertx.eventBus(), [
-                        "service-provider": "aps-vertx-provider",
-                        "service-category": "network",
-                        "service-function": "client/server",
-                        "vertx-object"    : "EventBus"
+                        "service-provider"              : "aps-vertx-provider",
+                        "service-category"              : "network",
+                        "service-function"              : "client/server",
+                        "vertx-object"                  : "EventBus",
+                        ( APSMessageCodec.SERVICE_PROPERTY ): binaryCodec ? APSMessageCodec.NAME : "json"
                 ] as Properties )
                 this.logger.info( "Registered EventBus as OSGi service!" )
 
@@ -255,6 +343,7 @@ class APSVertxProvider {
                         "vertx-object"    : "SharedData"
                 ] as Properties )
 
+                startEventLoopLagTimer()
                 startVertxServices()
 
             }
@@ -266,6 +355,28 @@ class APSVertxProvider {
         }
     }
 
+    /**
+     * Measures how late a periodic timer on an event loop fires, into the "vertx.eventloop.lag"
+     * histogram (nanoseconds). The interval is set with metrics.eventLoopLagIntervalMs in config.
+     * 0 turns it off.
+     */
+    private void startEventLoopLagTimer() {
+
+        Map<String, Object> metricsConfig = this.config[ 'metrics' ] as Map<String, Object>
+        long intervalMs = ( metricsConfig?.get( 'eventLoopLagIntervalMs' ) ?: 0 ) as long
+        if ( intervalMs <= 0 ) return
+
+        APSHistogram lag = APSMetricsRegistry.shared().histogram( "vertx.eventloop.lag" )
+        long intervalNanos = intervalMs * 1000000L
+        long[] expected = [ System.nanoTime() + intervalNanos ] as long[]
+
+        this.lagTimerId = this.vertx.setPeriodic( intervalMs ) { Long id ->
+            long now = System.nanoTime()
+            lag.record( now - expected[ 0 ] )
+            expected[ 0 ] = now + intervalNanos
+        }
+    }
+
     /**
      * Stops the main Vertx service which first will stop other vertx services.
      */
@@ -290,6 +401,9 @@ class APSVertxProvider {
         }
         stopVertxServices()
 
+        if ( this.lagTimerId >= 0 ) this.vertx.cancelTimer( this.lagTimerId )
+        APSMetricsRegistry.shared().remove( APSVertxMetricsFactory.HANDLERS_GAUGE )
+
         this.vertx.close() { AsyncResult<Vertx> res ->
             if ( res.succeeded() ) {
 
@@ -334,10 +448,13 @@ class APSVertxProvider {
             def name = http[ "name" ] as String
             def port = http[ "port" ] as Integer
             def eventBusBridge = http[ "eventBusBridge" ] as Map<String, Object>
+            def instances = ( http[ "instances" ] ?: this.eventLoops ) as int
+            def serverOptions = http[ "serverOptions" ] as Map<String, Object>
+            def metricsRoute = http[ "metricsRoute" ] as String
 
-            this.logger.info( "${ name } / ${ port }: eventBusBridge: ${ eventBusBridge }" )
+            this.logger.info( "${ name } / ${ port }: instances: ${ instances }, eventBusBridge: ${ eventBusBridge }" )
 
-            startHttpService( name, port, eventBusBridge )
+            startHttpService( name, port, instances, serverOptions, eventBusBridge, metricsRoute )
         }
     }
 
@@ -346,21 +463,17 @@ class APSVertxProvider {
      *
      * @param name The http config name for reference in logs.
      * @param port The port the server should listen to.
+     * @param instances The number of server instances, each on its own event loop.
+     * @param serverOptions HttpServerOptions as JSON. Can be null.
      * @param eventBusBridge A JSON object containing eventbus bridge info.
+     * @param metricsRoute A path to serve a JSON snapshot of APSMetricsRegistry on. Can be null.
      */
-    private void startHttpService( String name, int port, Map<String, Object> eventBusBridge ) {
+    private void startHttpService( String name, int port, int instances, Map<String, Object> serverOptions,
+                                   Map<String, Object> eventBusBridge, String metricsRoute ) {
 
         if ( port != 0 ) {
 
-            // We keep a server for each listened to port.
-            HttpServer httpServer = httpServerByPort[ port ] // TODO: Currently single threaded server!!
-            if ( httpServer == null ) {
-
-                httpServer = vertx.createHttpServer( /* TODO: Provide options. */ )
-                httpServerByPort[ port ] = httpServer
-            }
-
-            // Consumers don't get direct access to the HttpServer, only to its Router.
+            // Consumers don't get direct access to the HttpServers, only to their shared Router.
             Router router = httpServerRouterByPort[ port ]
 
             if ( router == null ) {
@@ -369,8 +482,52 @@ class APSVertxProvider {
                 this.logger.info( "Created router for config '${ name }'!" )
                 httpServerRouterByPort[ port ] = router
 
-                httpServer.requestHandler( router ).listen( port )
-                this.logger.info( "HTTP server for config '${ name }' now listening on port ${ port }!" )
+                // We keep a deployment of 'instances' servers for each listened to port. Vert.x shares
+                // the port between them.
+                HttpServerOptions options = serverOptions != null ? new HttpServerOptions( new JsonObject( serverOptions ) ) :
+                        new HttpServerOptions()
+                options.port = port
+
+                Router sharedRouter = router
+                AtomicBoolean stopped = new AtomicBoolean( false )
+                synchronized ( this.httpDeploymentLock ) {
+                    this.pendingHttpDeploymentByPort[ port ] = stopped
+                }
+
+                this.vertx.deployVerticle(
+                        { new HttpServerVerticle( sharedRouter, options ) } as Supplier<Verticle>,
+                        new DeploymentOptions( instances: instances )
+                ) { AsyncResult<String> res ->
+
+                    boolean undeploy = false
+
+                    synchronized ( this.httpDeploymentLock ) {
+                        // Only if it is still ours. The service might have been stopped and started again.
+                        if ( this.pendingHttpDeploymentByPort[ port ].is( stopped ) ) {
+                            this.pendingHttpDeploymentByPort.remove( port )
+                        }
+
+                        if ( res.succeeded() ) {
+                            if ( stopped.get() ) {
+                                undeploy = true
+                            }
+                            else {
+                                this.httpDeploymentByPort[ port ] = res.result()
+                            }
+                        }
+                    }
+
+                    if ( undeploy ) {
+                        // The service was stopped while deploying, so the servers must not stay listening.
+                        undeployHttpServers( name, res.result() )
+                    }
+                    else if ( res.succeeded() ) {
+                        this.logger.info( "HTTP server for config '${ name }' now listening on port ${ port } with ${ instances } instances!" )
+                    }
+                    else {
+                        this.logger.error( "HTTP server for config '${ name }' failed to listen on port ${ port }!", res.cause() )
+                    }
+                }
 
                 this.routerRegByPort[ port ] = this.context.registerService( Router.class.name, router, [
                         "service-provider": "aps-vertx-provider",
@@ -382,6 +539,15 @@ class APSVertxProvider {
 
                 this.logger.info( "Registered HTTP service 'Router' for config '${ name }' as OSGi service!" )
 
+                if ( metricsRoute != null ) {
+                    router.get( metricsRoute ).handler { RoutingContext context ->
+                        context.response()
+                                .putHeader( "Content-Type", "application/json" )
+                                .end( new JsonObject( APSMetricsRegistry.shared().snapshot() ).encode() )
+                    }
+                    this.logger.info( "Serving metrics on '${ metricsRoute }' for config '${ name }'!" )
+                }
+
                 if ( eventBusBridge != null && eventBusBridge[ "enabled" ] != null ) {
                     startEventBusBridge( router, port, eventBusBridge )
                 }
@@ -448,7 +614,14 @@ class APSVertxProvider {
             }
         }
 
-        sockJSHandler.bridge( bridgeOptions )
+        // Limits what is buffered per client, and coalesces messages to clients if coalesceMs is configured.
+        sockJSHandler.bridge( bridgeOptions, new CoalescingBridgeHandler(
+                vertx: this.vertx,
+                logger: this.logger,
+                coalesceMs: ( ebConf[ 'coalesceMs' ] ?: 0 ) as long,
+                maxBatchSize: ( ebConf[ 'maxBatchSize' ] ?: 64 ) as int,
+                maxWriteQueueSize: ( ebConf[ 'maxWriteQueueSize' ] ?: 1024 * 1024 ) as int
+        ) )
 
         router.route( "/eventbus/*" ).handler( sockJSHandler )
 
@@ -490,7 +663,27 @@ class APSVertxProvider {
         this.httpServerRouterByPort?.remove( port )?.delete()
 
 
-        this.httpServerByPort?.remove( port )?.close() { AsyncResult<Vertx> res ->
+        String deploymentId
+        synchronized ( this.httpDeploymentLock ) {
+            // A deployment still in progress is undeployed when it completes.
+            this.pendingHttpDeploymentByPort.remove( port )?.set( true )
+            deploymentId = this.httpDeploymentByPort.remove( port )
+        }
+        if ( deploymentId == null ) return
+
+        undeployHttpServers( name, deploymentId )
+    }
+
+    /**
+     * Undeploys the HTTP server verticles of a service.
+     *
+     * @param name The http config name for reference in logs.
+     * @param deploymentId The id of the deployment to undeploy.
+     */
+    private void undeployHttpServers( String name, String deploymentId ) {
+
+        // Undeploying closes all the server instances.
+        this.vertx.undeploy( deploymentId ) { AsyncResult<Void> res ->
 
             if ( res.succeeded() ) {
 
@@ -524,8 +717,13 @@ class APSVertxProvider {
                                     "vertx-object"    : "AmqpBridge"
                             ] as Properties )
 
-                            this.amqpBridgeBusRouter =
-                                    new APSAmqpBridgeBusRouter( logger: this.logger, amqpBridge: this.amqpBridge )
+                            this.amqpBridgeBusRouter = new APSAmqpBridgeBusRouter(
+                                    logger: this.logger,
+                                    amqpBridge: this.amqpBridge,
+                                    inFlightWindow: ( amqpBridgeConfig[ 'inFlightWindow' ] ?: 1000 ) as int,
+                                    producerPoolSize: ( amqpBridgeConfig[ 'producerPoolSize' ] ?: 64 ) as int,
+                                    consumerQueueSize: ( amqpBridgeConfig[ 'consumerQueueSize' ] ?: 1000 ) as int
+                            )
 
                             this.amqpBridgeBusRouterSvcReg =
                                     this.context.registerService( APSBusRouter.class.name, this.amqpBridgeBusRouter,
@@ -42,6 +42,7 @@ package se.natusoft.osgi.aps.net.vertx
 import groovy.transform.CompileStatic
 import groovy.transform.TypeChecked
 import io.vertx.core.AsyncResult
+import io.vertx.core.eventbus.DeliveryOptions
 import io.vertx.core.eventbus.EventBus
 import io.vertx.core.eventbus.Message
 import io.vertx.core.json.JsonObject
@@ -55,7 +56,7 @@ import se.natusoft.osgi.aps.api.messaging.APSMessageSender
 
 import se.natusoft.osgi.aps.constants.APS
 import se.natusoft.osgi.aps.exceptions.APSException
-import se.natusoft.osgi.aps.net.vertx.util.RecursiveJsonObjectMap
+import se.natusoft.osgi.aps.net.vertx.util.APSMessageCodec
 import se.natusoft.osgi.aps.types.APSHandler
 import se.natusoft.osgi.aps.types.APSResult
 import se.natusoft.osgi.aps.tracker.APSServiceTracker
@@ -119,6 +120,9 @@ class MessageSenderProvider implements APSMessageSender {
     private APSServiceTracker<EventBus> eventBusTracker
     private EventBus eventBus
 
+    /** If true messages are sent with APSMessageCodec rather than as JsonObject. Set from EventBus service property. */
+    private boolean binaryCodec = false
+
     /** Used to delay service registration. */
     @Managed( name = "senderAI" )
     private APSActivatorInteraction activatorInteraction
@@ -152,6 +156,7 @@ class MessageSenderProvider implements APSMessageSender {
             this.logger.debug( "Received eventbus!" )
 
             this.eventBus = service
+            this.binaryCodec = serviceReference.getProperty( APSMessageCodec.SERVICE_PROPERTY ) == APSMessageCodec.NAME
 
             this.activatorInteraction.state = APSActivatorInteraction.State.READY
         }
@@ -185,11 +190,11 @@ class MessageSenderProvider implements APSMessageSender {
                 )
             }
 
-            this.eventBus.send( address, new JsonObject( message ) ) { AsyncResult<Message<Map<String, Object>>> reply ->
+            this.eventBus.send( address, wireBody( message ), deliveryOptions() ) { AsyncResult<Message<Object>> reply ->
 
                 if ( reply.succeeded() ) {
 
-                    Map<String, Object> msg = new RecursiveJsonObjectMap( reply.result().body() as JsonObject )
+                    Map<String, Object> msg = APSMessageCodec.bodyAsMap( reply.result().body() )
                     this.reply.handle( new APSMessageProvider( message: msg, vertxMsg: reply
                             .result() ) )
                 }
@@ -200,15 +205,31 @@ class MessageSenderProvider implements APSMessageSender {
             if ( address.startsWith( "all:" ) ) {
                 address = address.substring( 4 )
                 this.logger.debug( "Publishing to address: " + address )
-                this.eventBus.publish( address, new JsonObject( message ) )
+                this.eventBus.publish( address, wireBody( message ), deliveryOptions() )
             }
             else {
                 this.logger.debug( "Sending to address: " + address )
-                this.eventBus.send( address, new JsonObject( message ) )
+                this.eventBus.send( address, wireBody( message ), deliveryOptions() )
             }
         }
     }
 
+    /**
+     * @return The DeliveryOptions to send with.
+     */
+    private DeliveryOptions deliveryOptions() {
+        this.binaryCodec ? APSMessageCodec.deliveryOptions() : new DeliveryOptions()
+    }
+
+    /**
+     * Returns a message in the form it should be written to the event bus.
+     *
+     * @param message The message to write.
+     */
+    private Object wireBody( Map<String, Object> message ) {
+        this.binaryCodec ? message : new JsonObject( message )
+    }
+
     /**
      * Sends a message receiving a result of success or failure. On Success there
      * can be a result value and on failure there is an Exception describing the failure
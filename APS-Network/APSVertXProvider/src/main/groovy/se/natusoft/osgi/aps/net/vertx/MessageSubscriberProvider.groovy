@@ -44,7 +44,6 @@ import groovy.transform.TypeChecked
 import io.vertx.core.eventbus.EventBus
 import io.vertx.core.eventbus.Message
 import io.vertx.core.eventbus.MessageConsumer
-import io.vertx.core.json.JsonObject
 import org.osgi.framework.BundleContext
 import org.osgi.framework.ServiceReference
 import org.osgi.framework.ServiceRegistration
@@ -57,7 +56,7 @@ import se.natusoft.osgi.aps.api.messaging.APSMessageSubscriber
 import se.natusoft.osgi.aps.constants.APS
 import se.natusoft.osgi.aps.exceptions.APSIOException
 import se.natusoft.osgi.aps.exceptions.APSValidationException
-import se.natusoft.osgi.aps.net.vertx.util.RecursiveJsonObjectMap
+import se.natusoft.osgi.aps.net.vertx.util.APSMessageCodec
 import se.natusoft.osgi.aps.tracker.APSServiceTracker
 import se.natusoft.osgi.aps.types.APSHandler
 import se.natusoft.osgi.aps.types.APSResult
@@ -186,9 +185,9 @@ class MessageSubscriberProvider implements APSMessageSubscriber {
 
         String address = destination
 
-        MessageConsumer consumer = this.eventBus.consumer( address ) { Message<JsonObject> msg ->
+        MessageConsumer consumer = this.eventBus.consumer( address ) { Message<Object> msg ->
 
-            Map<String, Object> message = new RecursiveJsonObjectMap( msg.body() as JsonObject )
+            Map<String, Object> message = APSMessageCodec.bodyAsMap( msg.body() )
 
             handler.handle( new APSMessageProvider( message: message, vertxMsg: msg ) )
 
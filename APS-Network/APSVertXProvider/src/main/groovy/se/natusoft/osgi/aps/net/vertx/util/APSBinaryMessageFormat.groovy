@@ -0,0 +1,384 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS VertX Provider
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         This service provides configured Vertx instances allowing multiple services to use the same Vertx instance.
+ *
+ *         This service also provides for multiple instances of VertX by associating an instance with a name. Everyone
+ *         asking for the same name will get the same instance.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.net.vertx.util
+
+import groovy.transform.CompileStatic
+import se.natusoft.docutations.NotNull
+import se.natusoft.osgi.aps.exceptions.APSValidationException
+
+import java.nio.charset.StandardCharsets
+
+/**
+ * A compact binary encoding of APS JSON messages (Map<String, Object>).
+ *
+ * The values are tagged with one byte. Integers and lengths are written as variable length
+ * integers, so small values take 1 byte. Object keys are interned: the common APS header keys
+ * are predefined, and any other key is written as text the first time it occurs in a message
+ * and after that as a small index. So for example a list of objects with the same keys only
+ * has each key written once.
+ *
+ * Supported values are those of a JSON structure: Map, List, String, Number, Boolean and null.
+ * In addition byte[] is supported. Anything else is written as its toString().
+ */
+@CompileStatic
+class APSBinaryMessageFormat {
+
+    //
+    // Constants
+    //
+
+    /** The format version. Written as first byte so that the format can be changed later. */
+    static final byte VERSION = 1
+
+    /** Keys always in the key table. The order must never change since it is part of the format! */
+    private static final List<String> PREDEFINED_KEYS = [
+            "aps", "content", "type", "version", "origin", "sender", "replyTarget", "correlationId",
+            "value", "data", "id", "name"
+    ].asImmutable()
+
+    private static final Map<String, Integer> PREDEFINED_KEY_INDEX = indexOf( PREDEFINED_KEYS )
+
+    private static final int TAG_NULL = 0
+    private static final int TAG_TRUE = 1
+    private static final int TAG_FALSE = 2
+    private static final int TAG_INT = 3
+    private static final int TAG_LONG = 4
+    private static final int TAG_DOUBLE = 5
+    private static final int TAG_FLOAT = 6
+    private static final int TAG_STRING = 7
+    private static final int TAG_MAP = 8
+    private static final int TAG_LIST = 9
+    private static final int TAG_BIG_DECIMAL = 10
+    private static final int TAG_BIG_INTEGER = 11
+    private static final int TAG_BINARY = 12
+
+    private static final int KEY_REF = 0
+    private static final int KEY_NEW = 1
+
+    //
+    // Static Methods
+    //
+
+    private static Map<String, Integer> indexOf( List<String> keys ) {
+        Map<String, Integer> index = [ : ]
+        keys.eachWithIndex { String key, int i -> index[ key ] = i }
+        index.asImmutable()
+    }
+
+    /**
+     * Encodes a message.
+     *
+     * @param message The message to encode.
+     *
+     * @return The encoded bytes.
+     */
+    static byte[] encode( @NotNull Map<String, Object> message ) {
+        Encoder encoder = new Encoder()
+        encoder.out.write( VERSION )
+        encoder.writeMap( message )
+        encoder.out.toByteArray()
+    }
+
+    /**
+     * Decodes a message.
+     *
+     * @param bytes The bytes to decode.
+     *
+     * @return The decoded message.
+     *
+     * @throws APSValidationException if the bytes is not an encoded message.
+     */
+    static Map<String, Object> decode( @NotNull byte[] bytes ) throws APSValidationException {
+        if ( bytes.length == 0 || bytes[ 0 ] != VERSION ) {
+            throw new APSValidationException( "Not an APS binary message, or unsupported version!" )
+        }
+
+        Decoder decoder = new Decoder( bytes: bytes, pos: 1 )
+        Object value = decoder.readValue()
+
+        if ( !( value instanceof Map ) ) {
+            throw new APSValidationException( "Top level of an APS binary message must be an object!" )
+        }
+
+        value as Map<String, Object>
+    }
+
+    //
+    // Inner Classes
+    //
+
+    /**
+     * Writes values.
+     */
+    @CompileStatic
+    private static class Encoder {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream( 256 )
+
+        /** Keys not predefined, in order of first occurrence. */
+        Map<String, Integer> keyIndex = [ : ]
+
+        void writeValue( Object value ) {
+            if ( value == null ) {
+                this.out.write( TAG_NULL )
+            }
+            else if ( value instanceof String ) {
+                this.out.write( TAG_STRING )
+                writeString( value as String )
+            }
+            else if ( value instanceof Boolean ) {
+                this.out.write( ( value as Boolean ) ? TAG_TRUE : TAG_FALSE )
+            }
+            else if ( value instanceof Integer || value instanceof Short || value instanceof Byte ) {
+                this.out.write( TAG_INT )
+                writeVarLong( zigZag( ( value as Number ).longValue() ) )
+            }
+            else if ( value instanceof Long ) {
+                this.out.write( TAG_LONG )
+                writeVarLong( zigZag( value as Long ) )
+            }
+            else if ( value instanceof Double ) {
+                this.out.write( TAG_DOUBLE )
+                writeFixedLong( Double.doubleToLongBits( value as Double ) )
+            }
+            else if ( value instanceof Float ) {
+                this.out.write( TAG_FLOAT )
+                writeFixedLong( Double.doubleToLongBits( ( value as Float ).doubleValue() ) )
+            }
+            else if ( value instanceof BigDecimal ) {
+                this.out.write( TAG_BIG_DECIMAL )
+                writeString( value.toString() )
+            }
+            else if ( value instanceof BigInteger ) {
+                this.out.write( TAG_BIG_INTEGER )
+                writeString( value.toString() )
+            }
+            else if ( value instanceof Map ) {
+                writeMap( value as Map<String, Object> )
+            }
+            else if ( value instanceof List ) {
+                List<Object> list = value as List<Object>
+                this.out.write( TAG_LIST )
+                writeVarLong( list.size() )
+                for ( Object entry : list ) {
+                    writeValue( entry )
+                }
+            }
+            else if ( value instanceof byte[] ) {
+                byte[] bytes = value as byte[]
+                this.out.write( TAG_BINARY )
+                writeVarLong( bytes.length )
+                this.out.write( bytes, 0, bytes.length )
+            }
+            else {
+                this.out.write( TAG_STRING )
+                writeString( value.toString() )
+            }
+        }
+
+        void writeMap( Map<String, Object> map ) {
+            this.out.write( TAG_MAP )
+            writeVarLong( map.size() )
+            for ( Map.Entry<String, Object> entry : map.entrySet() ) {
+                writeKey( entry.key )
+                writeValue( entry.value )
+            }
+        }
+
+        void writeKey( String key ) {
+            Integer index = PREDEFINED_KEY_INDEX[ key ]
+            if ( index == null ) {
+                Integer dynamic = this.keyIndex[ key ]
+                if ( dynamic != null ) index = PREDEFINED_KEYS.size() + dynamic
+            }
+
+            if ( index != null ) {
+                this.out.write( KEY_REF )
+                writeVarLong( index )
+            }
+            else {
+                this.keyIndex[ key ] = this.keyIndex.size()
+                this.out.write( KEY_NEW )
+                writeString( key )
+            }
+        }
+
+        void writeString( String value ) {
+            byte[] bytes = value.getBytes( StandardCharsets.UTF_8 )
+            writeVarLong( bytes.length )
+            this.out.write( bytes, 0, bytes.length )
+        }
+
+        void writeVarLong( long value ) {
+            while ( ( value & ~0x7FL ) != 0L ) {
+                this.out.write( ( int ) ( ( value & 0x7F ) | 0x80 ) )
+                value >>>= 7
+            }
+            this.out.write( ( int ) value )
+        }
+
+        void writeFixedLong( long value ) {
+            for ( int shift = 56; shift >= 0; shift -= 8 ) {
+                this.out.write( ( int ) ( ( value >>> shift ) & 0xFF ) )
+            }
+        }
+
+        static long zigZag( long value ) {
+            ( value << 1 ) ^ ( value >> 63 )
+        }
+    }
+
+    /**
+     * Reads values.
+     */
+    @CompileStatic
+    private static class Decoder {
+
+        byte[] bytes
+        int pos
+
+        /** Keys not predefined, in order of first occurrence. */
+        List<String> keys = []
+
+        Object readValue() {
+            int tag = readByte()
+            switch ( tag ) {
+                case TAG_NULL: return null
+                case TAG_TRUE: return Boolean.TRUE
+                case TAG_FALSE: return Boolean.FALSE
+                case TAG_INT: return ( int ) unZigZag( readVarLong() )
+                case TAG_LONG: return unZigZag( readVarLong() )
+                case TAG_DOUBLE: return Double.longBitsToDouble( readFixedLong() )
+                case TAG_FLOAT: return ( float ) Double.longBitsToDouble( readFixedLong() )
+                case TAG_STRING: return readString()
+                case TAG_BIG_DECIMAL: return new BigDecimal( readString() )
+                case TAG_BIG_INTEGER: return new BigInteger( readString() )
+                case TAG_MAP: return readMap()
+                case TAG_LIST:
+                    int size = readLength()
+                    List<Object> list = new ArrayList<>( size )
+                    for ( int i = 0; i < size; i++ ) {
+                        list << readValue()
+                    }
+                    return list
+                case TAG_BINARY:
+                    int length = readLength()
+                    byte[] value = Arrays.copyOfRange( this.bytes, this.pos, this.pos + length )
+                    this.pos += length
+                    return value
+                default:
+                    throw new APSValidationException( "Bad APS binary message! Unknown tag ${ tag } at ${ this.pos - 1 }." )
+            }
+        }
+
+        Map<String, Object> readMap() {
+            int size = readLength()
+            Map<String, Object> map = new LinkedHashMap<>( size * 2 )
+            for ( int i = 0; i < size; i++ ) {
+                String key = readKey()
+                map[ key ] = readValue()
+            }
+            map
+        }
+
+        String readKey() {
+            int kind = readByte()
+            if ( kind == KEY_REF ) {
+                long index = readVarLong()
+                if ( index < 0 || index >= PREDEFINED_KEYS.size() + this.keys.size() ) {
+                    throw new APSValidationException( "Bad APS binary message! Unknown key ${ index }." )
+                }
+                return index < PREDEFINED_KEYS.size() ? PREDEFINED_KEYS[ ( int ) index ] :
+                        this.keys[ ( int ) index - PREDEFINED_KEYS.size() ]
+            }
+
+            String key = readString()
+            this.keys << key
+            key
+        }
+
+        String readString() {
+            int length = readLength()
+            String value = new String( this.bytes, this.pos, length, StandardCharsets.UTF_8 )
+            this.pos += length
+            value
+        }
+
+        int readByte() {
+            if ( this.pos >= this.bytes.length ) {
+                throw new APSValidationException( "Bad APS binary message! Unexpected end of data." )
+            }
+            this.bytes[ this.pos++ ] & 0xFF
+        }
+
+        int readLength() {
+            long length = readVarLong()
+            // Every entry takes at least one byte, so nothing can be longer than what is left.
+            if ( length < 0 || length > this.bytes.length - this.pos ) {
+                throw new APSValidationException( "Bad APS binary message! Bad length ${ length }." )
+            }
+            ( int ) length
+        }
+
+        long readVarLong() {
+            long value = 0
+            int shift = 0
+            int b
+            while ( ( ( b = readByte() ) & 0x80 ) != 0 ) {
+                value |= ( long ) ( b & 0x7F ) << shift
+                shift += 7
+                if ( shift > 63 ) throw new APSValidationException( "Bad APS binary message! Too long varint." )
+            }
+            value | ( ( long ) b << shift )
+        }
+
+        long readFixedLong() {
+            long value = 0
+            for ( int i = 0; i < 8; i++ ) {
+                value = ( value << 8 ) | readByte()
+            }
+            value
+        }
+
+        static long unZigZag( long value ) {
+            ( value >>> 1 ) ^ -( value & 1 )
+        }
+    }
+}
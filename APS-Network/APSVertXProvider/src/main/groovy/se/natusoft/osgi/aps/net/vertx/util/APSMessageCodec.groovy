@@ -0,0 +1,152 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS VertX Provider
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         This service provides configured Vertx instances allowing multiple services to use the same Vertx instance.
+ *
+ *         This service also provides for multiple instances of VertX by associating an instance with a name. Everyone
+ *         asking for the same name will get the same instance.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.net.vertx.util
+
+import groovy.transform.CompileStatic
+import io.vertx.core.buffer.Buffer
+import io.vertx.core.eventbus.DeliveryOptions
+import io.vertx.core.eventbus.MessageCodec
+import io.vertx.core.json.JsonObject
+
+/**
+ * A Vert.x MessageCodec for APS messages (Map<String, Object>) using APSBinaryMessageFormat
+ * on the wire instead of JSON text.
+ *
+ * APSVertxProvider registers this on the EventBus. It is only used for messages sent with
+ * deliveryOptions(), which the routers do when the 'eventBus.binaryCodec' config is true. All
+ * nodes of the cluster must run with the codec registered, which they do with this version of
+ * APSVertxProvider, even if they are not configured to send with it.
+ *
+ * Do note that addresses that are bridged to clients over the SockJS event bus bridge or AMQP
+ * must be JSON, so do not enable the binary codec if such addresses are sent to via the routers.
+ */
+@CompileStatic
+class APSMessageCodec implements MessageCodec<Map<String, Object>, Map<String, Object>> {
+
+    //
+    // Constants
+    //
+
+    /** The name the codec is registered with. */
+    static final String NAME = "aps-binary-message"
+
+    /** The service property on the EventBus service telling that the binary codec should be used for sending. */
+    static final String SERVICE_PROPERTY = "aps-message-codec"
+
+    //
+    // Static Methods
+    //
+
+    /**
+     * Returns new DeliveryOptions for sending with this codec.
+     *
+     * A new instance is returned on every call since Vert.x adds headers to the options it is given,
+     * like the credit address of a sender, so they can not be shared between producers and sends.
+     */
+    static DeliveryOptions deliveryOptions() {
+        new DeliveryOptions().setCodecName( NAME )
+    }
+
+    /**
+     * Returns the body of a received message as a Map no matter if it was sent as JsonObject or with
+     * this codec.
+     *
+     * @param body The received message body.
+     */
+    static Map<String, Object> bodyAsMap( Object body ) {
+        body instanceof Map ? body as Map<String, Object> : new RecursiveJsonObjectMap( body as JsonObject )
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Writes a message to the wire as length followed by APSBinaryMessageFormat bytes.
+     *
+     * @param buffer The buffer to write to.
+     * @param message The message to write.
+     */
+    @Override
+    void encodeToWire( Buffer buffer, Map<String, Object> message ) {
+        byte[] bytes = APSBinaryMessageFormat.encode( message )
+        buffer.appendInt( bytes.length )
+        buffer.appendBytes( bytes )
+    }
+
+    /**
+     * Reads a message from the wire.
+     *
+     * @param pos The position in the buffer where the message starts.
+     * @param buffer The buffer to read from.
+     */
+    @Override
+    Map<String, Object> decodeFromWire( int pos, Buffer buffer ) {
+        int length = buffer.getInt( pos )
+        APSBinaryMessageFormat.decode( buffer.getBytes( pos + 4, pos + 4 + length ) )
+    }
+
+    /**
+     * Local delivery. Receivers get a read only view of the sent message, just like the
+     * RecursiveJsonObjectMap they get for JSON messages is read only.
+     *
+     * @param message The sent message.
+     */
+    @Override
+    Map<String, Object> transform( Map<String, Object> message ) {
+        Collections.unmodifiableMap( message )
+    }
+
+    /**
+     * @return The codec name.
+     */
+    @Override
+    String name() {
+        NAME
+    }
+
+    /**
+     * @return -1 since this is a user codec.
+     */
+    @Override
+    byte systemCodecID() {
+        ( byte ) -1
+    }
+}
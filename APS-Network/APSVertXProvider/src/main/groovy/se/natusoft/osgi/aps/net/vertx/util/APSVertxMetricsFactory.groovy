@@ -0,0 +1,182 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS VertX Provider
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         This service provides configured Vertx instances allowing multiple services to use the same Vertx instance.
+ *
+ *         This service also provides for multiple instances of VertX by associating an instance with a name. Everyone
+ *         asking for the same name will get the same instance.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.net.vertx.util
+
+import groovy.transform.CompileStatic
+import io.vertx.core.VertxOptions
+import io.vertx.core.eventbus.ReplyFailure
+import io.vertx.core.spi.VertxMetricsFactory
+import io.vertx.core.spi.metrics.EventBusMetrics
+import io.vertx.core.spi.metrics.VertxMetrics
+import se.natusoft.osgi.aps.api.metrics.APSCounter
+import se.natusoft.osgi.aps.core.metrics.APSMetricsRegistry
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.Supplier
+
+/**
+ * Hooks into the Vert.x metrics SPI and records event bus metrics into the shared APSMetricsRegistry
+ * as "vertx.eventbus.*". Only the event bus is measured. The other Vert.x metrics are left as no-op
+ * defaults.
+ *
+ * This is set on VertxOptions.metricsOptions by APSVertxProvider, unless other Vert.x metrics have
+ * been configured.
+ */
+@CompileStatic
+class APSVertxMetricsFactory implements VertxMetricsFactory {
+
+    //
+    // Constants
+    //
+
+    /**
+     * The gauge of registered event bus handlers. It is removed when the event bus is closed, and by
+     * APSVertxProvider when stopped, since the registry is static and would keep the metrics instance.
+     */
+    static final String HANDLERS_GAUGE = "vertx.eventbus.handlers"
+
+    //
+    // Methods
+    //
+
+    /**
+     * Creates the metrics for a Vertx instance.
+     *
+     * @param options The options of the Vertx instance.
+     */
+    @Override
+    VertxMetrics metrics( VertxOptions options ) {
+        new APSVertxMetrics()
+    }
+
+    //
+    // Inner Classes
+    //
+
+    /**
+     * Provides the event bus metrics.
+     */
+    @CompileStatic
+    static class APSVertxMetrics implements VertxMetrics {
+
+        boolean isEnabled() {
+            true
+        }
+
+        boolean isMetricsEnabled() {
+            true
+        }
+
+        EventBusMetrics createEventBusMetrics() {
+            new APSEventBusMetrics( APSMetricsRegistry.shared() )
+        }
+    }
+
+    /**
+     * Counts event bus traffic. The handler metric is not used.
+     */
+    @CompileStatic
+    static class APSEventBusMetrics implements EventBusMetrics<Void> {
+
+        private final APSCounter sent
+
+        private final APSCounter published
+
+        private final APSCounter sentRemote
+
+        private final APSCounter received
+
+        private final APSCounter bytesWritten
+
+        private final APSCounter bytesRead
+
+        private final APSCounter replyFailures
+
+        private final AtomicLong handlers = new AtomicLong( 0 )
+
+        private final APSMetricsRegistry metrics
+
+        APSEventBusMetrics( APSMetricsRegistry metrics ) {
+            this.metrics = metrics
+            this.sent = metrics.counter( "vertx.eventbus.sent" )
+            this.published = metrics.counter( "vertx.eventbus.published" )
+            this.sentRemote = metrics.counter( "vertx.eventbus.sent.remote" )
+            this.received = metrics.counter( "vertx.eventbus.received" )
+            this.bytesWritten = metrics.counter( "vertx.eventbus.bytes.written" )
+            this.bytesRead = metrics.counter( "vertx.eventbus.bytes.read" )
+            this.replyFailures = metrics.counter( "vertx.eventbus.reply.failures" )
+            metrics.gauge( HANDLERS_GAUGE, { this.handlers.get() } as Supplier<Number> )
+        }
+
+        void close() {
+            this.metrics.remove( HANDLERS_GAUGE )
+        }
+
+        Void handlerRegistered( String address, String repliedAddress ) {
+            this.handlers.incrementAndGet()
+            null
+        }
+
+        void handlerUnregistered( Void handler ) {
+            this.handlers.decrementAndGet()
+        }
+
+        void messageSent( String address, boolean publish, boolean local, boolean remote ) {
+            ( publish ? this.published : this.sent ).increment()
+            if ( remote ) this.sentRemote.increment()
+        }
+
+        void messageReceived( String address, boolean publish, boolean local, int handlers ) {
+            this.received.increment()
+        }
+
+        void messageWritten( String address, int numberOfBytes ) {
+            this.bytesWritten.add( numberOfBytes )
+        }
+
+        void messageRead( String address, int numberOfBytes ) {
+            this.bytesRead.add( numberOfBytes )
+        }
+
+        void replyFailure( String address, ReplyFailure failure ) {
+            this.replyFailures.increment()
+        }
+    }
+}
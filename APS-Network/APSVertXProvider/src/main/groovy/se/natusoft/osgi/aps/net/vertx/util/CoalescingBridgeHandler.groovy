@@ -0,0 +1,229 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS VertX Provider
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         This service provides configured Vertx instances allowing multiple services to use the same Vertx instance.
+ *
+ *         This service also provides for multiple instances of VertX by associating an instance with a name. Everyone
+ *         asking for the same name will get the same instance.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.net.vertx.util
+
+import groovy.transform.CompileStatic
+import io.vertx.core.Handler
+import io.vertx.core.Vertx
+import io.vertx.core.buffer.Buffer
+import io.vertx.core.json.JsonArray
+import io.vertx.core.json.JsonObject
+import io.vertx.ext.bridge.BridgeEventType
+import io.vertx.ext.web.handler.sockjs.BridgeEvent
+import io.vertx.ext.web.handler.sockjs.SockJSSocket
+import se.natusoft.docutations.NotNull
+import se.natusoft.osgi.aps.util.APSLogger
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Bridge event handler for the SockJS event bus bridge that limits and optionally coalesces what is
+ * sent to each client.
+ *
+ * Every client socket gets a write queue limit of maxWriteQueueSize bytes. A client whose write queue
+ * is full when a new message is to be sent to it is too slow to keep up, and its socket is closed
+ * rather than buffering more for it. The frontend reconnects.
+ *
+ * If coalesceMs is larger than 0, messages to a client are collected for that long, or until
+ * maxBatchSize messages are collected, and then written as one frame. A single message is written
+ * as is. More than one is written as a "rec" frame to BATCH_ADDRESS with the original frames as a
+ * JSON array body, which the frontend unpacks and delivers as if they were received one by one.
+ *
+ * All calls for a socket are made on the event loop of that socket, so each outbox is only used by
+ * one thread.
+ */
+@CompileStatic
+class CoalescingBridgeHandler implements Handler<BridgeEvent> {
+
+    /** The address of coalesced frames. The frontend handles this locally. */
+    static final String BATCH_ADDRESS = "aps.bridge.batch"
+
+    //
+    // Properties
+    //
+
+    /** Used for flush timers. */
+    Vertx vertx
+
+    /** For logging. */
+    APSLogger logger
+
+    /** How long to collect messages to a client before sending them. 0 or less means no coalescing. */
+    long coalesceMs = 0
+
+    /** The max number of messages in one coalesced frame. */
+    int maxBatchSize = 64
+
+    /** The max number of bytes queued for writing per client before it is disconnected. */
+    int maxWriteQueueSize = 1024 * 1024
+
+    //
+    // Private Members
+    //
+
+    /** The outboxes of the connected clients when coalescing. */
+    private Map<SockJSSocket, Outbox> outboxes = new ConcurrentHashMap<>()
+
+    //
+    // Methods
+    //
+
+    /**
+     * Handles a bridge event.
+     *
+     * @param event The event to handle.
+     */
+    @Override
+    void handle( @NotNull BridgeEvent event ) {
+
+        SockJSSocket socket = event.socket()
+
+        switch ( event.type() ) {
+
+            case BridgeEventType.SOCKET_CREATED:
+                socket.setWriteQueueMaxSize( this.maxWriteQueueSize )
+                if ( this.coalesceMs > 0 ) this.outboxes.put( socket, new Outbox( socket ) )
+                event.complete( true )
+                break
+
+            case BridgeEventType.SOCKET_CLOSED:
+                this.outboxes.remove( socket )?.discard()
+                event.complete( true )
+                break
+
+            case BridgeEventType.RECEIVE:
+                if ( socket.writeQueueFull() ) {
+                    this.logger?.warn( "Client at ${ socket.remoteAddress() } is not keeping up! Disconnecting it." )
+                    this.outboxes.remove( socket )?.discard()
+                    event.complete( false )
+                    socket.close()
+                    break
+                }
+
+                Outbox outbox = this.outboxes.get( socket )
+                if ( outbox != null ) {
+                    outbox.add( event.rawMessage )
+                    // We write it our self.
+                    event.complete( false )
+                }
+                else {
+                    event.complete( true )
+                }
+                break
+
+            default:
+                event.complete( true )
+        }
+    }
+
+    //
+    // Inner Classes
+    //
+
+    /**
+     * The messages collected for a client.
+     */
+    @CompileStatic
+    private class Outbox {
+
+        private final SockJSSocket socket
+
+        private List<Object> frames = []
+
+        private long timerId = -1
+
+        Outbox( SockJSSocket socket ) {
+            this.socket = socket
+        }
+
+        /**
+         * Adds a frame, flushing if the batch is full, and otherwise making sure a flush is scheduled.
+         *
+         * @param frame The frame to add.
+         */
+        void add( JsonObject frame ) {
+
+            this.frames << ( Object ) frame
+
+            if ( this.frames.size() >= maxBatchSize ) {
+                flush()
+            }
+            else if ( this.timerId < 0 ) {
+                this.timerId = vertx.setTimer( coalesceMs ) { Long id ->
+                    this.timerId = -1
+                    flush()
+                }
+            }
+        }
+
+        /**
+         * Writes the collected frames.
+         */
+        void flush() {
+
+            cancelTimer()
+
+            if ( this.frames.isEmpty() ) return
+
+            JsonObject out = this.frames.size() == 1 ? ( JsonObject ) this.frames[ 0 ] :
+                    new JsonObject().put( "type", "rec" ).put( "address", BATCH_ADDRESS ).put( "body", new JsonArray( this.frames ) )
+            this.frames = []
+
+            this.socket.write( Buffer.buffer( out.encode() ) )
+        }
+
+        /**
+         * Drops the collected frames.
+         */
+        void discard() {
+
+            cancelTimer()
+            this.frames = []
+        }
+
+        private void cancelTimer() {
+
+            if ( this.timerId >= 0 ) {
+                vertx.cancelTimer( this.timerId )
+                this.timerId = -1
+            }
+        }
+    }
+}
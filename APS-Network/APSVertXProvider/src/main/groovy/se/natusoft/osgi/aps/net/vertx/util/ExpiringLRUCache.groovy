@@ -0,0 +1,220 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS VertX Provider
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         This service provides configured Vertx instances allowing multiple services to use the same Vertx instance.
+ *
+ *         This service also provides for multiple instances of VertX by associating an instance with a name. Everyone
+ *         asking for the same name will get the same instance.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.net.vertx.util
+
+import groovy.transform.CompileStatic
+import se.natusoft.docutations.NotNull
+import se.natusoft.osgi.aps.types.APSHandler
+import se.natusoft.osgi.aps.util.APSWheelTimer
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * A bounded cache of objects that are expensive to create and need to be closed when no longer
+ * used, like Vert.x MessageProducers.
+ *
+ * When the cache is full the least recently used entry is evicted. Entries not used for idleMs
+ * are evicted by a sweep driven by the shared APSWheelTimer. Evicted values are passed to the
+ * onEvict handler, which should close them.
+ *
+ * @param <V> The type of the cached values.
+ */
+@CompileStatic
+class ExpiringLRUCache<V> {
+
+    //
+    // Properties
+    //
+
+    /** The max number of entries. */
+    int maxSize = 256
+
+    /** Entries not used for this long are evicted. 0 or less means never. */
+    long idleMs = 60000
+
+    /** Called with each evicted value. */
+    APSHandler<V> onEvict
+
+    /** The timer to sweep idle entries with. */
+    APSWheelTimer timer = APSWheelTimer.shared()
+
+    //
+    // Private Members
+    //
+
+    /** Access ordered, so the eldest entry is the least recently used. Guarded by this. */
+    private LinkedHashMap<String, Entry<V>> entries = new LinkedHashMap<String, Entry<V>>( 16, 0.75f, true )
+
+    /** The scheduled sweep, if any. Guarded by this. */
+    private APSWheelTimer.Timeout sweep
+
+    //
+    // Methods
+    //
+
+    /**
+     * Returns the cached value for a key, creating it if not cached.
+     *
+     * @param key The key of the value.
+     * @param create Creates the value if not cached.
+     */
+    V get( @NotNull String key, @NotNull Closure<V> create ) {
+
+        V evicted = null
+        V value
+
+        synchronized ( this ) {
+
+            Entry<V> entry = this.entries.get( key )
+
+            if ( entry == null ) {
+
+                entry = new Entry<V>( value: create.call() )
+                this.entries.put( key, entry )
+
+                if ( this.entries.size() > this.maxSize ) {
+                    Iterator<Entry<V>> eldest = this.entries.values().iterator()
+                    evicted = eldest.next().value
+                    eldest.remove()
+                }
+
+                scheduleSweep()
+            }
+
+            entry.lastUsed = System.currentTimeMillis()
+            value = entry.value
+        }
+
+        // The handler is called outside of the lock since we don't know what it does.
+        if ( evicted != null ) evict( evicted )
+
+        value
+    }
+
+    /**
+     * Evicts all entries.
+     */
+    void clear() {
+
+        List<V> evicted = []
+
+        synchronized ( this ) {
+            this.entries.values().each { Entry<V> entry -> evicted << entry.value }
+            this.entries.clear()
+            this.sweep?.cancel()
+            this.sweep = null
+        }
+
+        evicted.each { V value -> evict( value ) }
+    }
+
+    /**
+     * @return The number of cached entries.
+     */
+    synchronized int size() {
+        this.entries.size()
+    }
+
+    /**
+     * Evicts all entries not used within idleMs.
+     */
+    void evictIdle() {
+
+        List<V> evicted = []
+        long oldest = System.currentTimeMillis() - this.idleMs
+
+        synchronized ( this ) {
+
+            this.sweep = null
+
+            Iterator<Entry<V>> it = this.entries.values().iterator()
+            while ( it.hasNext() ) {
+                Entry<V> entry = it.next()
+                // Access order, so all after the first recently used one are also recently used.
+                if ( entry.lastUsed > oldest ) break
+                evicted << entry.value
+                it.remove()
+            }
+
+            scheduleSweep()
+        }
+
+        evicted.each { V value -> evict( value ) }
+    }
+
+    /**
+     * Schedules an idle sweep if there are entries and none is scheduled. Must be called holding the lock.
+     */
+    private void scheduleSweep() {
+
+        if ( this.idleMs > 0 && this.sweep == null && !this.entries.isEmpty() ) {
+            this.sweep = this.timer.schedule( { evictIdle() } as Runnable, this.idleMs, TimeUnit.MILLISECONDS )
+        }
+    }
+
+    /**
+     * Passes an evicted value to the onEvict handler.
+     *
+     * @param value The evicted value.
+     */
+    private void evict( V value ) {
+        try {
+            this.onEvict?.handle( value )
+        }
+        catch ( Exception ignored ) {
+            // A value that fails to close is gone anyhow.
+        }
+    }
+
+    //
+    // Inner Classes
+    //
+
+    /**
+     * A cached value.
+     */
+    @CompileStatic
+    private static class Entry<V> {
+
+        V value
+
+        volatile long lastUsed
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS VertX Provider
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         This service provides configured Vertx instances allowing multiple services to use the same Vertx instance.
+ *
+ *         This service also provides for multiple instances of VertX by associating an instance with a name. Everyone
+ *         asking for the same name will get the same instance.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *         2026-10-18: onPause and onResume are called in the same order as the state changes they are for.
+ *
+ */
+package se.natusoft.osgi.aps.net.vertx.util
+
+import groovy.transform.CompileStatic
+import se.natusoft.docutations.NotNull
+import se.natusoft.osgi.aps.api.metrics.APSHistogram
+import se.natusoft.osgi.aps.types.APSHandler
+import se.natusoft.osgi.aps.util.APSLogger
+import se.natusoft.osgi.aps.util.APSWheelTimer
+
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+import static se.natusoft.osgi.aps.util.APSExecutor.concurrent
+
+/**
+ * Delivers messages to one subscriber handler through a bounded queue.
+ *
+ * Messages are handed to the handler in order by at most one worker at a time, run on an APS
+ * thread. When the queue is full the overflow policy decides what happens:
+ *
+ * - PAUSE: The onPause callback is called, which should pause the source (MessageConsumer.pause()).
+ *   onResume is called when the queue has drained to half capacity.
+ * - DROP_OLDEST: The oldest queued message is dropped to make room.
+ * - FAIL: The new message is refused and the caller can fail it.
+ *
+ * onPause and onResume are always called in the same order as the paused state changes, under a
+ * lock of their own, so a resume can never overtake the pause it belongs to and leave the source
+ * paused for good. They should be quick and must not call back into this subscriber from another
+ * thread.
+ *
+ * If the executor refuses the worker, delivery is retried a bit later rather than the messages
+ * being lost. The queue depth, dropped and failed counts are available for monitoring.
+ */
+@CompileStatic
+class FlowControlledSubscriber {
+
+    /**
+     * What to do with a message when the queue is full.
+     */
+    static enum OverflowPolicy {
+        PAUSE,
+        DROP_OLDEST,
+        FAIL
+
+        /**
+         * Returns the policy for a config value like "pause", "dropOldest" or "fail". Unknown values give PAUSE.
+         *
+         * @param value The value to convert.
+         */
+        static OverflowPolicy from( String value ) {
+            String name = value?.replaceAll( /([a-z])([A-Z])/, '$1_$2' )?.toUpperCase()
+            values().find { OverflowPolicy policy -> policy.name() == name } ?: PAUSE
+        }
+    }
+
+    //
+    // Properties
+    //
+
+    /** The subscriber handler to deliver to. */
+    APSHandler<Map<String, Object>> handler
+
+    /** For logging handler failures. */
+    APSLogger logger
+
+    /** The max number of queued messages. */
+    int capacity = 1000
+
+    /** What to do when the queue is full. */
+    OverflowPolicy overflowPolicy = OverflowPolicy.PAUSE
+
+    /** Called when the queue is full and the policy is PAUSE. */
+    Runnable onPause
+
+    /** Called when a paused queue has drained to half capacity. */
+    Runnable onResume
+
+    /** The max number of messages to deliver per worker. */
+    int drainLimit = 64
+
+    /** How long to wait before submitting a worker again after the executor refused it. */
+    long retryMs = 10
+
+    /** The timer to retry with. */
+    APSWheelTimer timer = APSWheelTimer.shared()
+
+    /** If set, the time of each handler call is recorded in this. */
+    APSHistogram latency
+
+    //
+    // Private Members
+    //
+
+    /** Guarded by this. */
+    private ArrayDeque<Map<String, Object>> queue = new ArrayDeque<>()
+
+    /** True when a worker is submitted or running. Guarded by this. */
+    private boolean scheduled = false
+
+    /** True when onPause has been called and onResume has not. Guarded by this, and changed under pauseLock. */
+    private boolean paused = false
+
+    /**
+     * Held while changing paused and calling onPause / onResume, so that the calls are made in the same
+     * order as the state changes. Always taken before this, never while holding this.
+     */
+    private final Object pauseLock = new Object()
+
+    private volatile boolean closed = false
+
+    private AtomicLong dropped = new AtomicLong( 0 )
+
+    private AtomicLong failed = new AtomicLong( 0 )
+
+    private AtomicLong pauses = new AtomicLong( 0 )
+
+    //
+    // Methods
+    //
+
+    /**
+     * Posts a message from the source this subscriber can pause. With the PAUSE policy the message
+     * is always queued, since the source has already delivered it, and the source is paused.
+     *
+     * @param message The message to post.
+     *
+     * @return false if the message was refused by the FAIL policy.
+     */
+    boolean post( @NotNull Map<String, Object> message ) {
+        enqueue( message, true )
+    }
+
+    /**
+     * Offers a message from a source that cannot be paused. With the PAUSE policy a full queue
+     * refuses the message, so the caller can deliver it some other way.
+     *
+     * @param message The message to offer.
+     *
+     * @return false if the message was refused.
+     */
+    boolean offer( @NotNull Map<String, Object> message ) {
+        enqueue( message, false )
+    }
+
+    /**
+     * Stops delivery. Messages not yet delivered are dropped.
+     */
+    void close() {
+
+        this.closed = true
+
+        synchronized ( this ) {
+            this.queue.clear()
+        }
+    }
+
+    /**
+     * @return The number of queued messages.
+     */
+    synchronized int getQueueDepth() {
+        this.queue.size()
+    }
+
+    /**
+     * @return true if the source is paused.
+     */
+    synchronized boolean isPaused() {
+        this.paused
+    }
+
+    /**
+     * @return The number of messages dropped by the DROP_OLDEST policy.
+     */
+    long getDropped() {
+        this.dropped.get()
+    }
+
+    /**
+     * @return The number of messages refused by the FAIL policy.
+     */
+    long getFailed() {
+        this.failed.get()
+    }
+
+    /**
+     * @return The number of times the source has been paused.
+     */
+    long getPauses() {
+        this.pauses.get()
+    }
+
+    /**
+     * @return The metrics of this subscriber as a map.
+     */
+    Map<String, Long> getMetrics() {
+        [
+                queueDepth: ( long ) getQueueDepth(),
+                dropped   : getDropped(),
+                failed    : getFailed(),
+                pauses    : getPauses()
+        ] as Map<String, Long>
+    }
+
+    /**
+     * Queues a message applying the overflow policy.
+     *
+     * @param message The message to queue.
+     * @param pausable true if the source can be paused.
+     *
+     * @return false if the message was refused.
+     */
+    private boolean enqueue( Map<String, Object> message, boolean pausable ) {
+
+        if ( this.closed ) return true
+
+        boolean full = false
+        boolean startWorker = false
+
+        synchronized ( this ) {
+
+            if ( this.queue.size() >= this.capacity ) {
+
+                switch ( this.overflowPolicy ) {
+
+                    case OverflowPolicy.DROP_OLDEST:
+                        this.queue.poll()
+                        this.dropped.incrementAndGet()
+                        break
+
+                    case OverflowPolicy.PAUSE:
+                        if ( !pausable ) return false
+                        break
+
+                    default:
+                        this.failed.incrementAndGet()
+                        return false
+                }
+            }
+
+            this.queue.offer( message )
+
+            if ( pausable && this.overflowPolicy == OverflowPolicy.PAUSE && !this.paused && this.queue.size() >= this.capacity ) {
+                full = true
+            }
+
+            if ( !this.scheduled ) {
+                this.scheduled = startWorker = true
+            }
+        }
+
+        if ( full ) pauseSource()
+
+        if ( startWorker ) submit()
+
+        true
+    }
+
+    /**
+     * Pauses the source if the queue is still full.
+     */
+    private void pauseSource() {
+
+        synchronized ( this.pauseLock ) {
+
+            synchronized ( this ) {
+                if ( this.paused || this.queue.size() < this.capacity ) return
+                this.paused = true
+            }
+
+            this.pauses.incrementAndGet()
+            this.onPause?.run()
+        }
+    }
+
+    /**
+     * Resumes the source if it is paused and the queue has drained to half capacity.
+     */
+    private void resumeSource() {
+
+        synchronized ( this.pauseLock ) {
+
+            synchronized ( this ) {
+                if ( !this.paused || this.queue.size() > this.capacity.intdiv( 2 ) ) return
+                this.paused = false
+            }
+
+            this.onResume?.run()
+        }
+    }
+
+    /**
+     * Submits a drain worker. If the executor is saturated the submit is retried later. The queue is
+     * bounded so messages arriving meanwhile are handled by the overflow policy.
+     */
+    private void submit() {
+
+        try {
+            concurrent { drain() }
+        }
+        catch ( RejectedExecutionException ignored ) {
+            this.timer.schedule( { submit() } as Runnable, this.retryMs, TimeUnit.MILLISECONDS )
+        }
+    }
+
+    /**
+     * Delivers messages until the queue is empty or drainLimit is reached.
+     */
+    private void drain() {
+
+        int delivered = 0
+
+        while ( true ) {
+
+            Map<String, Object> message = null
+            boolean resume = false
+            boolean done = false
+
+            synchronized ( this ) {
+
+                if ( !this.closed && delivered < this.drainLimit ) message = this.queue.poll()
+
+                resume = this.paused && this.queue.size() <= this.capacity.intdiv( 2 )
+
+                if ( message == null && ( this.closed || this.queue.isEmpty() ) ) {
+                    this.scheduled = false
+                    done = true
+                }
+            }
+
+            if ( resume ) resumeSource()
+
+            if ( message == null ) {
+                // drainLimit reached. Let other subscribers get some time. scheduled stays true so no one else submits.
+                if ( !done ) submit()
+                return
+            }
+
+            long start = this.latency != null ? System.nanoTime() : 0L
+
+            try {
+                this.handler.handle( message )
+            }
+            catch ( Exception e ) {
+                this.logger?.error( "Message handler threw illegal exception!", e )
+            }
+
+            this.latency?.recordSince( start )
+
+            ++delivered
+        }
+    }
+}
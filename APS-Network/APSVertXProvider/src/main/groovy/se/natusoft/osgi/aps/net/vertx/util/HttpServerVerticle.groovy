@@ -0,0 +1,110 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS VertX Provider
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         This service provides configured Vertx instances allowing multiple services to use the same Vertx instance.
+ *
+ *         This service also provides for multiple instances of VertX by associating an instance with a name. Everyone
+ *         asking for the same name will get the same instance.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.net.vertx.util
+
+import groovy.transform.CompileStatic
+import io.vertx.core.AbstractVerticle
+import io.vertx.core.AsyncResult
+import io.vertx.core.Promise
+import io.vertx.core.http.HttpServer
+import io.vertx.core.http.HttpServerOptions
+import io.vertx.ext.web.Router
+import se.natusoft.docutations.NotNull
+
+/**
+ * Runs one HTTP server instance serving a Router.
+ *
+ * This is deployed with a number of instances for the same port. Vert.x shares the port between
+ * the instances and round robins connections over them, and since each verticle instance gets its
+ * own event loop the requests are spread over that many threads. All instances serve the same
+ * Router, so routes added to it are seen by all of them.
+ */
+@CompileStatic
+class HttpServerVerticle extends AbstractVerticle {
+
+    //
+    // Private Members
+    //
+
+    private final Router router
+
+    private final HttpServerOptions options
+
+    //
+    // Constructors
+    //
+
+    /**
+     * Creates a new HttpServerVerticle.
+     *
+     * @param router The router to serve.
+     * @param options The server options, including port. Each instance gets its own copy.
+     */
+    HttpServerVerticle( @NotNull Router router, @NotNull HttpServerOptions options ) {
+        this.router = router
+        this.options = new HttpServerOptions( options )
+    }
+
+    //
+    // Methods
+    //
+
+    /**
+     * Starts the server and completes the promise when it is listening. Vert.x closes the server
+     * when the verticle is undeployed.
+     *
+     * @param startPromise Completed when listening or failed.
+     */
+    @Override
+    void start( Promise<Void> startPromise ) throws Exception {
+
+        HttpServer server = this.vertx.createHttpServer( this.options ).requestHandler( this.router )
+
+        server.listen { AsyncResult<HttpServer> res ->
+
+            if ( res.succeeded() ) {
+                startPromise.complete()
+            }
+            else {
+                startPromise.fail( res.cause() )
+            }
+        }
+    }
+}
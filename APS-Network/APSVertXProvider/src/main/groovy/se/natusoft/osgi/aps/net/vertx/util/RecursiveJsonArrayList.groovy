@@ -0,0 +1,118 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS VertX Provider
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ *     Description
+ *         This service provides configured Vertx instances allowing multiple services to use the same Vertx instance.
+ *
+ *         This service also provides for multiple instances of VertX by associating an instance with a name. Everyone
+ *         asking for the same name will get the same instance.
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.net.vertx.util
+
+import groovy.transform.CompileStatic
+import io.vertx.core.json.JsonArray
+import se.natusoft.osgi.aps.exceptions.APSValidationException
+
+/**
+ * The JsonArray counterpart of RecursiveJsonObjectMap. A read only List view of a JsonArray
+ * where JsonObject, JsonArray, Map and List entries are wrapped on first access and the wrappers remembered.
+ *
+ * This object is read only! It will throw an APSValidationException on any attempt to update
+ * the List.
+ */
+@CompileStatic
+class RecursiveJsonArrayList extends AbstractList<Object> implements RandomAccess {
+
+    private JsonArray jsonArray
+
+    /** The wrappers of JsonObject, JsonArray, Map and List entries, created on first access. Guarded by this. */
+    private Object[] children
+
+    RecursiveJsonArrayList( JsonArray jsonArray ) {
+        this.jsonArray = jsonArray
+    }
+
+    @Override
+    int size() {
+        this.jsonArray.list.size()
+    }
+
+    @Override
+    Object get( int index ) {
+        Object value = this.jsonArray.list.get( index )
+
+        if ( RecursiveJsonObjectMap.isWrapped( value ) ) {
+            synchronized ( this ) {
+                if ( this.children == null ) {
+                    this.children = new Object[ size() ]
+                }
+
+                Object wrapped = this.children[ index ]
+                if ( wrapped == null ) {
+                    wrapped = RecursiveJsonObjectMap.wrap( value )
+                    this.children[ index ] = wrapped
+                }
+                value = wrapped
+            }
+        }
+
+        value
+    }
+
+    @Override
+    Object set( int index, Object element ) {
+        throw new APSValidationException( "This List is read only!" )
+    }
+
+    @Override
+    void add( int index, Object element ) {
+        throw new APSValidationException( "This List is read only!" )
+    }
+
+    @Override
+    Object remove( int index ) {
+        throw new APSValidationException( "This List is read only!" )
+    }
+
+    @Override
+    void clear() {
+        throw new APSValidationException( "This List is read only!" )
+    }
+
+    /**
+     * @return The wrapped array as JSON.
+     */
+    String toString() {
+        this.jsonArray.encode()
+    }
+}
@@ -35,11 +35,14 @@
  *     tommy ()
  *         Changes:
  *         2019-08-17: Created!
+ *         2026-10-18: Caches child wrappers, wraps JsonArray and is read only all the way.
+ *         2026-10-18: Also wraps raw Map and List values.
  *
  */
 package se.natusoft.osgi.aps.net.vertx.util
 
 import groovy.transform.CompileStatic
+import io.vertx.core.json.JsonArray
 import io.vertx.core.json.JsonObject
 import se.natusoft.osgi.aps.exceptions.APSValidationException
 
@@ -51,7 +54,8 @@ import se.natusoft.osgi.aps.exceptions.APSValidationException
  *
  * Wrapping a JsonObject with this object will give you a correct recursive
  * Map structure by delegating most Map calls to JsonObject.getMap(). Each
- * JsonObject returned gets wrapped by this class.
+ * JsonObject returned gets wrapped by this class, and each JsonArray by
+ * RecursiveJsonArrayList.
  *
  * So why only access though Map API and not use the API JsonObject provides ?
  *
@@ -65,9 +69,10 @@ import se.natusoft.osgi.aps.exceptions.APSValidationException
  * feel right. parse JSON -> regenerate JSON -> parse JSON. This class is just
  * a wrapper and uses the original JsonObject provided by Vert.x. So nothing is
  * reparsed again. This will also not convert the whole to a Map in one go,
- * but rather do it on the way as content is accessed. When a JsonObject is
- * found as result of a get() then it is wrapped by a new instance of this
- * class and returned.
+ * but rather do it on the way as content is accessed. When a JsonObject,
+ * JsonArray, Map or List is found as result of a get() then it is wrapped, and the wrapper
+ * is remembered, so reading the same path again does not allocate anything.
+ * values() and entrySet() also return wrapped values, never raw Vert.x types.
  *
  * You should always treat instances of this as Map<String, Object>, not
  * RecursiveJsonObjectMap! Example:
@@ -79,14 +84,49 @@ import se.natusoft.osgi.aps.exceptions.APSValidationException
  * any attempt to update the Map.
  */
 @CompileStatic
-class RecursiveJsonObjectMap implements Map<String, Object> {
+class RecursiveJsonObjectMap extends AbstractMap<String, Object> {
 
     private JsonObject jsonObject
 
+    /** The wrappers of JsonObject, JsonArray, Map and List values, created on first access. Guarded by this. */
+    private Map<Object, Object> children
+
     RecursiveJsonObjectMap( JsonObject jsonObject ) {
         this.jsonObject = jsonObject
     }
 
+    /**
+     * Returns true for values that wrap() wraps.
+     *
+     * @param value The value to check.
+     */
+    static boolean isWrapped( Object value ) {
+        value instanceof JsonObject || value instanceof JsonArray || value instanceof Map || value instanceof List
+    }
+
+    /**
+     * Wraps JsonObject and JsonArray values. Raw Map and List values, which JsonObject.put(...) and
+     * JsonArray.add(...) store as given, are wrapped the same way. Other values are returned as is.
+     *
+     * @param value The value to wrap.
+     */
+    static Object wrap( Object value ) {
+        if ( value instanceof JsonObject ) {
+            value = new RecursiveJsonObjectMap( value as JsonObject )
+        }
+        else if ( value instanceof JsonArray ) {
+            value = new RecursiveJsonArrayList( value as JsonArray )
+        }
+        else if ( value instanceof Map ) {
+            value = new RecursiveJsonObjectMap( new JsonObject( value as Map<String, Object> ) )
+        }
+        else if ( value instanceof List ) {
+            value = new RecursiveJsonArrayList( new JsonArray( value as List ) )
+        }
+
+        value
+    }
+
     @Override
     int size() {
         return this.jsonObject.map.size(  )
@@ -102,16 +142,23 @@ class RecursiveJsonObjectMap implements Map<String, Object> {
         return this.jsonObject.map.containsKey( key )
     }
 
-    @Override
-    boolean containsValue( Object value ) {
-        return this.jsonObject.map.containsValue( value )
-    }
-
     @Override
     Object get( Object key ) {
         Object value = this.jsonObject.map.get( key )
-        if ( value instanceof JsonObject ) {
-            value = new RecursiveJsonObjectMap( value as JsonObject )
+
+        if ( isWrapped( value ) ) {
+            synchronized ( this ) {
+                if ( this.children == null ) {
+                    this.children = new HashMap<>()
+                }
+
+                Object wrapped = this.children.get( key )
+                if ( wrapped == null ) {
+                    wrapped = wrap( value )
+                    this.children.put( key, wrapped )
+                }
+                value = wrapped
+            }
         }
 
         value
@@ -119,17 +166,40 @@ class RecursiveJsonObjectMap implements Map<String, Object> {
 
     @Override
     Set<String> keySet() {
-        this.jsonObject.map.keySet(  )
+        Collections.unmodifiableSet( this.jsonObject.map.keySet(  ) )
     }
 
     @Override
-    Collection<Object> values() {
-        return this.jsonObject.map.values(  )
-    }
-
-    @Override
-    Set<Entry<String, Object>> entrySet() {
-        return this.jsonObject.map.entrySet(  )
+    Set<Map.Entry<String, Object>> entrySet() {
+        Set<String> keys = this.jsonObject.map.keySet()
+        RecursiveJsonObjectMap map = this
+
+        new AbstractSet<Map.Entry<String, Object>>() {
+
+            @Override
+            Iterator<Map.Entry<String, Object>> iterator() {
+                Iterator<String> keyIt = keys.iterator()
+
+                new Iterator<Map.Entry<String, Object>>() {
+
+                    @Override
+                    boolean hasNext() {
+                        keyIt.hasNext()
+                    }
+
+                    @Override
+                    Map.Entry<String, Object> next() {
+                        String key = keyIt.next()
+                        new AbstractMap.SimpleImmutableEntry<String, Object>( key, map.get( key ) )
+                    }
+                }
+            }
+
+            @Override
+            int size() {
+                keys.size()
+            }
+        }
     }
 
     Object put( String key, Object value ) {
@@ -149,19 +219,10 @@ class RecursiveJsonObjectMap implements Map<String, Object> {
         throw new APSValidationException( "This Map is read only!" )
     }
 
+    /**
+     * @return The wrapped object as JSON.
+     */
     String toString() {
-        StringBuilder sb = new StringBuilder()
-        sb.append( "[ " )
-
-        this.jsonObject.map.keySet().each { key ->
-            Object value = this.get( key )
-            sb.append( " ${ key }: " )
-            sb.append( value.toString() )
-            sb.append( " " )
-        }
-
-        sb.append( " ]" )
-
-        return sb.toString()
+        this.jsonObject.encode()
     }
 }
@@ -0,0 +1,125 @@
+package se.natusoft.osgi.aps.net.vertx
+
+import groovy.transform.CompileStatic
+import io.vertx.amqpbridge.AmqpBridge
+import io.vertx.core.AsyncResult
+import io.vertx.core.Future
+import io.vertx.core.Handler
+import io.vertx.core.eventbus.MessageConsumer
+import io.vertx.core.eventbus.MessageProducer
+import io.vertx.core.json.JsonObject
+import org.junit.Test
+import se.natusoft.osgi.aps.api.messaging.APSMessagingException
+import se.natusoft.osgi.aps.types.APSHandler
+import se.natusoft.osgi.aps.types.APSResult
+import se.natusoft.osgi.aps.types.APSUUID
+import se.natusoft.osgi.aps.util.APSLogger
+
+import java.util.concurrent.atomic.AtomicInteger
+
+@CompileStatic
+class APSAmqpBridgeBusRouterTest {
+
+    /** The write handlers not yet called, per address. */
+    private Map<String, List<Handler<AsyncResult<Void>>>> pendingWrites = [ : ].withDefault { [] }
+
+    /** The addresses whose producer has been closed. */
+    private List<String> closed = []
+
+    /** The number of consumers unregistered. */
+    private AtomicInteger unregistered = new AtomicInteger( 0 )
+
+    /**
+     * Creates a router on a fake bridge whose producers never complete a write until told to.
+     */
+    private APSAmqpBridgeBusRouter router( int window, int poolSize ) {
+
+        AmqpBridge bridge = [
+                createProducer: { String address ->
+                    [
+                            write: { JsonObject message, Handler<AsyncResult<Void>> handler ->
+                                this.pendingWrites[ address ] << handler
+                                null
+                            },
+                            close: { this.closed << address; null }
+                    ] as MessageProducer<JsonObject>
+                },
+                createConsumer: { String address ->
+                    [
+                            handler   : { Handler handler -> null },
+                            pause     : { null },
+                            resume    : { null },
+                            unregister: { this.unregistered.incrementAndGet(); null }
+                    ] as MessageConsumer<JsonObject>
+                }
+        ] as AmqpBridge
+
+        new APSAmqpBridgeBusRouter( logger: new APSLogger( System.out ), amqpBridge: bridge,
+                inFlightWindow: window, producerPoolSize: poolSize )
+    }
+
+    /**
+     * Completes the oldest pending write to an address.
+     */
+    private void complete( String address ) {
+        this.pendingWrites[ address ].remove( 0 ).handle( Future.<Void> succeededFuture() )
+    }
+
+    @Test
+    void testInFlightWindow() throws Exception {
+
+        APSAmqpBridgeBusRouter router = router( 2, 4 )
+        List<APSResult> results = []
+        APSHandler<APSResult> resultHandler = { APSResult result -> results << result } as APSHandler<APSResult>
+
+        router.send( "amqp:queue", [ n: 1 ] as Map<String, Object>, resultHandler )
+        router.send( "amqp:queue", [ n: 2 ] as Map<String, Object>, resultHandler )
+        assert results.isEmpty()
+
+        // The window is full, so this fails directly.
+        router.send( "amqp:queue", [ n: 3 ] as Map<String, Object>, resultHandler )
+        assert results.size() == 1
+        assert !results[ 0 ].success()
+        assert results[ 0 ].failure() instanceof APSMessagingException
+
+        // Completing a write makes room for another.
+        complete( "queue" )
+        assert results.size() == 2
+        assert results[ 1 ].success()
+
+        router.send( "amqp:queue", [ n: 4 ] as Map<String, Object>, resultHandler )
+        assert results.size() == 2
+        assert this.pendingWrites[ "queue" ].size() == 2
+    }
+
+    @Test
+    void testEvictedProducerIsClosedWhenDrained() throws Exception {
+
+        APSAmqpBridgeBusRouter router = router( 10, 1 )
+
+        router.send( "amqp:first", [ n: 1 ] as Map<String, Object>, null )
+
+        // Evicts the producer of "first", which still has a write in flight.
+        router.send( "amqp:second", [ n: 2 ] as Map<String, Object>, null )
+        assert this.closed.isEmpty()
+
+        complete( "first" )
+        assert this.closed == [ "first" ]
+    }
+
+    @Test
+    void testUnsubscribeOfUnknownId() throws Exception {
+
+        APSAmqpBridgeBusRouter router = router( 10, 4 )
+        APSHandler<Map<String, Object>> messageHandler = { Map<String, Object> message -> } as APSHandler<Map<String, Object>>
+
+        router.subscribe( new APSUUID(), "amqp:queue", null, messageHandler )
+
+        // Must neither fail nor touch the existing subscription.
+        router.unsubscribe( new APSUUID() )
+        assert this.unregistered.get() == 0
+
+        router.shutdown()
+        assert this.unregistered.get() == 1
+    }
+}
@@ -0,0 +1,169 @@
+package se.natusoft.osgi.aps.net.vertx
+
+import groovy.transform.CompileDynamic
+import groovy.transform.CompileStatic
+import io.vertx.core.AsyncResult
+import io.vertx.core.Future
+import io.vertx.core.Handler
+import io.vertx.core.eventbus.DeliveryOptions
+import io.vertx.core.eventbus.EventBus
+import io.vertx.core.eventbus.Message
+import io.vertx.core.eventbus.MessageConsumer
+import io.vertx.core.eventbus.MessageProducer
+import io.vertx.core.eventbus.ReplyException
+import io.vertx.core.eventbus.ReplyFailure
+import org.junit.Test
+import se.natusoft.osgi.aps.api.messaging.APSBus
+import se.natusoft.osgi.aps.core.service.RequestReplyEngine
+import se.natusoft.osgi.aps.types.APSHandler
+import se.natusoft.osgi.aps.types.APSResult
+import se.natusoft.osgi.aps.types.APSUUID
+import se.natusoft.osgi.aps.types.ID
+import se.natusoft.osgi.aps.util.APSLogger
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+import static se.natusoft.osgi.aps.util.APSTools.waitFor
+
+@CompileStatic
+class APSVertxBusRouterTest {
+
+    /** The consumers of the fake EventBus per address. */
+    private Map<String, Handler<Message<Object>>> consumers = new ConcurrentHashMap<>()
+
+    /** The number of point to point sends that failed with NO_HANDLERS. */
+    private AtomicInteger noHandlers = new AtomicInteger( 0 )
+
+    /** The number of senders closed. */
+    private AtomicInteger closedSenders = new AtomicInteger( 0 )
+
+    /**
+     * An APSBus on top of the router, which is what APSBusProvider does for "cluster:" targets.
+     */
+    private static class RouterBus implements APSBus {
+
+        APSVertxBusRouter router
+
+        void send( String target, Map<String, Object> message, APSHandler<APSResult<?>> resultHandler ) {
+            this.router.send( target, message, { APSResult res -> resultHandler?.handle( res ) } as APSHandler<APSResult> )
+        }
+
+        void subscribe( ID id, String target, APSHandler<APSResult<?>> resultHandler,
+                        APSHandler<Map<String, Object>> messageHandler ) {
+            this.router.subscribe( id, target, { APSResult res -> resultHandler?.handle( res ) } as APSHandler<APSResult>,
+                    messageHandler )
+        }
+
+        void unsubscribe( ID subscriberId ) {
+            this.router.unsubscribe( subscriberId )
+        }
+
+        void request( String target, Map<String, Object> message, APSHandler<APSResult<?>> resultHandler,
+                      APSHandler<Map<String, Object>> responseMessage ) {}
+
+        void reply( Map<String, Object> replyTo, Map<String, Object> reply, APSHandler<APSResult<?>> resultHandler ) {}
+    }
+
+    /**
+     * A fake EventBus where a point to point write fails with NO_HANDLERS when there is no consumer
+     * of the address, just like Vert.x does.
+     */
+    private EventBus eventBus() {
+        [
+                consumer: { String address, Handler<Message<Object>> handler ->
+                    this.consumers[ address ] = handler
+                    [
+                            pause     : { null },
+                            resume    : { null },
+                            unregister: { this.consumers.remove( address, handler ); null }
+                    ] as MessageConsumer<Object>
+                },
+                sender  : { String address, DeliveryOptions options ->
+                    [
+                            write: { Object body, Handler<AsyncResult<Void>> handler ->
+                                Handler<Message<Object>> consumer = this.consumers[ address ]
+                                if ( consumer == null ) {
+                                    this.noHandlers.incrementAndGet()
+                                    handler.handle( Future.<Void> failedFuture(
+                                            new ReplyException( ReplyFailure.NO_HANDLERS, "No handlers for address ${ address }" ) ) )
+                                }
+                                else {
+                                    consumer.handle( [ body: { body }, replyAddress: { null } ] as Message<Object> )
+                                    handler.handle( Future.<Void> succeededFuture( null ) )
+                                }
+                                null
+                            },
+                            close: { this.closedSenders.incrementAndGet(); null }
+                    ] as MessageProducer<Object>
+                }
+        ] as EventBus
+    }
+
+    @CompileDynamic
+    private APSVertxBusRouter router() {
+        APSVertxBusRouter router = new APSVertxBusRouter()
+        router.@logger = new APSLogger( System.out )
+        router.@eventBus = eventBus()
+        // Everything should go through the EventBus, not be delivered directly to subscribers in this JVM.
+        router.@localAffinity = false
+        router
+    }
+
+    @Test
+    void testSendWithoutConsumerFails() throws Exception {
+
+        APSVertxBusRouter router = router()
+        List<APSResult> results = []
+        APSHandler<APSResult> resultHandler = { APSResult result -> results << result } as APSHandler<APSResult>
+
+        router.send( "cluster:nobody", [ n: 1 ] as Map<String, Object>, resultHandler )
+        router.sendBatch( "cluster:nobody", [ [ n: 2 ], [ n: 3 ] ] as List<Map<String, Object>>, resultHandler )
+
+        assert results.size() == 2
+        assert results.every { APSResult result -> !result.success() }
+        assert ( results[ 0 ].failure() as ReplyException ).failureType() == ReplyFailure.NO_HANDLERS
+        assert this.noHandlers.get() == 3
+
+        // Senders are never kept.
+        assert this.closedSenders.get() == 3
+    }
+
+    @Test
+    void testClusterRequestResentUntilReceiverSubscribes() throws Exception {
+
+        APSVertxBusRouter router = router()
+        RequestReplyEngine engine = new RequestReplyEngine( bus: new RouterBus( router: router ),
+                logger: new APSLogger( System.out ), retryIntervalMs: 100 )
+
+        AtomicInteger results = new AtomicInteger( 0 )
+        AtomicInteger successes = new AtomicInteger( 0 )
+        Map<String, Object> response = null
+
+        engine.request( "cluster:service", [ aps: [ type: "test" ], content: [ value: "request" ] ] as Map<String, Object>, 5,
+                { APSResult res ->
+                    results.incrementAndGet()
+                    if ( res.success() ) successes.incrementAndGet()
+                } as APSHandler<APSResult<?>>,
+                { Map<String, Object> reply -> response = reply } as APSHandler<Map<String, Object>>
+        )
+
+        // Nobody there yet, so the request keeps being resent.
+        waitFor( 10, 3000 ) { this.noHandlers.get() >= 3 }
+        assert this.noHandlers.get() >= 3
+        assert results.get() == 0
+
+        router.subscribe( new APSUUID(), "cluster:service", null ) { Map<String, Object> request ->
+
+            router.send( ( request[ 'aps' ] as Map<String, Object> )[ 'replyTarget' ] as String,
+                    [ aps: [ type: "reply" ], content: [ value: "reply" ] ] as Map<String, Object>, null )
+        }
+
+        waitFor( 10, 3000 ) { response != null }
+
+        assert ( response[ 'content' ] as Map<String, Object> )[ 'value' ] == "reply"
+        assert results.get() == 1
+        assert successes.get() == 1
+        assert engine.pendingCount == 0
+    }
+}
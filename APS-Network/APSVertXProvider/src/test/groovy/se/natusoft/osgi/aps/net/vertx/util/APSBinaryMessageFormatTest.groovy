@@ -0,0 +1,78 @@
+package se.natusoft.osgi.aps.net.vertx.util
+
+import groovy.json.JsonOutput
+import groovy.transform.CompileStatic
+import org.junit.Test
+import se.natusoft.osgi.aps.exceptions.APSValidationException
+
+import java.nio.charset.StandardCharsets
+
+@CompileStatic
+class APSBinaryMessageFormatTest {
+
+    private static Map<String, Object> testMessage() {
+        [
+                aps    : [
+                        type       : "telemetry",
+                        version    : 1.0,
+                        replyTarget: "cluster:aps.reply.1234"
+                ],
+                content: [
+                        text    : "åäö – unicode",
+                        small   : 12,
+                        negative: -7,
+                        big     : 9_000_000_000L,
+                        ratio   : 0.25d,
+                        ok      : true,
+                        nothing : null,
+                        bytes   : [ 1, 2, 3 ] as byte[],
+                        samples : ( 1..20 ).collect { int n -> [ sensor: "s${ n }".toString(), reading: n * 1.5d ] }
+                ]
+        ] as Map<String, Object>
+    }
+
+    @Test
+    void testRoundTrip() throws Exception {
+
+        Map<String, Object> message = testMessage()
+        Map<String, Object> decoded = APSBinaryMessageFormat.decode( APSBinaryMessageFormat.encode( message ) )
+
+        Map<String, Object> content = decoded[ 'content' ] as Map<String, Object>
+        assert decoded[ 'aps' ] == message[ 'aps' ]
+        assert content[ 'text' ] == "åäö – unicode"
+        assert content[ 'small' ] instanceof Integer && content[ 'small' ] == 12
+        assert content[ 'negative' ] == -7
+        assert content[ 'big' ] instanceof Long && content[ 'big' ] == 9_000_000_000L
+        assert content[ 'ratio' ] == 0.25d
+        assert content[ 'ok' ] == true
+        assert content.containsKey( 'nothing' ) && content[ 'nothing' ] == null
+        assert content[ 'bytes' ] == [ 1, 2, 3 ] as byte[]
+        assert content[ 'samples' ] == ( message[ 'content' ] as Map<String, Object> )[ 'samples' ]
+    }
+
+    @Test
+    void testSmallerThanJson() throws Exception {
+
+        Map<String, Object> message = testMessage()
+        ( message[ 'content' ] as Map<String, Object> ).remove( 'bytes' )
+
+        int binary = APSBinaryMessageFormat.encode( message ).length
+        int json = JsonOutput.toJson( message ).getBytes( StandardCharsets.UTF_8 ).length
+
+        assert binary < json * 0.75
+    }
+
+    @Test
+    void testBadData() throws Exception {
+
+        byte[] bytes = APSBinaryMessageFormat.encode( testMessage() )
+
+        try {
+            APSBinaryMessageFormat.decode( Arrays.copyOf( bytes, bytes.length - 5 ) )
+            assert false : "Truncated data should fail!"
+        }
+        catch ( APSValidationException expected ) {
+            assert expected.message.startsWith( "Bad APS binary message!" )
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package se.natusoft.osgi.aps.net.vertx.util
+
+import groovy.transform.CompileStatic
+import org.junit.Test
+import se.natusoft.osgi.aps.types.APSHandler
+
+import static se.natusoft.osgi.aps.util.APSTools.waitFor
+
+@CompileStatic
+class ExpiringLRUCacheTest {
+
+    @Test
+    void testLeastRecentlyUsedIsEvicted() throws Exception {
+
+        List<String> evicted = Collections.synchronizedList( [] )
+        ExpiringLRUCache<String> cache = new ExpiringLRUCache<>( maxSize: 2, idleMs: 0,
+                onEvict: { String value -> evicted << value } as APSHandler<String> )
+
+        int creates = 0
+        Closure<String> create = { creates++; "value-${ creates }".toString() }
+
+        assert cache.get( "a", create ) == "value-1"
+        assert cache.get( "b", create ) == "value-2"
+        assert cache.get( "a", create ) == "value-1"
+        assert creates == 2
+
+        // "b" is least recently used now.
+        cache.get( "c", create )
+        assert evicted == [ "value-2" ]
+        assert cache.size() == 2
+
+        cache.clear()
+        assert evicted.containsAll( [ "value-1", "value-3" ] )
+        assert cache.size() == 0
+    }
+
+    @Test
+    void testIdleEntriesAreEvicted() throws Exception {
+
+        List<String> evicted = Collections.synchronizedList( [] )
+        ExpiringLRUCache<String> cache = new ExpiringLRUCache<>( idleMs: 200,
+                onEvict: { String value -> evicted << value } as APSHandler<String> )
+
+        cache.get( "a" ) { "a" }
+
+        waitFor( 10, 3000 ) { !evicted.isEmpty() }
+
+        assert evicted == [ "a" ]
+        assert cache.size() == 0
+    }
+}
@@ -0,0 +1,160 @@
+package se.natusoft.osgi.aps.net.vertx.util
+
+import groovy.transform.CompileStatic
+import org.junit.Test
+import se.natusoft.osgi.aps.types.APSHandler
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+import static se.natusoft.osgi.aps.net.vertx.util.FlowControlledSubscriber.OverflowPolicy.*
+
+@CompileStatic
+class FlowControlledSubscriberTest {
+
+    /**
+     * Creates a subscriber whose handler blocks until the returned latch is released.
+     */
+    private static FlowControlledSubscriber blocked( FlowControlledSubscriber.OverflowPolicy policy, CountDownLatch release,
+                                                     List<Map<String, Object>> received ) {
+        new FlowControlledSubscriber(
+                capacity: 4,
+                overflowPolicy: policy,
+                handler: { Map<String, Object> message ->
+                    release.await( 5, TimeUnit.SECONDS )
+                    synchronized ( received ) { received << message }
+                } as APSHandler<Map<String, Object>>
+        )
+    }
+
+    private static void waitFor( Closure<Boolean> condition ) {
+        long until = System.currentTimeMillis() + 5000
+        while ( !condition.call() && System.currentTimeMillis() < until ) Thread.sleep( 5 )
+    }
+
+    @Test
+    void testPauseAndResume() throws Exception {
+
+        CountDownLatch release = new CountDownLatch( 1 )
+        List<Map<String, Object>> received = []
+        AtomicInteger paused = new AtomicInteger( 0 )
+        AtomicInteger resumed = new AtomicInteger( 0 )
+
+        FlowControlledSubscriber subscriber = blocked( PAUSE, release, received )
+        subscriber.onPause = { paused.incrementAndGet() } as Runnable
+        subscriber.onResume = { resumed.incrementAndGet() } as Runnable
+
+        // The first message is taken by the worker, which then blocks.
+        subscriber.post( [ n: 0 ] as Map<String, Object> )
+        waitFor { subscriber.queueDepth == 0 }
+
+        ( 1..4 ).each { int n -> assert subscriber.post( [ n: n ] as Map<String, Object> ) }
+
+        assert paused.get() == 1
+        assert subscriber.paused
+        // A source that can't be paused is refused when full.
+        assert !subscriber.offer( [ n: 5 ] as Map<String, Object> )
+
+        release.countDown()
+        waitFor { received.size() == 5 }
+
+        assert resumed.get() == 1
+        assert !subscriber.paused
+        assert received.collect { Map<String, Object> message -> message[ 'n' ] } == [ 0, 1, 2, 3, 4 ]
+        assert subscriber.pauses == 1
+    }
+
+    @Test
+    void testPauseRacingDrain() throws Exception {
+
+        int count = 20000
+        AtomicInteger received = new AtomicInteger( 0 )
+        AtomicBoolean sourcePaused = new AtomicBoolean( false )
+        AtomicInteger outOfOrder = new AtomicInteger( 0 )
+
+        FlowControlledSubscriber subscriber = new FlowControlledSubscriber(
+                capacity: 2,
+                overflowPolicy: PAUSE,
+                handler: { Map<String, Object> message -> received.incrementAndGet() } as APSHandler<Map<String, Object>>
+        )
+        // The sleep widens the window where the queue has been marked paused but the source not yet paused.
+        subscriber.onPause = {
+            Thread.sleep( 1 )
+            if ( !sourcePaused.compareAndSet( false, true ) ) outOfOrder.incrementAndGet()
+        } as Runnable
+        subscriber.onResume = {
+            if ( !sourcePaused.compareAndSet( true, false ) ) outOfOrder.incrementAndGet()
+        } as Runnable
+
+        // Acts like a MessageConsumer: delivers only while not paused.
+        long deadline = System.currentTimeMillis() + 10000
+        for ( int n = 0; n < count && System.currentTimeMillis() < deadline; n++ ) {
+            while ( sourcePaused.get() && System.currentTimeMillis() < deadline ) Thread.yield()
+            subscriber.post( [ n: n ] as Map<String, Object> )
+        }
+
+        waitFor { received.get() == count }
+
+        // A resume before its pause leaves the source paused for good.
+        assert outOfOrder.get() == 0
+        assert received.get() == count
+        assert !sourcePaused.get()
+        assert !subscriber.paused
+        assert subscriber.pauses > 0
+    }
+
+    @Test
+    void testDropOldest() throws Exception {
+
+        CountDownLatch release = new CountDownLatch( 1 )
+        List<Map<String, Object>> received = []
+
+        FlowControlledSubscriber subscriber = blocked( DROP_OLDEST, release, received )
+
+        subscriber.post( [ n: 0 ] as Map<String, Object> )
+        waitFor { subscriber.queueDepth == 0 }
+
+        ( 1..6 ).each { int n -> assert subscriber.offer( [ n: n ] as Map<String, Object> ) }
+
+        assert subscriber.queueDepth == 4
+        assert subscriber.dropped == 2
+
+        release.countDown()
+        waitFor { received.size() == 5 }
+
+        assert received.collect { Map<String, Object> message -> message[ 'n' ] } == [ 0, 3, 4, 5, 6 ]
+        assert subscriber.metrics[ 'dropped' ] == 2L
+    }
+
+    @Test
+    void testFail() throws Exception {
+
+        CountDownLatch release = new CountDownLatch( 1 )
+        List<Map<String, Object>> received = []
+
+        FlowControlledSubscriber subscriber = blocked( FAIL, release, received )
+
+        subscriber.post( [ n: 0 ] as Map<String, Object> )
+        waitFor { subscriber.queueDepth == 0 }
+
+        ( 1..4 ).each { int n -> assert subscriber.post( [ n: n ] as Map<String, Object> ) }
+        assert !subscriber.post( [ n: 5 ] as Map<String, Object> )
+        assert subscriber.failed == 1
+
+        release.countDown()
+        waitFor { received.size() == 5 }
+
+        assert received.size() == 5
+    }
+
+    @Test
+    void testPolicyFromConfig() throws Exception {
+
+        assert FlowControlledSubscriber.OverflowPolicy.from( "dropOldest" ) == DROP_OLDEST
+        assert FlowControlledSubscriber.OverflowPolicy.from( "fail" ) == FAIL
+        assert FlowControlledSubscriber.OverflowPolicy.from( "pause" ) == PAUSE
+        assert FlowControlledSubscriber.OverflowPolicy.from( null ) == PAUSE
+    }
+}
@@ -0,0 +1,109 @@
+package se.natusoft.osgi.aps.net.vertx.util
+
+import groovy.transform.CompileStatic
+import io.vertx.core.json.JsonArray
+import io.vertx.core.json.JsonObject
+import org.junit.Test
+import se.natusoft.osgi.aps.exceptions.APSValidationException
+
+@CompileStatic
+class RecursiveJsonObjectMapTest {
+
+    private static JsonObject testObject() {
+        new JsonObject( [
+                aps    : new JsonObject( [ type: "test" ] as Map<String, Object> ),
+                content: new JsonObject( [
+                        items: new JsonArray( [
+                                new JsonObject( [ id: 1 ] as Map<String, Object> ),
+                                new JsonObject( [ id: 2 ] as Map<String, Object> ),
+                                "text"
+                        ] )
+                ] as Map<String, Object> )
+        ] as Map<String, Object> )
+    }
+
+    @Test
+    void testWrapsAndCachesChildren() throws Exception {
+
+        Map<String, Object> message = new RecursiveJsonObjectMap( testObject() )
+
+        assert message[ 'aps' ][ 'type' ] == "test"
+        // Same wrapper every time.
+        assert message[ 'aps' ].is( message[ 'aps' ] )
+
+        List<Object> items = ( message[ 'content' ] as Map<String, Object> )[ 'items' ] as List<Object>
+        assert items instanceof RecursiveJsonArrayList
+        assert items.size() == 3
+        assert items[ 0 ] instanceof Map && ( items[ 0 ] as Map )[ 'id' ] == 1
+        assert items[ 1 ].is( items[ 1 ] )
+        assert items[ 2 ] == "text"
+    }
+
+    @Test
+    void testWrapsRawMapsAndLists() throws Exception {
+
+        // JsonObject.put(...) and JsonArray.add(...) keep a Map or List as given.
+        JsonObject jsonObject = new JsonObject( [ aps: [ type: "test" ] ] as Map<String, Object> )
+        jsonObject.put( "items", [ [ id: 1 ], "text" ] )
+
+        Map<String, Object> message = new RecursiveJsonObjectMap( jsonObject )
+
+        assert message[ 'aps' ] instanceof RecursiveJsonObjectMap
+        assert message[ 'aps' ].is( message[ 'aps' ] )
+        assert message[ 'aps' ][ 'type' ] == "test"
+
+        List<Object> items = message[ 'items' ] as List<Object>
+        assert items instanceof RecursiveJsonArrayList
+        assert items[ 0 ] instanceof RecursiveJsonObjectMap
+        assert items[ 0 ].is( items[ 0 ] )
+        assert ( items[ 0 ] as Map )[ 'id' ] == 1
+        assert items[ 1 ] == "text"
+
+        // Still read only.
+        try {
+            ( message[ 'aps' ] as Map<String, Object> ).put( "x", 1 )
+            assert false : "Should be read only!"
+        }
+        catch ( APSValidationException expected ) {}
+
+        try {
+            items.add( 1 )
+            assert false : "Should be read only!"
+        }
+        catch ( APSValidationException expected ) {}
+    }
+
+    @Test
+    void testNoRawVertxTypesLeak() throws Exception {
+
+        Map<String, Object> message = new RecursiveJsonObjectMap( testObject() )
+
+        message.values().each { Object value -> assert !( value instanceof JsonObject ) }
+        message.entrySet().each { Map.Entry<String, Object> entry -> assert entry.value instanceof RecursiveJsonObjectMap }
+        assert message == [ aps: [ type: "test" ], content: [ items: [ [ id: 1 ], [ id: 2 ], "text" ] ] ]
+    }
+
+    @Test
+    void testReadOnly() throws Exception {
+
+        Map<String, Object> message = new RecursiveJsonObjectMap( testObject() )
+
+        try {
+            message.put( "x", 1 )
+            assert false : "Should be read only!"
+        }
+        catch ( APSValidationException expected ) {}
+
+        try {
+            message.keySet().remove( "aps" )
+            assert false : "Should be read only!"
+        }
+        catch ( UnsupportedOperationException expected ) {}
+
+        try {
+            ( ( message[ 'content' ] as Map )[ 'items' ] as List ).add( 1 )
+            assert false : "Should be read only!"
+        }
+        catch ( APSValidationException expected ) {}
+    }
+}
@@ -29,6 +29,10 @@
  *     tommy ()
  *         Changes:
  *         2019-08-17: Created!
+ *         2026-10-18: Near cache.
+ *         2026-10-18: Cached map handles and bulk operations.
+ *         2026-10-18: Per key lease based locks with fencing tokens.
+ *         2026-10-18: Near cache invalidations on an address not bridged to clients.
  *
  */
 package se.natusoft.osgi.aps.datastore
@@ -36,20 +40,41 @@ package se.natusoft.osgi.aps.datastore
 import groovy.transform.CompileStatic
 import groovy.transform.TypeChecked
 import io.vertx.core.AsyncResult
+import io.vertx.core.Future
+import io.vertx.core.Handler
+import io.vertx.core.eventbus.EventBus
+import io.vertx.core.eventbus.Message
+import io.vertx.core.eventbus.MessageConsumer
 import io.vertx.core.shareddata.AsyncMap
+import io.vertx.core.shareddata.Counter
 import io.vertx.core.shareddata.Lock
 import io.vertx.core.shareddata.SharedData
+import org.osgi.framework.ServiceReference
+import se.natusoft.osgi.aps.activator.annotation.BundleStop
+import se.natusoft.osgi.aps.activator.annotation.Initializer
 import se.natusoft.osgi.aps.activator.annotation.Managed
 import se.natusoft.osgi.aps.activator.annotation.OSGiProperty
 import se.natusoft.osgi.aps.activator.annotation.OSGiService
 import se.natusoft.osgi.aps.activator.annotation.OSGiServiceProvider
 import se.natusoft.osgi.aps.api.core.store.APSLockableDataStoreService
+import se.natusoft.osgi.aps.api.messaging.APSBatchResultHandler
+import se.natusoft.osgi.aps.api.metrics.APSCounter
+import se.natusoft.osgi.aps.api.metrics.APSHistogram
+import se.natusoft.osgi.aps.api.metrics.APSMetrics
 import se.natusoft.osgi.aps.constants.APS
+import se.natusoft.osgi.aps.exceptions.APSIOTimeoutException
+import se.natusoft.osgi.aps.exceptions.APSInvalidException
 import se.natusoft.osgi.aps.exceptions.APSValidationException
+import se.natusoft.osgi.aps.tracker.APSServiceTracker
 import se.natusoft.osgi.aps.types.APSHandler
 import se.natusoft.osgi.aps.types.APSLockable
 import se.natusoft.osgi.aps.types.APSResult
 import se.natusoft.osgi.aps.util.APSLogger
+import se.natusoft.osgi.aps.util.APSWheelTimer
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
 
 @SuppressWarnings("GroovyUnusedDeclaration")
 @OSGiServiceProvider(
@@ -63,6 +88,24 @@ import se.natusoft.osgi.aps.util.APSLogger
 @CompileStatic
 class APSVertxClusterDataStoreServiceProvider implements APSLockableDataStoreService {
 
+    //
+    // Constants
+    //
+
+    /**
+     * The address near cache invalidations are published on. The body is the changed key.
+     *
+     * This is deliberately outside of the "aps." namespace, which the default event bus bridge
+     * config opens to clients. Clients must neither see the keys nor be able to publish invalidations.
+     */
+    static final String INVALIDATION_ADDRESS = "internal.datastore.nearcache.invalidate"
+
+    /** Prefixed to a key to get the name of its cluster wide lock. */
+    static final String LOCK_PREFIX = "aps.datastore.lock."
+
+    /** Prefixed to a key to get the name of the cluster wide counter providing its fencing tokens. */
+    static final String FENCE_PREFIX = "aps.datastore.fence."
+
     //
     // Private Members
     //
@@ -73,10 +116,91 @@ class APSVertxClusterDataStoreServiceProvider implements APSLockableDataStoreSer
     @OSGiService(additionalSearchCriteria = "(vertx-object=SharedData)", timeout = "15 sec", nonBlocking = true)
     private SharedData sharedData
 
+    /** Lock wait and hold times are recorded when this is available. */
+    @OSGiService( serviceAPI = APSMetrics.class )
+    private APSServiceTracker<APSMetrics> metricsTracker
+
+    /** The current metrics service, or null. */
+    private volatile APSMetrics metrics
+
+    /** The max time lock(...) waits for a lock. */
+    private long lockTimeoutMs = Long.getLong( "aps.datastore.lock.timeout", 10000 )
+
+    /** The lease of locks acquired by lock(...). */
+    private long lockLeaseMs = Long.getLong( "aps.datastore.lock.lease", 30000 )
+
+    /** The resolved cluster wide maps by name. */
+    private Map<String, AsyncMap<String, Object>> asyncMaps = new ConcurrentHashMap<>()
+
+    /** Invalidations of near caches are published and received on this. */
+    @OSGiService(additionalSearchCriteria = "(vertx-object=EventBus)", timeout = "15 sec")
+    private APSServiceTracker<EventBus> eventBusTracker
+
+    /** The current EventBus. Near caches are only used while this is available. */
+    private volatile EventBus eventBus
+
+    /** Receives invalidations. */
+    private MessageConsumer<String> invalidationConsumer
+
+    /**
+     * The near caches of configured store-client-key prefixes, longest prefix first. The config is
+     * comma separated "prefix[:maxSize[:ttlMs]]" entries, like "config:1000:60000". None by default.
+     */
+    private List<NearCache> nearCaches = NearCache.fromConfig( System.getProperty( "aps.datastore.nearcache" ) )
+
     //
     // Methods
     //
 
+    /**
+     * Tracks the APSMetrics service, and the EventBus, which also tells when Vert.x is restarted, making
+     * resolved maps invalid. Near cache invalidations are received while the EventBus is available.
+     */
+    @Initializer
+    void init() {
+
+        this.metricsTracker.onActiveServiceAvailable { APSMetrics service, ServiceReference serviceReference ->
+            this.metrics = service
+        }
+        this.metricsTracker.onActiveServiceLeaving { ServiceReference service, Class serviceAPI ->
+            this.metrics = null
+        }
+
+        this.eventBusTracker.onActiveServiceAvailable { EventBus service, ServiceReference serviceReference ->
+
+            this.asyncMaps.clear()
+
+            if ( !this.nearCaches.isEmpty() ) {
+
+                // Whatever was changed while we had no EventBus has not been invalidated.
+                this.nearCaches.each { NearCache cache -> cache.clear() }
+
+                this.invalidationConsumer = service.consumer( INVALIDATION_ADDRESS ) { Message<String> msg ->
+                    invalidate( msg.body() )
+                }
+            }
+            this.eventBus = service
+        }
+        this.eventBusTracker.onActiveServiceLeaving { ServiceReference service, Class serviceAPI ->
+
+            this.eventBus = null
+            this.invalidationConsumer = null
+            this.asyncMaps.clear()
+            this.nearCaches.each { NearCache cache -> cache.clear() }
+        }
+    }
+
+    /**
+     * Stops receiving near cache invalidations.
+     */
+    @BundleStop
+    void cleanup() {
+        this.invalidationConsumer?.unregister()
+        this.invalidationConsumer = null
+        this.eventBus = null
+        this.asyncMaps.clear()
+    }
+
     /**
      * Stores a value in the store.
      *
@@ -94,27 +218,62 @@ class APSVertxClusterDataStoreServiceProvider implements APSLockableDataStoreSer
     @Override
     void store( String key, Object value, APSHandler<APSResult> result ) {
 
-        String[] keyParts = key.split( "\\." )
-        if ( keyParts.length < 2 ) {
-            throw new APSValidationException( "Bad key value! Must be in store-client-key.map-key format!" )
-        }
+        String mapName = mapName( key )
 
-        this.sharedData.getClusterWideMap( keyParts[ 0 ] ) { AsyncResult<AsyncMap<String, Object>> mres ->
-            mres.result().put( keyParts[ 1 ], value ) { AsyncResult pres ->
-                if ( pres.failed() ) {
-                    try {
-                        result.handle( APSResult.failure( pres.cause() as Exception ) )
-                    }
-                    finally {
-                        this.logger.error( "Store of value with key '${key}' failed!", pres.cause() )
-                    }
-                }
+        asyncMap( mapName ) { AsyncResult<AsyncMap<String, Object>> mres ->
+
+            if ( mres.failed() ) {
+                result.handle( failure( key, mres ) )
+                return
+            }
 
-                else if ( pres.succeeded() ) {
+            mres.result().put( mapKey( key ), value ) { AsyncResult pres ->
+                if ( pres.succeeded() ) {
+                    publishInvalidation( mapName, key )
                     result.handle( APSResult.success( null ) )
                 }
                 else {
-                    this.logger.error( "Apparently Vertx SharedData operation can neither fail nor succeed!" )
+                    result.handle( failure( key, pres, mapName ) )
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores several values, pipelining the stores to each map.
+     *
+     * @param values The values to store by key. See store(...) for the key format.
+     * @param result Called once when all are stored, with the first failure if any failed.
+     *
+     * @throws APSValidationException on bad key format. This is validated for all keys before any
+     *                                async operations!
+     */
+    @Override
+    void storeAll( Map<String, Object> values, APSHandler<APSResult> result ) {
+
+        Map<String, List<String>> keysByMap = keysByMap( values.keySet() )
+        APSBatchResultHandler batch = new APSBatchResultHandler( values.size(), result )
+
+        keysByMap.each { String mapName, List<String> keys ->
+
+            asyncMap( mapName ) { AsyncResult<AsyncMap<String, Object>> mres ->
+
+                keys.each { String key ->
+
+                    if ( mres.failed() ) {
+                        batch.handle( failure( key, mres ) )
+                        return
+                    }
+
+                    mres.result().put( mapKey( key ), values[ key ] ) { AsyncResult pres ->
+                        if ( pres.succeeded() ) {
+                            publishInvalidation( mapName, key )
+                            batch.handle( APSResult.success( null ) )
+                        }
+                        else {
+                            batch.handle( failure( key, pres, mapName ) )
+                        }
+                    }
                 }
             }
         }
@@ -128,14 +287,103 @@ class APSVertxClusterDataStoreServiceProvider implements APSLockableDataStoreSer
      */
     @Override
     void retrieve( String key, APSHandler<APSResult<Object>> result ) {
-        String[] keyParts = key.split( "\\." )
-        if ( keyParts.length < 2 ) {
-            throw new APSValidationException( "Bad key value! Must be in store-client-key.map-key format!" )
+
+        String mapName = mapName( key )
+        NearCache nearCache = nearCache( mapName )
+
+        if ( nearCache != null ) {
+
+            NearCache.Entry cached = nearCache.get( key )
+            if ( cached != null ) {
+                result.handle( APSResult.success( cached.value ) )
+                return
+            }
+        }
+
+        long generation = nearCache != null ? nearCache.generation : 0
+
+        asyncMap( mapName ) { AsyncResult<AsyncMap<String, Object>> mres ->
+
+            if ( mres.failed() ) {
+                result.handle( failure( key, mres ) )
+                return
+            }
+
+            mres.result().get( mapKey( key ) ) { AsyncResult<Object> valueRes ->
+                if ( nearCache != null && valueRes.succeeded() ) {
+                    nearCache.put( key, valueRes.result(), generation )
+                }
+                handleValueResult( key, valueRes, mapName, result )
+            }
         }
+    }
+
+    /**
+     * Retrieves several values, pipelining the retrievals from each map.
+     *
+     * @param keys The keys of the values to retrieve. See store(...) for the key format.
+     * @param handler Called once when all are retrieved, with the values by key, or with the first
+     *                failure if any failed. Keys without value map to null.
+     *
+     * @throws APSValidationException on bad key format. This is validated for all keys before any
+     *                                async operations!
+     */
+    @Override
+    void retrieveAll( Collection<String> keys, APSHandler<APSResult<Map<String, Object>>> handler ) {
+
+        Map<String, List<String>> keysByMap = keysByMap( keys )
+        Map<String, Object> values = Collections.synchronizedMap( new LinkedHashMap<String, Object>() )
 
-        this.sharedData.getClusterWideMap( keyParts[ 0 ] ) { AsyncResult<AsyncMap<String, Object>> mres ->
-            mres.result().get( keyParts[ 1 ] ) { AsyncResult<Object> valueRes ->
-                handleValueResult( key, valueRes, result )
+        APSBatchResultHandler batch = new APSBatchResultHandler( count( keysByMap ), { APSResult res ->
+            if ( res.success() ) {
+                handler.handle( APSResult.success( values ) )
+            }
+            else {
+                handler.handle( APSResult.<Map<String, Object>> failure( res.failure() ) )
+            }
+        } as APSHandler<APSResult> )
+
+        keysByMap.each { String mapName, List<String> mapKeys ->
+
+            NearCache nearCache = nearCache( mapName )
+            long generation = nearCache != null ? nearCache.generation : 0
+
+            List<String> toFetch = mapKeys
+            if ( nearCache != null ) {
+                toFetch = []
+                mapKeys.each { String key ->
+                    NearCache.Entry cached = nearCache.get( key )
+                    if ( cached != null ) {
+                        values[ key ] = cached.value
+                        batch.handle( APSResult.success( null ) )
+                    }
+                    else {
+                        toFetch << key
+                    }
+                }
+                if ( toFetch.isEmpty() ) return
+            }
+
+            asyncMap( mapName ) { AsyncResult<AsyncMap<String, Object>> mres ->
+
+                toFetch.each { String key ->
+
+                    if ( mres.failed() ) {
+                        batch.handle( failure( key, mres ) )
+                        return
+                    }
+
+                    mres.result().get( mapKey( key ) ) { AsyncResult<Object> valueRes ->
+                        if ( valueRes.succeeded() ) {
+                            nearCache?.put( key, valueRes.result(), generation )
+                            values[ key ] = valueRes.result()
+                            batch.handle( APSResult.success( null ) )
+                        }
+                        else {
+                            batch.handle( failure( key, valueRes, mapName ) )
+                        }
+                    }
+                }
             }
         }
     }
@@ -148,37 +396,228 @@ class APSVertxClusterDataStoreServiceProvider implements APSLockableDataStoreSer
      */
     @Override
     void remove( String key, APSHandler<APSResult<Object>> result ) {
-        String[] keyParts = key.split( "\\." )
 
-        if ( keyParts.length < 2 ) {
+        String mapName = mapName( key )
+
+        asyncMap( mapName ) { AsyncResult<AsyncMap<String, Object>> mres ->
+
+            if ( mres.failed() ) {
+                result.handle( failure( key, mres ) )
+                return
+            }
+
+            mres.result().remove( mapKey( key ) ) { AsyncResult<Object> valueRes ->
+
+                if ( valueRes.succeeded() ) {
+                    publishInvalidation( mapName, key )
+                }
+                handleValueResult( key, valueRes, mapName, result )
+            }
+        }
+    }
+
+    /**
+     * Removes several values, pipelining the removals from each map.
+     *
+     * @param keys The keys of the values to remove. See store(...) for the key format.
+     * @param result Called once when all are removed, with the first failure if any failed.
+     *
+     * @throws APSValidationException on bad key format. This is validated for all keys before any
+     *                                async operations!
+     */
+    @Override
+    void removeAll( Collection<String> keys, APSHandler<APSResult> result ) {
+
+        Map<String, List<String>> keysByMap = keysByMap( keys )
+        APSBatchResultHandler batch = new APSBatchResultHandler( count( keysByMap ), result )
+
+        keysByMap.each { String mapName, List<String> mapKeys ->
+
+            asyncMap( mapName ) { AsyncResult<AsyncMap<String, Object>> mres ->
+
+                mapKeys.each { String key ->
+
+                    if ( mres.failed() ) {
+                        batch.handle( failure( key, mres ) )
+                        return
+                    }
+
+                    mres.result().remove( mapKey( key ) ) { AsyncResult<Object> valueRes ->
+                        if ( valueRes.succeeded() ) {
+                            publishInvalidation( mapName, key )
+                            batch.handle( APSResult.success( null ) )
+                        }
+                        else {
+                            batch.handle( failure( key, valueRes, mapName ) )
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the store-client-key part of a key, which is the name of the cluster wide map holding it.
+     *
+     * This is called for every operation, so it does an indexOf(...) rather than a split(...).
+     *
+     * @param key The key to get the map name of.
+     *
+     * @throws APSValidationException if the key is not in store-client-key.map-key format.
+     */
+    private static String mapName( String key ) {
+
+        int dot = key.indexOf( "." )
+        if ( dot <= 0 || dot == key.length() - 1 ) {
             throw new APSValidationException( "Bad key value! Must be in store-client-key.map-key format!" )
         }
 
-        this.sharedData.getClusterWideMap( keyParts[ 0 ] ) { AsyncResult<AsyncMap<String, Object>> mres ->
+        key.substring( 0, dot )
+    }
+
+    /**
+     * Returns the map-key part of a valid key, which is everything after the first dot.
+     *
+     * @param key The key to get the map key of.
+     */
+    private static String mapKey( String key ) {
+        key.substring( key.indexOf( "." ) + 1 )
+    }
+
+    /**
+     * Groups keys by map name, validating all of them, and dropping duplicates.
+     *
+     * @param keys The keys to group.
+     *
+     * @throws APSValidationException if any key is not in store-client-key.map-key format.
+     */
+    private static Map<String, List<String>> keysByMap( Collection<String> keys ) {
+
+        Map<String, Set<String>> grouped = new LinkedHashMap<>()
+
+        keys.each { String key ->
+            grouped.computeIfAbsent( mapName( key ) ) { new LinkedHashSet<String>() }.add( key )
+        }
 
-            mres.result().remove( keyParts[ 1 ] ) { AsyncResult<Object> valueRes ->
+        Map<String, List<String>> keysByMap = new LinkedHashMap<>()
+        grouped.each { String mapName, Set<String> mapKeys -> keysByMap[ mapName ] = new ArrayList<String>( mapKeys ) }
 
-                handleValueResult( key, valueRes, result )
+        keysByMap
+    }
+
+    /**
+     * @return The total number of keys of grouped keys.
+     *
+     * @param keysByMap The grouped keys.
+     */
+    private static int count( Map<String, List<String>> keysByMap ) {
+        int count = 0
+        keysByMap.values().each { List<String> mapKeys -> count += mapKeys.size() }
+
+        count
+    }
+
+    /**
+     * Provides the cluster wide map of a name. Resolved maps are cached, so only the first operation on
+     * a map pays for getClusterWideMap(...).
+     *
+     * @param name The name of the map.
+     * @param handler Receives the map.
+     */
+    private void asyncMap( String name, Handler<AsyncResult<AsyncMap<String, Object>>> handler ) {
+
+        AsyncMap<String, Object> map = this.asyncMaps.get( name )
+
+        if ( map != null ) {
+            handler.handle( Future.succeededFuture( map ) )
+        }
+        else {
+            this.sharedData.getClusterWideMap( name ) { AsyncResult<AsyncMap<String, Object>> mres ->
+                if ( mres.succeeded() ) {
+                    this.asyncMaps.putIfAbsent( name, mres.result() )
+                }
+                handler.handle( mres )
             }
         }
     }
 
+    /**
+     * Logs and returns a failure.
+     *
+     * @param key The key of the failed operation.
+     * @param res The failed result.
+     * @param mapName If not null the cached map of this name is dropped, to be resolved again by the next
+     *                operation in case the failure was due to it.
+     */
+    private <T> APSResult<T> failure( String key, AsyncResult res, String mapName = null ) {
+
+        if ( mapName != null ) {
+            this.asyncMaps.remove( mapName )
+        }
+
+        this.logger.error( "Operation on value with key '${key}' failed!", res.cause() )
+
+        APSResult.failure( res.cause() )
+    }
+
+    /**
+     * Returns the near cache of a store-client-key, or null if it is not cached.
+     *
+     * @param storeClientKey The first part of a key.
+     */
+    private NearCache nearCache( String storeClientKey ) {
+
+        // No near caching without invalidations.
+        if ( this.eventBus == null ) return null
+
+        this.nearCaches.find { NearCache cache -> cache.caches( storeClientKey ) }
+    }
+
+    /**
+     * Invalidates a changed key in the near cache of this node, and publishes the invalidation to all
+     * other nodes.
+     *
+     * @param storeClientKey The first part of the key.
+     * @param key The changed key.
+     */
+    private void publishInvalidation( String storeClientKey, String key ) {
+
+        if ( !this.nearCaches.any { NearCache cache -> cache.caches( storeClientKey ) } ) return
+
+        invalidate( key )
+
+        EventBus bus = this.eventBus
+        if ( bus != null ) {
+            bus.publish( INVALIDATION_ADDRESS, key )
+        }
+    }
+
+    /**
+     * Invalidates a key in the near cache caching it.
+     *
+     * @param key The changed key.
+     */
+    private void invalidate( String key ) {
+
+        int dot = key.indexOf( '.' )
+        if ( dot < 0 ) return
+
+        String storeClientKey = key.substring( 0, dot )
+        this.nearCaches.find { NearCache cache -> cache.caches( storeClientKey ) }?.invalidate( key )
+    }
+
     /**
      * Common handling of result value from get() and remove().
      *
      * @param key The original key passed.
      * @param valueRes The value result.
+     * @param mapName The name of the map operated on.
      * @param result The final result handler to call with result.
      */
-    private void handleValueResult( String key, AsyncResult valueRes, APSHandler<APSResult> result ) {
+    private void handleValueResult( String key, AsyncResult valueRes, String mapName, APSHandler<APSResult> result ) {
         if ( valueRes.failed() ) {
 
-            try {
-                result.handle( APSResult.failure( valueRes.cause() as Exception ) )
-            }
-            finally {
-                this.logger.error( "Failed to fetch value for key '${key}'!", valueRes.cause() )
-            }
+            result.handle( failure( key, valueRes, mapName ) )
         }
 
         else if ( valueRes.succeeded() ) {
@@ -191,70 +630,203 @@ class APSVertxClusterDataStoreServiceProvider implements APSLockableDataStoreSer
     }
 
     /**
-     * Acquires a lock, and on success also provides an APSLock instance. Do note that even if the APSLock instance
-     * is not used to release the lock, the lock should be released before the return of this method call!
+     * Acquires a lock of a key, waiting at most aps.datastore.lock.timeout milliseconds (default 10 seconds)
+     * for it. The lock is held until released, or until its lease of aps.datastore.lock.lease milliseconds
+     * (default 30 seconds) expires.
      *
-     * @param lockId Something that identifies what to be locked.
+     * @param lockId The key to lock, in store-client-key.map-key format.
      * @param resultHandler A handler in which whatever is locked can be used if result indicates success.
      */
     @Override
     void lock( Object lockId, APSHandler<APSResult<APSLock>> resultHandler ) {
-        String[] keyParts = lockId.toString().split( "\\." )
+        tryLock( lockId, this.lockTimeoutMs, this.lockLeaseMs, resultHandler )
+    }
 
-        if ( keyParts.length < 2 ) {
-            throw new APSValidationException( "Bad key value! Must be in store-client-key.map-key format!" )
-        }
+    /**
+     * Acquires a lock of a key, waiting at most timeoutMs for it. The lock is held until released, or until
+     * leaseMs has passed.
+     *
+     * Each key has its own cluster wide lock, and a cluster wide counter providing the fencing tokens.
+     * Lock wait and hold times are recorded per store-client-key, as aps.datastore.lock.wait.<store-client-key>
+     * and aps.datastore.lock.hold.<store-client-key>, when an APSMetrics service is available.
+     *
+     * @param lockId The key to lock, in store-client-key.map-key format.
+     * @param timeoutMs The max time to wait for the lock.
+     * @param leaseMs The max time to hold the lock. 0 or less means until released.
+     * @param resultHandler A handler in which whatever is locked can be used if result indicates success.
+     *
+     * @throws APSValidationException on bad key format.
+     */
+    @Override
+    void tryLock( Object lockId, long timeoutMs, long leaseMs, APSHandler<APSResult<APSLock>> resultHandler ) {
 
-        this.sharedData.getLock( keyParts[ 0 ] ) { AsyncResult<Lock> mapLock ->
+        String key = lockId.toString()
+        String mapName = mapName( key )
+        long start = System.nanoTime()
 
-            if ( mapLock.succeeded() ) {
+        this.sharedData.getLockWithTimeout( LOCK_PREFIX + key, timeoutMs ) { AsyncResult<Lock> lockRes ->
 
-                Lock lock = mapLock.result()
+            if ( lockRes.failed() ) {
+                this.metrics?.counter( "aps.datastore.lock.timeouts.${ mapName }".toString() )?.increment()
+                resultHandler.handle( APSResult.failure(
+                        new APSIOTimeoutException( "Failed to acquire lock '${ key }' within ${ timeoutMs }ms!", lockRes.cause() )
+                ) )
+                return
+            }
 
-                try {
+            this.metrics?.histogram( "aps.datastore.lock.wait.${ mapName }".toString() )?.recordSince( start )
 
-                    resultHandler.handle( APSResult.success( (APSLock) new VxLock( lock: lock ) ) )
-                }
-                catch ( IllegalStateException ise ) {
-                    //handleISE( ise )
-                    resultHandler.handle( APSResult.failure( ise ) )
-                }
-                finally {
+            Lock lock = lockRes.result()
 
-                    // Note that there is no way to check if this has already been released! I'm assuming
-                    // that the release() call can be made multiple times without throwing an exception, or
-                    // otherwise failing.
+            nextFencingToken( key ) { AsyncResult<Long> tokenRes ->
+
+                if ( tokenRes.failed() ) {
                     lock.release()
+                    resultHandler.handle( APSResult.failure( tokenRes.cause() ) )
+                    return
                 }
 
+                VxLock vxLock = new VxLock(
+                        lock: lock,
+                        fencingToken: tokenRes.result(),
+                        holdTime: this.metrics?.histogram( "aps.datastore.lock.hold.${ mapName }".toString() ),
+                        expired: this.metrics?.counter( "aps.datastore.lock.expired.${ mapName }".toString() )
+                )
+                vxLock.startLease( leaseMs )
+
+                try {
+                    resultHandler.handle( APSResult.success( (APSLock) vxLock ) )
+                }
+                catch ( Exception e ) {
+                    // The handler will never get to release it.
+                    vxLock.release( null )
+                    this.logger.error( "Lock handler for '${ key }' failed! Lock released.", e )
+                }
             }
+        }
+    }
 
+    /**
+     * Provides the next fencing token of a key.
+     *
+     * @param key The locked key.
+     * @param handler Receives the token.
+     */
+    private void nextFencingToken( String key, Handler<AsyncResult<Long>> handler ) {
+
+        this.sharedData.getCounter( FENCE_PREFIX + key ) { AsyncResult<Counter> counterRes ->
+
+            if ( counterRes.failed() ) {
+                handler.handle( Future.<Long> failedFuture( counterRes.cause() ) )
+            }
             else {
-                resultHandler.handle( APSResult.failure( mapLock.cause(  ) ))
+                counterRes.result().incrementAndGet( handler )
             }
         }
-
     }
 
 }
 
 /**
  * Provides an implementation of APSLock.
+ *
+ * The Vert.x lock is released on release(...) or when the lease expires, whichever comes first. Only
+ * the first of these has any effect.
  */
 @CompileStatic
 class VxLock implements APSLockable.APSLock {
 
+    //
+    // Properties
+    //
+
+    /** The held Vert.x lock. */
     Lock lock
 
+    /** The fencing token of this acquisition. */
+    long fencingToken
+
+    /** Records the time held if not null. */
+    APSHistogram holdTime
+
+    /** Counts expired leases if not null. */
+    APSCounter expired
+
+    //
+    // Private Members
+    //
+
+    /** Set when released by either release(...) or lease expiry. */
+    private AtomicBoolean released = new AtomicBoolean( false )
+
+    /** When acquired. */
+    private long acquiredNanos = System.nanoTime()
+
+    /** The scheduled lease expiry, if any. */
+    private volatile APSWheelTimer.Timeout lease
+
+    //
+    // Methods
+    //
+
+    /**
+     * Schedules release of the lock when the lease expires.
+     *
+     * @param leaseMs The lease time. 0 or less means no lease.
+     */
+    void startLease( long leaseMs ) {
+
+        if ( leaseMs > 0 ) {
+            this.lease = APSWheelTimer.shared().schedule( {
+                if ( free() ) {
+                    this.expired?.increment()
+                }
+            } as Runnable, leaseMs, TimeUnit.MILLISECONDS )
+        }
+    }
+
+    /**
+     * @return true if neither released nor expired.
+     */
+    boolean isHeld() {
+        !this.released.get()
+    }
+
+    /**
+     * Releases the lock.
+     *
+     * @param resultHandler Receives success, or a failure if the lease had already expired. An expired
+     *                      lease means that whatever was done while thinking the lock was held might
+     *                      not have been protected by it. Can be null.
+     */
     @Override
     void release( APSHandler<APSResult> resultHandler ) {
-        this.lock.release()
-        if ( resultHandler != null ) {
-            resultHandler.handle( APSResult.success( null ) )
+
+        if ( free() ) {
+            resultHandler?.handle( APSResult.success( null ) )
+        }
+        else {
+            resultHandler?.handle( APSResult.failure( new APSInvalidException( "Lock lease expired before release!" ) ) )
         }
     }
 
+    /**
+     * Releases the Vert.x lock if not already released.
+     *
+     * @return true if released by this call.
+     */
+    private boolean free() {
+
+        if ( !this.released.compareAndSet( false, true ) ) return false
+
+        this.lease?.cancel()
+        this.lock.release()
+        this.holdTime?.recordSince( this.acquiredNanos )
+
+        true
+    }
+
     String toString() {
-        "{ lock: ${this.lock} }"
+        "{ lock: ${this.lock}, fencingToken: ${this.fencingToken} }"
     }
 }
@@ -0,0 +1,240 @@
+/*
+ *
+ * PROJECT
+ *     Name
+ *         APS Vertx Cluster DataStore Service Provider
+ *
+ *     Code Version
+ *         1.0.0
+ *
+ * COPYRIGHTS
+ *     Copyright (C) 2012 by Natusoft AB All rights reserved.
+ *
+ * LICENSE
+ *     Apache 2.0 (Open Source)
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ * AUTHORS
+ *     tommy ()
+ *         Changes:
+ *         2026-10-18: Created!
+ *
+ */
+package se.natusoft.osgi.aps.datastore
+
+import groovy.transform.CompileStatic
+import se.natusoft.docutations.NotNull
+import se.natusoft.docutations.Nullable
+
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * A size bounded, time limited per node cache of cluster data store values, for keys that are read
+ * much more often than they change, like configuration.
+ *
+ * The least recently used entry is evicted when full, and entries older than ttlMs are treated as
+ * missing. Absent values are also cached. Entries are invalidated by the data store on each store
+ * and remove made anywhere in the cluster. ttlMs bounds staleness if such an invalidation is lost.
+ *
+ * A value fetched while an invalidation happened is not cached since it can be older than the
+ * invalidation. This is checked with the generation, which is taken before the fetch and passed to
+ * put(...).
+ */
+@CompileStatic
+class NearCache {
+
+    //
+    // Constants
+    //
+
+    /** The max size used if not configured. */
+    static final int DEFAULT_MAX_SIZE = 1000
+
+    /** The time to live used if not configured. */
+    static final long DEFAULT_TTL_MS = 30000
+
+    //
+    // Properties
+    //
+
+    /** The store-client-key prefix of the keys to cache. */
+    String prefix = ""
+
+    /** The max number of entries. */
+    int maxSize = DEFAULT_MAX_SIZE
+
+    /** Entries older than this are not used. */
+    long ttlMs = DEFAULT_TTL_MS
+
+    //
+    // Private Members
+    //
+
+    /** Access ordered, so the eldest entry is the least recently used. Guarded by this. */
+    private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>( 16, 0.75f, true )
+
+    /** Incremented by each invalidation. Guarded by this. */
+    private long generation = 0
+
+    /** The number of lookups that found a value. */
+    private LongAdder hits = new LongAdder()
+
+    /** The number of lookups that did not find a value. */
+    private LongAdder misses = new LongAdder()
+
+    //
+    // Methods
+    //
+
+    /**
+     * Parses a near cache configuration of comma separated "prefix[:maxSize[:ttlMs]]" entries.
+     *
+     * @param config The configuration to parse. Can be null.
+     *
+     * @return One NearCache per entry, longest prefix first.
+     */
+    static List<NearCache> fromConfig( @Nullable String config ) {
+
+        List<NearCache> caches = []
+
+        config?.split( "," )?.each { String entry ->
+
+            String[] parts = entry.trim().split( ":" )
+
+            if ( !parts[ 0 ].isEmpty() ) {
+                caches << new NearCache(
+                        prefix: parts[ 0 ],
+                        maxSize: parts.length > 1 ? Integer.valueOf( parts[ 1 ].trim() ) : DEFAULT_MAX_SIZE,
+                        ttlMs: parts.length > 2 ? Long.valueOf( parts[ 2 ].trim() ) : DEFAULT_TTL_MS
+                )
+            }
+        }
+
+        caches.sort { NearCache a, NearCache b -> b.prefix.length() <=> a.prefix.length() }
+    }
+
+    /**
+     * Returns true if this caches keys with the specified store-client-key.
+     *
+     * @param storeClientKey The first part of a data store key.
+     */
+    boolean caches( @NotNull String storeClientKey ) {
+        storeClientKey.startsWith( this.prefix )
+    }
+
+    /**
+     * Looks up a cached entry.
+     *
+     * @param key The full data store key.
+     *
+     * @return The entry or null if not cached or too old.
+     */
+    @Nullable
+    synchronized Entry get( @NotNull String key ) {
+
+        Entry entry = this.entries.get( key )
+
+        if ( entry != null && entry.expires < System.currentTimeMillis() ) {
+            this.entries.remove( key )
+            entry = null
+        }
+
+        ( entry != null ? this.hits : this.misses ).increment()
+
+        entry
+    }
+
+    /**
+     * @return The current generation, to pass to put(...) when the fetched value is available.
+     */
+    synchronized long getGeneration() {
+        this.generation
+    }
+
+    /**
+     * Caches a fetched value unless an invalidation has happened since the fetch started.
+     *
+     * @param key The full data store key.
+     * @param value The fetched value. Can be null.
+     * @param generation The generation when the fetch started.
+     */
+    synchronized void put( @NotNull String key, @Nullable Object value, long generation ) {
+
+        if ( generation != this.generation ) return
+
+        this.entries.put( key, new Entry( value: value, expires: System.currentTimeMillis() + this.ttlMs ) )
+
+        if ( this.entries.size() > this.maxSize ) {
+            Iterator<Entry> eldest = this.entries.values().iterator()
+            eldest.next()
+            eldest.remove()
+        }
+    }
+
+    /**
+     * Invalidates a cached entry.
+     *
+     * @param key The full data store key.
+     */
+    synchronized void invalidate( @NotNull String key ) {
+        ++this.generation
+        this.entries.remove( key )
+    }
+
+    /**
+     * Invalidates all cached entries.
+     */
+    synchronized void clear() {
+        ++this.generation
+        this.entries.clear()
+    }
+
+    /**
+     * @return The number of cached entries.
+     */
+    synchronized int size() {
+        this.entries.size()
+    }
+
+    /**
+     * @return The number of lookups that found a value.
+     */
+    long getHits() {
+        this.hits.sum()
+    }
+
+    /**
+     * @return The number of lookups that did not find a value.
+     */
+    long getMisses() {
+        this.misses.sum()
+    }
+
+    //
+    // Inner Classes
+    //
+
+    /**
+     * A cached value.
+     */
+    @CompileStatic
+    static class Entry {
+
+        /** The value, which is null if there is none in the store. */
+        Object value
+
+        /** When this entry is too old. */
+        long expires
+    }
+}
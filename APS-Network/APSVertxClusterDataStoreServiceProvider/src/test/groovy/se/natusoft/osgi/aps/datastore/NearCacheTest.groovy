@@ -0,0 +1,63 @@
+package se.natusoft.osgi.aps.datastore
+
+import groovy.transform.CompileStatic
+import org.junit.Test
+
+@CompileStatic
+class NearCacheTest {
+
+    @Test
+    void testConfigIsParsedLongestPrefixFirst() throws Exception {
+
+        List<NearCache> caches = NearCache.fromConfig( "config:10:500, config-ui, " )
+
+        assert caches.size() == 2
+        assert caches[ 0 ].prefix == "config-ui"
+        assert caches[ 0 ].maxSize == NearCache.DEFAULT_MAX_SIZE
+        assert caches[ 1 ].prefix == "config"
+        assert caches[ 1 ].maxSize == 10
+        assert caches[ 1 ].ttlMs == 500
+        assert caches[ 1 ].caches( "configuration" )
+        assert !caches[ 1 ].caches( "other" )
+
+        assert NearCache.fromConfig( null ).isEmpty()
+    }
+
+    @Test
+    void testLeastRecentlyUsedAndExpiredAreEvicted() throws Exception {
+
+        NearCache cache = new NearCache( prefix: "config", maxSize: 2, ttlMs: 100 )
+
+        cache.put( "config.a", "a", cache.generation )
+        cache.put( "config.b", null, cache.generation )
+        assert cache.get( "config.a" ).value == "a"
+        assert cache.get( "config.b" ).value == null // Absent values are cached too.
+
+        // "a" is least recently used now.
+        cache.get( "config.b" )
+        cache.put( "config.c", "c", cache.generation )
+        assert cache.get( "config.a" ) == null
+        assert cache.size() == 2
+        assert cache.hits == 3
+        assert cache.misses == 1
+
+        Thread.sleep( 150 )
+        assert cache.get( "config.c" ) == null
+    }
+
+    @Test
+    void testValueFetchedDuringInvalidationIsNotCached() throws Exception {
+
+        NearCache cache = new NearCache( prefix: "config" )
+
+        cache.put( "config.a", "old", cache.generation )
+
+        long generation = cache.generation
+        cache.invalidate( "config.a" )
+        cache.put( "config.a", "old", generation )
+        assert cache.get( "config.a" ) == null
+
+        cache.put( "config.a", "new", cache.generation )
+        assert cache.get( "config.a" ).value == "new"
+    }
+}
@@ -0,0 +1,150 @@
+package se.natusoft.osgi.aps.datastore
+
+import groovy.transform.CompileDynamic
+import groovy.transform.CompileStatic
+import io.vertx.core.AsyncResult
+import io.vertx.core.Future
+import io.vertx.core.Handler
+import io.vertx.core.shareddata.Counter
+import io.vertx.core.shareddata.Lock
+import io.vertx.core.shareddata.SharedData
+import org.junit.Test
+import se.natusoft.osgi.aps.exceptions.APSInvalidException
+import se.natusoft.osgi.aps.types.APSLockable
+import se.natusoft.osgi.aps.types.APSResult
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+import static se.natusoft.osgi.aps.util.APSTools.waitFor
+
+@CompileStatic
+class VxLockTest {
+
+    /** The number of times the underlying lock has been released. */
+    private AtomicInteger releases = new AtomicInteger( 0 )
+
+    /** Set while the fake cluster wide lock is held. */
+    private volatile boolean locked = false
+
+    /** The fake cluster wide fencing counter. */
+    private AtomicLong fence = new AtomicLong( 0 )
+
+    private Lock lock() {
+        return { -> this.releases.incrementAndGet(); this.locked = false } as Lock
+    }
+
+    /**
+     * Fake SharedData providing a lock that is either free or fails at once, and a counter.
+     */
+    private SharedData sharedData() {
+        [
+                getLockWithTimeout: { String name, long timeout, Handler<AsyncResult<Lock>> handler ->
+                    if ( this.locked ) {
+                        handler.handle( Future.<Lock> failedFuture( new Exception( "Timeout!" ) ) )
+                    }
+                    else {
+                        this.locked = true
+                        handler.handle( Future.succeededFuture( lock() ) )
+                    }
+                },
+                getCounter        : { String name, Handler<AsyncResult<Counter>> handler ->
+                    handler.handle( Future.succeededFuture( [
+                            incrementAndGet: { Handler<AsyncResult<Long>> counterHandler ->
+                                counterHandler.handle( Future.succeededFuture( this.fence.incrementAndGet() ) )
+                            }
+                    ] as Counter ) )
+                }
+        ] as SharedData
+    }
+
+    @CompileDynamic
+    private APSVertxClusterDataStoreServiceProvider provider() {
+        APSVertxClusterDataStoreServiceProvider provider = new APSVertxClusterDataStoreServiceProvider()
+        provider.@sharedData = sharedData()
+        provider
+    }
+
+    /**
+     * Acquires a lock and returns it, or null if it failed.
+     */
+    private static APSLockable.APSLock tryLock( APSVertxClusterDataStoreServiceProvider provider, long leaseMs ) {
+        APSLockable.APSLock acquired = null
+        provider.tryLock( "test.key", 100, leaseMs ) { APSResult<APSLockable.APSLock> res ->
+            if ( res.success() ) acquired = res.result().content()
+        }
+        acquired
+    }
+
+    @Test
+    void testLeaseExpiryReleasesLock() throws Exception {
+
+        VxLock vxLock = new VxLock( lock: lock(), fencingToken: 1 )
+        vxLock.startLease( 100 )
+        assert vxLock.held
+
+        waitFor( 10, 3000 ) { !vxLock.held }
+
+        assert !vxLock.held
+        assert this.releases.get() == 1
+    }
+
+    @Test
+    void testReleaseAfterExpiryFails() throws Exception {
+
+        VxLock vxLock = new VxLock( lock: lock(), fencingToken: 1 )
+        vxLock.startLease( 50 )
+        waitFor( 10, 3000 ) { !vxLock.held }
+
+        APSResult result = null
+        vxLock.release { APSResult res -> result = res }
+
+        assert result != null
+        assert !result.success()
+        assert result.failure() instanceof APSInvalidException
+        // Not released again.
+        assert this.releases.get() == 1
+    }
+
+    @Test
+    void testReleaseBeforeExpirySucceeds() throws Exception {
+
+        VxLock vxLock = new VxLock( lock: lock(), fencingToken: 1 )
+        vxLock.startLease( 60000 )
+
+        APSResult result = null
+        vxLock.release { APSResult res -> result = res }
+
+        assert result.success()
+        assert !vxLock.held
+        assert this.releases.get() == 1
+    }
+
+    @Test
+    void testFencingTokensIncreasePerAcquisition() throws Exception {
+
+        APSVertxClusterDataStoreServiceProvider provider = provider()
+
+        APSLockable.APSLock first = tryLock( provider, 50 )
+        assert first != null
+
+        // Held, so this fails.
+        assert tryLock( provider, 0 ) == null
+
+        // The lease of the first holder expires, letting a second in with a higher token.
+        waitFor( 10, 3000 ) { !this.locked }
+        APSLockable.APSLock second = tryLock( provider, 0 )
+        assert second != null
+        assert second.fencingToken > first.fencingToken
+
+        // The first holder learns that its lease expired, and does not release the lock of the second.
+        APSResult result = null
+        first.release { APSResult res -> result = res }
+        assert !result.success()
+        assert this.locked
+
+        second.release( null )
+        APSLockable.APSLock third = tryLock( provider, 0 )
+        assert third.fencingToken > second.fencingToken
+    }
+}
@@ -101,6 +101,8 @@ class ClusterStoreTestClient {
 
                         this.logger.info( "Current lock for writing: ${lockRes.result().content()}" )
 
+                        lockRes.result().content().release( null )
+
                         stored = true
                 }
             } else {
@@ -136,6 +138,8 @@ class ClusterStoreTestClient {
 
                         this.logger.error( "Retrieval failed!", result.failure() )
                     }
+
+                    lockRes.result().content().release( null )
                 }
             }
             else {
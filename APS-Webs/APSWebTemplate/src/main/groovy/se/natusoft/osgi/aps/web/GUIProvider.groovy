@@ -172,7 +172,7 @@ class GUIProvider {
             }
         }
 
-        this.logger.debug( "Sent: ${ reply } to cluster:${ address }" )
+        this.logger.debug { "Sent: ${ reply } to cluster:${ address }" }
 
     }
 
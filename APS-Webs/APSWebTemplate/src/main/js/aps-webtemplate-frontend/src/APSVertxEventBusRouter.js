@@ -6,6 +6,9 @@ import APSBusAddress from "./APSBusAddress"
 import APSAlerter from "./APSAlerter"
 import { apsObject } from "./Utils"
 
+/** Must match CoalescingBridgeHandler.BATCH_ADDRESS in the backend. */
+const BRIDGE_BATCH_ADDRESS = "aps.bridge.batch";
+
 /**
  * This represents a router and is responsible for sending and subscribing to messages.
  *
@@ -72,12 +75,46 @@ export default class APSVertxEventBusRouter implements APSEventBusRouter {
         this.eventBus = new EventBus( window.location.protocol + "//" + window.location.hostname +
             ( window.location.port !== "" ? ( ":" + window.location.port ) : "" ) + "/eventbus/", {} );
 
+        // The backend can coalesce messages into one frame to this address. This is handled locally,
+        // not registered with the backend.
+        this.eventBus.handlers[BRIDGE_BATCH_ADDRESS] = [ ( alwaysNull, batch ) => {
+            for ( let frame of batch.body ) {
+                this.deliverFrame( frame );
+            }
+        } ];
+
         // This should be empty first time.
         for ( let sub of this.activeSubscribers ) {
             this.subscribe( sub.headers, sub.callback );
         }
     }
 
+    /**
+     * Delivers a frame unpacked from a coalesced frame the same way the event bus client delivers
+     * a received frame.
+     *
+     * @param frame The frame to deliver.
+     */
+    deliverFrame( frame: {} ) {
+
+        let handlers = this.eventBus.handlers[frame.address];
+
+        if ( handlers ) {
+            // Copy since a handler might unregister itself.
+            for ( let handler of handlers.slice( 0 ) ) {
+                handler( null, frame );
+            }
+        }
+        else if ( this.eventBus.replyHandlers[frame.address] ) {
+            let handler = this.eventBus.replyHandlers[frame.address];
+            delete this.eventBus.replyHandlers[frame.address];
+            handler( null, frame );
+        }
+        else {
+            this.logger.error( `No handler found for coalesced message to '${frame.address}'!` );
+        }
+    }
+
     /**
      * Handles the bus becoming available and triggers any actions that has been done before the bus was
      * connected.
@@ -32,6 +32,7 @@
  *     tommy ()
  *         Changes:
  *         2015-01-23: Created!
+ *         2026-10-18: Registrations get their own copy of the properties like in a real framework.
  *
  */
 package se.natusoft.osgi.aps.runtime;
@@ -41,6 +42,7 @@ import org.osgi.framework.*;
 import java.io.File;
 import java.io.InputStream;
 import java.util.Dictionary;
+import java.util.Enumeration;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
@@ -210,9 +212,18 @@ public class APSBundleContext implements BundleContext {
     @SuppressWarnings("unchecked")
     @Override
     public ServiceRegistration registerService( String clazz, Object service, Dictionary properties ) {
-        if ( properties.get( Constants.OBJECTCLASS ) == null ) {
-            properties.put( Constants.OBJECTCLASS, new String[]{ clazz } );
+        // The same properties are often passed for several service APIs of the same instance, so each
+        // registration must have its own copy or they would all share the first objectClass.
+        Properties props = new Properties();
+        if ( properties != null ) {
+            Enumeration keys = properties.keys();
+            while ( keys.hasMoreElements() ) {
+                Object key = keys.nextElement();
+                props.put( key, properties.get( key ) );
+            }
         }
+        props.put( Constants.OBJECTCLASS, new String[]{ clazz } );
+        properties = props;
         APSServiceRegistration sr = new APSServiceRegistration( clazz, new APSServiceReference( this, properties ), this.bundle );
         try {
             this.bundle.getServiceRegistry().registerService( sr, service, Class.forName( clazz ) );
@@ -32,6 +32,7 @@
  *     tommy ()
  *         Changes:
  *         2015-01-23: Created!
+ *         2026-10-18: hold() checks its condition every 50 ms.
  *
  */
 package se.natusoft.osgi.aps.runtime;
@@ -430,14 +431,11 @@ public class APSRuntime {
 
             try {
                 if ( this.condition != null ) {
-                    int maxCount = (int) ( TimeUnit.MILLISECONDS.convert( this.maxTime, this.timeUnit ) / 200 );
-                    int count = 0;
+                    // Checked on this thread only, every 50 ms.
+                    long deadline = System.nanoTime() + this.timeUnit.toNanos( this.maxTime );
                     while ( this.condition.call() ) {
-                        synchronized ( this ) {
-                            wait( 200 );
-                        }
-                        ++count;
-                        if ( count > maxCount ) {
+                        long remaining = deadline - System.nanoTime();
+                        if ( remaining <= 0 ) {
                             if ( this.exceptionOnTimeout ) {
                                 throw new APSException( "The current hold() timed out!" );
                             } else {
@@ -445,6 +443,7 @@ public class APSRuntime {
                             }
                             break;
                         }
+                        TimeUnit.NANOSECONDS.sleep( Math.min( TimeUnit.MILLISECONDS.toNanos( 50 ), remaining ) );
                     }
                 } else {
                     Thread.sleep( TimeUnit.MILLISECONDS.convert( this.maxTime, this.timeUnit ) );